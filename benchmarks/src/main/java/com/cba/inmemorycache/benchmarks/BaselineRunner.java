@@ -0,0 +1,55 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.profile.GCProfiler;
+
+/**
+ * Runs <code>CacheWorkloadBenchmark</code> with the GC profiler at 1, 4 and 16
+ * threads and writes the results of each thread count as JSON into a
+ * directory, to be kept as the baseline of the engines or compared with it,
+ * e.g. with a JMH visualizer.
+ * <p>
+ * Run with
+ * <code>java -cp target/benchmarks.jar com.cba.inmemorycache.benchmarks.BaselineRunner results [jmh options]</code>;
+ * the JMH options, such as <code>-p memoryCacheType=LRU</code>, narrow the
+ * suite.
+ * </p>
+ */
+public class BaselineRunner {
+
+	/** The thread counts of the baseline. */
+	static final int[] THREADS = { 1, 4, 16 };
+
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException {
+		File directory = new File(args.length > 0 ? args[0] : "results");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create " + directory);
+		}
+		String[] jmhArgs = new String[Math.max(0, args.length - 1)];
+		System.arraycopy(args, args.length - jmhArgs.length, jmhArgs, 0,
+				jmhArgs.length);
+		CommandLineOptions commandLine = new CommandLineOptions(jmhArgs);
+
+		for (int threads : THREADS) {
+			ChainedOptionsBuilder options = new OptionsBuilder()
+					.parent(commandLine)
+					.include(CacheWorkloadBenchmark.class.getSimpleName())
+					.addProfiler(GCProfiler.class)
+					.threads(threads)
+					.resultFormat(ResultFormatType.JSON)
+					.result(new File(directory, "threads-" + threads + ".json")
+							.getPath());
+			new Runner(options.build()).run();
+		}
+	}
+
+}
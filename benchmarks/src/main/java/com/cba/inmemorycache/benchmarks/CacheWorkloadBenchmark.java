@@ -0,0 +1,201 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.CacheElement;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+
+/**
+ * Exercises every operation of <code>MemoryCache</code> under the key
+ * distributions of <code>KeyDistribution</code>, for each cache
+ * implementation and size.
+ * <p>
+ * The benchmarks run both in throughput and in sample time mode, the latter
+ * reporting the p50, p99 and p999 latencies. <code>-prof gc</code> adds the
+ * allocation rate, and <code>-t</code> the number of threads;
+ * <code>BaselineRunner</code> runs the suite at several thread counts and
+ * keeps the results as JSON, to compare an engine change against them.
+ * </p>
+ * <p>
+ * Run with <code>java -jar target/benchmarks.jar CacheWorkloadBenchmark -prof gc</code>,
+ * narrowing the parameters with <code>-p</code>, e.g.
+ * <code>-p memoryCacheType=LRU -p distribution=ZIPF</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class CacheWorkloadBenchmark {
+
+	/** The cache implementation under test. */
+	@Param({ "LRU", "SEGMENTED_LRU", "CONCURRENT_LRU", "TINY_LFU", "OFF_HEAP",
+			"LONG_KEY" })
+	MemoryCacheType memoryCacheType;
+
+	/** The maximum number of elements in the cache. */
+	@Param({ "10000", "1000000" })
+	int size;
+
+	/** The distribution of the keys accessed. */
+	@Param({ "UNIFORM", "ZIPF", "SCAN" })
+	KeyDistribution distribution;
+
+	/** Percentage of the operations of <code>mixed</code> that are gets. */
+	@Param({ "100", "90", "50" })
+	int readPercent;
+
+	/** The name of the cache under test. */
+	String cacheName;
+
+	/** The cache under test. */
+	MemoryCache cache;
+
+	/** Pre-boxed keys, so the benchmark does not measure boxing. */
+	Integer[] keys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(memoryCacheType);
+		cacheAttributes.setMaxEntries(size);
+		cacheName = "CacheWorkloadBenchmark-" + memoryCacheType + "-" + size;
+		cache = InMemoryCache.getInstance().getCache(cacheName, cacheAttributes);
+		cache.removeAll();
+
+		keys = new Integer[distribution.keyCount(size)];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = Integer.valueOf(i);
+		}
+		for (int i = 0; i < size; i++) {
+			cache.put(keys[i], keys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cache.removeAll();
+	}
+
+	/**
+	 * The key sequence and the operation mix of a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		/** Sequence of key indexes, length is a power of two. */
+		int[] sequence;
+
+		/** Whether each operation of <code>mixed</code> is a get. */
+		boolean[] reads;
+
+		/** Position in the sequences. */
+		int index;
+
+		@Setup(Level.Trial)
+		public void setUp(CacheWorkloadBenchmark benchmark) {
+			Random random = new Random(Thread.currentThread().getId());
+			sequence = benchmark.distribution.sequence(benchmark.size, 1 << 20,
+					random);
+			reads = new boolean[1 << 10];
+			for (int i = 0; i < reads.length; i++) {
+				reads[i] = random.nextInt(100) < benchmark.readPercent;
+			}
+		}
+
+	}
+
+	/**
+	 * Returns the next key of the sequence of a thread.
+	 *
+	 * @param state The state of the benchmark thread.
+	 * @return the key.
+	 */
+	private Integer nextKey(ThreadState state) {
+		return keys[state.sequence[state.index++ & (state.sequence.length - 1)]];
+	}
+
+	/**
+	 * Performs a get, or a put, in the proportion of <code>readPercent</code>.
+	 *
+	 * @param state The state of the benchmark thread.
+	 * @return the element read, to be consumed by JMH.
+	 * @throws IOException Error when accessing the cache.
+	 */
+	@Benchmark
+	public CacheElement mixed(ThreadState state) throws IOException {
+		boolean read = state.reads[state.index & (state.reads.length - 1)];
+		Integer key = nextKey(state);
+		if (read) {
+			return cache.get(key);
+		}
+		cache.put(key, key);
+		return null;
+	}
+
+	@Benchmark
+	public CacheElement get(ThreadState state) throws IOException {
+		return cache.get(nextKey(state));
+	}
+
+	@Benchmark
+	public void put(ThreadState state) throws IOException {
+		Integer key = nextKey(state);
+		cache.put(key, key);
+	}
+
+	@Benchmark
+	public void update(ThreadState state) throws IOException {
+		Integer key = nextKey(state);
+		cache.update(new CacheElement(cacheName, key, key));
+	}
+
+	@Benchmark
+	public boolean removeAndPut(ThreadState state) throws IOException {
+		Integer key = nextKey(state);
+		boolean removed = cache.remove(key);
+		cache.put(key, key);
+		return removed;
+	}
+
+	@Benchmark
+	public int freeElementsAndPut(ThreadState state) throws IOException {
+		Integer key = nextKey(state);
+		int freed = cache.freeElements(1);
+		cache.put(key, key);
+		return freed;
+	}
+
+	/**
+	 * Measures a maintenance pass over the cache, the cost
+	 * <code>CacheMaintenance</code> pays on every interval.
+	 *
+	 * @throws IOException Error when cleaning up the cache.
+	 */
+	@Benchmark
+	public void cleanup() throws IOException {
+		cache.cleanup();
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.CacheElement;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+
+/**
+ * Compares the throughput of the cache implementations under a read-mostly
+ * workload at 1, 4, 16 and 64 threads. Every operation is a get, except for
+ * one in <code>writeEvery</code> which is a put.
+ * <p>
+ * Run with <code>java -jar target/benchmarks.jar ConcurrentThroughputBenchmark</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentThroughputBenchmark {
+
+	/** Number of elements in the cache. */
+	static final int SIZE = 1 << 16;
+
+	/** The cache implementation under test. */
+	@Param({ "LRU", "SEGMENTED_LRU", "CONCURRENT_LRU" })
+	MemoryCacheType memoryCacheType;
+
+	/** One operation in this many is a put. */
+	@Param({ "10" })
+	int writeEvery;
+
+	/** The cache under test. */
+	MemoryCache cache;
+
+	/** Pre-boxed keys, so the benchmark does not measure boxing. */
+	Integer[] keys;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(memoryCacheType);
+		cacheAttributes.setMaxEntries(SIZE);
+		cache = InMemoryCache.getInstance().getCache(
+				"ConcurrentThroughputBenchmark-" + memoryCacheType,
+				cacheAttributes);
+		cache.removeAll();
+
+		keys = new Integer[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			keys[i] = Integer.valueOf(i);
+			cache.put(keys[i], keys[i]);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cache.removeAll();
+	}
+
+	/**
+	 * The random key sequence of a benchmark thread.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		/** Random sequence of key indexes, length is a power of two. */
+		int[] sequence;
+
+		/** Position in the sequence. */
+		int index;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Random random = new Random(Thread.currentThread().getId());
+			sequence = new int[1 << 16];
+			for (int i = 0; i < sequence.length; i++) {
+				sequence[i] = random.nextInt(SIZE);
+			}
+		}
+
+	}
+
+	/**
+	 * Performs a get, or a put for one in <code>writeEvery</code> operations.
+	 *
+	 * @param state The state of the benchmark thread.
+	 * @return the element read, to be consumed by JMH.
+	 * @throws IOException Error when accessing the cache.
+	 */
+	private CacheElement operation(ThreadState state) throws IOException {
+		int i = state.index++;
+		Integer key = keys[state.sequence[i & (state.sequence.length - 1)]];
+		if (i % writeEvery == 0) {
+			cache.put(key, key);
+			return null;
+		}
+		return cache.get(key);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public CacheElement threads01(ThreadState state) throws IOException {
+		return operation(state);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public CacheElement threads04(ThreadState state) throws IOException {
+		return operation(state);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public CacheElement threads16(ThreadState state) throws IOException {
+		return operation(state);
+	}
+
+	@Benchmark
+	@Threads(64)
+	public CacheElement threads64(ThreadState state) throws IOException {
+		return operation(state);
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+import org.openjdk.jol.vm.VM;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.CacheElement;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+
+/**
+ * Reports the memory the caches spend per entry on top of the keys and the
+ * values, as measured by JOL by walking the object graph of a filled cache.
+ * <p>
+ * Run with
+ * <code>java -cp target/benchmarks.jar com.cba.inmemorycache.benchmarks.FootprintReport [entries]</code>.
+ * The layout of <code>CacheElement</code> is printed first, then the
+ * overhead per entry of each cache implementation. The fixed structures of
+ * a cache, like its timer wheel, are spread over the entries, so use enough
+ * entries for them not to count, 100K by default.
+ * </p>
+ */
+public class FootprintReport {
+
+	/**
+	 * Runs the report.
+	 *
+	 * @param args The number of entries, 100000 by default.
+	 * @throws IOException Error when accessing a cache.
+	 */
+	public static void main(String[] args) throws IOException {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+		System.out.println(ClassLayout.parseClass(CacheElement.class)
+				.toPrintable());
+
+		System.out.printf("%-14s %10s %14s%n", "type", "entries",
+				"bytesPerEntry");
+		for (MemoryCacheType type : MemoryCacheType.values()) {
+			System.out.printf("%-14s %10d %14.1f%n", type, entries,
+					overheadPerEntry(type, entries));
+		}
+	}
+
+	/**
+	 * Fills a new cache and measures its overhead per entry.
+	 *
+	 * @param type The cache implementation.
+	 * @param entries The number of entries.
+	 * @return the bytes used by the cache per entry, besides the keys and the
+	 *         values.
+	 * @throws IOException Error when accessing the cache.
+	 */
+	static double overheadPerEntry(MemoryCacheType type, int entries)
+			throws IOException {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(type);
+		MemoryCache cache = InMemoryCache.getInstance().getCache(
+				"FootprintReport-" + type + "-" + entries, cacheAttributes);
+
+		Object[] keysAndValues = new Object[2 * entries];
+		for (int i = 0; i < entries; i++) {
+			Integer key = new Integer(i);
+			Integer value = new Integer(-i - 1);
+			keysAndValues[2 * i] = key;
+			keysAndValues[2 * i + 1] = value;
+			cache.put(key, value);
+		}
+
+		long total = GraphLayout.parseInstance(cache).totalSize();
+		long keysAndValuesSize = GraphLayout.parseInstance(keysAndValues)
+				.totalSize() - VM.current().sizeOf(keysAndValues);
+		if (type == MemoryCacheType.OFF_HEAP) {
+			// the values are not on the heap
+			keysAndValuesSize /= 2;
+		}
+		cache.removeAll();
+		return (double) (total - keysAndValuesSize) / entries;
+	}
+
+}
@@ -0,0 +1,164 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.InvalidatingMemoryCache;
+import com.cba.inmemorycache.InvalidationBus;
+import com.cba.inmemorycache.InvalidationTransport;
+import com.cba.inmemorycache.LoopbackTransport;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MulticastTransport;
+
+/**
+ * Measures how long an invalidation takes to reach a peer, and how many
+ * invalidations and messages per second the bus carries.
+ * <p>
+ * Two cache managers of the JVM play two nodes, over the loopback transport
+ * or over UDP multicast on the local host. The latency is that of single
+ * removes, each waiting for the peer to apply it, so it includes the linger
+ * time of the bus. The throughput is that of a burst of removes, until the
+ * peer has applied them all or 10 seconds have passed; over multicast, the
+ * report also gives the invalidations lost.
+ * </p>
+ * <p>
+ * Run with
+ * <code>java -cp target/benchmarks.jar com.cba.inmemorycache.benchmarks.InvalidationPropagation [loopback|multicast] [keys]</code>,
+ * loopback and 1M keys by default.
+ * </p>
+ */
+public class InvalidationPropagation {
+
+	/** The number of removes timed one by one */
+	private static final int LATENCY_SAMPLES = 2000;
+
+	/**
+	 * Runs the measure.
+	 *
+	 * @param args The transport and the number of keys of the burst.
+	 * @throws Exception Error when opening the transports or waiting.
+	 */
+	public static void main(String[] args) throws Exception {
+		String transportName = args.length > 0 ? args[0] : "loopback";
+		int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		InMemoryCache node1 = new InMemoryCache() {
+		};
+		InMemoryCache node2 = new InMemoryCache() {
+		};
+		InvalidationTransport transport1;
+		InvalidationTransport transport2;
+		if (transportName.equals("multicast")) {
+			InetAddress group = InetAddress.getByName("239.255.42.99");
+			transport1 = new MulticastTransport(group, 4446);
+			transport2 = new MulticastTransport(group, 4446);
+		} else {
+			LoopbackTransport loopback = new LoopbackTransport();
+			transport1 = loopback;
+			transport2 = new LoopbackTransport(loopback);
+		}
+
+		try {
+			InvalidationBus bus1 = node1.startInvalidationBus(transport1);
+			InvalidationBus bus2 = node2.startInvalidationBus(transport2);
+			InvalidatingMemoryCache cache1 = node1
+					.getInvalidatingCache("InvalidationPropagation");
+			MemoryCache cache2 = node2.getCache("InvalidationPropagation");
+
+			long[] latencies = new long[LATENCY_SAMPLES];
+			for (int i = 0; i < LATENCY_SAMPLES; i++) {
+				cache2.put(Long.valueOf(i), "value " + i);
+				long applied = bus2.getAppliedInvalidations();
+				long start = System.nanoTime();
+				cache1.remove(Long.valueOf(i));
+				if (!await(bus2, applied + 1, start + 1000000000L)) {
+					latencies[i] = Long.MAX_VALUE;
+					continue;
+				}
+				latencies[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(latencies);
+
+			long applied = bus2.getAppliedInvalidations();
+			long messages = bus1.getSentMessages();
+			long start = System.nanoTime();
+			for (int i = 0; i < keys; i++) {
+				cache1.remove(Long.valueOf(i));
+			}
+			await(bus2, applied + keys, start + 10000000000L);
+			long elapsed = System.nanoTime() - start;
+			long received = bus2.getAppliedInvalidations() - applied;
+			messages = bus1.getSentMessages() - messages;
+
+			System.out.printf("%10s %10s %10s %10s %10s%n", "transport",
+					"p50us", "p99us", "p999us", "lost");
+			System.out.printf("%10s %10.1f %10.1f %10.1f %10d%n",
+					transportName, percentile(latencies, 0.5),
+					percentile(latencies, 0.99), percentile(latencies, 0.999),
+					countLost(latencies));
+			System.out.printf("%10s %10s %12s %12s %10s%n", "keys", "ms",
+					"keys/s", "messages/s", "lost");
+			System.out.printf("%10d %10d %12.0f %12.0f %10d%n", keys,
+					elapsed / 1000000, received * 1e9 / elapsed, messages
+							* 1e9 / elapsed, keys - received);
+		} finally {
+			node1.stopInvalidationBus();
+			node2.stopInvalidationBus();
+		}
+	}
+
+	/**
+	 * Waits for a peer to have applied a number of invalidations.
+	 *
+	 * @param bus The bus of the peer.
+	 * @param count The number of invalidations.
+	 * @param deadline The time to give up at, in nanoseconds.
+	 * @return true if the invalidations have been applied in time.
+	 */
+	private static boolean await(InvalidationBus bus, long count, long deadline) {
+		while (bus.getAppliedInvalidations() < count) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			Thread.yield();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a percentile of sorted latencies in microseconds.
+	 *
+	 * @param latencies The latencies in nanoseconds, sorted.
+	 * @param fraction The percentile, between 0 and 1.
+	 * @return the latency in microseconds.
+	 */
+	private static double percentile(long[] latencies, double fraction) {
+		return latencies[(int) Math.min(latencies.length - 1, latencies.length
+				* fraction)] / 1000.0;
+	}
+
+	/**
+	 * Counts the invalidations which never arrived.
+	 *
+	 * @param latencies The latencies, Long.MAX_VALUE for the lost ones.
+	 * @return the number of lost invalidations.
+	 */
+	private static int countLost(long[] latencies) {
+		int lost = 0;
+		for (long latency : latencies) {
+			if (latency == Long.MAX_VALUE) {
+				lost++;
+			}
+		}
+		return lost;
+	}
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private InvalidationPropagation() {
+	}
+
+}
@@ -0,0 +1,107 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The distributions of the keys accessed by <code>CacheWorkloadBenchmark</code>.
+ * The keys of a sequence are indexes in a key space twice as large as the
+ * cache, so puts evict and some gets miss.
+ */
+public enum KeyDistribution {
+
+	/**
+	 * Every key of the key space is equally likely.
+	 */
+	UNIFORM,
+
+	/**
+	 * Keys drawn from a Zipf distribution (s = 0.99): a few hot keys take most
+	 * of the accesses.
+	 */
+	ZIPF,
+
+	/**
+	 * The Zipf accesses, interrupted every {@link #SCAN_EVERY} accesses by a
+	 * scan over {@link #SCAN_LENGTH} keys out of the key space, like a batch
+	 * job reading through a table.
+	 */
+	SCAN;
+
+	/** Number of accesses between two scans. */
+	static final int SCAN_EVERY = 1 << 14;
+
+	/** Number of keys of a scan. */
+	static final int SCAN_LENGTH = 1 << 12;
+
+	/**
+	 * Returns the number of distinct keys the sequences of a cache can hold.
+	 *
+	 * @param cacheSize The maximum number of elements of the cache.
+	 * @return the number of keys to be boxed in advance.
+	 */
+	int keyCount(int cacheSize) {
+		return this == SCAN ? 3 * cacheSize : 2 * cacheSize;
+	}
+
+	/**
+	 * Generates a sequence of key indexes.
+	 *
+	 * @param cacheSize The maximum number of elements of the cache.
+	 * @param length The length of the sequence.
+	 * @param random The source of randomness.
+	 * @return the key indexes, all below <code>keyCount(cacheSize)</code>.
+	 */
+	int[] sequence(int cacheSize, int length, Random random) {
+		int keySpace = 2 * cacheSize;
+		int[] sequence = new int[length];
+		if (this == UNIFORM) {
+			for (int i = 0; i < length; i++) {
+				sequence[i] = random.nextInt(keySpace);
+			}
+			return sequence;
+		}
+
+		// the hot keys are spread over the key space, not packed at its start
+		double[] cdf = new double[keySpace];
+		double sum = 0;
+		for (int i = 0; i < keySpace; i++) {
+			sum += 1.0 / Math.pow(i + 1, 0.99);
+			cdf[i] = sum;
+		}
+		int[] ranks = shuffledKeys(keySpace, random);
+		int coldKey = 0;
+		for (int i = 0; i < length; i++) {
+			if (this == SCAN && i % SCAN_EVERY < SCAN_LENGTH) {
+				sequence[i] = keySpace + coldKey;
+				coldKey = (coldKey + 1) % cacheSize;
+				continue;
+			}
+			int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+			sequence[i] = ranks[rank >= 0 ? rank : -rank - 1];
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns the keys of a key space in a random order.
+	 *
+	 * @param keySpace The number of keys.
+	 * @param random The source of randomness.
+	 * @return the shuffled keys.
+	 */
+	private static int[] shuffledKeys(int keySpace, Random random) {
+		int[] keys = new int[keySpace];
+		for (int i = 0; i < keySpace; i++) {
+			keys[i] = i;
+		}
+		for (int i = keySpace - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int key = keys[i];
+			keys[i] = keys[j];
+			keys[j] = key;
+		}
+		return keys;
+	}
+
+}
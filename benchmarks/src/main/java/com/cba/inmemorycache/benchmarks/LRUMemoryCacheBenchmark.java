@@ -0,0 +1,116 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cba.inmemorycache.CacheElement;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+
+/**
+ * Measures the per operation latency of <code>LRUMemoryCache</code> as the
+ * number of cached elements grows. With constant time LRU ordering the
+ * latency should stay flat apart from cache misses of the CPU caches.
+ * <p>
+ * Run with <code>java -jar target/benchmarks.jar LRUMemoryCacheBenchmark</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class LRUMemoryCacheBenchmark {
+
+	/** Number of elements in the cache. */
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	int size;
+
+	/** The cache under test. */
+	MemoryCache cache;
+
+	/** Pre-boxed keys, so the benchmark does not measure boxing. */
+	Integer[] keys;
+
+	/** Random sequence of key indexes, length is a power of two. */
+	int[] sequence;
+
+	/** Position in the sequence. */
+	int index;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		cache = InMemoryCache.getInstance().getCache("LRUMemoryCacheBenchmark-" + size);
+		cache.removeAll();
+
+		keys = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = Integer.valueOf(i);
+			cache.put(keys[i], keys[i]);
+		}
+
+		Random random = new Random(42);
+		sequence = new int[1 << 20];
+		for (int i = 0; i < sequence.length; i++) {
+			sequence[i] = random.nextInt(size);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		cache.removeAll();
+	}
+
+	/**
+	 * Returns the next key of the random sequence.
+	 *
+	 * @return the next key.
+	 */
+	private Integer nextKey() {
+		return keys[sequence[index++ & (sequence.length - 1)]];
+	}
+
+	@Benchmark
+	public CacheElement get() throws IOException {
+		return cache.get(nextKey());
+	}
+
+	@Benchmark
+	public void put() throws IOException {
+		Integer key = nextKey();
+		cache.put(key, key);
+	}
+
+	@Benchmark
+	public boolean removeAndPut() throws IOException {
+		Integer key = nextKey();
+		boolean removed = cache.remove(key);
+		cache.put(key, key);
+		return removed;
+	}
+
+	@Benchmark
+	public int freeElementsAndPut() throws IOException {
+		Integer key = nextKey();
+		int freed = cache.freeElements(1);
+		cache.put(key, key);
+		return freed;
+	}
+
+}
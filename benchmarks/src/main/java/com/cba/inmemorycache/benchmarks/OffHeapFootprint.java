@@ -0,0 +1,146 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+import com.cba.inmemorycache.OffHeapMemoryCache;
+
+/**
+ * Compares the heap footprint and the garbage collection time of an
+ * on-heap and an off-heap cache holding the same elements.
+ * <p>
+ * Each cache is filled with <code>entries</code> values of 100 bytes, then
+ * goes through as many random reads and replacing puts, the churn of a busy
+ * cache. The report gives the heap used by the full cache after a
+ * collection, the memory allocated outside the heap, and the number and
+ * total time of the collections during the churn.
+ * </p>
+ * <p>
+ * Run with
+ * <code>java -Xmx8g -XX:MaxDirectMemorySize=4g -cp target/benchmarks.jar com.cba.inmemorycache.benchmarks.OffHeapFootprint [entries...]</code>,
+ * 10M entries need about twice that.
+ * </p>
+ */
+public class OffHeapFootprint {
+
+	/** The size of the values in bytes. */
+	static final int VALUE_SIZE = 100;
+
+	/** The caches compared. */
+	static final MemoryCacheType[] TYPES = { MemoryCacheType.LRU,
+			MemoryCacheType.OFF_HEAP };
+
+	/**
+	 * Runs the comparison.
+	 *
+	 * @param args The numbers of entries, 1000000 by default.
+	 * @throws IOException Error when accessing a cache.
+	 */
+	public static void main(String[] args) throws IOException {
+		int[] sizes = { 1000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		System.out.printf("%-9s %10s %12s %12s %8s %10s%n", "type", "entries",
+				"heapMB", "offHeapMB", "gcCount", "gcTimeMs");
+		for (int entries : sizes) {
+			for (MemoryCacheType type : TYPES) {
+				run(type, entries);
+			}
+		}
+	}
+
+	/**
+	 * Fills and churns a new cache, then prints its line of the report.
+	 *
+	 * @param type The cache implementation.
+	 * @param entries The number of entries.
+	 * @throws IOException Error when accessing the cache.
+	 */
+	static void run(MemoryCacheType type, int entries) throws IOException {
+		long baseline = usedHeapAfterGc();
+
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(type);
+		MemoryCache cache = InMemoryCache.getInstance().getCache(
+				"OffHeapFootprint-" + type + "-" + entries, cacheAttributes);
+		for (int i = 0; i < entries; i++) {
+			cache.put(Integer.valueOf(i), new byte[VALUE_SIZE]);
+		}
+		long heap = usedHeapAfterGc() - baseline;
+		long offHeap = 0;
+		if (cache instanceof OffHeapMemoryCache) {
+			offHeap = ((OffHeapMemoryCache) cache).getOffHeapAllocatedBytes();
+		}
+
+		long gcCount = gcCount();
+		long gcTime = gcTime();
+		Random random = new Random(42);
+		for (int i = 0; i < entries; i++) {
+			Integer key = Integer.valueOf(random.nextInt(entries));
+			if ((i & 3) == 0) {
+				cache.put(key, new byte[VALUE_SIZE]);
+			} else {
+				cache.get(key);
+			}
+		}
+		gcCount = gcCount() - gcCount;
+		gcTime = gcTime() - gcTime;
+
+		System.out.printf("%-9s %10d %12.1f %12.1f %8d %10d%n", type, entries,
+				heap / 1048576.0, offHeap / 1048576.0, gcCount, gcTime);
+		cache.removeAll();
+	}
+
+	/**
+	 * Returns the heap used after a full collection.
+	 *
+	 * @return the used heap in bytes.
+	 */
+	static long usedHeapAfterGc() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns the number of collections so far.
+	 *
+	 * @return the number of collections.
+	 */
+	static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the time spent in collections so far.
+	 *
+	 * @return the collection time in milliseconds.
+	 */
+	static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+}
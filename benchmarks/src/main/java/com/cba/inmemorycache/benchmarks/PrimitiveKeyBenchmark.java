@@ -0,0 +1,129 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.CacheElement;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.LongKeyMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+
+/**
+ * Compares the <code>long</code> keyed cache with the LRU cache looked up by
+ * boxed keys. The keys are not pre-boxed: boxing is the cost the primitive
+ * cache avoids.
+ * <p>
+ * Run with
+ * <code>java -jar target/benchmarks.jar PrimitiveKeyBenchmark -prof gc</code>;
+ * <code>gc.alloc.rate.norm</code> should be about 0 B/op for the primitive
+ * operations.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class PrimitiveKeyBenchmark {
+
+	/** Number of elements in the caches. */
+	@Param({ "1000", "100000", "1000000" })
+	int size;
+
+	/** The LRU cache, looked up by boxed keys. */
+	MemoryCache boxed;
+
+	/** The primitive keyed cache. */
+	LongKeyMemoryCache<String> primitive;
+
+	/** The values, shared by both caches. */
+	String[] values;
+
+	/** Random sequence of keys, length is a power of two. */
+	long[] sequence;
+
+	/** Position in the sequence. */
+	int index;
+
+	@SuppressWarnings("unchecked")
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		InMemoryCache manager = InMemoryCache.getInstance();
+		boxed = manager.getCache("PrimitiveKeyBenchmark-boxed-" + size);
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.LONG_KEY);
+		primitive = (LongKeyMemoryCache<String>) manager.getCache(
+				"PrimitiveKeyBenchmark-primitive-" + size, cacheAttributes);
+		boxed.removeAll();
+		primitive.removeAll();
+
+		values = new String[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = "data " + i;
+			boxed.put(Long.valueOf(i), values[i]);
+			primitive.put(i, values[i]);
+		}
+
+		Random random = new Random(42);
+		sequence = new long[1 << 20];
+		for (int i = 0; i < sequence.length; i++) {
+			sequence[i] = random.nextInt(size);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		boxed.removeAll();
+		primitive.removeAll();
+	}
+
+	/**
+	 * Returns the next key of the random sequence.
+	 *
+	 * @return the next key.
+	 */
+	private long nextKey() {
+		return sequence[index++ & (sequence.length - 1)];
+	}
+
+	@Benchmark
+	public CacheElement boxedGet() throws IOException {
+		return boxed.get(Long.valueOf(nextKey()));
+	}
+
+	@Benchmark
+	public String primitiveGet() {
+		return primitive.get(nextKey());
+	}
+
+	@Benchmark
+	public void boxedPut() throws IOException {
+		long key = nextKey();
+		boxed.put(Long.valueOf(key), values[(int) key]);
+	}
+
+	@Benchmark
+	public void primitivePut() throws IOException {
+		long key = nextKey();
+		primitive.put(key, values[(int) key]);
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cba.inmemorycache.CacheClient;
+import com.cba.inmemorycache.CacheElement;
+import com.cba.inmemorycache.CacheServer;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.RemoteMemoryCache;
+
+/**
+ * Compares the gets answered by the near cache of a remote cache with those
+ * read from a cache server on the local host, one by one and in batches.
+ * <p>
+ * Run with
+ * <code>java -jar target/benchmarks.jar RemoteCacheBenchmark</code>.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class RemoteCacheBenchmark {
+
+	/** Number of elements in the cache of the server. */
+	@Param({ "10000" })
+	int size;
+
+	/** Number of keys read by a batch. */
+	@Param({ "100" })
+	int batch;
+
+	/** The server. */
+	CacheServer server;
+
+	/** The connection to the server. */
+	CacheClient client;
+
+	/** The remote cache, its near cache holding all the keys. */
+	RemoteMemoryCache cache;
+
+	/** Random sequence of keys, length is a power of two. */
+	Long[] sequence;
+
+	/** Position in the sequence. */
+	int index;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		InMemoryCache manager = new InMemoryCache() {
+		};
+		server = new CacheServer(manager, new InetSocketAddress(InetAddress
+				.getLoopbackAddress(), 0));
+		server.start();
+		client = CacheClient.connect(new InetSocketAddress(InetAddress
+				.getLoopbackAddress(), server.getPort()));
+		cache = client.getCache("RemoteCacheBenchmark");
+		for (int i = 0; i < size; i++) {
+			cache.put(Long.valueOf(i), "data " + i);
+		}
+
+		Random random = new Random(42);
+		sequence = new Long[1 << 16];
+		for (int i = 0; i < sequence.length; i++) {
+			sequence[i] = Long.valueOf(random.nextInt(size));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		client.close();
+		server.stop();
+	}
+
+	/**
+	 * Returns the next key of the random sequence.
+	 *
+	 * @return the next key.
+	 */
+	private Long nextKey() {
+		return sequence[index++ & (sequence.length - 1)];
+	}
+
+	@Benchmark
+	public CacheElement nearGet() throws IOException {
+		return cache.get(nextKey());
+	}
+
+	@Benchmark
+	public CacheElement remoteGet() throws IOException {
+		Long key = nextKey();
+		cache.getNearCache().remove(key);
+		return cache.get(key);
+	}
+
+	@Benchmark
+	public Map<Serializable, CacheElement> remoteGetAll() throws IOException {
+		List<Serializable> keys = new ArrayList<Serializable>(batch);
+		for (int i = 0; i < batch; i++) {
+			Long key = nextKey();
+			cache.getNearCache().remove(key);
+			keys.add(key);
+		}
+		return cache.getAll(keys);
+	}
+
+}
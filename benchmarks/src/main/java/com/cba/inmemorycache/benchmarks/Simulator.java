@@ -0,0 +1,167 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+
+/**
+ * Replays synthetic access traces against the cache policies and reports
+ * their hit ratio. Every access is a get, followed by a put on a miss, as a
+ * caller of the cache would do.
+ * <p>
+ * Run with
+ * <code>java -cp target/benchmarks.jar com.cba.inmemorycache.benchmarks.Simulator [cacheSize...]</code>.
+ * </p>
+ * The traces are:
+ * <ul>
+ * <li><code>zipf</code>: keys drawn from a Zipf distribution (s = 0.99)
+ * over 100K keys.</li>
+ * <li><code>scan</code>: the same Zipf accesses, interrupted every 50K
+ * accesses by a scan over 20K keys that are never used again, like a batch
+ * report job.</li>
+ * </ul>
+ */
+public class Simulator {
+
+	/** Number of distinct keys of the Zipf distribution. */
+	static final int KEYS = 100000;
+
+	/** Number of accesses of a trace. */
+	static final int ACCESSES = 1000000;
+
+	/** Number of accesses between two scans. */
+	static final int SCAN_EVERY = 50000;
+
+	/** Number of keys of a scan. */
+	static final int SCAN_LENGTH = 20000;
+
+	/** The policies compared. */
+	static final MemoryCacheType[] POLICIES = { MemoryCacheType.LRU,
+			MemoryCacheType.TINY_LFU };
+
+	/**
+	 * Runs the simulation.
+	 *
+	 * @param args The cache sizes to simulate, 1000 and 10000 by default.
+	 * @throws IOException Error when accessing a cache.
+	 */
+	public static void main(String[] args) throws IOException {
+		int[] cacheSizes = { 1000, 10000 };
+		if (args.length > 0) {
+			cacheSizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				cacheSizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+
+		int[] zipf = zipfTrace(new Random(42));
+		int[] scan = scanTrace(zipf);
+
+		System.out.printf("%-6s %10s %-10s %10s%n", "trace", "cacheSize",
+				"policy", "hitRatio");
+		for (int cacheSize : cacheSizes) {
+			for (MemoryCacheType policy : POLICIES) {
+				report("zipf", cacheSize, policy, simulate(zipf, cacheSize,
+						policy));
+				report("scan", cacheSize, policy, simulate(scan, cacheSize,
+						policy));
+			}
+		}
+	}
+
+	/**
+	 * Replays a trace against a new cache.
+	 *
+	 * @param trace The keys accessed.
+	 * @param cacheSize The maximum number of elements of the cache.
+	 * @param policy The cache implementation.
+	 * @return the hit ratio.
+	 * @throws IOException Error when accessing the cache.
+	 */
+	static double simulate(int[] trace, int cacheSize, MemoryCacheType policy)
+			throws IOException {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(policy);
+		cacheAttributes.setMaxEntries(cacheSize);
+		MemoryCache cache = InMemoryCache.getInstance().getCache(
+				"Simulator-" + policy + "-" + cacheSize + "-"
+						+ System.identityHashCode(trace), cacheAttributes);
+
+		int hits = 0;
+		for (int key : trace) {
+			Integer boxed = Integer.valueOf(key);
+			if (cache.get(boxed) != null) {
+				hits++;
+			} else {
+				cache.put(boxed, boxed);
+			}
+		}
+		cache.removeAll();
+		return (double) hits / trace.length;
+	}
+
+	/**
+	 * Generates keys drawn from a Zipf distribution, by inverting its
+	 * cumulative distribution function.
+	 *
+	 * @param random The source of randomness.
+	 * @return the keys accessed.
+	 */
+	static int[] zipfTrace(Random random) {
+		double[] cdf = new double[KEYS];
+		double sum = 0;
+		for (int i = 0; i < KEYS; i++) {
+			sum += 1.0 / Math.pow(i + 1, 0.99);
+			cdf[i] = sum;
+		}
+
+		int[] trace = new int[ACCESSES];
+		for (int i = 0; i < ACCESSES; i++) {
+			int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+			trace[i] = index >= 0 ? index : -index - 1;
+		}
+		return trace;
+	}
+
+	/**
+	 * Interrupts a trace with scans over keys that are used only once.
+	 *
+	 * @param zipf The trace to be interrupted.
+	 * @return the keys accessed.
+	 */
+	static int[] scanTrace(int[] zipf) {
+		int scans = zipf.length / SCAN_EVERY;
+		int[] trace = new int[zipf.length + scans * SCAN_LENGTH];
+		int next = 0;
+		int coldKey = KEYS;
+		for (int i = 0; i < zipf.length; i++) {
+			if (i > 0 && i % SCAN_EVERY == 0) {
+				for (int j = 0; j < SCAN_LENGTH; j++) {
+					trace[next++] = coldKey++;
+				}
+			}
+			trace[next++] = zipf[i];
+		}
+		return Arrays.copyOf(trace, next);
+	}
+
+	/**
+	 * Prints a line of the report.
+	 *
+	 * @param trace The name of the trace.
+	 * @param cacheSize The maximum number of elements of the cache.
+	 * @param policy The cache implementation.
+	 * @param hitRatio The hit ratio.
+	 */
+	private static void report(String trace, int cacheSize,
+			MemoryCacheType policy, double hitRatio) {
+		System.out.printf("%-6s %10d %-10s %9.2f%%%n", trace, cacheSize,
+				policy, hitRatio * 100);
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.cba.inmemorycache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import com.cba.inmemorycache.CacheAttributes;
+import com.cba.inmemorycache.InMemoryCache;
+import com.cba.inmemorycache.MemoryCache;
+import com.cba.inmemorycache.MemoryCacheType;
+
+/**
+ * Measures the time to write the snapshots of the caches and to restore
+ * them into a new cache manager, as after a restart.
+ * <p>
+ * The entries, <code>Long</code> keys and short <code>String</code> values,
+ * are spread over a number of LRU caches, which are written and restored in
+ * parallel. The report gives the time of each phase, the size
+ * of the snapshots and the restore rate.
+ * </p>
+ * <p>
+ * Run with
+ * <code>java -Xmx4g -cp target/benchmarks.jar com.cba.inmemorycache.benchmarks.SnapshotRestore [entries] [caches]</code>,
+ * 10M entries in 4 caches by default.
+ * </p>
+ */
+public class SnapshotRestore {
+
+	/**
+	 * Runs the measure.
+	 *
+	 * @param args The number of entries and the number of caches.
+	 * @throws IOException Error when writing or reading the snapshots.
+	 */
+	public static void main(String[] args) throws IOException {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		int cacheCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		File directory = Files.createTempDirectory("cache-snapshots").toFile();
+
+		try {
+			InMemoryCache before = new InMemoryCache() {
+			};
+			MemoryCache[] caches = new MemoryCache[cacheCount];
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(MemoryCacheType.LRU);
+			for (int c = 0; c < cacheCount; c++) {
+				caches[c] = before.getCache("SnapshotRestore-" + c,
+						cacheAttributes);
+			}
+			for (int i = 0; i < entries; i++) {
+				caches[i % cacheCount].put(Long.valueOf(i), "value " + i);
+			}
+
+			long start = System.nanoTime();
+			long written = before.writeSnapshots(directory);
+			long writeTime = System.nanoTime() - start;
+			for (MemoryCache cache : caches) {
+				cache.removeAll();
+			}
+			caches = null;
+			System.gc();
+
+			long bytes = 0;
+			for (File file : directory.listFiles()) {
+				bytes += file.length();
+			}
+
+			InMemoryCache after = new InMemoryCache() {
+			};
+			start = System.nanoTime();
+			long restored = after.restoreSnapshots(directory);
+			long restoreTime = System.nanoTime() - start;
+
+			System.out.printf("%10s %7s %10s %10s %10s %12s%n", "entries",
+					"caches", "snapshotMB", "writeMs", "restoreMs",
+					"restored/s");
+			System.out.printf("%10d %7d %10.1f %10d %10d %12.0f%n", written,
+					cacheCount, bytes / 1048576.0, writeTime / 1000000,
+					restoreTime / 1000000, restored * 1e9 / restoreTime);
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+}
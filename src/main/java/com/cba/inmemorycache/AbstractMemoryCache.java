@@ -0,0 +1,484 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>AbstractMemoryCache</code> holds the name and the attributes of a
+ * cache, and provides the parts of a <code>MemoryCache</code> that do not
+ * depend on how the elements are stored.
+ */
+public abstract class AbstractMemoryCache implements MemoryCache, Serializable {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** For logging */
+	private final static Logger log = Logger
+			.getLogger(AbstractMemoryCache.class.getName());
+
+	/** The name of the cache */
+	private String cacheName;
+
+	/** Attributes for elements in this cache */
+	private CacheElementAttributes attributes = new CacheElementAttributes();
+
+	/** Attributes bounding the size of this cache */
+	private CacheAttributes cacheAttributes = new CacheAttributes();
+
+	/** The counters of the operations on this cache */
+	private CacheStatsCounter statsCounter;
+
+	/** The settings shared by the elements created by this cache */
+	private transient volatile ElementProfile profile;
+
+	/**
+	 * Constructs a cache with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	protected AbstractMemoryCache(String cacheName) {
+		this.cacheName = cacheName;
+		this.statsCounter = new CacheStatsCounter(cacheName);
+	}
+
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return the name of the cache.
+	 */
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	/**
+	 * Sets the name for the cache.
+	 *
+	 * @param cacheName the name for the cache.
+	 */
+	public void setCacheName(String cacheName) {
+		this.cacheName = cacheName;
+		statsCounter.setCacheName(cacheName);
+	}
+
+	/**
+	 * Returns the attributes of the elements for tracking their life in the cache.
+	 *
+	 * @return the attributes of the elements for tracking their life in the cache.
+	 */
+	public CacheElementAttributes getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Sets the attributes of the elements for tracking their life in the cache.
+	 *
+	 * @param attributes the attributes of the elements for tracking their life in the cache.
+	 */
+	public void setAttributes(CacheElementAttributes attributes) {
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Returns the attributes bounding the size of this cache.
+	 *
+	 * @return the attributes bounding the size of this cache.
+	 */
+	public CacheAttributes getCacheAttributes() {
+		return cacheAttributes;
+	}
+
+	/**
+	 * Sets the attributes bounding the size of this cache. If the cache is
+	 * over the new limits, the elements are evicted by the following puts and
+	 * cleanups.
+	 *
+	 * @param cacheAttributes the attributes bounding the size of this cache.
+	 */
+	public void setCacheAttributes(CacheAttributes cacheAttributes) {
+		this.cacheAttributes = cacheAttributes;
+		statsCounter.setRecordingLatency(cacheAttributes.isRecordLatency());
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of the cache.
+	 *
+	 * @return the hit, miss, eviction and expiration counts of the cache.
+	 */
+	public CacheStats getStats() {
+		return statsCounter.snapshot();
+	}
+
+	/**
+	 * Returns the current time of the ticker of the cache, the clock the
+	 * elements are timed with.
+	 *
+	 * @return the current time in milliseconds.
+	 */
+	protected final long currentTimeMillis() {
+		return cacheAttributes.getTicker().currentTimeMillis();
+	}
+
+	/**
+	 * Returns the counters the operations on this cache are recorded in.
+	 *
+	 * @return the counters of the cache.
+	 */
+	CacheStatsCounter getStatsCounter() {
+		return statsCounter;
+	}
+
+	/**
+	 * Determines if the elements are kept on the Java heap, so an operation
+	 * is quick enough to run in the thread of the caller of
+	 * <code>AsyncMemoryCache</code>. The slower tiers return false, and their
+	 * operations run on an executor.
+	 *
+	 * @return true if the elements are on the heap.
+	 */
+	boolean isHeapResident() {
+		return true;
+	}
+
+	/**
+	 * Returns the elements of the cache from the least to the most recently
+	 * used one, for a snapshot of the cache. Putting them into an empty cache
+	 * in that order restores their order.
+	 *
+	 * @return the elements of the cache.
+	 * @exception IOException The cache cannot list its elements.
+	 */
+	List<CacheElement> getElementsInAccessOrder() throws IOException {
+		throw new IOException("Cache " + cacheName + " of "
+				+ getClass().getSimpleName() + " cannot list its elements");
+	}
+
+	/**
+	 * Puts an element restored from a snapshot into the cache, with the time
+	 * it was last accessed before the snapshot, which an update sets to now.
+	 * By default the element is updated, then given its last access time,
+	 * which the caches holding the element itself see. The caches holding a
+	 * copy override this method.
+	 *
+	 * @param ce The restored element.
+	 * @param lastAccessTime The time the element was last accessed.
+	 * @exception IOException Error when updating the cache.
+	 */
+	void restore(CacheElement ce, long lastAccessTime) throws IOException {
+		update(ce);
+		ce.setLastAccessTime(lastAccessTime);
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, for a rebalance moving
+	 * them elsewhere. The caches override it to read the keys a page at a
+	 * time under their lock: a key in the cache from the first page to the
+	 * last is returned at least once, a key put or removed meanwhile may or
+	 * may not be. By default the keys of the elements listed by
+	 * <code>getElementsInAccessOrder</code> are returned.
+	 *
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 * @exception IOException The cache cannot list its elements.
+	 */
+	Iterator<Serializable> keys(int pageSize) throws IOException {
+		List<Serializable> keys = new ArrayList<Serializable>();
+		for (CacheElement ce : getElementsInAccessOrder()) {
+			keys.add(ce.getKey());
+		}
+		return keys.iterator();
+	}
+
+	/**
+	 * Records the operations on this cache in the counters of another cache,
+	 * which this cache is a part of.
+	 *
+	 * @param owner The cache this cache is a part of.
+	 */
+	void shareStatsCounter(AbstractMemoryCache owner) {
+		statsCounter = owner.statsCounter;
+	}
+
+	/**
+	 * Constructs a cache element and puts it into the cache.
+	 * <p>
+	 * If the key or the value is null, and IOException is thrown.
+	 * </p>
+	 *
+	 * @param key The key for the object to be cached.
+	 * @param val The object to be cached.
+	 * @exception IOException Error when adding object to the cache.
+	 */
+	public void put(Object key, Object val) throws IOException {
+		if (key == null) {
+			throw new IOException("Key must not be null");
+		} else if (val == null) {
+			throw new IOException("Value must not be null");
+		}
+
+		// Create the element and update
+		try {
+			update(createElement((Serializable) key, (Serializable) val));
+		} catch (Exception e) {
+			log.log(Level.WARNING, e.getMessage());
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Constructs a cache element living for the time an expiry policy gives
+	 * it, and puts it into the cache. The policy stays with the element, so it
+	 * is also asked for a new lifetime when the element is read.
+	 * <p>
+	 * If the key or the value is null, and IOException is thrown.
+	 * </p>
+	 *
+	 * @param key The key for the object to be cached.
+	 * @param val The object to be cached.
+	 * @param expiry The expiry policy, null for the policy of the cache.
+	 * @exception IOException Error when adding object to the cache.
+	 */
+	public void put(Object key, Object val, Expiry expiry) throws IOException {
+		if (key == null) {
+			throw new IOException("Key must not be null");
+		} else if (val == null) {
+			throw new IOException("Value must not be null");
+		}
+
+		// Create the element with its lifetime and update
+		try {
+			update(createElement((Serializable) key, (Serializable) val,
+					expiry != null ? expiry : attributes.getExpiry()));
+		} catch (Exception e) {
+			log.log(Level.WARNING, e.getMessage());
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Gets the items of a number of keys from the cache, one by one. The
+	 * caches taking a lock override it to take the lock once.
+	 *
+	 * @param keys The keys of the items to be retrieved.
+	 * @return The items found, by key.
+	 * @exception IOException Error when retrieving the items.
+	 */
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		Map<Serializable, CacheElement> found = new HashMap<Serializable, CacheElement>();
+		for (Serializable key : keys) {
+			CacheElement ce = get(key);
+			if (ce != null) {
+				found.put(key, ce);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Puts a number of objects into the cache, one by one. The caches taking
+	 * a lock override it to take the lock once.
+	 *
+	 * @param map The objects to be put into cache, by key.
+	 * @exception IOException Error when adding the objects to the cache.
+	 */
+	public void putAll(Map<?, ?> map) throws IOException {
+		for (CacheElement ce : createElements(map)) {
+			update(ce);
+		}
+	}
+
+	/**
+	 * Removes the items of a number of keys from the cache, one by one. The
+	 * caches taking a lock override it to take the lock once.
+	 *
+	 * @param keys The keys of the items to be removed.
+	 * @return the number of items removed.
+	 * @exception IOException Error when removing the items from the cache.
+	 */
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		int removed = 0;
+		for (Serializable key : keys) {
+			if (remove(key)) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Cleans up the cache like {@link #cleanup()}, but expires and evicts at
+	 * most a batch of elements under one acquisition of the lock, so a large
+	 * cleanup does not keep the other threads waiting. The next call carries
+	 * on where this one stopped. The caches that can split their cleanup
+	 * override it, the others clean up at once. The background maintenance
+	 * calls this method, so a subclass changing the cleanup overrides it.
+	 *
+	 * @param maxToRemove The maximum number of elements to be removed.
+	 * @return true if the cleanup is done, false if elements may be left for
+	 *         the next call.
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		cleanup();
+		return true;
+	}
+
+	/**
+	 * Constructs the cache elements of a number of objects, checking them
+	 * all before any is put into the cache.
+	 *
+	 * @param map The objects to be cached, by key.
+	 * @return the elements to be put into the cache.
+	 * @exception IOException A key or a value is null or not serializable.
+	 */
+	protected List<CacheElement> createElements(Map<?, ?> map)
+			throws IOException {
+		List<CacheElement> elements = new ArrayList<CacheElement>(map.size());
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			Object key = entry.getKey();
+			Object val = entry.getValue();
+			if (key == null) {
+				throw new IOException("Key must not be null");
+			} else if (val == null) {
+				throw new IOException("Value of key " + key
+						+ " must not be null");
+			} else if (!(key instanceof Serializable)
+					|| !(val instanceof Serializable)) {
+				throw new IOException("Key " + key + " or its value is not "
+						+ "serializable");
+			}
+			elements.add(createElement((Serializable) key, (Serializable) val));
+		}
+		return elements;
+	}
+
+	/**
+	 * Constructs a cache element with the attributes of this cache. The
+	 * elements share the settings of the cache, until the attributes change
+	 * or the epoch of their times gets old.
+	 *
+	 * @param key The key for the object to be cached.
+	 * @param val The object to be cached.
+	 * @return the element to be put into the cache.
+	 */
+	protected CacheElement createElement(Serializable key, Serializable val) {
+		return createElement(key, val, attributes.getExpiry());
+	}
+
+	/**
+	 * Constructs a cache element with the attributes of this cache and the
+	 * lifetime an expiry policy gives it.
+	 *
+	 * @param key The key for the object to be cached.
+	 * @param val The object to be cached.
+	 * @param expiry The expiry policy, null for the max life of the cache.
+	 * @return the element to be put into the cache.
+	 */
+	CacheElement createElement(Serializable key, Serializable val,
+			Expiry expiry) {
+		long now = currentTimeMillis();
+		CacheElement ce = new CacheElement(currentProfile(now), key, val, now);
+		if (expiry != null) {
+			ce.expireAfterCreate(expiry, now);
+		}
+		return ce;
+	}
+
+	/**
+	 * Returns an element this cache may link into its table and lists: the
+	 * element itself, unless another cache owns it, in which case a copy
+	 * with the same settings and times.
+	 *
+	 * @param ce The element to be put into the cache.
+	 * @return the element, or its copy.
+	 */
+	final CacheElement adopt(CacheElement ce) {
+		if (ce.claim(this)) {
+			return ce;
+		}
+		CacheElement copy = new CacheElement(ce, ce.getValue());
+		copy.claim(this);
+		return copy;
+	}
+
+	/**
+	 * Lets the expiry policy of an element replacing another one, if any,
+	 * set the lifetime of the element.
+	 *
+	 * @param ce The new element.
+	 * @param old The replaced element, or null.
+	 */
+	final void expireAfterUpdate(CacheElement ce, CacheElement old) {
+		if (old != null && ce.getProfile().getExpiry() != null) {
+			ce.expireAfterUpdate(old, ce.getValue(), currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Returns the settings shared by the elements created now, a new profile
+	 * if the attributes have changed or the epoch is old.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return the settings of the elements.
+	 */
+	final ElementProfile currentProfile(long now) {
+		ElementProfile current = profile;
+		if (current == null || !current.matches(cacheName, attributes, now)) {
+			current = new ElementProfile(cacheName,
+					attributes.getMaxLifeSeconds(),
+					attributes.getMaxIdleTimeSeconds(),
+					attributes.getRefreshAfterSeconds(),
+					attributes.getExpiry(), now);
+			profile = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Determines if the element has exceeded its max life or its max idle
+	 * time.
+	 *
+	 * @param ce The object to be checked.
+	 * @return true if the element is expired, else false.
+	 */
+	protected boolean isExpired(CacheElement ce) {
+		return isExpired(ce, currentTimeMillis());
+	}
+
+	/**
+	 * Determines if the cached object has expired at a given time.
+	 *
+	 * @param ce The cached object.
+	 * @param now The current time of the ticker of the cache.
+	 * @return true if the object has expired.
+	 */
+	protected boolean isExpired(CacheElement ce, long now) {
+		// Remove if maxLifeSeconds exceeded
+		long maxLifeSeconds = ce.getMaxLifeSeconds();
+		long createTime = ce.getCreateTime();
+
+		if (maxLifeSeconds != -1
+				&& ((now - createTime) > (maxLifeSeconds * 1000))) {
+			return true;
+		}
+
+		// Remove if maxIdleTime exceeded
+		long idleTime = ce.getMaxIdleTimeSeconds();
+		long lastAccessTime = ce.getLastAccessTime();
+		if ((idleTime != -1) && ((now - lastAccessTime) > (idleTime * 1000))) {
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <code>AsyncMemoryCache</code> is a view of a cache whose operations return
+ * a <code>CompletableFuture</code> instead of blocking the caller, for
+ * reactive code and for overlapping the operations on a slow tier.
+ * <p>
+ * The operations on a cache holding its elements on the heap are quick, so
+ * they run in the thread of the caller and return a completed future,
+ * without a hop to another thread. The operations on a slower tier, such as
+ * <code>OffHeapMemoryCache</code>, run on the executor of the loading cache
+ * the view is built on, and so do the loads of the misses. An
+ * <code>IOException</code> completes the future exceptionally.
+ * </p>
+ * <p>
+ * Get the view of a named cache with
+ * {@link InMemoryCache#getAsyncCache(String)}.
+ * </p>
+ */
+public class AsyncMemoryCache {
+
+	/** The loading cache this is a view of */
+	private final LoadingMemoryCache loadingCache;
+
+	/** Whether the operations complete in the thread of the caller */
+	private final boolean inline;
+
+	/**
+	 * Constructs an <code>AsyncMemoryCache</code> view of a loading cache.
+	 *
+	 * @param loadingCache The loading cache.
+	 */
+	protected AsyncMemoryCache(LoadingMemoryCache loadingCache) {
+		this.loadingCache = loadingCache;
+		MemoryCache cache = loadingCache.getCache();
+		this.inline = !(cache instanceof AbstractMemoryCache)
+				|| ((AbstractMemoryCache) cache).isHeapResident();
+	}
+
+	/**
+	 * Returns the synchronous view of the cache.
+	 *
+	 * @return the loading cache.
+	 */
+	public LoadingMemoryCache synchronous() {
+		return loadingCache;
+	}
+
+	/**
+	 * Gets an item from the cache.
+	 *
+	 * @param key The key of the item to be retrieved.
+	 * @return the future item, null if not found.
+	 */
+	public CompletableFuture<CacheElement> get(final Serializable key) {
+		return run(new Operation<CacheElement>() {
+			CacheElement call() throws IOException {
+				return loadingCache.get(key);
+			}
+		});
+	}
+
+	/**
+	 * Gets the value of a key from the cache, loading it on the executor on a
+	 * miss. Concurrent misses on the key share the load, see
+	 * {@link LoadingMemoryCache#getAsync(Serializable, CacheLoader)}.
+	 *
+	 * @param key The key of the value.
+	 * @param loader Computes the value on a miss.
+	 * @return the future value, null if the loader found none.
+	 */
+	public <V extends Serializable> CompletableFuture<V> get(
+			final Serializable key, final CacheLoader<V> loader) {
+		if (inline) {
+			return loadingCache.getAsync(key, loader);
+		}
+		return supply(new Supplier<CompletableFuture<V>>() {
+			public CompletableFuture<V> get() {
+				return loadingCache.getAsync(key, loader);
+			}
+		}).thenCompose(
+				new Function<CompletableFuture<V>, CompletableFuture<V>>() {
+					public CompletableFuture<V> apply(CompletableFuture<V> load) {
+						return load;
+					}
+				});
+	}
+
+	/**
+	 * Gets the items of a number of keys from the cache.
+	 *
+	 * @param keys The keys of the items to be retrieved.
+	 * @return the future items found, by key.
+	 */
+	public CompletableFuture<Map<Serializable, CacheElement>> getAll(
+			final Collection<? extends Serializable> keys) {
+		return run(new Operation<Map<Serializable, CacheElement>>() {
+			Map<Serializable, CacheElement> call() throws IOException {
+				return loadingCache.getAll(keys);
+			}
+		});
+	}
+
+	/**
+	 * Puts an object into the cache.
+	 *
+	 * @param key The key of the object to be put into cache.
+	 * @param val The object to be put into cache.
+	 * @return the future completed once the object is cached.
+	 */
+	public CompletableFuture<Void> put(final Object key, final Object val) {
+		return run(new Operation<Void>() {
+			Void call() throws IOException {
+				loadingCache.put(key, val);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Removes an item from the cache.
+	 *
+	 * @param key The key of the item to be removed.
+	 * @return the future true if the item was removed.
+	 */
+	public CompletableFuture<Boolean> remove(final Serializable key) {
+		return run(new Operation<Boolean>() {
+			Boolean call() throws IOException {
+				return Boolean.valueOf(loadingCache.remove(key));
+			}
+		});
+	}
+
+	/**
+	 * Runs an operation in the thread of the caller if the cache is on the
+	 * heap, else on the executor.
+	 *
+	 * @param operation The operation.
+	 * @return the future result of the operation.
+	 */
+	private <T> CompletableFuture<T> run(final Operation<T> operation) {
+		if (inline) {
+			CompletableFuture<T> result = new CompletableFuture<T>();
+			try {
+				result.complete(operation.call());
+			} catch (IOException e) {
+				result.completeExceptionally(e);
+			}
+			return result;
+		}
+		return supply(new Supplier<T>() {
+			public T get() {
+				try {
+					return operation.call();
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a supplier on the executor of the loading cache.
+	 *
+	 * @param supplier The supplier.
+	 * @return the future result of the supplier.
+	 */
+	private <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+		try {
+			return CompletableFuture.supplyAsync(supplier, loadingCache
+					.getExecutor());
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> result = new CompletableFuture<T>();
+			result.completeExceptionally(e);
+			return result;
+		}
+	}
+
+	/**
+	 * An operation on the cache.
+	 *
+	 * @param <T> The type of the result.
+	 */
+	private static abstract class Operation<T> {
+
+		/**
+		 * Runs the operation.
+		 *
+		 * @return the result.
+		 * @exception IOException Error when accessing the cache.
+		 */
+		abstract T call() throws IOException;
+	}
+
+}
@@ -0,0 +1,392 @@
+package com.cba.inmemorycache;
+
+import java.io.File;
+import java.io.Serializable;
+
+/**
+ * <code>CacheAttributes</code> contains the attributes of a cache, as opposed
+ * to <code>CacheElementAttributes</code> which are the attributes of the
+ * elements put in the cache. It is used to bound the size of the cache.
+ */
+public class CacheAttributes implements Serializable {
+
+	private static final long serialVersionUID = 5317925403829561462L;
+
+	/** Default number of elements evicted by a single put. */
+	public static final int DEFAULT_MAX_EVICTIONS_PER_PUT = 8;
+
+	/** Default number of segments of a segmented cache. */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	/** The implementation used for the cache. */
+	private MemoryCacheType memoryCacheType = MemoryCacheType.LRU;
+
+	/** The number of independently locked segments of a segmented cache. */
+	private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+
+	/** Maximum number of elements in the cache, -1 for no limit. */
+	private int maxEntries = -1;
+
+	/** Maximum total weight of the elements in the cache, -1 for no limit. */
+	private long maxWeight = -1;
+
+	/** Calculates the weight of the elements, null if every element weighs 1. */
+	private Weigher weigher;
+
+	/** Maximum number of elements evicted inline by a single put. */
+	private int maxEvictionsPerPut = DEFAULT_MAX_EVICTIONS_PER_PUT;
+
+	/** Maximum memory held outside the heap by the cache, -1 for no limit. */
+	private long maxOffHeapBytes = -1;
+
+	/** Whether the latency of the gets and puts is recorded in histograms. */
+	private boolean recordLatency;
+
+	/** Directory of the log of the evicted elements, null for no overflow. */
+	private File overflowDirectory;
+
+	/** Maximum size of the evicted elements on disk, -1 for no limit. */
+	private long maxOverflowBytes = -1;
+
+	/** Encodes the keys outside the heap, null for the built-in encoding. */
+	private CacheCodec<?> keyCodec;
+
+	/** Encodes the values outside the heap, null for the built-in encoding. */
+	private CacheCodec<?> valueCodec;
+
+	/** The clock of the elements, null for the default, not serialized. */
+	private transient CacheTicker ticker;
+
+	/**
+	 * Returns the implementation used for the cache.
+	 * 
+	 * @return the implementation used for the cache.
+	 */
+	public MemoryCacheType getMemoryCacheType() {
+		return memoryCacheType;
+	}
+
+	/**
+	 * Sets the implementation <code>InMemoryCache</code> creates for the
+	 * cache.
+	 * 
+	 * @param memoryCacheType
+	 *            the implementation used for the cache.
+	 */
+	public void setMemoryCacheType(MemoryCacheType memoryCacheType) {
+		this.memoryCacheType = memoryCacheType;
+	}
+
+	/**
+	 * Returns the number of independently locked segments of a segmented
+	 * cache.
+	 * 
+	 * @return the number of segments.
+	 */
+	public int getConcurrencyLevel() {
+		return concurrencyLevel;
+	}
+
+	/**
+	 * Sets the number of independently locked segments of a segmented cache.
+	 * It is rounded up to a power of two, and should be about the number of
+	 * threads accessing the cache concurrently.
+	 * 
+	 * @param concurrencyLevel
+	 *            the number of segments.
+	 */
+	public void setConcurrencyLevel(int concurrencyLevel) {
+		this.concurrencyLevel = concurrencyLevel;
+	}
+
+	/**
+	 * Returns the maximum number of elements in the cache.
+	 * 
+	 * @return the maximum number of elements, -1 if there is no limit.
+	 */
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Sets the maximum number of elements in the cache. When a put exceeds
+	 * this limit, the cache evicts elements according to its eviction policy.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of elements, -1 for no limit.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the maximum total weight of the elements in the cache.
+	 * 
+	 * @return the maximum total weight, -1 if there is no limit.
+	 */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Sets the maximum total weight of the elements in the cache, as
+	 * calculated by the weigher.
+	 * 
+	 * @param maxWeight
+	 *            the maximum total weight, -1 for no limit.
+	 */
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Returns the weigher used to calculate the weight of the elements.
+	 * 
+	 * @return the weigher, or null if every element weighs 1.
+	 */
+	public Weigher getWeigher() {
+		return weigher;
+	}
+
+	/**
+	 * Sets the weigher used to calculate the weight of the elements.
+	 * 
+	 * @param weigher
+	 *            the weigher, or null if every element weighs 1.
+	 */
+	public void setWeigher(Weigher weigher) {
+		this.weigher = weigher;
+	}
+
+	/**
+	 * Returns the maximum number of elements evicted inline by a single put.
+	 * 
+	 * @return the maximum number of elements evicted by a single put.
+	 */
+	public int getMaxEvictionsPerPut() {
+		return maxEvictionsPerPut;
+	}
+
+	/**
+	 * Sets the maximum number of elements evicted inline by a single put. A
+	 * burst of puts then spreads the eviction work instead of stalling on one
+	 * long eviction loop. Whatever is left over is evicted by the following
+	 * puts or by the next cleanup. The value should be at least 2, so the
+	 * cache shrinks back under its limits while it is being filled.
+	 * 
+	 * @param maxEvictionsPerPut
+	 *            the maximum number of elements evicted by a single put.
+	 */
+	public void setMaxEvictionsPerPut(int maxEvictionsPerPut) {
+		this.maxEvictionsPerPut = maxEvictionsPerPut;
+	}
+
+	/**
+	 * Returns the maximum memory the cache holds outside the Java heap.
+	 * 
+	 * @return the maximum off-heap memory in bytes, -1 if there is no limit.
+	 */
+	public long getMaxOffHeapBytes() {
+		return maxOffHeapBytes;
+	}
+
+	/**
+	 * Sets the maximum memory an off-heap cache holds outside the Java heap
+	 * for its values. When a put does not fit, the cache evicts elements
+	 * according to its eviction policy. Without a limit, the memory is only
+	 * bounded by the <code>-XX:MaxDirectMemorySize</code> of the JVM.
+	 * 
+	 * @param maxOffHeapBytes
+	 *            the maximum off-heap memory in bytes, -1 for no limit.
+	 */
+	public void setMaxOffHeapBytes(long maxOffHeapBytes) {
+		this.maxOffHeapBytes = maxOffHeapBytes;
+	}
+
+	/**
+	 * Returns true if the latency of the gets and puts is recorded.
+	 * 
+	 * @return true if the latency is recorded.
+	 */
+	public boolean isRecordLatency() {
+		return recordLatency;
+	}
+
+	/**
+	 * Sets whether the latency of the gets and puts is recorded in the
+	 * histograms of <code>CacheStats</code>. The hit, miss and eviction
+	 * counts are always recorded; the latency costs two reads of the clock
+	 * per operation.
+	 * 
+	 * @param recordLatency
+	 *            true to record the latency.
+	 */
+	public void setRecordLatency(boolean recordLatency) {
+		this.recordLatency = recordLatency;
+	}
+
+	/**
+	 * Returns the directory of the log the evicted elements overflow to.
+	 * 
+	 * @return the directory, or null if the evicted elements are dropped.
+	 */
+	public File getOverflowDirectory() {
+		return overflowDirectory;
+	}
+
+	/**
+	 * Sets the directory of the log an <code>LRUMemoryCache</code> writes its
+	 * evicted elements to. A miss then looks for the key in the log, and a
+	 * hit there moves the element back into the cache. The log is named
+	 * after the cache, and is deleted when the JVM exits.
+	 * 
+	 * @param overflowDirectory
+	 *            the directory, or null to drop the evicted elements.
+	 */
+	public void setOverflowDirectory(File overflowDirectory) {
+		this.overflowDirectory = overflowDirectory;
+	}
+
+	/**
+	 * Returns the maximum size of the evicted elements on disk.
+	 * 
+	 * @return the maximum size in bytes, -1 if there is no limit.
+	 */
+	public long getMaxOverflowBytes() {
+		return maxOverflowBytes;
+	}
+
+	/**
+	 * Sets the maximum size of the evicted elements in the overflow log, not
+	 * counting the space of the dead records awaiting compaction. An evicted
+	 * element that does not fit is dropped.
+	 * 
+	 * @param maxOverflowBytes
+	 *            the maximum size in bytes, -1 for no limit.
+	 */
+	public void setMaxOverflowBytes(long maxOverflowBytes) {
+		this.maxOverflowBytes = maxOverflowBytes;
+	}
+
+	/**
+	 * Returns the codec of the keys written outside the heap.
+	 * 
+	 * @return the codec, or null for the built-in encoding.
+	 */
+	public CacheCodec<?> getKeyCodec() {
+		return keyCodec;
+	}
+
+	/**
+	 * Sets the codec of the keys written to the snapshots and to the disk
+	 * overflow. Without a codec, the <code>String</code>,
+	 * <code>Integer</code> and <code>Long</code> keys have their own encoding
+	 * and the others are serialized. Restoring a snapshot written with a
+	 * codec needs a cache with the same codec, as the codec is not written.
+	 * 
+	 * @param keyCodec
+	 *            the codec, or null for the built-in encoding.
+	 */
+	public void setKeyCodec(CacheCodec<?> keyCodec) {
+		this.keyCodec = keyCodec;
+	}
+
+	/**
+	 * Returns the codec of the values written outside the heap.
+	 * 
+	 * @return the codec, or null for the built-in encoding.
+	 */
+	public CacheCodec<?> getValueCodec() {
+		return valueCodec;
+	}
+
+	/**
+	 * Sets the codec of the values stored by the off-heap cache and written
+	 * to the snapshots and to the disk overflow, in place of Java
+	 * serialization. A value of another type than the type of the codec
+	 * fails to be put with an <code>IOException</code>.
+	 * 
+	 * @param valueCodec
+	 *            the codec, or null for the built-in encoding.
+	 */
+	public void setValueCodec(CacheCodec<?> valueCodec) {
+		this.valueCodec = valueCodec;
+	}
+
+	/**
+	 * Returns the ticker the cache times its elements with.
+	 * 
+	 * @return the ticker.
+	 */
+	public CacheTicker getTicker() {
+		CacheTicker current = ticker;
+		return current != null ? current : CoarseTicker.getDefault();
+	}
+
+	/**
+	 * Sets the ticker the cache times its elements with. The ticker should
+	 * not move backwards. A deserialized cache gets the default ticker back.
+	 * 
+	 * @param ticker
+	 *            the ticker, or null for {@link CoarseTicker#getDefault()}.
+	 */
+	public void setTicker(CacheTicker ticker) {
+		this.ticker = ticker;
+	}
+
+	/**
+	 * Returns true if the cache is bounded by the number or the weight of its
+	 * elements.
+	 * 
+	 * @return true if the cache is bounded.
+	 */
+	public boolean isBounded() {
+		return maxEntries >= 0 || maxWeight >= 0;
+	}
+
+	/**
+	 * Calculates the weight of an object to be cached.
+	 * 
+	 * @param key The key of the object.
+	 * @param value The object.
+	 * @return the weight of the object.
+	 */
+	public int weigh(Serializable key, Serializable value) {
+		if (weigher == null) {
+			return 1;
+		}
+		int weight = weigher.weigh(key, value);
+		if (weight < 0) {
+			throw new IllegalArgumentException("Negative weight " + weight
+					+ " for key " + key);
+		}
+		return weight;
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 * 
+	 * @return String info about the values.
+	 */
+	public String toString() {
+		StringBuffer str = new StringBuffer();
+
+		str.append("MemoryCacheType = ").append(this.getMemoryCacheType());
+		str.append(", ConcurrencyLevel = ").append(this.getConcurrencyLevel());
+		str.append(", MaxEntries = ").append(this.getMaxEntries());
+		str.append(", MaxWeight = ").append(this.getMaxWeight());
+		str.append(", Weigher = ").append(this.getWeigher());
+		str.append(", MaxEvictionsPerPut = ").append(
+				this.getMaxEvictionsPerPut());
+		str.append(", MaxOffHeapBytes = ").append(this.getMaxOffHeapBytes());
+		str.append(", RecordLatency = ").append(this.isRecordLatency());
+		str.append(", OverflowDirectory = ").append(this.getOverflowDirectory());
+		str.append(", MaxOverflowBytes = ").append(this.getMaxOverflowBytes());
+		str.append(", KeyCodec = ").append(this.getKeyCodec());
+		str.append(", ValueCodec = ").append(this.getValueCodec());
+		str.append(", Ticker = ").append(this.getTicker());
+
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,428 @@
+package com.cba.inmemorycache;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>CacheClient</code> is a connection to a <code>CacheServer</code>,
+ * shared by the <code>RemoteMemoryCache</code>s of the named caches of the
+ * server.
+ * <p>
+ * The threads using the caches send their requests without waiting for the
+ * answers of the others: the requests are written to a buffer, which the
+ * first thread finding no write in progress writes to the socket with the
+ * requests the others add meanwhile, so the requests of the concurrent
+ * threads, and those of a <code>getAll</code>, go in one write. A daemon
+ * thread reads the answers, in the order of the requests, and the
+ * invalidations the server pushes, which remove the keys from the near
+ * caches. If the connection is lost, the pending and the following requests
+ * fail with an <code>IOException</code> and the near caches are cleared.
+ * </p>
+ */
+public class CacheClient implements Closeable {
+
+	/** For logging */
+	private final static Logger log = Logger.getLogger(CacheClient.class
+			.getName());
+
+	/** The time a request waits for its answer, in milliseconds */
+	static final long TIMEOUT_MILLIS = Long.getLong(
+			"com.cba.inmemorycache.clientTimeoutMillis", 5000);
+
+	/** The maximum number of elements of a near cache by default */
+	static final int NEAR_CACHE_MAX_ENTRIES = Integer.getInteger(
+			"com.cba.inmemorycache.nearCacheMaxEntries", 10000);
+
+	/** The connection to the server */
+	private final SocketChannel channel;
+
+	/** The remote caches, by name */
+	private final Map<String, RemoteMemoryCache> caches = new ConcurrentHashMap<String, RemoteMemoryCache>();
+
+	/** The requests sent and not answered yet, in the order they were sent */
+	private final Queue<Request> pending = new ConcurrentLinkedQueue<Request>();
+
+	/** Guards the buffers and the write in progress */
+	private final Object writeLock = new Object();
+
+	/** The requests not written yet */
+	private CacheProtocol.FrameBuffer frames = new CacheProtocol.FrameBuffer();
+
+	/** The buffer being written, swapped with frames */
+	private CacheProtocol.FrameBuffer spare = new CacheProtocol.FrameBuffer();
+
+	/** Whether a thread is writing the requests */
+	private boolean flushing;
+
+	/** The thread reading the answers */
+	private final Thread reader;
+
+	/** The error which closed the connection, null while it is open */
+	private volatile IOException failure;
+
+	/**
+	 * Constructs a client over a connected channel.
+	 *
+	 * @param channel The connection to the server.
+	 */
+	private CacheClient(SocketChannel channel) {
+		this.channel = channel;
+		reader = new Thread(new Runnable() {
+			public void run() {
+				read();
+			}
+		}, "InMemoryCache-client-" + channel.socket().getLocalPort());
+		reader.setDaemon(true);
+	}
+
+	/**
+	 * Connects to a cache server.
+	 *
+	 * @param address The address of the server.
+	 * @return the client.
+	 * @exception IOException The server cannot be reached.
+	 */
+	public static CacheClient connect(InetSocketAddress address)
+			throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		CacheClient client = new CacheClient(channel);
+		client.reader.start();
+		return client;
+	}
+
+	/**
+	 * Returns a named cache of the server, with a near cache of at most
+	 * <code>NEAR_CACHE_MAX_ENTRIES</code> elements, 10000 unless set by the
+	 * <code>com.cba.inmemorycache.nearCacheMaxEntries</code> system property.
+	 *
+	 * @param cacheName The name of the cache on the server.
+	 * @return the remote cache.
+	 */
+	public RemoteMemoryCache getCache(String cacheName) {
+		return getCache(cacheName, null);
+	}
+
+	/**
+	 * Returns a named cache of the server, with a near cache of the given
+	 * attributes if the cache is not used yet.
+	 *
+	 * @param cacheName The name of the cache on the server.
+	 * @param nearAttributes The attributes bounding the near cache, or null
+	 *            for a near cache of at most
+	 *            <code>NEAR_CACHE_MAX_ENTRIES</code> elements.
+	 * @return the remote cache.
+	 */
+	public RemoteMemoryCache getCache(String cacheName,
+			CacheAttributes nearAttributes) {
+		synchronized (caches) {
+			RemoteMemoryCache cache = caches.get(cacheName);
+			if (cache == null) {
+				if (nearAttributes == null) {
+					nearAttributes = new CacheAttributes();
+					nearAttributes.setMaxEntries(NEAR_CACHE_MAX_ENTRIES);
+				}
+				cache = new RemoteMemoryCache(this, cacheName, nearAttributes);
+				caches.put(cacheName, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Returns whether the connection is open.
+	 *
+	 * @return false once the connection is lost or closed.
+	 */
+	public boolean isConnected() {
+		return failure == null;
+	}
+
+	/**
+	 * Closes the connection. The pending requests fail.
+	 */
+	public void close() {
+		fail(new IOException("Cache client closed"));
+	}
+
+	/**
+	 * Sends a request and waits for its answer.
+	 *
+	 * @param request The request.
+	 * @exception IOException The connection is lost, or the server failed to
+	 *                run the request.
+	 */
+	void call(Request request) throws IOException {
+		send(Collections.singletonList(request));
+		request.await();
+	}
+
+	/**
+	 * Sends requests, in one write unless other threads are writing.
+	 *
+	 * @param requests The requests.
+	 * @exception IOException The connection is lost.
+	 */
+	void send(List<? extends Request> requests) throws IOException {
+		synchronized (writeLock) {
+			checkConnected();
+			for (Request request : requests) {
+				frames.begin();
+				try {
+					request.write(frames.out);
+				} catch (IOException e) {
+					frames.cancel();
+					throw e;
+				}
+				frames.end();
+				pending.add(request);
+			}
+			if (flushing) {
+				// the thread writing takes the requests with its own
+				return;
+			}
+			flushing = true;
+		}
+
+		try {
+			while (true) {
+				CacheProtocol.FrameBuffer written;
+				synchronized (writeLock) {
+					if (frames.size() == 0) {
+						flushing = false;
+						return;
+					}
+					written = frames;
+					frames = spare;
+					spare = written;
+				}
+				ByteBuffer buffer = written.toByteBuffer();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				written.reset();
+			}
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Throws the error which closed the connection, if any.
+	 *
+	 * @exception IOException The connection is lost.
+	 */
+	private void checkConnected() throws IOException {
+		IOException e = failure;
+		if (e != null) {
+			throw new IOException("Not connected to the cache server", e);
+		}
+	}
+
+	/**
+	 * Reads the answers and the invalidations until the connection is lost.
+	 */
+	private void read() {
+		ByteBuffer in = ByteBuffer.allocate(65536);
+		try {
+			while (true) {
+				if (channel.read(in) < 0) {
+					throw new IOException("Connection closed by the server");
+				}
+				in.flip();
+				ByteBuffer frame;
+				while ((frame = CacheProtocol.nextFrame(in)) != null) {
+					handle(new CacheSnapshot.MappedReader(frame));
+				}
+				in = CacheProtocol.compact(in);
+			}
+		} catch (IOException e) {
+			if (failure == null) {
+				log.log(Level.WARNING, "Connection to the cache server lost", e);
+			}
+			fail(e);
+		}
+	}
+
+	/**
+	 * Handles an answer or an invalidation.
+	 *
+	 * @param in The reader of the frame.
+	 * @exception IOException Error when reading the frame.
+	 */
+	private void handle(CacheSnapshot.MappedReader in) throws IOException {
+		int type = in.readByte();
+		switch (type) {
+		case CacheProtocol.RESPONSE: {
+			Request request = pending.poll();
+			if (request == null) {
+				throw new IOException("Answer to no request");
+			}
+			request.complete(in);
+			break;
+		}
+		case CacheProtocol.INVALIDATE: {
+			RemoteMemoryCache cache = caches.get(CacheSnapshot.readObject(in,
+					in.readByte(), null));
+			Serializable key = CacheSnapshot.readObject(in, in.readByte(),
+					null);
+			if (cache != null) {
+				cache.getNearCache().remove(key);
+			}
+			break;
+		}
+		case CacheProtocol.INVALIDATE_ALL: {
+			RemoteMemoryCache cache = caches.get(CacheSnapshot.readObject(in,
+					in.readByte(), null));
+			if (cache != null) {
+				cache.getNearCache().removeAll();
+			}
+			break;
+		}
+		default:
+			throw new IOException("Unknown frame " + type);
+		}
+	}
+
+	/**
+	 * Closes the connection after an error, fails the pending requests and
+	 * clears the near caches, which are no longer invalidated. The near
+	 * caches are cleared before the connection is marked closed, so a caller
+	 * finding the client disconnected finds them empty.
+	 *
+	 * @param e The error.
+	 */
+	private void fail(IOException e) {
+		for (RemoteMemoryCache cache : caches.values()) {
+			try {
+				cache.getNearCache().removeAll();
+			} catch (IOException ce) {
+				log.log(Level.WARNING, "Cannot clear the near cache "
+						+ cache.getCacheName(), ce);
+			}
+		}
+		synchronized (writeLock) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException ce) {
+			log.log(Level.FINE, "Cannot close the connection", ce);
+		}
+		Request request;
+		while ((request = pending.poll()) != null) {
+			request.fail(failure);
+		}
+	}
+
+	/**
+	 * A request to the server, answered by the thread reading the
+	 * connection.
+	 */
+	abstract static class Request {
+
+		/** Counted down once answered */
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		/** The error answered, null if the request succeeded */
+		private volatile String error;
+
+		/** The error which closed the connection, if it did */
+		private volatile IOException failure;
+
+		/**
+		 * Writes the body of the request.
+		 *
+		 * @param out The stream to write to.
+		 * @exception IOException Error when writing the request.
+		 */
+		abstract void write(DataOutputStream out) throws IOException;
+
+		/**
+		 * Reads the answer of the server, after its status, in the thread
+		 * reading the connection, so the near cache is updated in the order
+		 * of the answers and of the invalidations.
+		 *
+		 * @param status The status of the answer.
+		 * @param in The reader of the answer.
+		 * @exception IOException Error when reading the answer.
+		 */
+		abstract void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException;
+
+		/**
+		 * Completes the request with its answer.
+		 *
+		 * @param in The reader of the answer.
+		 * @exception IOException Error when reading the answer.
+		 */
+		final void complete(CacheSnapshot.MappedReader in) throws IOException {
+			try {
+				int status = in.readByte();
+				if (status == CacheProtocol.ERROR) {
+					error = (String) CacheSnapshot.readObject(in, in
+							.readByte(), null);
+				} else {
+					read(status, in);
+				}
+			} finally {
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Fails the request, the connection being lost.
+		 *
+		 * @param e The error which closed the connection.
+		 */
+		final void fail(IOException e) {
+			failure = e;
+			done.countDown();
+		}
+
+		/**
+		 * Waits for the answer.
+		 *
+		 * @exception IOException The connection is lost, the server failed to
+		 *                run the request, or no answer came in time.
+		 */
+		final void await() throws IOException {
+			try {
+				if (!done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+					throw new IOException("No answer from the cache server in "
+							+ TIMEOUT_MILLIS + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for the cache server",
+						e);
+			}
+			if (failure != null) {
+				throw new IOException("Not connected to the cache server",
+						failure);
+			}
+			if (error != null) {
+				throw new IOException("The cache server failed: " + error);
+			}
+		}
+	}
+
+}
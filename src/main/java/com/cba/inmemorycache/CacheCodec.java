@@ -0,0 +1,52 @@
+package com.cba.inmemorycache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * <code>CacheCodec</code> encodes the keys or the values of a cache to bytes,
+ * for the tiers which hold them outside the heap: the off-heap cache, the
+ * snapshots and the disk overflow. Without a codec these tiers fall back to
+ * Java serialization for the objects they have no encoding of.
+ * <p>
+ * Set the codecs of a cache with
+ * {@link CacheAttributes#setKeyCodec(CacheCodec)} and
+ * {@link CacheAttributes#setValueCodec(CacheCodec)}. The built-in codecs are
+ * in <code>CacheCodecs</code>, and <code>RecordCodec</code> helps writing a
+ * compact codec for an application class. A codec must decode what it
+ * encoded in another JVM as well, as the snapshots outlive the process.
+ * </p>
+ *
+ * @param <T> The type of the objects encoded.
+ */
+public interface CacheCodec<T extends Serializable> extends Serializable {
+
+	/**
+	 * Returns the type of the objects encoded. Encoding an object of another
+	 * type fails with an <code>IOException</code>.
+	 *
+	 * @return the type of the objects.
+	 */
+	public Class<T> getType();
+
+	/**
+	 * Encodes an object.
+	 *
+	 * @param object The object, not null.
+	 * @param out The output to write to.
+	 * @exception IOException Error when writing the object.
+	 */
+	public void encode(T object, DataOutput out) throws IOException;
+
+	/**
+	 * Decodes an object written by {@link #encode(Serializable, DataOutput)}.
+	 *
+	 * @param in The input to read from.
+	 * @return the object.
+	 * @exception IOException Error when reading the object.
+	 */
+	public T decode(DataInput in) throws IOException;
+
+}
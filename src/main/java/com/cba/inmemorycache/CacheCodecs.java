@@ -0,0 +1,254 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * <code>CacheCodecs</code> holds the built-in codecs: the strings, the arrays
+ * of bytes, the <code>Integer</code>, <code>Long</code> and
+ * <code>Double</code> numbers, and Java serialization for the objects no
+ * other codec fits.
+ */
+public final class CacheCodecs {
+
+	/** Encodes a <code>String</code> as its length and its UTF-8 bytes. */
+	public static final CacheCodec<String> STRING = new StringCodec();
+
+	/** Encodes a <code>byte[]</code> as its length and its bytes. */
+	public static final CacheCodec<byte[]> BYTES = new BytesCodec();
+
+	/** Encodes an <code>Integer</code> as a variable length integer. */
+	public static final CacheCodec<Integer> INTEGER = new IntegerCodec();
+
+	/** Encodes a <code>Long</code> as a variable length integer. */
+	public static final CacheCodec<Long> LONG = new LongCodec();
+
+	/** Encodes a <code>Double</code> in 8 bytes. */
+	public static final CacheCodec<Double> DOUBLE = new DoubleCodec();
+
+	/** Encodes any object with Java serialization. */
+	public static final CacheCodec<Serializable> SERIALIZABLE = new SerializableCodec();
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CacheCodecs() {
+	}
+
+	/**
+	 * Encodes an object to bytes with a codec.
+	 *
+	 * @param codec The codec.
+	 * @param object The object.
+	 * @return the bytes.
+	 * @exception IOException Error when encoding the object, or it is not of
+	 *                the type of the codec.
+	 */
+	static byte[] toBytes(CacheCodec<?> codec, Serializable object)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		encode(codec, object, out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes an object from bytes with a codec.
+	 *
+	 * @param codec The codec.
+	 * @param data The bytes.
+	 * @return the object.
+	 * @exception IOException Error when decoding the object.
+	 */
+	static Serializable fromBytes(CacheCodec<?> codec, byte[] data)
+			throws IOException {
+		return codec.decode(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	/**
+	 * Encodes an object with a codec, checking its type first.
+	 *
+	 * @param codec The codec.
+	 * @param object The object.
+	 * @param out The output to write to.
+	 * @exception IOException Error when encoding the object, or it is not of
+	 *                the type of the codec.
+	 */
+	private static <T extends Serializable> void encode(CacheCodec<T> codec,
+			Serializable object, DataOutput out) throws IOException {
+		Class<T> type = codec.getType();
+		if (!type.isInstance(object)) {
+			throw new IOException("Cannot encode a "
+					+ object.getClass().getName() + " with " + codec);
+		}
+		codec.encode(type.cast(object), out);
+	}
+
+	/**
+	 * The codec of the strings.
+	 */
+	private static final class StringCodec extends RecordCodec<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		StringCodec() {
+			super(String.class);
+		}
+
+		public void encode(String object, DataOutput out) throws IOException {
+			writeString(out, object);
+		}
+
+		public String decode(DataInput in) throws IOException {
+			return readString(in);
+		}
+
+		private Object readResolve() {
+			return STRING;
+		}
+	}
+
+	/**
+	 * The codec of the arrays of bytes.
+	 */
+	private static final class BytesCodec extends RecordCodec<byte[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		BytesCodec() {
+			super(byte[].class);
+		}
+
+		public void encode(byte[] object, DataOutput out) throws IOException {
+			writeBytes(out, object);
+		}
+
+		public byte[] decode(DataInput in) throws IOException {
+			return readBytes(in);
+		}
+
+		private Object readResolve() {
+			return BYTES;
+		}
+	}
+
+	/**
+	 * The codec of the <code>Integer</code> numbers.
+	 */
+	private static final class IntegerCodec extends RecordCodec<Integer> {
+
+		private static final long serialVersionUID = 1L;
+
+		IntegerCodec() {
+			super(Integer.class);
+		}
+
+		public void encode(Integer object, DataOutput out) throws IOException {
+			writeVarLong(out, object.intValue());
+		}
+
+		public Integer decode(DataInput in) throws IOException {
+			return Integer.valueOf((int) readVarLong(in));
+		}
+
+		private Object readResolve() {
+			return INTEGER;
+		}
+	}
+
+	/**
+	 * The codec of the <code>Long</code> numbers.
+	 */
+	private static final class LongCodec extends RecordCodec<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		LongCodec() {
+			super(Long.class);
+		}
+
+		public void encode(Long object, DataOutput out) throws IOException {
+			writeVarLong(out, object.longValue());
+		}
+
+		public Long decode(DataInput in) throws IOException {
+			return Long.valueOf(readVarLong(in));
+		}
+
+		private Object readResolve() {
+			return LONG;
+		}
+	}
+
+	/**
+	 * The codec of the <code>Double</code> numbers.
+	 */
+	private static final class DoubleCodec extends RecordCodec<Double> {
+
+		private static final long serialVersionUID = 1L;
+
+		DoubleCodec() {
+			super(Double.class);
+		}
+
+		public void encode(Double object, DataOutput out) throws IOException {
+			out.writeDouble(object.doubleValue());
+		}
+
+		public Double decode(DataInput in) throws IOException {
+			return Double.valueOf(in.readDouble());
+		}
+
+		private Object readResolve() {
+			return DOUBLE;
+		}
+	}
+
+	/**
+	 * The codec serializing any object.
+	 */
+	private static final class SerializableCodec extends
+			RecordCodec<Serializable> {
+
+		private static final long serialVersionUID = 1L;
+
+		SerializableCodec() {
+			super(Serializable.class);
+		}
+
+		public void encode(Serializable object, DataOutput out)
+				throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+			objectOut.writeObject(object);
+			objectOut.close();
+			writeBytes(out, bytes.toByteArray());
+		}
+
+		public Serializable decode(DataInput in) throws IOException {
+			ObjectInputStream objectIn = new ObjectInputStream(
+					new ByteArrayInputStream(readBytes(in)));
+			try {
+				return (Serializable) objectIn.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			} finally {
+				objectIn.close();
+			}
+		}
+
+		private Object readResolve() {
+			return SERIALIZABLE;
+		}
+	}
+
+}
@@ -4,10 +4,19 @@
 package com.cba.inmemorycache;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * <code>CacheElement</code> wraps the object to be cached, with the properties
  * to be used to track the life of the object in the cache.
+ * <p>
+ * To keep the elements small, the name of the cache and the TTL settings
+ * are held by an <code>ElementProfile</code> shared by the elements of the
+ * cache, and the times are stored as <code>int</code>s encoded by the
+ * profile. The element is also its own entry in the element table and node
+ * in the LRU list of the cache, so it can be linked by a single cache: the
+ * first cache it is put into owns it, and the other caches put a copy.
+ * </p>
  * 
  * @author Van Hai Ho 
  *
@@ -16,8 +25,12 @@ public class CacheElement implements Serializable {
 
 	private static final long serialVersionUID = -2868323251508548895L;
 
-	/** The name of the cache. */
-	private final String cacheName;
+	/**
+	 * The settings shared with the other elements of the cache: the name of
+	 * the cache, the TTL settings, the expiry policy and the epoch of the
+	 * times.
+	 */
+	private ElementProfile profile;
 
 	/** The cache key by which the value can be referenced. */
 	private final Serializable key;
@@ -25,17 +38,50 @@ public class CacheElement implements Serializable {
 	/** The cached value, reference by the key. */
 	private final Serializable value;
 
-	/** Max life to live (TTL) for the element in seconds */
-	private long maxLifeSeconds = -1;
+	/** The creation time, encoded by the profile. Used to enforce the TTL. */
+	private int createTime;
+
+	/** The last access time, encoded by the profile. */
+	private int lastAccessTime;
+
+	/**
+	 * The max life of the element when it differs from the one of the
+	 * profile, as set by an expiry policy: 0 for the max life of the
+	 * profile, -1 for no limit, else the max life in seconds plus one. Kept
+	 * on the element, so a lifetime moved on every read does not copy the
+	 * profile.
+	 */
+	int ownMaxLife;
+
+	/** The weight of the element, as calculated by the cache weigher. */
+	int weight = 1;
+
+	/** The queue holding the element, for policies with several queues. */
+	byte queue;
+
+	/** The previous (more recently used) element in the LRU list. */
+	transient CacheElement prev;
+
+	/** The next (less recently used) element in the LRU list. */
+	transient CacheElement next;
+
+	/** The previous element in the bucket of the timer wheel. */
+	transient CacheElement timerPrev;
+
+	/** The next element in the bucket of the timer wheel. */
+	transient CacheElement timerNext;
 
-	/** Maximum time an entry can be idle. */
-	private long maxIdleTimeSeconds = -1;
+	/** The next element in the bucket of the element table. */
+	transient CacheElement hashNext;
 
-	/** The creation time. This is used to enforce the TTL. */
-	private long createTime = 0;
+	/** The timer wheel tracking the expiry of the element, if any. */
+	transient volatile TimerWheel timerWheel;
 
-	/** The last access time. */
-	private long lastAccessTime = 0;
+	/** The cache linking the element into its table and lists, if any. */
+	private transient volatile Object owner;
+
+	private static final AtomicReferenceFieldUpdater<CacheElement, Object> OWNER = AtomicReferenceFieldUpdater
+			.newUpdater(CacheElement.class, Object.class, "owner");
 
 	/**
 	 * Constructor for the CacheElement object
@@ -45,10 +91,58 @@ public class CacheElement implements Serializable {
 	 * @param value The object.
 	 */
 	public CacheElement(String cacheName, Serializable key, Serializable value) {
-		this.cacheName = cacheName;
+		long now = System.currentTimeMillis();
+		this.profile = new ElementProfile(cacheName, -1, -1, now);
+		this.key = key;
+		this.value = value;
+		this.createTime = profile.encode(now);
+		this.lastAccessTime = this.createTime;
+	}
+
+	/**
+	 * Constructor for a CacheElement object sharing the profile of a cache.
+	 * 
+	 * @param profile The settings shared by the elements of the cache.
+	 * @param key The key of the object.
+	 * @param value The object.
+	 * @param now The current time in milliseconds.
+	 */
+	CacheElement(ElementProfile profile, Serializable key, Serializable value,
+			long now) {
+		this.profile = profile;
 		this.key = key;
 		this.value = value;
-		this.createTime = System.currentTimeMillis();
+		this.createTime = profile.encode(now);
+		this.lastAccessTime = this.createTime;
+	}
+
+	/**
+	 * Constructor for a CacheElement object with the settings and the times
+	 * of another element, and another value.
+	 * 
+	 * @param source The element to be copied.
+	 * @param value The object.
+	 */
+	CacheElement(CacheElement source, Serializable value) {
+		this.profile = source.profile;
+		this.key = source.key;
+		this.value = value;
+		this.createTime = source.createTime;
+		this.lastAccessTime = source.lastAccessTime;
+		this.ownMaxLife = source.ownMaxLife;
+	}
+
+	/**
+	 * Makes a cache the owner of the element, unless another cache owns it
+	 * already. Only the owner may link the element into its table and lists,
+	 * as the element has a single set of links.
+	 * 
+	 * @param cache The cache.
+	 * @return true if the cache owns the element.
+	 */
+	boolean claim(Object cache) {
+		return owner == cache || OWNER.compareAndSet(this, null, cache)
+				|| owner == cache;
 	}
 
 	/**
@@ -68,7 +162,17 @@ public class CacheElement implements Serializable {
 	 * @return The cacheName value
 	 */
 	public String getCacheName() {
-		return this.cacheName;
+		return profile.getCacheName();
+	}
+
+	/**
+	 * Returns the settings this element shares with the other elements of
+	 * its cache.
+	 * 
+	 * @return the profile of the element.
+	 */
+	ElementProfile getProfile() {
+		return profile;
 	}
 
 	/**
@@ -102,7 +206,7 @@ public class CacheElement implements Serializable {
 	 * @return the created time
 	 */
 	public long getCreateTime() {
-		return createTime;
+		return profile.decode(createTime);
 	}
 
 	/**
@@ -112,7 +216,8 @@ public class CacheElement implements Serializable {
 	 *            The time when this CacheElement object is created.
 	 */
 	public void setCreateTime(long createTime) {
-		this.createTime = createTime;
+		this.createTime = profile.encode(createTime);
+		expiryChanged();
 	}
 
 	/**
@@ -122,7 +227,22 @@ public class CacheElement implements Serializable {
 	 * @return the maximum time to live set for this CacheElement object.
 	 */
 	public long getMaxLifeSeconds() {
-		return maxLifeSeconds;
+		return maxLifeSeconds(profile, ownMaxLife);
+	}
+
+	/**
+	 * Returns the max life of an element.
+	 * 
+	 * @param profile The settings of the element.
+	 * @param ownMaxLife The max life of the element, encoded as
+	 *            <code>ownMaxLife</code>.
+	 * @return the max life in seconds, -1 for no limit.
+	 */
+	static long maxLifeSeconds(ElementProfile profile, int ownMaxLife) {
+		if (ownMaxLife == 0) {
+			return profile.getMaxLifeSeconds();
+		}
+		return ownMaxLife < 0 ? -1 : ownMaxLife - 1;
 	}
 
 	/**
@@ -133,7 +253,9 @@ public class CacheElement implements Serializable {
 	 *            The maximum time this object is alive in cache.
 	 */
 	public void setMaxLifeSeconds(long maxLifeSeconds) {
-		this.maxLifeSeconds = maxLifeSeconds;
+		this.profile = profile.withMaxLifeSeconds(maxLifeSeconds);
+		this.ownMaxLife = 0;
+		expiryChanged();
 	}
 
 	/**
@@ -142,7 +264,7 @@ public class CacheElement implements Serializable {
 	 * @return the time when this CacheElement object was last accessed.
 	 */
 	public long getLastAccessTime() {
-		return lastAccessTime;
+		return profile.decode(lastAccessTime);
 	}
 
 	/**
@@ -152,7 +274,8 @@ public class CacheElement implements Serializable {
 	 *            the time when this CacheElement object was last accessed.
 	 */
 	public void setLastAccessTime(long lastAccessTime) {
-		this.lastAccessTime = lastAccessTime;
+		this.lastAccessTime = profile.encode(lastAccessTime);
+		expiryChanged();
 	}
 
 	/**
@@ -163,7 +286,7 @@ public class CacheElement implements Serializable {
 	 *         in the cache.
 	 */
 	public long getMaxIdleTimeSeconds() {
-		return maxIdleTimeSeconds;
+		return profile.getMaxIdleTimeSeconds();
 	}
 
 	/**
@@ -175,14 +298,158 @@ public class CacheElement implements Serializable {
 	 *            idled in the cache.
 	 */
 	public void setMaxIdleTimeSeconds(long maxIdleTimeSeconds) {
-		this.maxIdleTimeSeconds = maxIdleTimeSeconds;
+		this.profile = profile.withMaxIdleTimeSeconds(maxIdleTimeSeconds);
+		expiryChanged();
 	}
 
 	/**
-	 * Sets the current time as the time this element is last accessed.
+	 * Returns the age after which a read of this CacheElement object through
+	 * a <code>LoadingMemoryCache</code> reloads it in the background.
+	 * 
+	 * @return the refresh age in seconds, -1 if the element is not
+	 *         refreshed.
+	 */
+	public long getRefreshAfterSeconds() {
+		return profile.getRefreshAfterSeconds();
+	}
+
+	/**
+	 * Sets the age after which a read of this CacheElement object through a
+	 * <code>LoadingMemoryCache</code> reloads it in the background.
+	 * 
+	 * @param refreshAfterSeconds
+	 *            the refresh age in seconds, -1 for none.
+	 */
+	public void setRefreshAfterSeconds(long refreshAfterSeconds) {
+		this.profile = profile.withRefreshAfterSeconds(refreshAfterSeconds);
+	}
+
+	/**
+	 * Determines if this element is old enough to be refreshed.
+	 * 
+	 * @param now The current time in milliseconds.
+	 * @return true if the element has a refresh age and is older.
+	 */
+	public boolean isRefreshDue(long now) {
+		long refreshAfterSeconds = getRefreshAfterSeconds();
+		return refreshAfterSeconds != -1
+				&& now - getCreateTime() >= refreshAfterSeconds * 1000;
+	}
+
+	/**
+	 * Tells the timer wheel of the cache, if any, that the deadline of this
+	 * element may have moved, so it is scheduled again on the next cleanup.
+	 */
+	private void expiryChanged() {
+		TimerWheel wheel = timerWheel;
+		if (wheel != null) {
+			wheel.reschedule(this);
+		}
+	}
+
+	/**
+	 * Sets the current time as the time this element is last accessed. This
+	 * only moves the deadline of the element later, which the timer wheel
+	 * finds out by itself.
 	 */
 	public void setLastAccessTimeNow() {
-		this.lastAccessTime = System.currentTimeMillis();
+		this.lastAccessTime = profile.encode(System.currentTimeMillis());
+	}
+
+	/**
+	 * Sets the time this element is last accessed to the current time of the
+	 * ticker of its cache, read by the caller. Like
+	 * {@link #setLastAccessTimeNow()}, this only moves the deadline later.
+	 * 
+	 * @param now The current time in milliseconds.
+	 */
+	void touch(long now) {
+		this.lastAccessTime = profile.encode(now);
+	}
+
+	/**
+	 * Returns the time this element has left to live, as given to an expiry
+	 * policy.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return the remaining lifetime in seconds, -1 for no limit.
+	 */
+	long getRemainingLifeSeconds(long now) {
+		long maxLifeSeconds = getMaxLifeSeconds();
+		if (maxLifeSeconds == -1) {
+			return -1;
+		}
+		return Math.max(0, (getCreateTime() + maxLifeSeconds * 1000 - now) / 1000);
+	}
+
+	/**
+	 * Gives this element an expiry policy and a lifetime counted from now.
+	 * The max life is rounded up to the second, so the element never expires
+	 * before the lifetime is over, and kept on the element: the profile is
+	 * only copied if the expiry policy changes.
+	 *
+	 * @param expiry The expiry policy.
+	 * @param seconds The lifetime in seconds, -1 for no limit.
+	 * @param now The current time in milliseconds.
+	 */
+	void setTimeToLive(Expiry expiry, long seconds, long now) {
+		if (expiry != profile.getExpiry()) {
+			this.profile = profile.withExpiry(expiry, profile
+					.getMaxLifeSeconds());
+		}
+		if (seconds < 0) {
+			this.ownMaxLife = -1;
+		} else {
+			long maxLifeSeconds = (now - getCreateTime() + 999) / 1000
+					+ seconds;
+			this.ownMaxLife = (int) Math.min(maxLifeSeconds + 1,
+					Integer.MAX_VALUE);
+		}
+		expiryChanged();
+	}
+
+	/**
+	 * Sets the lifetime of this new element with an expiry policy.
+	 *
+	 * @param expiry The expiry policy.
+	 * @param now The current time in milliseconds.
+	 */
+	void expireAfterCreate(Expiry expiry, long now) {
+		setTimeToLive(expiry, expiry.expireAfterCreate(key, value), now);
+	}
+
+	/**
+	 * Sets the lifetime of this element replacing another one with the
+	 * expiry policy of this element, if any.
+	 *
+	 * @param old The replaced element.
+	 * @param value The value of this element, which may be held elsewhere.
+	 * @param now The current time in milliseconds.
+	 */
+	void expireAfterUpdate(CacheElement old, Serializable value, long now) {
+		Expiry expiry = profile.getExpiry();
+		if (expiry != null) {
+			setTimeToLive(expiry, expiry.expireAfterUpdate(key, value, old
+					.getRemainingLifeSeconds(now)), now);
+		}
+	}
+
+	/**
+	 * Sets the lifetime of this element which has just been read with its
+	 * expiry policy, if any.
+	 *
+	 * @param value The value of this element, which may be held elsewhere.
+	 * @param now The current time in milliseconds.
+	 */
+	void expireAfterRead(Serializable value, long now) {
+		Expiry expiry = profile.getExpiry();
+		if (expiry != null) {
+			long current = getRemainingLifeSeconds(now);
+			long seconds = expiry.expireAfterRead(key, value, current);
+			if (seconds != current) {
+				setTimeToLive(expiry, seconds, now);
+			}
+		}
 	}
 
 	/**
@@ -201,7 +468,7 @@ public class CacheElement implements Serializable {
 	 * @return String representation
 	 */
 	public String toString() {
-		return "[CacheElement: cacheName [" + cacheName + "], key [" + key
+		return "[CacheElement: cacheName [" + getCacheName() + "], key [" + key
 				+ "], value [" + value + "]";
 	}
 
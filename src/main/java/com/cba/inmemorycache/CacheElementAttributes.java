@@ -19,6 +19,12 @@ public class CacheElementAttributes implements Serializable {
 	/** Maximum time an entry can be idle. */
 	private long maxIdleTimeSeconds = -1;
 
+	/** Age after which a read reloads the element in the background. */
+	private long refreshAfterSeconds = -1;
+
+	/** Policy computing the TTL of each element, or null. */
+	private Expiry expiry;
+
 	/** The creation time. This is used to enforce the TTL. */
 	private long createTime = 0;
 
@@ -96,6 +102,53 @@ public class CacheElementAttributes implements Serializable {
 		this.maxIdleTimeSeconds = maxIdleTimeSeconds;
 	}
 
+	/**
+	 * Returns the age after which a read of this CacheElement object through
+	 * a <code>LoadingMemoryCache</code> reloads it in the background.
+	 * 
+	 * @return the refresh age in seconds, -1 if the element is not
+	 *         refreshed.
+	 */
+	public long getRefreshAfterSeconds() {
+		return refreshAfterSeconds;
+	}
+
+	/**
+	 * Sets the age after which a read of this CacheElement object through a
+	 * <code>LoadingMemoryCache</code> reloads it in the background. The read
+	 * still returns the current value, so the readers of a hot key do not
+	 * wait for a load as long as it is refreshed before its max life. Set it
+	 * below the max life seconds.
+	 * 
+	 * @param refreshAfterSeconds
+	 *            the refresh age in seconds, -1 for none.
+	 */
+	public void setRefreshAfterSeconds(long refreshAfterSeconds) {
+		this.refreshAfterSeconds = refreshAfterSeconds;
+	}
+
+	/**
+	 * Returns the policy computing the TTL of each element.
+	 * 
+	 * @return the expiry policy, null if the elements get the max life
+	 *         seconds.
+	 */
+	public Expiry getExpiry() {
+		return expiry;
+	}
+
+	/**
+	 * Sets the policy computing the TTL of each element from its key and its
+	 * value, in place of the max life seconds. An element put with its own
+	 * policy uses that one instead.
+	 * 
+	 * @param expiry
+	 *            the expiry policy, null to use the max life seconds.
+	 */
+	public void setExpiry(Expiry expiry) {
+		this.expiry = expiry;
+	}
+
 	/**
 	 * Returns the time when this CacheElement object is created.
 	 * 
@@ -122,6 +175,9 @@ public class CacheElementAttributes implements Serializable {
 
 		str.append("MaxLifeSeconds = ").append(this.getMaxLifeSeconds());
 		str.append(", IdleTime = ").append(this.getMaxIdleTimeSeconds());
+		str.append(", RefreshAfterSeconds = ").append(
+				this.getRefreshAfterSeconds());
+		str.append(", Expiry = ").append(this.getExpiry());
 		str.append(", CreateTime = ").append(this.getCreateTime());
 		str.append(", LastAccessTime = ").append(this.getLastAccessTime());
 
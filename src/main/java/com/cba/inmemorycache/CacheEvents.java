@@ -0,0 +1,123 @@
+package com.cba.inmemorycache;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>CacheEvents</code> reports the stalls of the caches as JDK Flight
+ * Recorder events: long holds of the lock of a cache, maintenance passes and
+ * bursts of evictions. They can be correlated with the GC and CPU events of
+ * the same recording.
+ * <p>
+ * The events are only created while a recording is running, and the caches
+ * read the clock for them only then. On a JVM without the Flight Recorder
+ * nothing is reported. The event classes are in <code>JfrCacheEvents</code>,
+ * which is not loaded in that case.
+ * </p>
+ */
+final class CacheEvents {
+
+	/** For logging */
+	private final static Logger log = Logger.getLogger(CacheEvents.class
+			.getName());
+
+	/** Lock holds shorter than this are not reported, in nanoseconds. */
+	static final long LOCK_HOLD_THRESHOLD_NANOS = Long.getLong(
+			"com.cba.inmemorycache.lockHoldThresholdMicros", 1000L) * 1000L;
+
+	/** Fewer evictions at once than this are not reported. */
+	static final int EVICTION_BURST_THRESHOLD = Integer.getInteger(
+			"com.cba.inmemorycache.evictionBurstThreshold", 64);
+
+	/** Whether the Flight Recorder is available */
+	private static final boolean AVAILABLE;
+
+	/** Whether a recording is running */
+	private static volatile boolean recording;
+
+	static {
+		boolean available;
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			JfrCacheEvents.listen();
+			available = true;
+		} catch (Throwable e) {
+			log.log(Level.FINE, "No Flight Recorder, cache events are off", e);
+			available = false;
+		}
+		AVAILABLE = available;
+	}
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CacheEvents() {
+	}
+
+	/**
+	 * Sets whether a recording is running, called by the listener of the
+	 * Flight Recorder.
+	 *
+	 * @param running true if a recording is running.
+	 */
+	static void setRecording(boolean running) {
+		recording = running;
+	}
+
+	/**
+	 * Returns the start time of a lock hold or a maintenance pass to be
+	 * reported.
+	 *
+	 * @return the current time in nanoseconds, or 0 if no recording is
+	 *         running.
+	 */
+	static long startTimer() {
+		return recording ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Reports a lock hold, if it took longer than the threshold. To be called
+	 * before the lock is released.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param operation The operation holding the lock.
+	 * @param start The value of <code>startTimer</code> after the lock was
+	 *            acquired.
+	 */
+	static void lockHeld(String cacheName, String operation, long start) {
+		if (start != 0L && AVAILABLE) {
+			long duration = System.nanoTime() - start;
+			if (duration >= LOCK_HOLD_THRESHOLD_NANOS) {
+				JfrCacheEvents.lockHeld(cacheName, operation, duration);
+			}
+		}
+	}
+
+	/**
+	 * Reports a maintenance pass over a cache.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param sizeBefore The number of elements before the pass.
+	 * @param sizeAfter The number of elements after the pass.
+	 * @param duration The time spent in the pass, in nanoseconds.
+	 */
+	static void cleanup(String cacheName, int sizeBefore, int sizeAfter,
+			long duration) {
+		if (recording && AVAILABLE) {
+			JfrCacheEvents.cleanup(cacheName, sizeBefore, sizeAfter, duration);
+		}
+	}
+
+	/**
+	 * Reports a burst of evictions.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param count The number of elements evicted at once.
+	 */
+	static void evictionBurst(String cacheName, int count) {
+		if (recording && AVAILABLE) {
+			JfrCacheEvents.evictionBurst(cacheName, count);
+		}
+	}
+
+}
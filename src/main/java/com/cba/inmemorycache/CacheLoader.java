@@ -0,0 +1,50 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <code>CacheLoader</code> computes the value of a key missing from a cache,
+ * see {@link LoadingMemoryCache#get(Serializable, CacheLoader)}.
+ *
+ * @param <V> The type of the values.
+ */
+public interface CacheLoader<V extends Serializable> {
+
+	/**
+	 * Computes the value of a key, e.g. by reading it from a database.
+	 *
+	 * @param key The key missing from the cache.
+	 * @return the value to be cached, or null if the key has no value.
+	 * @throws Exception Error when loading the value; it is reported to every
+	 *             caller waiting for the value.
+	 */
+	public V load(Serializable key) throws Exception;
+
+	/**
+	 * Computes the values of a number of keys, for the misses of
+	 * {@link LoadingMemoryCache#getAll(Collection, CacheLoader)}. Override it
+	 * to read them all at once, e.g. with a single query; by default the keys
+	 * are loaded one by one.
+	 *
+	 * @param keys The keys missing from the cache.
+	 * @return the values to be cached, by key. The keys without a value are
+	 *         left out.
+	 * @throws Exception Error when loading the values; it is reported to
+	 *             every caller waiting for any of them.
+	 */
+	public default Map<Serializable, V> loadAll(Collection<Serializable> keys)
+			throws Exception {
+		Map<Serializable, V> values = new HashMap<Serializable, V>();
+		for (Serializable key : keys) {
+			V value = load(key);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+}
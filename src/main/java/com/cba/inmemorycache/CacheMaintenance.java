@@ -0,0 +1,239 @@
+package com.cba.inmemorycache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>CacheMaintenance</code> runs the maintenance of the caches of an
+ * <code>InMemoryCache</code> in the background, as configured by
+ * <code>MaintenanceAttributes</code>.
+ * <p>
+ * Each maintenance thread sleeps for a jittered interval, then maintains its
+ * caches. A failing cache is logged and does not keep the other caches from
+ * being maintained. A cache is cleaned up in batches of elements, and a pass
+ * stops once its time budget is spent: the next pass carries on with the
+ * elements left and, with a shared thread, the caches that were skipped.
+ * </p>
+ */
+class CacheMaintenance {
+
+	/** For logging */
+	private final static Logger log = Logger.getLogger(CacheMaintenance.class
+			.getName());
+
+	/** The cache manager whose caches are maintained */
+	private final InMemoryCache manager;
+
+	/** The attributes of the maintenance */
+	private final MaintenanceAttributes attributes;
+
+	/** The maintenance threads, guarded by this */
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/** The caches that have their own thread, guarded by this */
+	private final Set<String> maintainedCaches = new HashSet<String>();
+
+	/** The source of the jitter */
+	private final Random random = new Random();
+
+	/** Set once the maintenance is stopped */
+	private volatile boolean stopped;
+
+	/** The index of the cache the next shared pass starts with */
+	private int cursor;
+
+	/**
+	 * Constructs the maintenance of the caches of a cache manager.
+	 *
+	 * @param manager The cache manager.
+	 * @param attributes The attributes of the maintenance.
+	 */
+	CacheMaintenance(InMemoryCache manager, MaintenanceAttributes attributes) {
+		this.manager = manager;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Starts the maintenance threads.
+	 */
+	synchronized void start() {
+		if (attributes.getMode() == MaintenanceMode.THREAD_PER_CACHE) {
+			for (String cacheName : manager.getCacheNames()) {
+				cacheAdded(cacheName);
+			}
+		} else {
+			startThread("InMemoryCache-maintenance", new Runnable() {
+				public void run() {
+					while (pause()) {
+						runSharedPass();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Starts maintaining a new cache on its own thread, if the caches are
+	 * maintained by a thread per cache. The thread ends once the cache is
+	 * removed, and a cache recreated later gets a new thread.
+	 *
+	 * @param cacheName The name of the new cache.
+	 */
+	synchronized void cacheAdded(final String cacheName) {
+		if (stopped
+				|| attributes.getMode() != MaintenanceMode.THREAD_PER_CACHE
+				|| !maintainedCaches.add(cacheName)) {
+			return;
+		}
+
+		startThread("InMemoryCache-maintenance-" + cacheName, new Runnable() {
+			public void run() {
+				while (pause()) {
+					if (!manager.hasCache(cacheName)) {
+						// the cache is gone
+						cacheRemoved(cacheName, Thread.currentThread());
+						break;
+					}
+					if (!manager.maintainCache(cacheName, attributes
+							.getBatchSize(), budgetNanos())) {
+						log.log(Level.FINE, "Maintenance of cache " + cacheName
+								+ " over its budget, carrying on next pass");
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets the thread of a removed cache, which is ending, so that
+	 * <code>cacheAdded</code> starts a new thread if the cache is recreated.
+	 * A cache recreated before the thread was forgotten gets its new thread
+	 * here. The cache manager is not called under the lock of this object,
+	 * as the manager calls <code>cacheAdded</code> under its own lock.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param thread The thread of the cache.
+	 */
+	private void cacheRemoved(String cacheName, Thread thread) {
+		synchronized (this) {
+			maintainedCaches.remove(cacheName);
+			threads.remove(thread);
+		}
+		if (manager.hasCache(cacheName)) {
+			cacheAdded(cacheName);
+		}
+	}
+
+	/**
+	 * Stops the maintenance threads. A pass in progress finishes the cache it
+	 * is working on.
+	 */
+	synchronized void stop() {
+		stopped = true;
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		threads.clear();
+	}
+
+	/**
+	 * Maintains the caches one after the other, starting with the cache the
+	 * previous pass stopped at, until all caches are maintained or the time
+	 * budget is spent.
+	 */
+	void runSharedPass() {
+		String[] cacheNames = manager.getCacheNames();
+		int count = cacheNames.length;
+		if (count == 0) {
+			return;
+		}
+
+		long budget = budgetNanos();
+		long start = System.nanoTime();
+		int first = cursor % count;
+		for (int i = 0; i < count; i++) {
+			int index = (first + i) % count;
+			long elapsed = System.nanoTime() - start;
+			boolean done = manager.maintainCache(cacheNames[index], attributes
+					.getBatchSize(), budget - elapsed);
+			if ((!done || i < count - 1)
+					&& System.nanoTime() - start > budget) {
+				// carry on with this cache or the next one on the next pass
+				cursor = done ? index + 1 : index;
+				log.log(Level.FINE, "Maintenance pass over its budget after "
+						+ (i + 1) + " of " + count + " caches");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the time budget of a pass.
+	 *
+	 * @return the time budget in nanoseconds.
+	 */
+	private long budgetNanos() {
+		return TimeUnit.MILLISECONDS.toNanos(attributes.getTimeBudgetMillis());
+	}
+
+	/**
+	 * Sleeps for a jittered interval.
+	 *
+	 * @return true if the maintenance should go on, false if it is stopped.
+	 */
+	private boolean pause() {
+		try {
+			Thread.sleep(nextInterval());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return !stopped;
+	}
+
+	/**
+	 * Picks the time until the next pass at random within the jitter.
+	 *
+	 * @return the time until the next pass in milliseconds.
+	 */
+	private long nextInterval() {
+		long interval = attributes.getIntervalMillis();
+		long jitter = interval * attributes.getJitterPercent() / 100;
+		if (jitter <= 0) {
+			return interval;
+		}
+		long offset;
+		synchronized (random) {
+			offset = (long) (random.nextDouble() * (2 * jitter + 1));
+		}
+		return Math.max(0, interval - jitter + offset);
+	}
+
+	/**
+	 * Creates and starts a maintenance thread.
+	 *
+	 * @param name The name of the thread.
+	 * @param task The maintenance loop.
+	 */
+	private void startThread(String name, Runnable task) {
+		Thread thread;
+		ThreadFactory threadFactory = attributes.getThreadFactory();
+		if (threadFactory != null) {
+			thread = threadFactory.newThread(task);
+			thread.setName(name);
+		} else {
+			thread = new Thread(task, name);
+			thread.setDaemon(true);
+		}
+		threads.add(thread);
+		thread.start();
+	}
+
+}
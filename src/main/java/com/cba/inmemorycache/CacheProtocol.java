@@ -0,0 +1,197 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <code>CacheProtocol</code> holds the binary protocol between a
+ * <code>CacheServer</code> and its <code>CacheClient</code>s.
+ * <p>
+ * Every message is a frame: its length as an <code>int</code>, then its
+ * body. A request body is an operation, the name of the cache, then the
+ * arguments of the operation; the keys and the values are written like those
+ * of a snapshot, without codecs. The server answers the requests of a
+ * connection in order, so a client sends requests without waiting for the
+ * previous answers and matches the answers to its requests by their order.
+ * A response body starts with {@link #RESPONSE} and a status. The server also
+ * pushes {@link #INVALIDATE} and {@link #INVALIDATE_ALL} frames, between the
+ * responses, when another connection changes a cache this connection uses.
+ * </p>
+ */
+final class CacheProtocol {
+
+	/** The largest frame accepted */
+	static final int MAX_FRAME = 64 << 20;
+
+	/**
+	 * Reads a key: the key. Answers FOUND with the value and its remaining
+	 * life plus one.
+	 */
+	static final int GET = 1;
+
+	/**
+	 * Puts a key: the key, the value and the max life plus two, 0 for the
+	 * max life of the cache. Answers OK and the remaining life plus one.
+	 */
+	static final int PUT = 2;
+
+	/** Removes a key: the key. Answers OK and whether it was there. */
+	static final int REMOVE = 3;
+
+	/** Removes all the elements of a cache. */
+	static final int CLEAR = 4;
+
+	/** Reads the size of a cache. Answers OK and the size. */
+	static final int SIZE = 5;
+
+	/**
+	 * Reads a page of the elements of a cache: the cursor, 0 to start, and
+	 * the largest number of elements. Answers OK, the next cursor, 0 at the
+	 * end, and the elements, each with its remaining life plus one.
+	 */
+	static final int SCAN = 6;
+
+	/** A frame answering a request */
+	static final int RESPONSE = 0;
+
+	/** A frame pushing a changed key: the cache name and the key */
+	static final int INVALIDATE = 1;
+
+	/** A frame pushing a cleared cache: the cache name */
+	static final int INVALIDATE_ALL = 2;
+
+	/** The request succeeded */
+	static final int OK = 0;
+
+	/** The key is found, its value follows */
+	static final int FOUND = 1;
+
+	/** The key is not found */
+	static final int MISSING = 2;
+
+	/** The request failed, the message follows */
+	static final int ERROR = 3;
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CacheProtocol() {
+	}
+
+	/**
+	 * Returns the next complete frame of a buffer and moves past it.
+	 *
+	 * @param in The buffer, ready to be read.
+	 * @return the body of the frame, or null if the frame is not complete.
+	 * @exception IOException The frame is too large.
+	 */
+	static ByteBuffer nextFrame(ByteBuffer in) throws IOException {
+		if (in.remaining() < 4) {
+			return null;
+		}
+		int length = in.getInt(in.position());
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		if (in.remaining() < 4 + length) {
+			return null;
+		}
+		in.position(in.position() + 4);
+		ByteBuffer frame = in.slice();
+		frame.limit(length);
+		in.position(in.position() + length);
+		return frame;
+	}
+
+	/**
+	 * Compacts a buffer after its complete frames have been read, growing it
+	 * if the next frame does not fit.
+	 *
+	 * @param in The buffer, ready to be read.
+	 * @return the buffer to read more bytes into.
+	 */
+	static ByteBuffer compact(ByteBuffer in) {
+		int needed = in.remaining() >= 4 ? 4 + in.getInt(in.position()) : 4;
+		in.compact();
+		if (needed > in.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, in
+					.capacity() * 2));
+			in.flip();
+			larger.put(in);
+			return larger;
+		}
+		return in;
+	}
+
+	/**
+	 * A byte stream writing frames one after the other, whose buffer is
+	 * written to the channel without a copy.
+	 */
+	static final class FrameBuffer extends ByteArrayOutputStream {
+
+		/** The stream writing the body of the frames */
+		final DataOutputStream out = new DataOutputStream(this);
+
+		/** The position of the frame being written */
+		private int start;
+
+		/**
+		 * Constructs an empty buffer.
+		 */
+		FrameBuffer() {
+			super(8192);
+		}
+
+		/**
+		 * Starts a frame, with room for its length.
+		 *
+		 * @exception IOException Error when writing the frame.
+		 */
+		void begin() throws IOException {
+			start = count;
+			out.writeInt(0);
+		}
+
+		/**
+		 * Ends the frame, writing its length.
+		 */
+		void end() {
+			int length = count - start - 4;
+			buf[start] = (byte) (length >>> 24);
+			buf[start + 1] = (byte) (length >>> 16);
+			buf[start + 2] = (byte) (length >>> 8);
+			buf[start + 3] = (byte) length;
+		}
+
+		/**
+		 * Drops the frame being written, after an error.
+		 */
+		void cancel() {
+			count = start;
+		}
+
+		/**
+		 * Returns the frames written, to be written to a channel.
+		 *
+		 * @return a buffer over the bytes written.
+		 */
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+		/**
+		 * Drops the first bytes, once written to a channel.
+		 *
+		 * @param n The number of bytes written.
+		 */
+		void consume(int n) {
+			if (n > 0) {
+				System.arraycopy(buf, n, buf, 0, count - n);
+				count -= n;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,546 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>CacheServer</code> serves the named caches of an
+ * <code>InMemoryCache</code> to <code>CacheClient</code>s over TCP, so the
+ * nodes of a data centre share one warm copy of the data.
+ * <p>
+ * A single thread runs a NIO selector over all the connections. It reads the
+ * requests of the <code>CacheProtocol</code>, runs them on the caches in the
+ * order they arrive, and writes the responses of all the requests and the
+ * invalidations read in one pass of the selector with one write per
+ * connection. A request creates the cache it names if it does not exist,
+ * like {@link InMemoryCache#getCache(String)}. A put, a remove or a clear is
+ * pushed as an invalidation to the other connections which have used the
+ * cache, so their near caches drop the key. The writes made to the caches
+ * directly on the server are not pushed.
+ * </p>
+ * <p>
+ * Run a standalone server on a port, 11311 by default, with
+ * <code>java -cp ... com.cba.inmemorycache.CacheServer [port]</code>.
+ * </p>
+ */
+public class CacheServer {
+
+	/** For logging */
+	private final static Logger log = Logger.getLogger(CacheServer.class
+			.getName());
+
+	/** The default port of the server */
+	public static final int DEFAULT_PORT = 11311;
+
+	/** The output a connection may leave unread before it is closed */
+	private static final int MAX_PENDING_BYTES = CacheProtocol.MAX_FRAME;
+
+	/** The cache manager whose caches are served */
+	private final InMemoryCache manager;
+
+	/** The address to listen on */
+	private final InetSocketAddress address;
+
+	/** The connections using each cache, by cache name */
+	private final Map<String, Set<Connection>> subscribers = new HashMap<String, Set<Connection>>();
+
+	/** The connections with output to be written after the current pass */
+	private final Set<Connection> dirty = new LinkedHashSet<Connection>();
+
+	/** An invalidation being written, to be copied to the subscribers */
+	private final CacheProtocol.FrameBuffer invalidation = new CacheProtocol.FrameBuffer();
+
+	/** The selector, null until started */
+	private Selector selector;
+
+	/** The listening channel, null until started */
+	private ServerSocketChannel serverChannel;
+
+	/** The thread running the selector */
+	private Thread thread;
+
+	/** Set once the server is stopped */
+	private volatile boolean stopped;
+
+	/**
+	 * Constructs a server of the caches of a cache manager.
+	 *
+	 * @param manager The cache manager.
+	 * @param address The address to listen on, port 0 for any free port.
+	 */
+	public CacheServer(InMemoryCache manager, InetSocketAddress address) {
+		this.manager = manager;
+		this.address = address;
+	}
+
+	/**
+	 * Starts listening and serving the connections.
+	 *
+	 * @exception IOException The address cannot be listened on.
+	 */
+	public synchronized void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+		log.log(Level.INFO, "Serving caches on "
+				+ serverChannel.socket().getLocalSocketAddress());
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				serve();
+			}
+		}, "InMemoryCache-server-" + getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops serving, and closes all the connections.
+	 */
+	public synchronized void stop() {
+		if (thread == null) {
+			return;
+		}
+		stopped = true;
+		selector.wakeup();
+		try {
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 *
+	 * @return the port, -1 if the server is not started.
+	 */
+	public int getPort() {
+		ServerSocketChannel channel = serverChannel;
+		return channel == null ? -1 : channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Runs the selector until the server is stopped.
+	 */
+	private void serve() {
+		try {
+			while (!stopped) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(connection);
+						}
+						if (key.isValid() && key.isWritable()) {
+							dirty.add(connection);
+						}
+					} catch (IOException e) {
+						log.log(Level.FINE, "Closing connection "
+								+ connection, e);
+						close(connection);
+					}
+				}
+				writeDirty();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cache server failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					close((Connection) key.attachment());
+				}
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Cannot close the cache server", e);
+			}
+		}
+	}
+
+	/**
+	 * Accepts a new connection.
+	 *
+	 * @exception IOException Error when accepting the connection.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ,
+				connection);
+	}
+
+	/**
+	 * Reads the available bytes of a connection and runs its complete
+	 * requests.
+	 *
+	 * @param connection The connection.
+	 * @exception IOException Error when reading, or the connection is closed.
+	 */
+	private void read(Connection connection) throws IOException {
+		if (connection.channel.read(connection.in) < 0) {
+			throw new IOException("Connection closed by the client");
+		}
+		ByteBuffer in = connection.in;
+		in.flip();
+		ByteBuffer frame;
+		while ((frame = CacheProtocol.nextFrame(in)) != null) {
+			handle(connection, frame);
+		}
+		connection.in = CacheProtocol.compact(in);
+	}
+
+	/**
+	 * Runs a request and writes its response.
+	 *
+	 * @param connection The connection of the request.
+	 * @param frame The request.
+	 * @exception IOException Error when writing the response.
+	 */
+	private void handle(Connection connection, ByteBuffer frame)
+			throws IOException {
+		CacheProtocol.FrameBuffer out = connection.out;
+		out.begin();
+		out.out.writeByte(CacheProtocol.RESPONSE);
+		try {
+			CacheSnapshot.MappedReader in = new CacheSnapshot.MappedReader(
+					frame);
+			int op = in.readByte();
+			String cacheName = (String) CacheSnapshot.readObject(in, in
+					.readByte(), null);
+			MemoryCache cache = manager.getCache(cacheName);
+			subscribe(connection, cacheName);
+
+			switch (op) {
+			case CacheProtocol.GET: {
+				Serializable key = CacheSnapshot.readObject(in, in.readByte(),
+						null);
+				CacheElement ce = cache.get(key);
+				if (ce == null) {
+					out.out.writeByte(CacheProtocol.MISSING);
+				} else {
+					out.out.writeByte(CacheProtocol.FOUND);
+					CacheSnapshot.writeObject(out.out, ce.getValue(), null);
+					CacheSnapshot.writeVarLong(out.out, ce
+							.getRemainingLifeSeconds(currentTimeMillis(cache)) + 1);
+				}
+				break;
+			}
+			case CacheProtocol.PUT: {
+				Serializable key = CacheSnapshot.readObject(in, in.readByte(),
+						null);
+				Serializable value = CacheSnapshot.readObject(in, in
+						.readByte(), null);
+				long maxLifeSeconds = in.readVarLong() - 2;
+				long remainingLifeSeconds = -1;
+				if (cache instanceof AbstractMemoryCache) {
+					CacheElement ce = ((AbstractMemoryCache) cache)
+							.createElement(key, value);
+					if (maxLifeSeconds != -2) {
+						ce.setMaxLifeSeconds(maxLifeSeconds);
+					}
+					cache.update(ce);
+					remainingLifeSeconds = ce
+							.getRemainingLifeSeconds(currentTimeMillis(cache));
+				} else {
+					cache.put(key, value);
+				}
+				out.out.writeByte(CacheProtocol.OK);
+				CacheSnapshot.writeVarLong(out.out, remainingLifeSeconds + 1);
+				invalidate(connection, cacheName, key);
+				break;
+			}
+			case CacheProtocol.REMOVE: {
+				Serializable key = CacheSnapshot.readObject(in, in.readByte(),
+						null);
+				boolean removed = cache.remove(key);
+				out.out.writeByte(CacheProtocol.OK);
+				out.out.writeBoolean(removed);
+				invalidate(connection, cacheName, key);
+				break;
+			}
+			case CacheProtocol.CLEAR:
+				cache.removeAll();
+				out.out.writeByte(CacheProtocol.OK);
+				invalidate(connection, cacheName, null);
+				break;
+			case CacheProtocol.SIZE:
+				out.out.writeByte(CacheProtocol.OK);
+				CacheSnapshot.writeVarLong(out.out, cache.getSize());
+				break;
+			case CacheProtocol.SCAN:
+				scan(connection, cacheName, cache, (int) in.readVarLong(),
+						(int) in.readVarLong());
+				break;
+			default:
+				throw new IOException("Unknown operation " + op);
+			}
+		} catch (Exception e) {
+			// answer the request with the error, the connection goes on
+			out.cancel();
+			out.begin();
+			out.out.writeByte(CacheProtocol.RESPONSE);
+			out.out.writeByte(CacheProtocol.ERROR);
+			CacheSnapshot.writeObject(out.out, String.valueOf(e.getMessage()),
+					null);
+		}
+		out.end();
+		dirty.add(connection);
+	}
+
+	/**
+	 * Writes a page of the elements of a cache. The first page lists the
+	 * elements, and the connection keeps the list for the following pages,
+	 * so a cache is read in one pass however many pages it takes.
+	 *
+	 * @param connection The connection of the request.
+	 * @param cacheName The name of the cache.
+	 * @param cache The cache.
+	 * @param cursor The position of the page in the list, 0 for the first.
+	 * @param count The largest number of elements of the page.
+	 * @exception IOException The cache cannot list its elements.
+	 */
+	private void scan(Connection connection, String cacheName,
+			MemoryCache cache, int cursor, int count) throws IOException {
+		if (!(cache instanceof AbstractMemoryCache)) {
+			throw new IOException("Cache " + cacheName
+					+ " cannot list its elements");
+		}
+		AbstractMemoryCache abstractCache = (AbstractMemoryCache) cache;
+		List<CacheElement> elements = connection.scans.get(cacheName);
+		if (cursor == 0 || elements == null) {
+			elements = abstractCache.getElementsInAccessOrder();
+			connection.scans.put(cacheName, elements);
+		}
+
+		long now = abstractCache.currentTimeMillis();
+		int end = Math.min(elements.size(), cursor + Math.max(1, count));
+		List<CacheElement> page = new ArrayList<CacheElement>(end - cursor);
+		for (int i = cursor; i < end; i++) {
+			CacheElement ce = elements.get(i);
+			if (!abstractCache.isExpired(ce, now)) {
+				page.add(ce);
+			}
+		}
+		if (end == elements.size()) {
+			connection.scans.remove(cacheName);
+			end = 0;
+		}
+
+		CacheProtocol.FrameBuffer out = connection.out;
+		out.out.writeByte(CacheProtocol.OK);
+		CacheSnapshot.writeVarLong(out.out, end);
+		CacheSnapshot.writeVarLong(out.out, page.size());
+		for (CacheElement ce : page) {
+			CacheSnapshot.writeObject(out.out, ce.getKey(), null);
+			CacheSnapshot.writeObject(out.out, ce.getValue(), null);
+			CacheSnapshot.writeVarLong(out.out, ce
+					.getRemainingLifeSeconds(now) + 1);
+		}
+	}
+
+	/**
+	 * Returns the current time of the ticker of a cache.
+	 *
+	 * @param cache The cache.
+	 * @return the current time in milliseconds.
+	 */
+	private static long currentTimeMillis(MemoryCache cache) {
+		return cache instanceof AbstractMemoryCache ? ((AbstractMemoryCache) cache)
+				.currentTimeMillis()
+				: System.currentTimeMillis();
+	}
+
+	/**
+	 * Records that a connection uses a cache.
+	 *
+	 * @param connection The connection.
+	 * @param cacheName The name of the cache.
+	 */
+	private void subscribe(Connection connection, String cacheName) {
+		if (connection.caches.add(cacheName)) {
+			Set<Connection> connections = subscribers.get(cacheName);
+			if (connections == null) {
+				connections = new HashSet<Connection>();
+				subscribers.put(cacheName, connections);
+			}
+			connections.add(connection);
+		}
+	}
+
+	/**
+	 * Pushes a changed key, or a cleared cache, to the other connections
+	 * using the cache.
+	 *
+	 * @param source The connection which changed the cache.
+	 * @param cacheName The name of the cache.
+	 * @param key The key, null for a cleared cache.
+	 * @exception IOException Error when writing the invalidation.
+	 */
+	private void invalidate(Connection source, String cacheName,
+			Serializable key) throws IOException {
+		Set<Connection> connections = subscribers.get(cacheName);
+		if (connections == null || connections.size() < 2) {
+			return;
+		}
+		invalidation.reset();
+		invalidation.begin();
+		invalidation.out.writeByte(key == null ? CacheProtocol.INVALIDATE_ALL
+				: CacheProtocol.INVALIDATE);
+		CacheSnapshot.writeObject(invalidation.out, cacheName, null);
+		if (key != null) {
+			CacheSnapshot.writeObject(invalidation.out, key, null);
+		}
+		invalidation.end();
+		for (Connection connection : connections) {
+			if (connection != source) {
+				invalidation.writeTo(connection.out);
+				dirty.add(connection);
+			}
+		}
+	}
+
+	/**
+	 * Writes the output of the connections which have some, and waits for
+	 * the channels which cannot take it all to become writable.
+	 */
+	private void writeDirty() {
+		for (Connection connection : dirty) {
+			try {
+				CacheProtocol.FrameBuffer out = connection.out;
+				int written = out.size() == 0 ? 0 : connection.channel
+						.write(out.toByteBuffer());
+				out.consume(written);
+				if (out.size() > MAX_PENDING_BYTES) {
+					throw new IOException(out.size()
+							+ " bytes not read by the client");
+				}
+				if (connection.key.isValid()) {
+					connection.key.interestOps(out.size() == 0 ? SelectionKey.OP_READ
+							: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Closing connection " + connection, e);
+				close(connection);
+			}
+		}
+		dirty.clear();
+	}
+
+	/**
+	 * Closes a connection and forgets the caches it used.
+	 *
+	 * @param connection The connection.
+	 */
+	private void close(Connection connection) {
+		for (String cacheName : connection.caches) {
+			Set<Connection> connections = subscribers.get(cacheName);
+			if (connections != null) {
+				connections.remove(connection);
+			}
+		}
+		connection.caches.clear();
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			log.log(Level.FINE, "Cannot close connection " + connection, e);
+		}
+	}
+
+	/**
+	 * Runs a standalone server of the caches of the singleton cache manager.
+	 *
+	 * @param args The port, 11311 by default.
+	 * @throws Exception Error when starting the server.
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		CacheServer server = new CacheServer(InMemoryCache.getInstance(),
+				new InetSocketAddress(port));
+		server.start();
+		server.thread.join();
+	}
+
+	/**
+	 * A client connection and its buffers, used by the selector thread only.
+	 */
+	private static final class Connection {
+
+		/** The channel of the connection */
+		final SocketChannel channel;
+
+		/** The bytes read and not run yet */
+		ByteBuffer in = ByteBuffer.allocate(65536);
+
+		/** The responses and invalidations not written yet */
+		final CacheProtocol.FrameBuffer out = new CacheProtocol.FrameBuffer();
+
+		/** The names of the caches the connection has used */
+		final Set<String> caches = new HashSet<String>();
+
+		/** The elements of the caches being scanned, by cache name */
+		final Map<String, List<CacheElement>> scans = new HashMap<String, List<CacheElement>>();
+
+		/** The key of the channel in the selector */
+		SelectionKey key;
+
+		/**
+		 * Constructs a connection.
+		 *
+		 * @param channel The channel of the connection.
+		 */
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public String toString() {
+			return String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+	}
+
+}
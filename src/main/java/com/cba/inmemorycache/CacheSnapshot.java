@@ -0,0 +1,610 @@
+package com.cba.inmemorycache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * <code>CacheSnapshot</code> writes the elements of a cache to a file, and
+ * puts them back into a cache when the application restarts, so the cache
+ * starts warm.
+ * <p>
+ * The file is a stream of binary records: a header with the name and the
+ * attributes of the cache and the time of the snapshot, then the elements
+ * from the least to the most recently used one, and an end mark. An element
+ * is written as its key, its value, its age, its idle time and its TTL
+ * settings. The numbers are written as variable length integers, and the
+ * <code>String</code>, <code>Integer</code> and <code>Long</code> keys and
+ * values without Java serialization. The keys and the values of a cache with
+ * a key or a value codec are written by the codec instead.
+ * </p>
+ * <p>
+ * The snapshot is read through a memory-mapped window moving along the
+ * file. The ages count the time since the snapshot, so the elements expired
+ * meanwhile are skipped, and the others keep their remaining TTL. The
+ * restored elements are put in the order they were written, which restores
+ * their LRU order.
+ * </p>
+ */
+final class CacheSnapshot {
+
+	/** The file name suffix of the snapshots. */
+	static final String SUFFIX = ".snapshot";
+
+	/** The first bytes of a snapshot, "CBCS". */
+	private static final int MAGIC = 0x43424353;
+
+	/** The version of the format. */
+	private static final int VERSION = 1;
+
+	/** Marks the end of the elements. */
+	private static final int END = 0;
+
+	/** A <code>String</code>, as its UTF-8 bytes. */
+	private static final int STRING = 1;
+
+	/** An <code>Integer</code>, as a variable length integer. */
+	private static final int INTEGER = 2;
+
+	/** A <code>Long</code>, as a variable length integer. */
+	private static final int LONG = 3;
+
+	/** Any other object, serialized. */
+	private static final int OBJECT = 4;
+
+	/** An object written by the codec of the cache, as its length and bytes. */
+	private static final int CODEC = 5;
+
+	/** The size of the mapped window. */
+	private static final int WINDOW = 64 << 20;
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private CacheSnapshot() {
+	}
+
+	/**
+	 * Returns the snapshot file of a cache.
+	 *
+	 * @param directory The directory of the snapshots.
+	 * @param cacheName The name of the cache.
+	 * @return the file.
+	 */
+	static File fileOf(File directory, String cacheName) {
+		return fileOf(directory, cacheName, SUFFIX);
+	}
+
+	/**
+	 * Returns a file of a cache, named after the cache.
+	 *
+	 * @param directory The directory of the file.
+	 * @param cacheName The name of the cache.
+	 * @param suffix The suffix of the file name.
+	 * @return the file.
+	 */
+	static File fileOf(File directory, String cacheName, String suffix) {
+		try {
+			return new File(directory, URLEncoder.encode(cacheName, "UTF-8")
+					+ suffix);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the name of the cache of a snapshot file.
+	 *
+	 * @param file The snapshot file.
+	 * @return the name of the cache, or null if the file is not a snapshot.
+	 */
+	static String cacheNameOf(File file) {
+		String name = file.getName();
+		if (!name.endsWith(SUFFIX)) {
+			return null;
+		}
+		try {
+			return URLDecoder.decode(name.substring(0, name.length()
+					- SUFFIX.length()), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of a cache. The snapshot is written to a temporary
+	 * file, which then replaces the file, so a crash never leaves a partial
+	 * snapshot behind. The elements already expired are left out.
+	 *
+	 * @param cache The cache.
+	 * @param file The snapshot file.
+	 * @return the number of elements written.
+	 * @exception IOException Error when writing the file, or the cache cannot
+	 *                list its elements.
+	 */
+	static int write(AbstractMemoryCache cache, File file) throws IOException {
+		List<CacheElement> elements = cache.getElementsInAccessOrder();
+		long now = cache.currentTimeMillis();
+		File tmp = new File(file.getPath() + ".tmp");
+		int count = 0;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, cache.getCacheName());
+			out.writeLong(now);
+
+			CacheAttributes cacheAttributes = cache.getCacheAttributes();
+			writeString(out, cacheAttributes.getMemoryCacheType().name());
+			out.writeInt(cacheAttributes.getConcurrencyLevel());
+			out.writeInt(cacheAttributes.getMaxEntries());
+			out.writeLong(cacheAttributes.getMaxWeight());
+			out.writeInt(cacheAttributes.getMaxEvictionsPerPut());
+			out.writeLong(cacheAttributes.getMaxOffHeapBytes());
+			out.writeBoolean(cacheAttributes.isRecordLatency());
+			CacheCodec<?> keyCodec = cacheAttributes.getKeyCodec();
+			CacheCodec<?> valueCodec = cacheAttributes.getValueCodec();
+
+			CacheElementAttributes attributes = cache.getAttributes();
+			out.writeLong(attributes.getMaxLifeSeconds());
+			out.writeLong(attributes.getMaxIdleTimeSeconds());
+			out.writeLong(attributes.getRefreshAfterSeconds());
+
+			for (CacheElement ce : elements) {
+				if (cache.isExpired(ce, now)) {
+					continue;
+				}
+				writeObject(out, ce.getKey(), keyCodec);
+				writeObject(out, ce.getValue(), valueCodec);
+				writeVarLong(out, Math.max(0, now - ce.getCreateTime()));
+				writeVarLong(out, Math.max(0, now - ce.getLastAccessTime()));
+				writeVarLong(out, ce.getMaxLifeSeconds() + 1);
+				writeVarLong(out, ce.getMaxIdleTimeSeconds() + 1);
+				writeVarLong(out, ce.getRefreshAfterSeconds() + 1);
+				count++;
+			}
+			out.writeByte(END);
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return count;
+	}
+
+	/**
+	 * Restores the elements of a snapshot into their cache. A cache that
+	 * does not exist is created with the attributes of the snapshot, except
+	 * its weigher, which is not written. An existing cache keeps its
+	 * attributes.
+	 *
+	 * @param manager The cache manager.
+	 * @param file The snapshot file.
+	 * @return the number of elements restored.
+	 * @exception IOException Error when reading the file, or it is not a
+	 *                snapshot.
+	 */
+	static int restore(InMemoryCache manager, File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return restore(manager, new MappedReader(in.getChannel()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Restores the elements of a snapshot into their cache.
+	 *
+	 * @param manager The cache manager.
+	 * @param in The reader of the snapshot.
+	 * @return the number of elements restored.
+	 * @exception IOException Error when reading the snapshot.
+	 */
+	private static int restore(InMemoryCache manager, MappedReader in)
+			throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a cache snapshot");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unknown cache snapshot version " + version);
+		}
+		String cacheName = readString(in);
+		long snapshotTime = in.readLong();
+
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType
+				.valueOf(readString(in)));
+		cacheAttributes.setConcurrencyLevel(in.readInt());
+		cacheAttributes.setMaxEntries(in.readInt());
+		cacheAttributes.setMaxWeight(in.readLong());
+		cacheAttributes.setMaxEvictionsPerPut(in.readInt());
+		cacheAttributes.setMaxOffHeapBytes(in.readLong());
+		cacheAttributes.setRecordLatency(in.readBoolean());
+
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setMaxLifeSeconds(in.readLong());
+		attributes.setMaxIdleTimeSeconds(in.readLong());
+		attributes.setRefreshAfterSeconds(in.readLong());
+
+		boolean existed = manager.hasCache(cacheName);
+		MemoryCache memoryCache = manager.getCache(cacheName, cacheAttributes);
+		if (!(memoryCache instanceof AbstractMemoryCache)) {
+			throw new IOException("Cache " + cacheName
+					+ " cannot be restored");
+		}
+		AbstractMemoryCache cache = (AbstractMemoryCache) memoryCache;
+		if (!existed) {
+			cache.setAttributes(attributes);
+		}
+
+		CacheCodec<?> keyCodec = cache.getCacheAttributes().getKeyCodec();
+		CacheCodec<?> valueCodec = cache.getCacheAttributes().getValueCodec();
+		long now = cache.currentTimeMillis();
+		long elapsed = Math.max(0, now - snapshotTime);
+		int count = 0;
+		int tag;
+		while ((tag = in.readByte()) != END) {
+			Serializable key = readObject(in, tag, keyCodec);
+			Serializable value = readObject(in, in.readByte(), valueCodec);
+			long age = in.readVarLong() + elapsed;
+			long idleTime = in.readVarLong() + elapsed;
+			long maxLifeSeconds = in.readVarLong() - 1;
+			long maxIdleTimeSeconds = in.readVarLong() - 1;
+			long refreshAfterSeconds = in.readVarLong() - 1;
+
+			if ((maxLifeSeconds != -1 && age > maxLifeSeconds * 1000)
+					|| (maxIdleTimeSeconds != -1 && idleTime > maxIdleTimeSeconds * 1000)) {
+				continue;
+			}
+
+			CacheElement ce = cache.createElement(key, value);
+			ce.setMaxLifeSeconds(maxLifeSeconds);
+			ce.setMaxIdleTimeSeconds(maxIdleTimeSeconds);
+			ce.setRefreshAfterSeconds(refreshAfterSeconds);
+			ce.setCreateTime(now - age);
+			cache.restore(ce, now - idleTime);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Writes a key or a value, preceded by its type.
+	 *
+	 * @param out The stream to write to.
+	 * @param object The key or the value.
+	 * @param codec The codec of the object, or null for the built-in
+	 *            encoding.
+	 * @exception IOException Error when writing the object.
+	 */
+	static void writeObject(DataOutputStream out, Serializable object,
+			CacheCodec<?> codec) throws IOException {
+		if (codec != null) {
+			byte[] bytes = CacheCodecs.toBytes(codec, object);
+			out.writeByte(CODEC);
+			writeVarLong(out, bytes.length);
+			out.write(bytes);
+		} else if (object instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) object);
+		} else if (object instanceof Integer) {
+			out.writeByte(INTEGER);
+			writeVarLong(out, zigZag(((Integer) object).intValue()));
+		} else if (object instanceof Long) {
+			out.writeByte(LONG);
+			writeVarLong(out, zigZag(((Long) object).longValue()));
+		} else {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+			objectOut.writeObject(object);
+			objectOut.close();
+			out.writeByte(OBJECT);
+			writeVarLong(out, bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	/**
+	 * Reads a key or a value.
+	 *
+	 * @param in The reader of the snapshot or of the record.
+	 * @param tag The type of the object.
+	 * @param codec The codec of the object, or null for the built-in
+	 *            encoding.
+	 * @return the key or the value.
+	 * @exception IOException Error when reading the object.
+	 */
+	static Serializable readObject(MappedReader in, int tag,
+			CacheCodec<?> codec) throws IOException {
+		switch (tag) {
+		case CODEC:
+			byte[] bytes = in.readBytes((int) in.readVarLong());
+			if (codec == null) {
+				throw new IOException(
+						"Object written by a codec, the cache has none");
+			}
+			return CacheCodecs.fromBytes(codec, bytes);
+		case STRING:
+			return readString(in);
+		case INTEGER:
+			return Integer.valueOf((int) unZigZag(in.readVarLong()));
+		case LONG:
+			return Long.valueOf(unZigZag(in.readVarLong()));
+		case OBJECT:
+			byte[] data = in.readBytes((int) in.readVarLong());
+			ObjectInputStream objectIn = new ObjectInputStream(
+					new ByteArrayInputStream(data));
+			try {
+				return (Serializable) objectIn.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			} finally {
+				objectIn.close();
+			}
+		default:
+			throw new IOException("Corrupted cache snapshot, type " + tag);
+		}
+	}
+
+	/**
+	 * Skips a key or a value, which needs no codec.
+	 *
+	 * @param in The reader of the snapshot or of the record.
+	 * @param tag The type of the object.
+	 * @exception IOException Error when reading the object.
+	 */
+	static void skipObject(MappedReader in, int tag) throws IOException {
+		switch (tag) {
+		case CODEC:
+		case STRING:
+		case OBJECT:
+			in.readBytes((int) in.readVarLong());
+			break;
+		case INTEGER:
+		case LONG:
+			in.readVarLong();
+			break;
+		default:
+			throw new IOException("Corrupted cache snapshot, type " + tag);
+		}
+	}
+
+	/**
+	 * Writes a string as its length and its UTF-8 bytes.
+	 *
+	 * @param out The stream to write to.
+	 * @param string The string.
+	 * @exception IOException Error when writing the string.
+	 */
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in The reader of the snapshot.
+	 * @return the string.
+	 * @exception IOException Error when reading the string.
+	 */
+	private static String readString(MappedReader in) throws IOException {
+		return new String(in.readBytes((int) in.readVarLong()),
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a non-negative number in groups of 7 bits, the lowest first, the
+	 * high bit of a byte telling if another byte follows.
+	 *
+	 * @param out The stream to write to.
+	 * @param value The number.
+	 * @exception IOException Error when writing the number.
+	 */
+	static void writeVarLong(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Maps a signed number to a non-negative one, the small negative numbers
+	 * to small numbers.
+	 *
+	 * @param value The signed number.
+	 * @return the encoded number.
+	 */
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Decodes a number encoded by {@link #zigZag(long)}.
+	 *
+	 * @param value The encoded number.
+	 * @return the signed number.
+	 */
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Reads a snapshot through a memory-mapped window, which is moved along
+	 * the file when a read goes past its end, or a record held in a buffer.
+	 */
+	static final class MappedReader {
+
+		/** The snapshot file, null when reading a buffer. */
+		private final FileChannel channel;
+
+		/** The size of the file. */
+		private final long size;
+
+		/** The position of the window in the file. */
+		private long base;
+
+		/** The mapped window. */
+		private ByteBuffer window;
+
+		/**
+		 * Constructs a reader at the start of a file.
+		 *
+		 * @param channel The snapshot file.
+		 * @exception IOException Error when mapping the file.
+		 */
+		MappedReader(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			map(0, 0);
+		}
+
+		/**
+		 * Constructs a reader of the remaining bytes of a buffer.
+		 *
+		 * @param buffer The buffer.
+		 */
+		MappedReader(ByteBuffer buffer) {
+			this.channel = null;
+			this.size = buffer.remaining();
+			this.window = buffer;
+		}
+
+		/**
+		 * Maps the window at a position of the file.
+		 *
+		 * @param position The position in the file.
+		 * @param needed The number of bytes the window must hold.
+		 * @exception IOException Error when mapping the file.
+		 */
+		private void map(long position, int needed) throws IOException {
+			if (position + needed > size) {
+				throw new EOFException("Truncated cache snapshot");
+			}
+			base = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math
+					.min(Math.max(WINDOW, needed), size - position));
+		}
+
+		/**
+		 * Makes sure the window holds the next bytes to be read.
+		 *
+		 * @param needed The number of bytes to be read.
+		 * @exception IOException Error when mapping the file.
+		 */
+		private void ensure(int needed) throws IOException {
+			if (window.remaining() < needed) {
+				map(base + window.position(), needed);
+			}
+		}
+
+		/**
+		 * Reads a byte.
+		 *
+		 * @return the byte, from 0 to 255.
+		 * @exception IOException Error when reading the file.
+		 */
+		int readByte() throws IOException {
+			ensure(1);
+			return window.get() & 0xFF;
+		}
+
+		/**
+		 * Reads a boolean.
+		 *
+		 * @return the boolean.
+		 * @exception IOException Error when reading the file.
+		 */
+		boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		/**
+		 * Reads an int.
+		 *
+		 * @return the int.
+		 * @exception IOException Error when reading the file.
+		 */
+		int readInt() throws IOException {
+			ensure(4);
+			return window.getInt();
+		}
+
+		/**
+		 * Reads a long.
+		 *
+		 * @return the long.
+		 * @exception IOException Error when reading the file.
+		 */
+		long readLong() throws IOException {
+			ensure(8);
+			return window.getLong();
+		}
+
+		/**
+		 * Reads a number written in groups of 7 bits.
+		 *
+		 * @return the number.
+		 * @exception IOException Error when reading the file.
+		 */
+		long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Corrupted cache snapshot, number too long");
+		}
+
+		/**
+		 * Reads a number of bytes.
+		 *
+		 * @param length The number of bytes.
+		 * @return the bytes.
+		 * @exception IOException Error when reading the file.
+		 */
+		byte[] readBytes(int length) throws IOException {
+			if (length < 0) {
+				throw new IOException("Corrupted cache snapshot, length "
+						+ length);
+			}
+			ensure(length);
+			byte[] bytes = new byte[length];
+			window.get(bytes);
+			return bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,333 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+import java.util.Collection;
+
+/**
+ * <code>CacheStats</code> is a snapshot of the statistics of a cache: the
+ * hits, misses, puts, removals, evictions, expirations, loads and
+ * maintenance passes since the cache was created, and the latency of the
+ * gets and puts if the cache attributes record it.
+ * <p>
+ * The counts are read one after the other while the cache is in use, so they
+ * may be off by the operations in progress.
+ * </p>
+ */
+public final class CacheStats implements Serializable {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The name of the cache */
+	private final String cacheName;
+
+	/** Number of gets that found an element */
+	private final long hitCount;
+
+	/** Number of gets that found no element, or an expired one */
+	private final long missCount;
+
+	/** Number of elements put into the cache */
+	private final long putCount;
+
+	/** Number of elements removed by their key */
+	private final long removalCount;
+
+	/** Number of elements evicted because the cache was full or freed */
+	private final long evictionCount;
+
+	/** Number of elements removed because their TTL expired */
+	private final long expirationCount;
+
+	/** Number of values loaded on a miss */
+	private final long loadSuccessCount;
+
+	/** Number of loads that failed */
+	private final long loadFailureCount;
+
+	/** Time spent loading values, in nanoseconds */
+	private final long totalLoadTime;
+
+	/** Number of maintenance passes over the cache */
+	private final long cleanupCount;
+
+	/** Time spent in maintenance passes, in nanoseconds */
+	private final long totalCleanupTime;
+
+	/** Time spent in the last maintenance pass, in nanoseconds */
+	private final long lastCleanupTime;
+
+	/** Latency of the gets, null if not recorded */
+	private final LatencyHistogram getLatency;
+
+	/** Latency of the puts, null if not recorded */
+	private final LatencyHistogram putLatency;
+
+	/**
+	 * Constructs a snapshot of the statistics of a cache.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param counts The hit, miss, put, removal, eviction, expiration, load
+	 *            success and load failure counts, the total load time, the
+	 *            cleanup count, the total and the last cleanup time.
+	 * @param getLatency The latency of the gets, null if not recorded.
+	 * @param putLatency The latency of the puts, null if not recorded.
+	 */
+	CacheStats(String cacheName, long[] counts, LatencyHistogram getLatency,
+			LatencyHistogram putLatency) {
+		this.cacheName = cacheName;
+		this.hitCount = counts[0];
+		this.missCount = counts[1];
+		this.putCount = counts[2];
+		this.removalCount = counts[3];
+		this.evictionCount = counts[4];
+		this.expirationCount = counts[5];
+		this.loadSuccessCount = counts[6];
+		this.loadFailureCount = counts[7];
+		this.totalLoadTime = counts[8];
+		this.cleanupCount = counts[9];
+		this.totalCleanupTime = counts[10];
+		this.lastCleanupTime = counts[11];
+		this.getLatency = getLatency;
+		this.putLatency = putLatency;
+	}
+
+	/**
+	 * Adds up the statistics of the parts of a cache. The latencies are not
+	 * added up.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param parts The statistics of the parts.
+	 * @return the statistics of the cache.
+	 */
+	static CacheStats sum(String cacheName, Collection<CacheStats> parts) {
+		long[] counts = new long[12];
+		for (CacheStats part : parts) {
+			counts[0] += part.hitCount;
+			counts[1] += part.missCount;
+			counts[2] += part.putCount;
+			counts[3] += part.removalCount;
+			counts[4] += part.evictionCount;
+			counts[5] += part.expirationCount;
+			counts[6] += part.loadSuccessCount;
+			counts[7] += part.loadFailureCount;
+			counts[8] += part.totalLoadTime;
+			counts[9] += part.cleanupCount;
+			counts[10] += part.totalCleanupTime;
+			counts[11] = Math.max(counts[11], part.lastCleanupTime);
+		}
+		return new CacheStats(cacheName, counts, null, null);
+	}
+
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return the name of the cache.
+	 */
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	/**
+	 * Returns the number of gets, hits and misses.
+	 *
+	 * @return the number of gets.
+	 */
+	public long getRequestCount() {
+		return hitCount + missCount;
+	}
+
+	/**
+	 * Returns the number of gets that found an element.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of gets that found no element, or an expired one.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the ratio of the gets that found an element.
+	 *
+	 * @return the hit ratio, 1 if there was no get.
+	 */
+	public double getHitRatio() {
+		long requestCount = getRequestCount();
+		return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+	}
+
+	/**
+	 * Returns the ratio of the gets that found no element.
+	 *
+	 * @return the miss ratio, 0 if there was no get.
+	 */
+	public double getMissRatio() {
+		long requestCount = getRequestCount();
+		return requestCount == 0 ? 0.0 : (double) missCount / requestCount;
+	}
+
+	/**
+	 * Returns the number of elements put into the cache.
+	 *
+	 * @return the number of puts and updates.
+	 */
+	public long getPutCount() {
+		return putCount;
+	}
+
+	/**
+	 * Returns the number of elements removed by their key.
+	 *
+	 * @return the number of removals.
+	 */
+	public long getRemovalCount() {
+		return removalCount;
+	}
+
+	/**
+	 * Returns the number of elements evicted, because the cache was full or
+	 * by <code>freeElements</code>.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of elements removed because their TTL expired,
+	 * whether a get or a cleanup found them expired.
+	 *
+	 * @return the number of expirations.
+	 */
+	public long getExpirationCount() {
+		return expirationCount;
+	}
+
+	/**
+	 * Returns the number of values loaded on a miss.
+	 *
+	 * @return the number of successful loads.
+	 */
+	public long getLoadSuccessCount() {
+		return loadSuccessCount;
+	}
+
+	/**
+	 * Returns the number of loads that failed.
+	 *
+	 * @return the number of failed loads.
+	 */
+	public long getLoadFailureCount() {
+		return loadFailureCount;
+	}
+
+	/**
+	 * Returns the time spent loading values, whether the loads succeeded or
+	 * not.
+	 *
+	 * @return the total load time in nanoseconds.
+	 */
+	public long getTotalLoadTime() {
+		return totalLoadTime;
+	}
+
+	/**
+	 * Returns the mean time spent loading a value.
+	 *
+	 * @return the mean load time in nanoseconds, 0 if there was no load.
+	 */
+	public double getAverageLoadPenalty() {
+		long loadCount = loadSuccessCount + loadFailureCount;
+		return loadCount == 0 ? 0.0 : (double) totalLoadTime / loadCount;
+	}
+
+	/**
+	 * Returns the number of maintenance passes over the cache, run by
+	 * <code>InMemoryCache</code>.
+	 *
+	 * @return the number of cleanups.
+	 */
+	public long getCleanupCount() {
+		return cleanupCount;
+	}
+
+	/**
+	 * Returns the time spent in the maintenance passes over the cache.
+	 *
+	 * @return the total cleanup time in nanoseconds.
+	 */
+	public long getTotalCleanupTime() {
+		return totalCleanupTime;
+	}
+
+	/**
+	 * Returns the time spent in the last maintenance pass over the cache.
+	 *
+	 * @return the last cleanup time in nanoseconds, 0 if there was none.
+	 */
+	public long getLastCleanupTime() {
+		return lastCleanupTime;
+	}
+
+	/**
+	 * Returns the latency of the gets.
+	 *
+	 * @return the histogram of the latency, or null if the cache attributes
+	 *         do not record it.
+	 */
+	public LatencyHistogram getGetLatency() {
+		return getLatency;
+	}
+
+	/**
+	 * Returns the latency of the puts and updates.
+	 *
+	 * @return the histogram of the latency, or null if the cache attributes
+	 *         do not record it.
+	 */
+	public LatencyHistogram getPutLatency() {
+		return putLatency;
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return String info about the values.
+	 */
+	public String toString() {
+		StringBuffer str = new StringBuffer();
+
+		str.append("CacheName = ").append(this.getCacheName());
+		str.append(", HitCount = ").append(this.getHitCount());
+		str.append(", MissCount = ").append(this.getMissCount());
+		str.append(", HitRatio = ").append(this.getHitRatio());
+		str.append(", PutCount = ").append(this.getPutCount());
+		str.append(", RemovalCount = ").append(this.getRemovalCount());
+		str.append(", EvictionCount = ").append(this.getEvictionCount());
+		str.append(", ExpirationCount = ").append(this.getExpirationCount());
+		str.append(", LoadSuccessCount = ").append(this.getLoadSuccessCount());
+		str.append(", LoadFailureCount = ").append(this.getLoadFailureCount());
+		str.append(", TotalLoadTime = ").append(this.getTotalLoadTime());
+		str.append(", CleanupCount = ").append(this.getCleanupCount());
+		str.append(", TotalCleanupTime = ").append(this.getTotalCleanupTime());
+		if (getLatency != null) {
+			str.append(", GetLatency = [").append(getLatency).append("]");
+		}
+		if (putLatency != null) {
+			str.append(", PutLatency = [").append(putLatency).append("]");
+		}
+
+		return str.toString();
+	}
+
+}
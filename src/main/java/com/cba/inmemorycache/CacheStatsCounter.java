@@ -0,0 +1,242 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <code>CacheStatsCounter</code> records the operations on a cache for
+ * <code>CacheStats</code>. The counters are <code>LongAdder</code>s, striped
+ * over the threads recording, so the caches that do not lock on a hit do not
+ * contend on a counter either.
+ * <p>
+ * The latency is only measured while the histograms exist:
+ * {@link #startTimer()} returns 0 otherwise, and the operations are recorded
+ * without reading the clock. Large batches of evictions are also reported
+ * to <code>CacheEvents</code>.
+ * </p>
+ */
+final class CacheStatsCounter implements Serializable {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The name of the cache, for the events */
+	private volatile String cacheName;
+
+	/** Number of gets that found an element */
+	private final LongAdder hits = new LongAdder();
+
+	/** Number of gets that found no element, or an expired one */
+	private final LongAdder misses = new LongAdder();
+
+	/** Number of elements put into the cache */
+	private final LongAdder puts = new LongAdder();
+
+	/** Number of elements removed by their key */
+	private final LongAdder removals = new LongAdder();
+
+	/** Number of elements evicted */
+	private final LongAdder evictions = new LongAdder();
+
+	/** Number of elements removed because their TTL expired */
+	private final LongAdder expirations = new LongAdder();
+
+	/** Number of values loaded on a miss */
+	private final LongAdder loadSuccesses = new LongAdder();
+
+	/** Number of loads that failed */
+	private final LongAdder loadFailures = new LongAdder();
+
+	/** Time spent loading values, in nanoseconds */
+	private final LongAdder totalLoadTime = new LongAdder();
+
+	/** Number of maintenance passes over the cache */
+	private final LongAdder cleanups = new LongAdder();
+
+	/** Time spent in maintenance passes, in nanoseconds */
+	private final LongAdder totalCleanupTime = new LongAdder();
+
+	/** Time spent in the last maintenance pass, in nanoseconds */
+	private volatile long lastCleanupTime;
+
+	/** Latency of the gets, null if not recorded */
+	private volatile LatencyHistogram getLatency;
+
+	/** Latency of the puts, null if not recorded */
+	private volatile LatencyHistogram putLatency;
+
+	/**
+	 * Constructs the counters of a cache.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	CacheStatsCounter(String cacheName) {
+		this.cacheName = cacheName;
+	}
+
+	/**
+	 * Sets the name of the cache, when the cache is renamed.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	void setCacheName(String cacheName) {
+		this.cacheName = cacheName;
+	}
+
+	/**
+	 * Starts or stops recording the latency of the gets and puts. The
+	 * histograms are kept if the recording goes on.
+	 *
+	 * @param recordLatency true to record the latency.
+	 */
+	void setRecordingLatency(boolean recordLatency) {
+		if (!recordLatency) {
+			getLatency = null;
+			putLatency = null;
+		} else if (getLatency == null) {
+			putLatency = new LatencyHistogram();
+			getLatency = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Returns the start time of an operation to be timed.
+	 *
+	 * @return the current time in nanoseconds, or 0 if the latency is not
+	 *         recorded.
+	 */
+	long startTimer() {
+		return getLatency == null ? 0L : System.nanoTime();
+	}
+
+	/**
+	 * Records a get.
+	 *
+	 * @param start The value of <code>startTimer</code> before the get.
+	 * @param hit true if the get found an element.
+	 */
+	void recordGet(long start, boolean hit) {
+		if (hit) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		LatencyHistogram histogram = getLatency;
+		if (start != 0L && histogram != null) {
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records the gets of a bulk read. Their latency is not recorded.
+	 *
+	 * @param hitCount The number of keys found.
+	 * @param missCount The number of keys not found.
+	 */
+	void recordGets(int hitCount, int missCount) {
+		hits.add(hitCount);
+		misses.add(missCount);
+	}
+
+	/**
+	 * Records the puts of a bulk write. Their latency is not recorded.
+	 *
+	 * @param count The number of elements put.
+	 */
+	void recordPuts(int count) {
+		puts.add(count);
+	}
+
+	/**
+	 * Records the removals of a bulk removal.
+	 *
+	 * @param count The number of elements removed.
+	 */
+	void recordRemovals(int count) {
+		removals.add(count);
+	}
+
+	/**
+	 * Records a put or an update.
+	 *
+	 * @param start The value of <code>startTimer</code> before the put.
+	 */
+	void recordPut(long start) {
+		puts.increment();
+		LatencyHistogram histogram = putLatency;
+		if (start != 0L && histogram != null) {
+			histogram.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records the removal of an element by its key.
+	 */
+	void recordRemoval() {
+		removals.increment();
+	}
+
+	/**
+	 * Records evictions.
+	 *
+	 * @param count The number of elements evicted.
+	 */
+	void recordEvictions(int count) {
+		if (count > 0) {
+			evictions.add(count);
+			if (count >= CacheEvents.EVICTION_BURST_THRESHOLD) {
+				CacheEvents.evictionBurst(cacheName, count);
+			}
+		}
+	}
+
+	/**
+	 * Records the removal of an expired element.
+	 */
+	void recordExpiration() {
+		expirations.increment();
+	}
+
+	/**
+	 * Records a load.
+	 *
+	 * @param loadTime The time spent loading, in nanoseconds.
+	 * @param success true if a value was loaded.
+	 */
+	void recordLoad(long loadTime, boolean success) {
+		if (success) {
+			loadSuccesses.increment();
+		} else {
+			loadFailures.increment();
+		}
+		totalLoadTime.add(loadTime);
+	}
+
+	/**
+	 * Records a maintenance pass.
+	 *
+	 * @param cleanupTime The time spent in the pass, in nanoseconds.
+	 */
+	void recordCleanup(long cleanupTime) {
+		cleanups.increment();
+		totalCleanupTime.add(cleanupTime);
+		lastCleanupTime = cleanupTime;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics.
+	 *
+	 * @return the statistics.
+	 */
+	CacheStats snapshot() {
+		long[] counts = { hits.sum(), misses.sum(), puts.sum(),
+				removals.sum(), evictions.sum(), expirations.sum(),
+				loadSuccesses.sum(), loadFailures.sum(), totalLoadTime.sum(),
+				cleanups.sum(), totalCleanupTime.sum(), lastCleanupTime };
+		LatencyHistogram gets = getLatency;
+		LatencyHistogram putsLatency = putLatency;
+		return new CacheStats(cacheName, counts, gets == null ? null : gets
+				.copy(), putsLatency == null ? null : putsLatency.copy());
+	}
+
+}
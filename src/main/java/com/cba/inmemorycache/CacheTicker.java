@@ -0,0 +1,35 @@
+package com.cba.inmemorycache;
+
+/**
+ * <code>CacheTicker</code> is the clock a cache reads to time the life of its
+ * elements: their creation, their last access and their expiry.
+ * <p>
+ * A cache reads its ticker on every get and put, so the default ticker,
+ * {@link CoarseTicker#getDefault()}, returns a time updated in the background
+ * instead of reading the system clock each time. {@link #SYSTEM} reads the
+ * system clock on every call, and <code>FakeTicker</code> is moved by hand,
+ * to test the expiry without waiting. Set the ticker of a cache with
+ * {@link CacheAttributes#setTicker(CacheTicker)}.
+ * </p>
+ */
+public interface CacheTicker {
+
+	/** The ticker reading the system clock on every call. */
+	public static final CacheTicker SYSTEM = new CacheTicker() {
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		public String toString() {
+			return "SystemTicker";
+		}
+	};
+
+	/**
+	 * Returns the current time.
+	 *
+	 * @return the current time in milliseconds since the epoch.
+	 */
+	public long currentTimeMillis();
+
+}
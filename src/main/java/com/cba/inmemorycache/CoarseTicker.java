@@ -0,0 +1,124 @@
+package com.cba.inmemorycache;
+
+/**
+ * <code>CoarseTicker</code> returns a time updated by a background thread
+ * at a fixed resolution, so reading it costs a volatile read instead of a
+ * read of the system clock. The time lags the system clock by up to the
+ * resolution, which is small against the lifetimes of the elements, given
+ * in seconds.
+ * <p>
+ * The default ticker of the caches updates its time every millisecond, or
+ * every <code>com.cba.inmemorycache.tickerResolutionMillis</code> given as a
+ * system property. Its thread is a daemon, started when the ticker is first
+ * used.
+ * </p>
+ */
+public final class CoarseTicker implements CacheTicker {
+
+	/** The resolution of the default ticker, in milliseconds. */
+	static final long DEFAULT_RESOLUTION_MILLIS = Math.max(1L, Long.getLong(
+			"com.cba.inmemorycache.tickerResolutionMillis", 1L));
+
+	/** The time between two updates, in milliseconds. */
+	private final long resolutionMillis;
+
+	/** The thread updating the time. */
+	private final Thread updater;
+
+	/** The current time in milliseconds, updated by the thread. */
+	private volatile long time;
+
+	/** Set once the ticker is stopped, the system clock is then read. */
+	private volatile boolean stopped;
+
+	/**
+	 * Constructs a ticker and starts its thread.
+	 *
+	 * @param resolutionMillis The time between two updates in milliseconds.
+	 */
+	public CoarseTicker(long resolutionMillis) {
+		if (resolutionMillis < 1) {
+			throw new IllegalArgumentException("Resolution "
+					+ resolutionMillis + " ms, should be at least 1 ms");
+		}
+		this.resolutionMillis = resolutionMillis;
+		this.time = System.currentTimeMillis();
+		this.updater = new Thread(new Runnable() {
+			public void run() {
+				update();
+			}
+		}, "InMemoryCache-ticker");
+		updater.setDaemon(true);
+		updater.start();
+	}
+
+	/**
+	 * Returns the ticker the caches use by default.
+	 *
+	 * @return the default ticker.
+	 */
+	public static CoarseTicker getDefault() {
+		return DefaultHolder.TICKER;
+	}
+
+	/**
+	 * Returns the time between two updates.
+	 *
+	 * @return the resolution in milliseconds.
+	 */
+	public long getResolutionMillis() {
+		return resolutionMillis;
+	}
+
+	/**
+	 * Returns the time of the last update.
+	 *
+	 * @return the current time in milliseconds, to the resolution.
+	 */
+	public long currentTimeMillis() {
+		return stopped ? System.currentTimeMillis() : time;
+	}
+
+	/**
+	 * Stops the thread of the ticker. The ticker reads the system clock from
+	 * then on.
+	 */
+	public void stop() {
+		stopped = true;
+		updater.interrupt();
+	}
+
+	/**
+	 * Updates the time until the ticker is stopped.
+	 */
+	private void update() {
+		while (!stopped) {
+			time = System.currentTimeMillis();
+			try {
+				Thread.sleep(resolutionMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return the resolution of the ticker.
+	 */
+	public String toString() {
+		return "CoarseTicker[" + resolutionMillis + " ms]";
+	}
+
+	/**
+	 * Holds the default ticker, started on first use.
+	 */
+	private static final class DefaultHolder {
+
+		/** The default ticker. */
+		static final CoarseTicker TICKER = new CoarseTicker(
+				DEFAULT_RESOLUTION_MILLIS);
+	}
+
+}
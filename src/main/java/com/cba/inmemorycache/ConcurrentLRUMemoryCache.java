@@ -0,0 +1,413 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <code>ConcurrentLRUMemoryCache</code> provides a least recently used cache
+ * whose reads never block.
+ * <p>
+ * The elements are stored in a <code>ConcurrentHashMap</code>, which is read
+ * without locking. Instead of moving the element to the top of the LRU list
+ * straight away, a read records the element in a lossy
+ * <code>ReadBuffer</code>. The recorded reads are replayed on the LRU list
+ * in a batch under the eviction lock: by a reader that finds its buffer full
+ * and manages to <code>tryLock</code> the lock, by the writers, and by
+ * <code>cleanup</code>. Writes update the map, then take the eviction lock to
+ * update the list and evict the least recently used elements if the cache is
+ * full.
+ * </p>
+ */
+public class ConcurrentLRUMemoryCache extends AbstractMemoryCache {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** Map where items are stored by key */
+	private final ConcurrentHashMap<Serializable, CacheElement> cacheMap;
+
+	/** List to keep track of the usage, guarded by the eviction lock */
+	private final LRUElementList cacheList;
+
+	/** Lock guarding the list, the weight and the eviction count */
+	private final ReentrantLock evictionLock;
+
+	/** Wheel to keep track of the expiry, guarded by the eviction lock */
+	private transient TimerWheel timerWheel;
+
+	/** Reads not replayed on the list yet */
+	private transient ReadBuffer readBuffer;
+
+	/** Total weight of the elements in the list */
+	private long weightedSize;
+
+	/** Number of elements evicted from this cache */
+	private long evictionCount;
+
+	/**
+	 * Constructs a <code>ConcurrentLRUMemoryCache</code> with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	protected ConcurrentLRUMemoryCache(String cacheName) {
+		super(cacheName);
+		cacheMap = new ConcurrentHashMap<Serializable, CacheElement>();
+		cacheList = new LRUElementList();
+		evictionLock = new ReentrantLock();
+		timerWheel = new TimerWheel(currentTimeMillis());
+		readBuffer = new ReadBuffer();
+	}
+
+	/**
+	 * Returns the total weight of the elements in the cache, as calculated by
+	 * the weigher of the cache attributes.
+	 *
+	 * @return the total weight of the elements in the cache.
+	 */
+	public long getWeightedSize() {
+		evictionLock.lock();
+		try {
+			return weightedSize;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of elements evicted from the cache, either because
+	 * the cache was full or by <code>freeElements</code>.
+	 *
+	 * @return the number of elements evicted from the cache.
+	 */
+	public long getEvictionCount() {
+		evictionLock.lock();
+		try {
+			return evictionCount;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return the size of the cache.
+	 */
+	public int getSize() {
+		return cacheMap.size();
+	}
+
+	/**
+	 * Removes cached object with the specified key.
+	 *
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 * @exception IOException Error when removing the object from the cache.
+	 */
+	public boolean remove(Serializable key) throws IOException {
+		CacheElement ce = cacheMap.remove(key);
+		if (ce == null) {
+			return false;
+		}
+
+		evictionLock.lock();
+		try {
+			unlinkElement(ce);
+		} finally {
+			evictionLock.unlock();
+		}
+		getStatsCounter().recordRemoval();
+		return true;
+	}
+
+	/**
+	 * Removes all cached items from the cache.
+	 *
+	 * @exception IOException Error when removing all objects from the cache.
+	 */
+	public void removeAll() throws IOException {
+		evictionLock.lock();
+		try {
+			cacheMap.clear();
+			cacheList.clear();
+			timerWheel.clear();
+			weightedSize = 0;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the least recently used objects in the cache.
+	 *
+	 * @param numberToFree The number of objects to be removed from the cached.
+	 * @return The number of objects that are actually removed from the cached.
+	 * @exception IOException Error when removing objects from the cache.
+	 */
+	public int freeElements(int numberToFree) throws IOException {
+		int freed = 0;
+
+		evictionLock.lock();
+		try {
+			long held = CacheEvents.startTimer();
+			readBuffer.drainTo(cacheList);
+			for (; freed < numberToFree; freed++) {
+				if (!evictLast()) {
+					// no more item in the cache
+					break;
+				}
+			}
+			CacheEvents.lockHeld(getCacheName(), "freeElements", held);
+		} finally {
+			evictionLock.unlock();
+		}
+		getStatsCounter().recordEvictions(freed);
+		return freed;
+	}
+
+	/**
+	 * Returns the elements of the cache from the least to the most recently
+	 * used one, once the recorded reads are replayed.
+	 *
+	 * @return the elements of the cache.
+	 */
+	List<CacheElement> getElementsInAccessOrder() {
+		evictionLock.lock();
+		try {
+			readBuffer.drainTo(cacheList);
+			List<CacheElement> elements = new ArrayList<CacheElement>(
+					cacheList.size());
+			cacheList.addLeastRecentFirst(elements);
+			return elements;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, which walks the map
+	 * without locking it.
+	 *
+	 * @param pageSize The number of keys read at a time, unused.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(int pageSize) {
+		return Collections.unmodifiableSet(cacheMap.keySet()).iterator();
+	}
+
+	/**
+	 * Replays the recorded reads on the LRU list, removes the objects that
+	 * TTL has been expired and evicts the elements a burst of puts left over
+	 * the cache limits. Only the elements the timer wheel finds due are
+	 * looked at.
+	 *
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	public void cleanup() throws IOException {
+		cleanup(Integer.MAX_VALUE);
+	}
+
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		evictionLock.lock();
+		try {
+			long held = CacheEvents.startTimer();
+			readBuffer.drainTo(cacheList);
+
+			List<CacheElement> expired = timerWheel.advance(
+					currentTimeMillis(), maxToRemove);
+			for (CacheElement ce : expired) {
+				if (cacheMap.remove(ce.getKey(), ce)) {
+					getStatsCounter().recordExpiration();
+				}
+				unlinkElement(ce);
+			}
+
+			int maxToEvict = maxToRemove - expired.size();
+			boolean done = !timerWheel.hasOverdue()
+					&& evictOverflow(maxToEvict) < maxToEvict;
+			CacheEvents.lockHeld(getCacheName(), "cleanup", held);
+			return done;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the cached object for the specified key. A hit does not lock,
+	 * the read is recorded and replayed on the LRU list later.
+	 *
+	 * @param key the key for the object to be retrieved.
+	 * @return The cached object for the specified key.
+	 * @exception IOException Error when retrieving object from the cache.
+	 */
+	public CacheElement get(Serializable key) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		CacheElement ce = cacheMap.get(key);
+		if (ce == null) {
+			statsCounter.recordGet(start, false);
+			return null;
+		}
+
+		long now = currentTimeMillis();
+		if (isExpired(ce, now)) {
+			// The cache for this element has been expired, remove from cache
+			if (cacheMap.remove(key, ce)) {
+				evictionLock.lock();
+				try {
+					unlinkElement(ce);
+				} finally {
+					evictionLock.unlock();
+				}
+				statsCounter.recordExpiration();
+			}
+			statsCounter.recordGet(start, false);
+			return null;
+		}
+
+		ce.touch(now);
+		ce.expireAfterRead(ce.getValue(), now);
+		if (readBuffer.offer(ce) == ReadBuffer.FULL) {
+			tryToDrainReadBuffer();
+		}
+		statsCounter.recordGet(start, true);
+		return ce;
+	}
+
+	/**
+	 * Updates the cached object. An element held by another cache is copied,
+	 * as an element is linked by a single cache.
+	 *
+	 * @param ce The cached object to be updated.
+	 * @exception IOException Error when updating the cache.
+	 */
+	public void update(CacheElement ce) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		ce = adopt(ce);
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int weight = cacheAttributes.weigh(ce.getKey(), ce.getValue());
+		ce.touch(currentTimeMillis());
+		Serializable key = ce.getKey();
+		CacheElement old = cacheMap.put(key, ce);
+		expireAfterUpdate(ce, old);
+
+		evictionLock.lock();
+		try {
+			readBuffer.drainTo(cacheList);
+			if (old != null) {
+				unlinkElement(old);
+			}
+			// link the element unless it has been removed or replaced by
+			// another thread in the meantime
+			if (cacheMap.get(key) == ce) {
+				if (cacheList.contains(ce)) {
+					unlinkElement(ce);
+				}
+				ce.weight = weight;
+				weightedSize += weight;
+				cacheList.addFirst(ce);
+				timerWheel.schedule(ce);
+			}
+			evictOverflow(cacheAttributes.getMaxEvictionsPerPut());
+		} finally {
+			evictionLock.unlock();
+		}
+		statsCounter.recordPut(start);
+	}
+
+	/**
+	 * Replays the recorded reads on the LRU list if no other thread holds the
+	 * eviction lock.
+	 */
+	private void tryToDrainReadBuffer() {
+		if (evictionLock.tryLock()) {
+			try {
+				readBuffer.drainTo(cacheList);
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used elements while the cache is over its
+	 * limits. Must be called while holding the eviction lock.
+	 *
+	 * @param maxToEvict The maximum number of elements to be evicted.
+	 * @return the number of elements evicted.
+	 */
+	private int evictOverflow(int maxToEvict) {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int maxEntries = cacheAttributes.getMaxEntries();
+		long maxWeight = cacheAttributes.getMaxWeight();
+		int evicted = 0;
+		for (; evicted < maxToEvict; evicted++) {
+			boolean overflowing = (maxEntries >= 0 && cacheList.size() > maxEntries)
+					|| (maxWeight >= 0 && weightedSize > maxWeight);
+			if (!overflowing || !evictLast()) {
+				break;
+			}
+		}
+		getStatsCounter().recordEvictions(evicted);
+		return evicted;
+	}
+
+	/**
+	 * Evicts the least recently used element. Must be called while holding
+	 * the eviction lock.
+	 *
+	 * @return true if an element has been evicted, false if the cache is
+	 *         empty.
+	 */
+	private boolean evictLast() {
+		CacheElement last = cacheList.getLast();
+		if (last == null) {
+			return false;
+		}
+		cacheMap.remove(last.getKey(), last);
+		unlinkElement(last);
+		evictionCount++;
+		return true;
+	}
+
+	/**
+	 * Removes the element from the list and its weight from the cache. Must
+	 * be called while holding the eviction lock.
+	 *
+	 * @param ce The element that has been removed from the map.
+	 */
+	private void unlinkElement(CacheElement ce) {
+		timerWheel.deschedule(ce);
+		if (cacheList.remove(ce)) {
+			weightedSize -= ce.weight;
+		}
+	}
+
+	/**
+	 * Recreates the timer wheel and the read buffer, which are not
+	 * serialized.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException Error when reading the cache.
+	 * @throws ClassNotFoundException Class of an element cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		timerWheel = new TimerWheel(currentTimeMillis());
+		for (CacheElement ce : cacheMap.values()) {
+			ce.claim(this);
+			timerWheel.schedule(ce);
+		}
+		readBuffer = new ReadBuffer();
+	}
+
+}
@@ -0,0 +1,521 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <code>DiskOverflowStore</code> keeps the elements evicted from a cache in
+ * an append-only log on the local disk, so a later miss finds them there
+ * instead of computing them again.
+ * <p>
+ * An element is appended as a record: the time it expires, then its key, its
+ * value, its times and its TTL settings, encoded like in a snapshot. An index
+ * on the heap maps each key to the offset and the length of its latest
+ * record. A record replaced, removed or taken back into the cache is dead
+ * space, which {@link #compact()} reclaims by copying the live records to a
+ * new log. The copy runs without the lock of the store, so the cache goes on
+ * evicting to the old log meanwhile, and the records appended during the copy
+ * are carried over once it is done.
+ * </p>
+ * <p>
+ * The cache stages the elements it evicts while holding its lock, which
+ * costs a map update, and writes them with {@link #writeStaged} once it has
+ * released the lock. Until then a staged element is taken back or removed
+ * like a written one, and it is only written if it is still the staged
+ * element of its key.
+ * </p>
+ * <p>
+ * The log belongs to the process: it is truncated when the store is opened
+ * and deleted when the JVM exits. The store is thread safe.
+ * </p>
+ */
+final class DiskOverflowStore {
+
+	/** The file name suffix of the logs. */
+	static final String SUFFIX = ".overflow";
+
+	/** The number of dead bytes worth a compaction, 1 MB. */
+	static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+	/** The bits of an index entry holding the length of the record. */
+	private static final int LENGTH_BITS = 24;
+
+	/** The largest record, 16 MB; a larger element is not written. */
+	private static final int MAX_RECORD = (1 << LENGTH_BITS) - 1;
+
+	/** The log file. */
+	private final File file;
+
+	/** The offset and the length of the latest record of each key. */
+	private final Map<Serializable, Long> index = new HashMap<Serializable, Long>();
+
+	/** The elements staged and not written yet, by key. */
+	private final Map<Serializable, CacheElement> staged = new HashMap<Serializable, CacheElement>();
+
+	/** The open log, guarded by this. */
+	private FileChannel channel;
+
+	/** The maximum number of bytes of the live records, -1 for no limit. */
+	private long capacity;
+
+	/** The size of the log. */
+	private long size;
+
+	/** The number of bytes of the live records. */
+	private long liveBytes;
+
+	/** Whether a compaction is running. */
+	private boolean compacting;
+
+	/**
+	 * Opens an empty store.
+	 *
+	 * @param file The log file, truncated if it exists.
+	 * @param capacity The maximum number of bytes of the live records, -1
+	 *            for no limit.
+	 * @exception IOException Error when opening the log.
+	 */
+	DiskOverflowStore(File file, long capacity) throws IOException {
+		this.file = file;
+		this.capacity = capacity;
+		this.channel = open(file);
+		file.deleteOnExit();
+	}
+
+	/**
+	 * Sets the maximum number of bytes of the live records. A lower capacity
+	 * stops the store from taking new elements, the records already written
+	 * are kept.
+	 *
+	 * @param capacity The maximum number of bytes, -1 for no limit.
+	 */
+	synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of elements in the store.
+	 *
+	 * @return the number of elements.
+	 */
+	synchronized int getSize() {
+		return index.size() + staged.size();
+	}
+
+	/**
+	 * Returns the size of the log, live and dead records included.
+	 *
+	 * @return the size of the log in bytes.
+	 */
+	synchronized long getLogSize() {
+		return size;
+	}
+
+	/**
+	 * Appends an element evicted from the cache, replacing any record of its
+	 * key. An element that is expired, too large, or would take the store
+	 * over its capacity is dropped.
+	 *
+	 * @param ce The element.
+	 * @param cacheAttributes The attributes holding the codecs of the cache.
+	 * @param now The current time of the ticker of the cache.
+	 * @return true if the element was written.
+	 * @exception IOException Error when writing the log.
+	 */
+	boolean write(CacheElement ce, CacheAttributes cacheAttributes, long now)
+			throws IOException {
+		return write(ce, cacheAttributes, now, false);
+	}
+
+	/**
+	 * Stages an element evicted from the cache, replacing any record of its
+	 * key, to be written by {@link #writeStaged} without the lock of the
+	 * cache.
+	 *
+	 * @param ce The element.
+	 */
+	synchronized void stage(CacheElement ce) {
+		discard(index.remove(ce.getKey()));
+		staged.put(ce.getKey(), ce);
+	}
+
+	/**
+	 * Appends a staged element, unless it has been taken back, removed or
+	 * replaced since it was staged. An element that is expired, too large,
+	 * or would take the store over its capacity is dropped.
+	 *
+	 * @param ce The element.
+	 * @param cacheAttributes The attributes holding the codecs of the cache.
+	 * @param now The current time of the ticker of the cache.
+	 * @return true if the element was written.
+	 * @exception IOException Error when writing the log.
+	 */
+	boolean writeStaged(CacheElement ce, CacheAttributes cacheAttributes,
+			long now) throws IOException {
+		return write(ce, cacheAttributes, now, true);
+	}
+
+	/**
+	 * Appends an element, replacing any record of its key.
+	 *
+	 * @param ce The element.
+	 * @param cacheAttributes The attributes holding the codecs of the cache.
+	 * @param now The current time of the ticker of the cache.
+	 * @param fromStage Whether the element must still be staged.
+	 * @return true if the element was written.
+	 * @exception IOException Error when writing the log.
+	 */
+	private boolean write(CacheElement ce, CacheAttributes cacheAttributes,
+			long now, boolean fromStage) throws IOException {
+		long expiryTime = expiryTimeOf(ce);
+		// encode outside the lock
+		ByteBuffer record = expiryTime < now ? null : encode(ce, expiryTime,
+				cacheAttributes);
+
+		synchronized (this) {
+			if (fromStage) {
+				if (staged.get(ce.getKey()) != ce) {
+					return false;
+				}
+			}
+			staged.remove(ce.getKey());
+			if (record == null) {
+				return false;
+			}
+			int length = record.remaining();
+			discard(index.remove(ce.getKey()));
+			if (length > MAX_RECORD
+					|| (capacity >= 0 && liveBytes + length > capacity)) {
+				return false;
+			}
+			writeFully(channel, record, size);
+			index.put(ce.getKey(), Long.valueOf(entry(size, length)));
+			size += length;
+			liveBytes += length;
+			return true;
+		}
+	}
+
+	/**
+	 * Takes the element of a key out of the store, to be put back into the
+	 * cache.
+	 *
+	 * @param key The key of the element.
+	 * @param cache The cache the element is put back into.
+	 * @param now The current time of the ticker of the cache.
+	 * @return the element, or null if not found or expired.
+	 * @exception IOException Error when reading the log.
+	 */
+	CacheElement take(Serializable key, AbstractMemoryCache cache, long now)
+			throws IOException {
+		ByteBuffer record;
+		synchronized (this) {
+			CacheElement ce = staged.remove(key);
+			if (ce != null) {
+				// not written yet, the element itself is put back
+				return expiryTimeOf(ce) < now ? null : ce;
+			}
+			Long entry = index.remove(key);
+			if (entry == null) {
+				return null;
+			}
+			discard(entry);
+			record = read(channel, entry.longValue());
+		}
+
+		// decode outside the lock
+		CacheSnapshot.MappedReader in = new CacheSnapshot.MappedReader(record);
+		long expiryTime = in.readLong();
+		if (expiryTime < now) {
+			return null;
+		}
+		// the key of the record is the key looked up
+		CacheAttributes cacheAttributes = cache.getCacheAttributes();
+		CacheSnapshot.readObject(in, in.readByte(), cacheAttributes
+				.getKeyCodec());
+		Serializable value = CacheSnapshot.readObject(in, in.readByte(),
+				cacheAttributes.getValueCodec());
+		CacheElement ce = cache.createElement(key, value);
+		ce.setCreateTime(in.readVarLong());
+		ce.setLastAccessTime(in.readVarLong());
+		ce.setMaxLifeSeconds(in.readVarLong() - 1);
+		ce.setMaxIdleTimeSeconds(in.readVarLong() - 1);
+		ce.setRefreshAfterSeconds(in.readVarLong() - 1);
+		return ce;
+	}
+
+	/**
+	 * Removes the element of a key from the store.
+	 *
+	 * @param key The key of the element.
+	 * @return true if the element was in the store.
+	 */
+	synchronized boolean remove(Serializable key) {
+		Long entry = index.remove(key);
+		discard(entry);
+		return staged.remove(key) != null || entry != null;
+	}
+
+	/**
+	 * Removes all the elements from the store.
+	 *
+	 * @exception IOException Error when truncating the log.
+	 */
+	synchronized void clear() throws IOException {
+		index.clear();
+		staged.clear();
+		if (!compacting) {
+			channel.truncate(0);
+			size = 0;
+		}
+		liveBytes = 0;
+	}
+
+	/**
+	 * Determines if the log holds enough dead space to be compacted: at
+	 * least {@link #MIN_COMPACTION_BYTES}, and as much as the live records.
+	 *
+	 * @return true if the log should be compacted.
+	 */
+	synchronized boolean needsCompaction() {
+		long deadBytes = size - liveBytes;
+		return !compacting && deadBytes >= MIN_COMPACTION_BYTES
+				&& deadBytes >= liveBytes;
+	}
+
+	/**
+	 * Copies the live records to a new log, which then replaces the log. The
+	 * records expired meanwhile are dropped. Does nothing if a compaction is
+	 * already running.
+	 *
+	 * @param now The current time of the ticker of the cache.
+	 * @exception IOException Error when copying the log.
+	 */
+	void compact(long now) throws IOException {
+		Map<Serializable, Long> copied;
+		FileChannel source;
+		synchronized (this) {
+			if (compacting) {
+				return;
+			}
+			compacting = true;
+			copied = new HashMap<Serializable, Long>(index);
+			source = channel;
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel target = open(tmp);
+		boolean swapped = false;
+		try {
+			Map<Serializable, Long> moved = new HashMap<Serializable, Long>(
+					copied.size() * 2);
+			long position = 0;
+			for (Map.Entry<Serializable, Long> entry : copied.entrySet()) {
+				ByteBuffer record = read(source, entry.getValue().longValue());
+				if (record.getLong(0) < now) {
+					continue;
+				}
+				int length = record.remaining();
+				writeFully(target, record, position);
+				moved.put(entry.getKey(), Long.valueOf(entry(position, length)));
+				position += length;
+			}
+
+			synchronized (this) {
+				long live = 0;
+				for (Iterator<Map.Entry<Serializable, Long>> i = index
+						.entrySet().iterator(); i.hasNext();) {
+					Map.Entry<Serializable, Long> entry = i.next();
+					Long current = entry.getValue();
+					int length = lengthOf(current.longValue());
+					if (current.equals(copied.get(entry.getKey()))) {
+						Long location = moved.get(entry.getKey());
+						if (location == null) {
+							// expired, left out of the copy
+							i.remove();
+							continue;
+						}
+						entry.setValue(location);
+					} else {
+						// appended during the copy
+						writeFully(target, read(source, current.longValue()),
+								position);
+						entry.setValue(Long.valueOf(entry(position, length)));
+						position += length;
+					}
+					live += length;
+				}
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				channel = target;
+				size = position;
+				liveBytes = live;
+				swapped = true;
+			}
+			source.close();
+		} finally {
+			if (!swapped) {
+				target.close();
+				tmp.delete();
+			}
+			synchronized (this) {
+				compacting = false;
+			}
+		}
+	}
+
+	/**
+	 * Closes the store and deletes its log.
+	 *
+	 * @exception IOException Error when closing the log.
+	 */
+	synchronized void close() throws IOException {
+		index.clear();
+		staged.clear();
+		channel.close();
+		file.delete();
+	}
+
+	/**
+	 * Removes the length of a record from the live bytes.
+	 *
+	 * @param entry The index entry of the record, or null.
+	 */
+	private void discard(Long entry) {
+		if (entry != null) {
+			liveBytes -= lengthOf(entry.longValue());
+		}
+	}
+
+	/**
+	 * Returns the time an element expires, if it is not accessed again.
+	 *
+	 * @param ce The element.
+	 * @return the time in milliseconds, Long.MAX_VALUE if it never expires.
+	 */
+	private static long expiryTimeOf(CacheElement ce) {
+		long expiryTime = Long.MAX_VALUE;
+		long maxLifeSeconds = ce.getMaxLifeSeconds();
+		if (maxLifeSeconds != -1) {
+			expiryTime = ce.getCreateTime() + maxLifeSeconds * 1000;
+		}
+		long maxIdleTimeSeconds = ce.getMaxIdleTimeSeconds();
+		if (maxIdleTimeSeconds != -1) {
+			expiryTime = Math.min(expiryTime, ce.getLastAccessTime()
+					+ maxIdleTimeSeconds * 1000);
+		}
+		return expiryTime;
+	}
+
+	/**
+	 * Encodes the record of an element.
+	 *
+	 * @param ce The element.
+	 * @param expiryTime The time the element expires.
+	 * @param cacheAttributes The attributes holding the codecs of the cache.
+	 * @return the record.
+	 * @exception IOException Error when serializing the key or the value.
+	 */
+	private static ByteBuffer encode(CacheElement ce, long expiryTime,
+			CacheAttributes cacheAttributes) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(expiryTime);
+		CacheSnapshot.writeObject(out, ce.getKey(), cacheAttributes
+				.getKeyCodec());
+		CacheSnapshot.writeObject(out, ce.getValue(), cacheAttributes
+				.getValueCodec());
+		CacheSnapshot.writeVarLong(out, ce.getCreateTime());
+		CacheSnapshot.writeVarLong(out, ce.getLastAccessTime());
+		CacheSnapshot.writeVarLong(out, ce.getMaxLifeSeconds() + 1);
+		CacheSnapshot.writeVarLong(out, ce.getMaxIdleTimeSeconds() + 1);
+		CacheSnapshot.writeVarLong(out, ce.getRefreshAfterSeconds() + 1);
+		out.close();
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * Packs the offset and the length of a record into an index entry.
+	 *
+	 * @param offset The offset of the record in the log.
+	 * @param length The length of the record.
+	 * @return the index entry.
+	 */
+	private static long entry(long offset, int length) {
+		return offset << LENGTH_BITS | length;
+	}
+
+	/**
+	 * Returns the length of the record of an index entry.
+	 *
+	 * @param entry The index entry.
+	 * @return the length of the record.
+	 */
+	private static int lengthOf(long entry) {
+		return (int) (entry & MAX_RECORD);
+	}
+
+	/**
+	 * Reads the record of an index entry.
+	 *
+	 * @param channel The log.
+	 * @param entry The index entry.
+	 * @return the record.
+	 * @exception IOException Error when reading the log.
+	 */
+	private static ByteBuffer read(FileChannel channel, long entry)
+			throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(lengthOf(entry));
+		long position = entry >>> LENGTH_BITS;
+		while (record.hasRemaining()) {
+			if (channel.read(record, position + record.position()) < 0) {
+				throw new EOFException("Truncated overflow log");
+			}
+		}
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Writes a record at a position of a log.
+	 *
+	 * @param channel The log.
+	 * @param record The record.
+	 * @param position The position in the log.
+	 * @exception IOException Error when writing the log.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer record,
+			long position) throws IOException {
+		ByteBuffer data = record.duplicate();
+		while (data.hasRemaining()) {
+			channel.write(data, position + data.position());
+		}
+	}
+
+	/**
+	 * Opens a log, truncated.
+	 *
+	 * @param file The log file.
+	 * @return the open log.
+	 * @exception IOException Error when opening the log.
+	 */
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+}
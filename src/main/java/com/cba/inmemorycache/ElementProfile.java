@@ -0,0 +1,257 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+
+/**
+ * <code>ElementProfile</code> holds the settings the elements of a cache
+ * share: the name of the cache, the TTL and refresh settings, the expiry
+ * policy and the epoch the times of the elements are counted from.
+ * <p>
+ * A cache creates its elements with one profile, so an element only holds a
+ * reference to it instead of a copy of the settings. An element given its
+ * own TTL setting or expiry policy gets its own copy of the profile. A
+ * profile is immutable.
+ * </p>
+ * <p>
+ * The times of an element are stored as an <code>int</code> delta from the
+ * epoch. Within about 12 days of the epoch, the delta is kept to the
+ * millisecond, further away to the second, up to about 34 years. A cache
+ * starts a new profile every day, so the times of its elements keep their
+ * precision for at least 11 days.
+ * </p>
+ */
+final class ElementProfile implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The time after which a cache creates its elements with a new epoch. */
+	static final long EPOCH_LIFETIME_MILLIS = 24L * 3600 * 1000;
+
+	/** The range of the deltas kept to the millisecond or to the second. */
+	private static final long RANGE = 1L << 30;
+
+	/** The name of the cache. */
+	private final String cacheName;
+
+	/** Max life to live (TTL) for the elements in seconds. */
+	private final long maxLifeSeconds;
+
+	/** Maximum time an element can be idle in seconds. */
+	private final long maxIdleTimeSeconds;
+
+	/** Age in seconds after which the elements are reloaded on a read. */
+	private final long refreshAfterSeconds;
+
+	/** The policy computing the TTL of the elements, or null. */
+	private final Expiry expiry;
+
+	/** The time the times of the elements are counted from. */
+	private final long epoch;
+
+	/**
+	 * Constructs a profile.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param maxLifeSeconds The TTL of the elements, -1 for none.
+	 * @param maxIdleTimeSeconds The maximum idle time of the elements, -1 for
+	 *            none.
+	 * @param epoch The time the times of the elements are counted from.
+	 */
+	ElementProfile(String cacheName, long maxLifeSeconds,
+			long maxIdleTimeSeconds, long epoch) {
+		this(cacheName, maxLifeSeconds, maxIdleTimeSeconds, -1, epoch);
+	}
+
+	/**
+	 * Constructs a profile with a refresh setting.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param maxLifeSeconds The TTL of the elements, -1 for none.
+	 * @param maxIdleTimeSeconds The maximum idle time of the elements, -1 for
+	 *            none.
+	 * @param refreshAfterSeconds The age after which the elements are
+	 *            reloaded on a read, -1 for none.
+	 * @param epoch The time the times of the elements are counted from.
+	 */
+	ElementProfile(String cacheName, long maxLifeSeconds,
+			long maxIdleTimeSeconds, long refreshAfterSeconds, long epoch) {
+		this(cacheName, maxLifeSeconds, maxIdleTimeSeconds,
+				refreshAfterSeconds, null, epoch);
+	}
+
+	/**
+	 * Constructs a profile with a refresh setting and an expiry policy.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param maxLifeSeconds The TTL of the elements, -1 for none.
+	 * @param maxIdleTimeSeconds The maximum idle time of the elements, -1 for
+	 *            none.
+	 * @param refreshAfterSeconds The age after which the elements are
+	 *            reloaded on a read, -1 for none.
+	 * @param expiry The policy computing the TTL of the elements, or null.
+	 * @param epoch The time the times of the elements are counted from.
+	 */
+	ElementProfile(String cacheName, long maxLifeSeconds,
+			long maxIdleTimeSeconds, long refreshAfterSeconds, Expiry expiry,
+			long epoch) {
+		this.cacheName = cacheName;
+		this.maxLifeSeconds = maxLifeSeconds;
+		this.maxIdleTimeSeconds = maxIdleTimeSeconds;
+		this.refreshAfterSeconds = refreshAfterSeconds;
+		this.expiry = expiry;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return the name of the cache.
+	 */
+	String getCacheName() {
+		return cacheName;
+	}
+
+	/**
+	 * Returns the TTL of the elements.
+	 *
+	 * @return the TTL in seconds, -1 for none.
+	 */
+	long getMaxLifeSeconds() {
+		return maxLifeSeconds;
+	}
+
+	/**
+	 * Returns the maximum idle time of the elements.
+	 *
+	 * @return the maximum idle time in seconds, -1 for none.
+	 */
+	long getMaxIdleTimeSeconds() {
+		return maxIdleTimeSeconds;
+	}
+
+	/**
+	 * Returns the age after which the elements are reloaded on a read.
+	 *
+	 * @return the refresh age in seconds, -1 for none.
+	 */
+	long getRefreshAfterSeconds() {
+		return refreshAfterSeconds;
+	}
+
+	/**
+	 * Returns the policy computing the TTL of the elements.
+	 *
+	 * @return the expiry policy, or null if the TTL is fixed.
+	 */
+	Expiry getExpiry() {
+		return expiry;
+	}
+
+	/**
+	 * Returns a copy of this profile with another TTL.
+	 *
+	 * @param maxLifeSeconds The TTL in seconds, -1 for none.
+	 * @return this profile if the TTL is the same, else a new profile.
+	 */
+	ElementProfile withMaxLifeSeconds(long maxLifeSeconds) {
+		if (maxLifeSeconds == this.maxLifeSeconds) {
+			return this;
+		}
+		return new ElementProfile(cacheName, maxLifeSeconds,
+				maxIdleTimeSeconds, refreshAfterSeconds, expiry, epoch);
+	}
+
+	/**
+	 * Returns a copy of this profile with another maximum idle time.
+	 *
+	 * @param maxIdleTimeSeconds The maximum idle time in seconds, -1 for none.
+	 * @return this profile if the idle time is the same, else a new profile.
+	 */
+	ElementProfile withMaxIdleTimeSeconds(long maxIdleTimeSeconds) {
+		if (maxIdleTimeSeconds == this.maxIdleTimeSeconds) {
+			return this;
+		}
+		return new ElementProfile(cacheName, maxLifeSeconds,
+				maxIdleTimeSeconds, refreshAfterSeconds, expiry, epoch);
+	}
+
+	/**
+	 * Returns a copy of this profile with another refresh age.
+	 *
+	 * @param refreshAfterSeconds The refresh age in seconds, -1 for none.
+	 * @return this profile if the refresh age is the same, else a new
+	 *         profile.
+	 */
+	ElementProfile withRefreshAfterSeconds(long refreshAfterSeconds) {
+		if (refreshAfterSeconds == this.refreshAfterSeconds) {
+			return this;
+		}
+		return new ElementProfile(cacheName, maxLifeSeconds,
+				maxIdleTimeSeconds, refreshAfterSeconds, expiry, epoch);
+	}
+
+	/**
+	 * Returns a copy of this profile with another expiry policy and TTL.
+	 *
+	 * @param expiry The policy computing the TTL, or null.
+	 * @param maxLifeSeconds The TTL in seconds, -1 for none.
+	 * @return this profile if both are the same, else a new profile.
+	 */
+	ElementProfile withExpiry(Expiry expiry, long maxLifeSeconds) {
+		if (expiry == this.expiry && maxLifeSeconds == this.maxLifeSeconds) {
+			return this;
+		}
+		return new ElementProfile(cacheName, maxLifeSeconds,
+				maxIdleTimeSeconds, refreshAfterSeconds, expiry, epoch);
+	}
+
+	/**
+	 * Determines if new elements of a cache can be created with this profile.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param attributes The attributes of the elements of the cache.
+	 * @param now The current time in milliseconds.
+	 * @return true if the settings are the same and the epoch is recent.
+	 */
+	boolean matches(String cacheName, CacheElementAttributes attributes,
+			long now) {
+		return this.cacheName == cacheName
+				&& maxLifeSeconds == attributes.getMaxLifeSeconds()
+				&& maxIdleTimeSeconds == attributes.getMaxIdleTimeSeconds()
+				&& refreshAfterSeconds == attributes.getRefreshAfterSeconds()
+				&& expiry == attributes.getExpiry()
+				&& now - epoch < EPOCH_LIFETIME_MILLIS;
+	}
+
+	/**
+	 * Encodes a time as a delta from the epoch. The lowest bit tells if the
+	 * delta is in milliseconds or in seconds.
+	 *
+	 * @param time The time in milliseconds.
+	 * @return the encoded time.
+	 */
+	int encode(long time) {
+		long delta = time - epoch;
+		if (delta >= -RANGE && delta < RANGE) {
+			return (int) delta << 1;
+		}
+		long seconds = Math.floorDiv(delta, 1000);
+		seconds = Math.max(-RANGE, Math.min(RANGE - 1, seconds));
+		return ((int) seconds << 1) | 1;
+	}
+
+	/**
+	 * Decodes a time encoded by {@link #encode(long)}.
+	 *
+	 * @param encoded The encoded time.
+	 * @return the time in milliseconds.
+	 */
+	long decode(int encoded) {
+		long delta = encoded >> 1;
+		if ((encoded & 1) != 0) {
+			delta *= 1000;
+		}
+		return epoch + delta;
+	}
+
+}
@@ -0,0 +1,336 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <code>ElementTable</code> is a hash table of <code>CacheElement</code>s by
+ * key, whose elements are their own entries: the collisions of a bucket are
+ * chained through the elements. Together with <code>LRUElementList</code>,
+ * a cached object costs a single <code>CacheElement</code>, without a map
+ * entry or a list node next to it.
+ * <p>
+ * An element can be in a single table at a time: the caches put only the
+ * elements they own, and copy the elements of another cache (see
+ * <code>AbstractMemoryCache.adopt</code>). The table is not thread safe, it
+ * is guarded by the lock of the cache.
+ * </p>
+ */
+class ElementTable implements Iterable<CacheElement>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The initial number of buckets, a power of two. */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** The buckets, each the first element of its chain. */
+	private transient CacheElement[] table;
+
+	/** The number of elements in the table. */
+	private transient int size;
+
+	/**
+	 * Constructs an empty table.
+	 */
+	ElementTable() {
+		table = new CacheElement[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Returns the number of elements in the table.
+	 *
+	 * @return the number of elements.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the element for a key.
+	 *
+	 * @param key The key.
+	 * @return the element, or null if there is none.
+	 */
+	CacheElement get(Object key) {
+		CacheElement ce = table[indexFor(key, table.length)];
+		while (ce != null && !key.equals(ce.getKey())) {
+			ce = ce.hashNext;
+		}
+		return ce;
+	}
+
+	/**
+	 * Puts an element, in place of the element with the same key if any. The
+	 * element must not be chained in another table, as its link to the next
+	 * element of its bucket is overwritten.
+	 *
+	 * @param ce The element.
+	 * @return the element replaced, or null if there is none.
+	 */
+	CacheElement put(CacheElement ce) {
+		Serializable key = ce.getKey();
+		int index = indexFor(key, table.length);
+		CacheElement previous = null;
+		CacheElement old = table[index];
+		while (old != null && !key.equals(old.getKey())) {
+			previous = old;
+			old = old.hashNext;
+		}
+
+		if (old == ce) {
+			return ce;
+		}
+		if (old != null) {
+			// take the place of the old element in the chain
+			ce.hashNext = old.hashNext;
+			old.hashNext = null;
+			if (previous == null) {
+				table[index] = ce;
+			} else {
+				previous.hashNext = ce;
+			}
+			return old;
+		}
+
+		ce.hashNext = table[index];
+		table[index] = ce;
+		if (++size > table.length - (table.length >>> 2)) {
+			resize();
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the element for a key.
+	 *
+	 * @param key The key.
+	 * @return the element removed, or null if there is none.
+	 */
+	CacheElement remove(Object key) {
+		int index = indexFor(key, table.length);
+		CacheElement previous = null;
+		CacheElement ce = table[index];
+		while (ce != null && !key.equals(ce.getKey())) {
+			previous = ce;
+			ce = ce.hashNext;
+		}
+		if (ce != null) {
+			unlink(index, previous, ce);
+		}
+		return ce;
+	}
+
+	/**
+	 * Removes an element, if it is still the element of its key.
+	 *
+	 * @param ce The element.
+	 * @return true if the element has been removed.
+	 */
+	boolean removeElement(CacheElement ce) {
+		int index = indexFor(ce.getKey(), table.length);
+		CacheElement previous = null;
+		CacheElement current = table[index];
+		while (current != null && current != ce) {
+			previous = current;
+			current = current.hashNext;
+		}
+		if (current == null) {
+			return false;
+		}
+		unlink(index, previous, ce);
+		return true;
+	}
+
+	/**
+	 * Removes all elements.
+	 */
+	void clear() {
+		table = new CacheElement[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Returns an iterator over the elements, which does not support removal.
+	 *
+	 * @return an iterator over the elements.
+	 */
+	public Iterator<CacheElement> iterator() {
+		return new Iterator<CacheElement>() {
+
+			/** The index of the bucket of the next element. */
+			private int index = -1;
+
+			/** The next element. */
+			private CacheElement next = advance(null);
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public CacheElement next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				CacheElement ce = next;
+				next = advance(ce);
+				return ce;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			/**
+			 * Finds the element following an element.
+			 *
+			 * @param ce The element, or null to find the first element.
+			 * @return the following element, or null at the end.
+			 */
+			private CacheElement advance(CacheElement ce) {
+				if (ce != null && ce.hashNext != null) {
+					return ce.hashNext;
+				}
+				while (++index < table.length) {
+					if (table[index] != null) {
+						return table[index];
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Adds the keys of the buckets from a cursor on to a list, until it has
+	 * added a number of keys. The cursor walks the buckets in reverse binary
+	 * order, so a key in the table from the first call to the last is added
+	 * at least once, even if the table has grown or been cleared in between.
+	 *
+	 * @param cursor The cursor returned by the previous call, 0 for the
+	 *            first call.
+	 * @param count The number of keys to be added.
+	 * @param keys The list to add the keys to.
+	 * @return the cursor of the next call, 0 once all the buckets are read.
+	 */
+	int scan(int cursor, int count, List<Serializable> keys) {
+		int mask = table.length - 1;
+		int added = 0;
+		do {
+			for (CacheElement ce = table[cursor & mask]; ce != null; ce = ce.hashNext) {
+				keys.add(ce.getKey());
+				added++;
+			}
+			// increment the bits of the index from the highest one down
+			cursor |= ~mask;
+			cursor = Integer.reverse(Integer.reverse(cursor) + 1);
+		} while (cursor != 0 && added < count);
+		return cursor;
+	}
+
+	/**
+	 * Returns an iterator over the keys, which reads a page of keys at a time
+	 * under the lock guarding the table.
+	 *
+	 * @param lock The lock guarding the table.
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(final Object lock, final int pageSize) {
+		return new PagedKeyIterator() {
+
+			/** The cursor of the next page. */
+			private int cursor;
+
+			boolean nextPage(List<Serializable> page) {
+				synchronized (lock) {
+					cursor = scan(cursor, pageSize, page);
+				}
+				return cursor != 0;
+			}
+		};
+	}
+
+	/**
+	 * Removes an element from its chain.
+	 *
+	 * @param index The index of the bucket.
+	 * @param previous The element before it in the chain, or null.
+	 * @param ce The element.
+	 */
+	private void unlink(int index, CacheElement previous, CacheElement ce) {
+		if (previous == null) {
+			table[index] = ce.hashNext;
+		} else {
+			previous.hashNext = ce.hashNext;
+		}
+		ce.hashNext = null;
+		size--;
+	}
+
+	/**
+	 * Doubles the number of buckets.
+	 */
+	private void resize() {
+		CacheElement[] oldTable = table;
+		CacheElement[] newTable = new CacheElement[oldTable.length << 1];
+		for (CacheElement ce : oldTable) {
+			while (ce != null) {
+				CacheElement next = ce.hashNext;
+				int index = indexFor(ce.getKey(), newTable.length);
+				ce.hashNext = newTable[index];
+				newTable[index] = ce;
+				ce = next;
+			}
+		}
+		table = newTable;
+	}
+
+	/**
+	 * Returns the bucket of a key.
+	 *
+	 * @param key The key.
+	 * @param length The number of buckets, a power of two.
+	 * @return the index of the bucket.
+	 */
+	private static int indexFor(Object key, int length) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (length - 1);
+	}
+
+	/**
+	 * Writes the elements.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException Error when writing the table.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for (CacheElement ce : this) {
+			out.writeObject(ce);
+		}
+	}
+
+	/**
+	 * Reads the elements and chains them again.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException Error when reading the table.
+	 * @throws ClassNotFoundException Class of an element cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		table = new CacheElement[INITIAL_CAPACITY];
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			put((CacheElement) in.readObject());
+		}
+	}
+
+}
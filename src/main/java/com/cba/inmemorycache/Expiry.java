@@ -0,0 +1,68 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+
+/**
+ * <code>Expiry</code> computes how long an element lives, from its key and
+ * its value, so the elements of one cache can live for different times.
+ * <p>
+ * An expiry is given to a cache with
+ * {@link CacheElementAttributes#setExpiry(Expiry)}, or to one element with
+ * {@link MemoryCache#put(Object, Object, Expiry)}. The lifetime it returns
+ * sets the max life of the element, counted from now, so the element is
+ * scheduled on the timer wheel of the cache like any other TTL and no scan
+ * is needed to find it once it is expired. The max idle time of the cache
+ * still applies on top of it.
+ * </p>
+ * <p>
+ * The lifetimes are in seconds, -1 for an element which does not expire. A
+ * new element gets the lifetime of {@link #expireAfterCreate}; if it
+ * replaces an element of the same key, {@link #expireAfterUpdate} then gets
+ * the remaining lifetime of the replaced element. A hit calls
+ * {@link #expireAfterRead} with the remaining lifetime of the element. The
+ * methods are called on the thread of the operation, sometimes while the
+ * cache is locked, so they must be quick and not use the cache.
+ * </p>
+ */
+public interface Expiry extends Serializable {
+
+	/**
+	 * Returns the lifetime of a new element.
+	 *
+	 * @param key The key of the element.
+	 * @param value The value of the element.
+	 * @return the lifetime in seconds, -1 for no limit.
+	 */
+	long expireAfterCreate(Serializable key, Serializable value);
+
+	/**
+	 * Returns the lifetime of an element replacing another one. By default
+	 * the element gets the lifetime of a new element.
+	 *
+	 * @param key The key of the element.
+	 * @param value The new value of the element.
+	 * @param currentSeconds The remaining lifetime of the replaced element
+	 *            in seconds, -1 for no limit.
+	 * @return the lifetime in seconds, -1 for no limit.
+	 */
+	default long expireAfterUpdate(Serializable key, Serializable value,
+			long currentSeconds) {
+		return expireAfterCreate(key, value);
+	}
+
+	/**
+	 * Returns the lifetime of an element which has just been read. By
+	 * default a read keeps the lifetime of the element.
+	 *
+	 * @param key The key of the element.
+	 * @param value The value of the element.
+	 * @param currentSeconds The remaining lifetime of the element in seconds,
+	 *            -1 for no limit.
+	 * @return the lifetime in seconds, -1 for no limit.
+	 */
+	default long expireAfterRead(Serializable key, Serializable value,
+			long currentSeconds) {
+		return currentSeconds;
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.cba.inmemorycache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>FakeTicker</code> is a ticker whose time only moves when it is told
+ * to, for testing the expiry of the elements without waiting for it.
+ * <p>
+ * It starts at the current time of the system clock by default, so the
+ * elements created with the system clock, such as those built with the
+ * public constructors of <code>CacheElement</code>, have consistent times.
+ * </p>
+ */
+public class FakeTicker implements CacheTicker {
+
+	/** The current time in milliseconds. */
+	private final AtomicLong time;
+
+	/**
+	 * Constructs a ticker at the current time of the system clock.
+	 */
+	public FakeTicker() {
+		this(System.currentTimeMillis());
+	}
+
+	/**
+	 * Constructs a ticker at a given time.
+	 *
+	 * @param time The time in milliseconds since the epoch.
+	 */
+	public FakeTicker(long time) {
+		this.time = new AtomicLong(time);
+	}
+
+	/**
+	 * Returns the time of the ticker.
+	 *
+	 * @return the time in milliseconds.
+	 */
+	public long currentTimeMillis() {
+		return time.get();
+	}
+
+	/**
+	 * Moves the time of the ticker forward.
+	 *
+	 * @param duration The duration to move forward by.
+	 * @param unit The unit of the duration.
+	 * @return this ticker.
+	 */
+	public FakeTicker advance(long duration, TimeUnit unit) {
+		time.addAndGet(unit.toMillis(duration));
+		return this;
+	}
+
+	/**
+	 * Sets the time of the ticker.
+	 *
+	 * @param time The time in milliseconds since the epoch.
+	 */
+	public void setTime(long time) {
+		this.time.set(time);
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return the time of the ticker.
+	 */
+	public String toString() {
+		return "FakeTicker[" + time.get() + "]";
+	}
+
+}
@@ -0,0 +1,174 @@
+package com.cba.inmemorycache;
+
+/**
+ * <code>FrequencySketch</code> estimates how often keys have been used
+ * recently, with a Count-Min sketch of 4-bit counters.
+ * <p>
+ * The counters form four rows of equal width, one after the other, sixteen
+ * counters packed into a <code>long</code>. A key has a counter in each row,
+ * picked by double hashing of a 64-bit mix of its hash code, and its
+ * frequency is the minimum of its four counters. The counters saturate at
+ * 15. To let the sketch forget old accesses, all counters are halved once
+ * the number of increments reaches ten times the maximum size of the
+ * cache, as described in the TinyLFU paper.
+ * </p>
+ * <p>
+ * This class is not thread safe, callers are responsible for the locking.
+ * </p>
+ */
+class FrequencySketch {
+
+	/** The number of rows, each counting a key at its own position. */
+	private static final int DEPTH = 4;
+
+	/** The largest value of a counter. */
+	private static final int MAX_COUNT = 15;
+
+	/**
+	 * The bits of the sixteen counters of a <code>long</code> kept when the
+	 * <code>long</code> is shifted right by one to halve them: the top bit
+	 * of each counter is cleared, so no bit moves into the next counter.
+	 */
+	private static final long HALF_MASK = 0x7777777777777777L;
+
+	/** The counters, row after row. */
+	private long[] table;
+
+	/** Mask to select the position of a counter within a row. */
+	private long rowMask;
+
+	/** The number of increments after which the counters are halved. */
+	private int sampleSize;
+
+	/** The number of increments since the counters were last halved. */
+	private int size;
+
+	/**
+	 * Constructs a sketch for a cache of the given maximum size.
+	 *
+	 * @param maximumSize The maximum number of elements of the cache.
+	 */
+	FrequencySketch(long maximumSize) {
+		ensureCapacity(maximumSize);
+	}
+
+	/**
+	 * Resizes the sketch for a cache of the given maximum size, with a
+	 * <code>long</code> of counters per element, so four counters per
+	 * element in each row. The counters are reset.
+	 *
+	 * @param maximumSize The maximum number of elements of the cache.
+	 */
+	void ensureCapacity(long maximumSize) {
+		int maximum = (int) Math.min(Math.max(maximumSize, 1),
+				Integer.MAX_VALUE >>> 1);
+		int length = Integer.highestOneBit(maximum);
+		if (length < maximum) {
+			length <<= 1;
+		}
+		table = new long[length];
+		rowMask = (long) length * 16 / DEPTH - 1;
+		sampleSize = (maximum > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE
+				: 10 * maximum;
+		size = 0;
+	}
+
+	/**
+	 * Returns the estimated number of recent uses of the key, up to 15.
+	 *
+	 * @param key The key.
+	 * @return the estimated frequency of the key.
+	 */
+	int frequency(Object key) {
+		long hash = mix(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < DEPTH; row++) {
+			frequency = Math.min(frequency, count(counterOf(hash, row)));
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records a use of the key. The counters are halved when the sample size
+	 * is reached.
+	 *
+	 * @param key The key.
+	 */
+	void increment(Object key) {
+		long hash = mix(key.hashCode());
+		boolean added = false;
+		for (int row = 0; row < DEPTH; row++) {
+			long counter = counterOf(hash, row);
+			if (count(counter) < MAX_COUNT) {
+				table[(int) (counter >>> 4)] += 1L << shiftOf(counter);
+				added = true;
+			}
+		}
+
+		if (added && (++size == sampleSize)) {
+			halve();
+		}
+	}
+
+	/**
+	 * Halves all counters and the number of increments, so old accesses
+	 * weigh less than recent ones.
+	 */
+	private void halve() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & HALF_MASK;
+		}
+		size >>>= 1;
+	}
+
+	/**
+	 * Returns the value of a counter.
+	 *
+	 * @param counter The index of the counter in the table.
+	 * @return the value of the counter.
+	 */
+	private int count(long counter) {
+		long counters = table[(int) (counter >>> 4)];
+		return (int) (counters >>> shiftOf(counter)) & MAX_COUNT;
+	}
+
+	/**
+	 * Returns the position of a counter in its <code>long</code>.
+	 *
+	 * @param counter The index of the counter in the table.
+	 * @return the number of bits below the counter.
+	 */
+	private static int shiftOf(long counter) {
+		return ((int) counter & 15) << 2;
+	}
+
+	/**
+	 * Returns the index in the table of the counter of a key in a row. The
+	 * positions in the rows are the two halves of the mixed hash combined as
+	 * <code>low + row * high</code>, the high half odd so the rows differ.
+	 *
+	 * @param hash The mixed hash of the key.
+	 * @param row The row, from 0 to 3.
+	 * @return the index of the counter.
+	 */
+	private long counterOf(long hash, int row) {
+		long low = hash & 0xffffffffL;
+		long high = (hash >>> 32) | 1;
+		return row * (rowMask + 1) + ((low + row * high) & rowMask);
+	}
+
+	/**
+	 * Mixes the hash code of a key into 64 bits, with the finalizer of the
+	 * SplitMix64 generator, to protect against poor hash codes.
+	 *
+	 * @param hashCode The hash code of a key.
+	 * @return the mixed hash.
+	 */
+	private static long mix(int hashCode) {
+		long h = hashCode;
+		h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+		h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+		return h ^ (h >>> 31);
+	}
+
+}
@@ -1,11 +1,28 @@
 package com.cba.inmemorycache;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 /**
  * This is the main class for accessing MemoryCache.
  *
@@ -18,16 +35,50 @@ public class InMemoryCache implements Runnable {
 	private final static Logger log = Logger.getLogger(InMemoryCache.class
 			.getName());
 
+	/** The domain of the names of the MBeans of the caches */
+	public static final String MBEAN_DOMAIN = "com.cba.inmemorycache";
+
+	/** The name of the singleton cache manager in the names of its MBeans */
+	public static final String DEFAULT_MANAGER_NAME = "default";
+
+	/** The number of cache managers named after their rank */
+	private static final AtomicInteger managerCount = new AtomicInteger();
+
+	/** The name of this cache manager in the names of its MBeans */
+	private final String managerName;
+
 	/** Caches managed by this cache manager */
 	private Hashtable<String, MemoryCache> caches = new Hashtable<String, MemoryCache>();
 
+	/** Loading caches reading through the caches, by cache name */
+	private Hashtable<String, LoadingMemoryCache> loadingCaches = new Hashtable<String, LoadingMemoryCache>();
+
+	/** The background maintenance of the caches, null if not running */
+	private volatile CacheMaintenance maintenance;
+
+	/** The bus invalidating the caches of the other nodes, if started */
+	private volatile InvalidationBus invalidationBus;
+
 	/** The Singleton Instance */
 	protected static InMemoryCache instance;
 
 	/**
-	 * Protected constructor for use by the static factory methods.
+	 * Protected constructor for use by the static factory methods. The
+	 * manager is named after its rank.
 	 */
 	protected InMemoryCache() {
+		this("InMemoryCache-" + managerCount.incrementAndGet());
+	}
+
+	/**
+	 * Protected constructor naming the manager, which tells the MBeans of its
+	 * caches from those of the other managers.
+	 *
+	 * @param managerName
+	 *            The name of the manager.
+	 */
+	protected InMemoryCache(String managerName) {
+		this.managerName = managerName;
 	}
 
 	/**
@@ -39,12 +90,22 @@ public class InMemoryCache implements Runnable {
 		if (instance == null) {
 			log.log(Level.INFO,
 					"Instance is null, creating with default config");
-			instance = new InMemoryCache();
+			instance = new InMemoryCache(DEFAULT_MANAGER_NAME);
 		}
 
 		return instance;
 	}
 
+	/**
+	 * Returns the name of this cache manager, the <code>manager</code> key
+	 * of the names of the MBeans of its caches.
+	 *
+	 * @return the name of the manager.
+	 */
+	public String getManagerName() {
+		return managerName;
+	}
+
 	/**
 	 * If the cache has already been created, then return the existing cache. If
 	 * the cache is new, add to the list.
@@ -54,34 +115,660 @@ public class InMemoryCache implements Runnable {
 	 * @return MemoryCache
 	 */
 	public MemoryCache getCache(String cacheName) {
+		return getCache(cacheName, null);
+	}
+
+	/**
+	 * If the cache has already been created, then return the existing cache. If
+	 * the cache is new, create it with the given attributes and add to the
+	 * list. The attributes are ignored for an existing cache.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @param cacheAttributes
+	 *            The attributes of a new cache, or null for an unbounded
+	 *            <code>LRUMemoryCache</code>.
+	 * @return MemoryCache
+	 */
+	public MemoryCache getCache(String cacheName,
+			CacheAttributes cacheAttributes) {
 		MemoryCache cache;
 
 		synchronized (caches) {
 			cache = (MemoryCache) caches.get(cacheName);
 			if (cache == null) {
-				cache = new LRUMemoryCache(cacheName);
+				cache = createCache(cacheName,
+						cacheAttributes != null ? cacheAttributes
+								: new CacheAttributes());
 				caches.put(cacheName, cache);
+				registerMBean(cacheName, cache);
+
+				CacheMaintenance running = maintenance;
+				if (running != null) {
+					running.cacheAdded(cacheName);
+				}
+			}
+		}
+
+		return cache;
+	}
+
+	/**
+	 * Returns the loading cache reading through a cache, creating the cache
+	 * if it does not exist. The callers of a cache share its loading cache,
+	 * so a key is loaded once however many of them miss it.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @return LoadingMemoryCache
+	 */
+	public LoadingMemoryCache getLoadingCache(String cacheName) {
+		return getLoadingCache(cacheName, null);
+	}
+
+	/**
+	 * Returns the loading cache reading through a cache, creating the cache
+	 * with the given attributes if it does not exist.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @param cacheAttributes
+	 *            The attributes of a new cache, or null for an unbounded
+	 *            <code>LRUMemoryCache</code>.
+	 * @return LoadingMemoryCache
+	 */
+	public LoadingMemoryCache getLoadingCache(String cacheName,
+			CacheAttributes cacheAttributes) {
+		MemoryCache cache = getCache(cacheName, cacheAttributes);
+		LoadingMemoryCache loadingCache;
+
+		synchronized (loadingCaches) {
+			loadingCache = loadingCaches.get(cacheName);
+			if (loadingCache == null) {
+				loadingCache = new LoadingMemoryCache(cache);
+				loadingCaches.put(cacheName, loadingCache);
+			}
+		}
+
+		return loadingCache;
+	}
+
+	/**
+	 * Returns the asynchronous view of a cache, creating the cache if it does
+	 * not exist. The view reads through the loading cache of the cache.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @return AsyncMemoryCache
+	 */
+	public AsyncMemoryCache getAsyncCache(String cacheName) {
+		return getAsyncCache(cacheName, null);
+	}
+
+	/**
+	 * Returns the asynchronous view of a cache, creating the cache with the
+	 * given attributes if it does not exist.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @param cacheAttributes
+	 *            The attributes of a new cache, or null for an unbounded
+	 *            <code>LRUMemoryCache</code>.
+	 * @return AsyncMemoryCache
+	 */
+	public AsyncMemoryCache getAsyncCache(String cacheName,
+			CacheAttributes cacheAttributes) {
+		return new AsyncMemoryCache(getLoadingCache(cacheName, cacheAttributes));
+	}
+
+	/**
+	 * Returns the view of a cache whose writes invalidate the key on the other
+	 * nodes, creating the cache if it does not exist.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @return InvalidatingMemoryCache
+	 */
+	public InvalidatingMemoryCache getInvalidatingCache(String cacheName) {
+		return getInvalidatingCache(cacheName, null);
+	}
+
+	/**
+	 * Returns the view of a cache whose writes invalidate the key on the other
+	 * nodes, creating the cache with the given attributes if it does not
+	 * exist.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @param cacheAttributes
+	 *            The attributes of a new cache, or null for an unbounded
+	 *            <code>LRUMemoryCache</code>.
+	 * @return InvalidatingMemoryCache
+	 */
+	public InvalidatingMemoryCache getInvalidatingCache(String cacheName,
+			CacheAttributes cacheAttributes) {
+		return new InvalidatingMemoryCache(this, cacheName, getCache(
+				cacheName, cacheAttributes));
+	}
+
+	/**
+	 * Removes a cache from this manager: its elements are removed and its
+	 * MBean is unregistered. A later call to {@link #getCache(String)}
+	 * creates a new cache.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @return true if the cache has been removed, false if it did not exist.
+	 */
+	public boolean removeCache(String cacheName) {
+		MemoryCache cache;
+		synchronized (caches) {
+			cache = caches.remove(cacheName);
+			if (cache == null) {
+				return false;
+			}
+			loadingCaches.remove(cacheName);
+			unregisterMBean(cacheName, cache);
+		}
+
+		try {
+			cache.removeAll();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Removing the elements of cache "
+					+ cacheName + " failed", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Shuts this manager down: stops the maintenance and the invalidation
+	 * bus, and removes all caches, unregistering their MBeans. The singleton
+	 * is replaced by a new manager on the next {@link #getInstance()}.
+	 */
+	public void shutdown() {
+		stopMaintenance();
+		stopInvalidationBus();
+		for (String cacheName : getCacheNames()) {
+			removeCache(cacheName);
+		}
+		synchronized (InMemoryCache.class) {
+			if (instance == this) {
+				instance = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the names of the caches, in alphabetical order.
+	 *
+	 * @return the names of the caches.
+	 */
+	public String[] getCacheNames() {
+		String[] cacheNames;
+
+		synchronized (caches) {
+			cacheNames = caches.keySet().toArray(new String[caches.size()]);
+		}
+		Arrays.sort(cacheNames);
+
+		return cacheNames;
+	}
+
+	/**
+	 * Determines if a cache exists.
+	 *
+	 * @param cacheName
+	 *            The name of a cache.
+	 * @return true if the cache has been created.
+	 */
+	public boolean hasCache(String cacheName) {
+		return caches.containsKey(cacheName);
+	}
+
+	/**
+	 * Writes a snapshot of every cache to a directory, one file per cache,
+	 * to be restored by {@link #restoreSnapshots(File)} after a restart. The
+	 * caches are written in parallel. A cache that cannot be written is
+	 * logged and skipped.
+	 *
+	 * @param directory
+	 *            The directory of the snapshots, created if needed.
+	 * @return the number of elements written.
+	 * @exception IOException
+	 *                The directory cannot be created.
+	 */
+	public long writeSnapshots(final File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create snapshot directory "
+					+ directory);
+		}
+
+		List<String> cacheNames = new ArrayList<String>();
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (final String cacheName : getCacheNames()) {
+			final MemoryCache cache = caches.get(cacheName);
+			if (!(cache instanceof AbstractMemoryCache)) {
+				continue;
+			}
+			cacheNames.add(cacheName);
+			tasks.add(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					long start = System.nanoTime();
+					int count = CacheSnapshot.write((AbstractMemoryCache) cache,
+							CacheSnapshot.fileOf(directory, cacheName));
+					log.info("Wrote " + count + " elements of cache "
+							+ cacheName + " in "
+							+ (System.nanoTime() - start) / 1000000 + " ms");
+					return Integer.valueOf(count);
+				}
+			});
+		}
+		return runSnapshotTasks(cacheNames, tasks, "Snapshot");
+	}
+
+	/**
+	 * Restores the caches of the snapshots in a directory, in parallel. The
+	 * caches that do not exist are created with the attributes they had,
+	 * except their weigher; create the caches with a weigher beforehand. The
+	 * elements expired since the snapshot are skipped. A snapshot that
+	 * cannot be read is logged and skipped.
+	 *
+	 * @param directory
+	 *            The directory of the snapshots.
+	 * @return the number of elements restored.
+	 */
+	public long restoreSnapshots(File directory) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return 0;
+		}
+
+		List<String> cacheNames = new ArrayList<String>();
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (final File file : files) {
+			final String cacheName = CacheSnapshot.cacheNameOf(file);
+			if (cacheName == null) {
+				continue;
+			}
+			cacheNames.add(cacheName);
+			tasks.add(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					long start = System.nanoTime();
+					int count = CacheSnapshot.restore(InMemoryCache.this, file);
+					log.info("Restored " + count + " elements of cache "
+							+ cacheName + " in "
+							+ (System.nanoTime() - start) / 1000000 + " ms");
+					return Integer.valueOf(count);
+				}
+			});
+		}
+		return runSnapshotTasks(cacheNames, tasks, "Restore");
+	}
+
+	/**
+	 * Runs the tasks writing or restoring snapshots on a pool of at most one
+	 * thread per processor, and waits for them.
+	 *
+	 * @param cacheNames
+	 *            The names of the caches.
+	 * @param tasks
+	 *            The tasks, one per cache.
+	 * @param operation
+	 *            The name of the operation, for logging.
+	 * @return the number of elements written or restored.
+	 */
+	private long runSnapshotTasks(List<String> cacheNames,
+			List<Callable<Integer>> tasks, String operation) {
+		if (tasks.isEmpty()) {
+			return 0;
+		}
+		int threads = Math.min(tasks.size(), Runtime.getRuntime()
+				.availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long count = 0;
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (Callable<Integer> task : tasks) {
+				results.add(executor.submit(task));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					count += results.get(i).get().intValue();
+				} catch (ExecutionException e) {
+					log.log(Level.WARNING, operation + " of cache "
+							+ cacheNames.get(i) + " failed", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log.log(Level.WARNING, operation + " interrupted", e);
+					break;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of a cache.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @return the statistics, or null if there is no cache with this name.
+	 */
+	public CacheStats getStats(String cacheName) {
+		MemoryCache cache = caches.get(cacheName);
+		return cache == null ? null : cache.getStats();
+	}
+
+	/**
+	 * Returns a snapshot of the statistics of all caches.
+	 *
+	 * @return the statistics by cache name, in alphabetical order.
+	 */
+	public Map<String, CacheStats> getStats() {
+		Map<String, CacheStats> stats = new LinkedHashMap<String, CacheStats>();
+		for (String cacheName : getCacheNames()) {
+			CacheStats cacheStats = getStats(cacheName);
+			if (cacheStats != null) {
+				stats.put(cacheName, cacheStats);
 			}
 		}
+		return stats;
+	}
+
+	/**
+	 * Starts maintaining the caches in the background with the default
+	 * attributes: a shared daemon thread running a pass every second.
+	 */
+	public void startMaintenance() {
+		startMaintenance(new MaintenanceAttributes());
+	}
+
+	/**
+	 * Starts maintaining the caches in the background. A maintenance pass
+	 * removes the expired elements, replays the buffered reads and evicts the
+	 * elements over the limits of each cache. If the maintenance is already
+	 * running, it is restarted with the new attributes.
+	 *
+	 * @param attributes
+	 *            The attributes of the maintenance.
+	 */
+	public synchronized void startMaintenance(MaintenanceAttributes attributes) {
+		stopMaintenance();
+		log.log(Level.INFO, "Starting maintenance: " + attributes);
+		CacheMaintenance started = new CacheMaintenance(this, attributes);
+		maintenance = started;
+		started.start();
+	}
+
+	/**
+	 * Stops maintaining the caches in the background.
+	 */
+	public synchronized void stopMaintenance() {
+		if (maintenance != null) {
+			maintenance.stop();
+			maintenance = null;
+		}
+	}
+
+	/**
+	 * Returns true if the caches are maintained in the background.
+	 *
+	 * @return true if the maintenance is running.
+	 */
+	public boolean isMaintenanceRunning() {
+		return maintenance != null;
+	}
+
+	/**
+	 * Starts the bus telling the other nodes which keys the writes through
+	 * the invalidating caches have changed, and removing the keys they change
+	 * from the caches of this node. If the bus is already running, it is
+	 * stopped and started again on the new transport.
+	 *
+	 * @param transport
+	 *            The transport carrying the messages between the nodes.
+	 * @return the bus.
+	 * @exception IOException
+	 *                The transport cannot be opened.
+	 */
+	public synchronized InvalidationBus startInvalidationBus(
+			InvalidationTransport transport) throws IOException {
+		stopInvalidationBus();
+		log.log(Level.INFO, "Starting invalidation bus over " + transport);
+		InvalidationBus started = new InvalidationBus(this, transport);
+		started.start();
+		invalidationBus = started;
+		return started;
+	}
+
+	/**
+	 * Sends the pending invalidations and stops the bus.
+	 */
+	public synchronized void stopInvalidationBus() {
+		if (invalidationBus != null) {
+			invalidationBus.stop();
+			invalidationBus = null;
+		}
+	}
+
+	/**
+	 * Returns the bus invalidating the caches of the other nodes.
+	 *
+	 * @return the bus, or null if it is not running.
+	 */
+	public InvalidationBus getInvalidationBus() {
+		return invalidationBus;
+	}
+
+	/**
+	 * Returns the name of the MBean of a cache of the singleton cache
+	 * manager.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @return the name of the MBean.
+	 * @throws JMException
+	 *             The name of the cache makes an invalid MBean name.
+	 */
+	public static ObjectName getObjectName(String cacheName)
+			throws JMException {
+		return getObjectName(DEFAULT_MANAGER_NAME, cacheName);
+	}
+
+	/**
+	 * Returns the name of the MBean of a cache of a cache manager.
+	 *
+	 * @param managerName
+	 *            The name of the cache manager.
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @return the name of the MBean.
+	 * @throws JMException
+	 *             The names make an invalid MBean name.
+	 */
+	public static ObjectName getObjectName(String managerName,
+			String cacheName) throws JMException {
+		return new ObjectName(MBEAN_DOMAIN + ":type=MemoryCache,manager="
+				+ ObjectName.quote(managerName) + ",name="
+				+ ObjectName.quote(cacheName));
+	}
+
+	/**
+	 * Registers the MBean of a new cache in the platform MBean server. A
+	 * failure is logged, the cache works without its MBean.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param cache
+	 *            The cache.
+	 */
+	protected void registerMBean(String cacheName, MemoryCache cache) {
+		if (!(cache instanceof AbstractMemoryCache)) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new MemoryCacheManagement(this,
+							(AbstractMemoryCache) cache),
+					getObjectName(managerName, cacheName));
+		} catch (JMException e) {
+			log.log(Level.WARNING, "No MBean for cache " + cacheName + ": "
+					+ e);
+		}
+	}
+
+	/**
+	 * Unregisters the MBean of a removed cache from the platform MBean
+	 * server. A failure is logged.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param cache
+	 *            The cache.
+	 */
+	protected void unregisterMBean(String cacheName, MemoryCache cache) {
+		if (!(cache instanceof AbstractMemoryCache)) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					getObjectName(managerName, cacheName));
+		} catch (InstanceNotFoundException e) {
+			// the registration failed
+		} catch (JMException e) {
+			log.log(Level.WARNING, "MBean of cache " + cacheName
+					+ " not unregistered: " + e);
+		}
+	}
+
+	/**
+	 * Creates the cache implementation selected by the attributes.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param cacheAttributes
+	 *            The attributes of the cache.
+	 * @return the new cache.
+	 */
+	protected MemoryCache createCache(String cacheName,
+			CacheAttributes cacheAttributes) {
+		AbstractMemoryCache cache;
+
+		switch (cacheAttributes.getMemoryCacheType()) {
+		case SEGMENTED_LRU:
+			cache = new SegmentedLRUMemoryCache(cacheName,
+					cacheAttributes.getConcurrencyLevel());
+			break;
+		case CONCURRENT_LRU:
+			cache = new ConcurrentLRUMemoryCache(cacheName);
+			break;
+		case TINY_LFU:
+			cache = new TinyLfuMemoryCache(cacheName);
+			break;
+		case OFF_HEAP:
+			cache = new OffHeapMemoryCache(cacheName);
+			break;
+		case LONG_KEY:
+			cache = new LongKeyMemoryCache<Serializable>(cacheName);
+			break;
+		case INT_KEY:
+			cache = new IntKeyMemoryCache<Serializable>(cacheName);
+			break;
+		default:
+			cache = new LRUMemoryCache(cacheName);
+			break;
+		}
+		cache.setCacheAttributes(cacheAttributes);
 
 		return cache;
 	}
 
 	/**
-	 * Main processing method for the InMemoryCache object. 
+	 * Main processing method for the InMemoryCache object. Runs a full
+	 * maintenance pass on all caches.
 	 */
 	public void run() {
 		cleanupCache();
 	}
 	
+	/**
+	 * Maintains all caches, one after the other. A failing cache does not
+	 * keep the remaining caches from being maintained.
+	 */
 	protected void cleanupCache() {
+		for (String cacheName : getCacheNames()) {
+			maintainCache(cacheName);
+		}
+	}
+
+	/**
+	 * Maintains a cache: removes the expired elements, replays the buffered
+	 * reads and evicts the elements over its limits. Any error is logged. The
+	 * time spent is recorded in the statistics of the cache, and reported to
+	 * the Flight Recorder.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @return false if there is no cache with this name, true otherwise.
+	 */
+	protected boolean maintainCache(String cacheName) {
+		if (!hasCache(cacheName)) {
+			return false;
+		}
+		maintainCache(cacheName, MaintenanceAttributes.DEFAULT_BATCH_SIZE,
+				Long.MAX_VALUE);
+		return true;
+	}
+
+	/**
+	 * Maintains a cache in batches of elements, releasing the lock of the
+	 * cache between two batches, until it is done or the time budget is
+	 * spent. At least one batch is run. Any error is logged. The time spent
+	 * is recorded in the statistics of the cache, and reported to the Flight
+	 * Recorder.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param batchSize
+	 *            The number of elements removed under one lock.
+	 * @param budgetNanos
+	 *            The time budget in nanoseconds.
+	 * @return true if the cache is maintained or gone, false if elements are
+	 *         left for the next pass.
+	 */
+	boolean maintainCache(String cacheName, int batchSize, long budgetNanos) {
+		MemoryCache cache = caches.get(cacheName);
+		if (cache == null) {
+			return true;
+		}
+
+		int sizeBefore = cache.getSize();
+		long start = System.nanoTime();
+		boolean done = true;
 		try {
-			for (Map.Entry<String, MemoryCache> entry : caches.entrySet()) {
-				entry.getValue().cleanup();;
+			if (cache instanceof AbstractMemoryCache) {
+				AbstractMemoryCache abstractCache = (AbstractMemoryCache) cache;
+				do {
+					done = abstractCache.cleanup(batchSize);
+				} while (!done && System.nanoTime() - start < budgetNanos);
+			} else {
+				cache.cleanup();
 			}
-		} catch (IOException e) {
-			log.log(Level.INFO, e.getMessage());
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Maintenance of cache " + cacheName
+					+ " failed", e);
+		}
+		long cleanupTime = System.nanoTime() - start;
+
+		if (cache instanceof AbstractMemoryCache) {
+			((AbstractMemoryCache) cache).getStatsCounter().recordCleanup(
+					cleanupTime);
 		}
+		CacheEvents.cleanup(cacheName, sizeBefore, cache.getSize(),
+				cleanupTime);
+		return done;
 	}
 
 }
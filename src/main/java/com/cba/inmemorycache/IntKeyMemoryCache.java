@@ -0,0 +1,95 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * <code>IntKeyMemoryCache</code> provides a least recently used cache keyed
+ * by <code>int</code> numbers, such as database ids.
+ * <p>
+ * The keys are stored in a <code>int</code> array and the LRU list is made
+ * of slot indexes, so {@link #get(int)} does not box the key and allocates
+ * nothing, nor does {@link #put(int, Serializable)} of an existing key. The
+ * <code>MemoryCache</code> methods are available too, for integral
+ * <code>Number</code>s in the range of <code>int</code>, but they allocate
+ * the <code>CacheElement</code> they exchange. See
+ * <code>PrimitiveKeyMemoryCache</code> for how the elements are stored.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+public class IntKeyMemoryCache<V extends Serializable> extends
+		PrimitiveKeyMemoryCache<V> {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The keys by slot. */
+	private int[] keys;
+
+	/**
+	 * Constructs a <code>IntKeyMemoryCache</code> with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	protected IntKeyMemoryCache(String cacheName) {
+		super(cacheName, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the cached value for a key, without allocating.
+	 *
+	 * @param key The key of the value.
+	 * @return the value, or null if it is not cached or expired.
+	 */
+	public V get(int key) {
+		return getValue(key);
+	}
+
+	/**
+	 * Puts a value into the cache. Replacing the value of a cached key does
+	 * not allocate unless the cache has a weigher.
+	 *
+	 * @param key The key of the value.
+	 * @param value The value to be cached.
+	 * @exception IOException The value is null.
+	 */
+	public void put(int key, V value) throws IOException {
+		putValue(key, value);
+	}
+
+	/**
+	 * Removes the value for a key.
+	 *
+	 * @param key The key of the value.
+	 * @return true if the value has been removed, false if it was not cached.
+	 */
+	public boolean remove(int key) {
+		return removeKey(key);
+	}
+
+	long keyOf(int slot) {
+		return keys[slot];
+	}
+
+	long keyOf(Object keys, int slot) {
+		return ((int[]) keys)[slot];
+	}
+
+	void setKey(int slot, long key) {
+		keys[slot] = (int) key;
+	}
+
+	Serializable box(long key) {
+		return Integer.valueOf((int) key);
+	}
+
+	void allocateKeys(int capacity) {
+		keys = new int[capacity];
+	}
+
+	Object keyArray() {
+		return keys;
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <code>InvalidatingMemoryCache</code> is a view of a named cache whose
+ * writes invalidate the key on the other nodes: a put, an update or a remove
+ * publishes the key on the <code>InvalidationBus</code> of the cache manager,
+ * and <code>removeAll</code> clears the cache of the same name on the peers.
+ * <p>
+ * Only the writes of the application go through the view. The puts of the
+ * loading cache read through the cache directly, as do the invalidations
+ * received from the peers, so they are not published. The view publishes
+ * nothing while the bus of the cache manager is stopped.
+ * </p>
+ * <p>
+ * Get the view of a named cache with
+ * {@link InMemoryCache#getInvalidatingCache(String)}.
+ * </p>
+ */
+public class InvalidatingMemoryCache implements MemoryCache {
+
+	/** The cache manager holding the bus */
+	private final InMemoryCache manager;
+
+	/** The name of the cache */
+	private final String cacheName;
+
+	/** The cache written through */
+	private final MemoryCache cache;
+
+	/**
+	 * Constructs the view of a named cache.
+	 *
+	 * @param manager The cache manager holding the bus.
+	 * @param cacheName The name of the cache.
+	 * @param cache The cache written through.
+	 */
+	protected InvalidatingMemoryCache(InMemoryCache manager, String cacheName,
+			MemoryCache cache) {
+		this.manager = manager;
+		this.cacheName = cacheName;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the cache written through.
+	 *
+	 * @return the cache.
+	 */
+	public MemoryCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Publishes a key, if the bus is running.
+	 *
+	 * @param key The key which has changed.
+	 */
+	private void publish(Serializable key) {
+		InvalidationBus bus = manager.getInvalidationBus();
+		if (bus != null) {
+			bus.publish(cacheName, key);
+		}
+	}
+
+	public int getSize() {
+		return cache.getSize();
+	}
+
+	public boolean remove(Serializable key) throws IOException {
+		boolean removed = cache.remove(key);
+		// the peers may have the key even if this node has not
+		publish(key);
+		return removed;
+	}
+
+	public void removeAll() throws IOException {
+		cache.removeAll();
+		InvalidationBus bus = manager.getInvalidationBus();
+		if (bus != null) {
+			bus.publishAll(cacheName);
+		}
+	}
+
+	public int freeElements(int numberToFree) throws IOException {
+		return cache.freeElements(numberToFree);
+	}
+
+	public void cleanup() throws IOException {
+		cache.cleanup();
+	}
+
+	public CacheElement get(Serializable key) throws IOException {
+		return cache.get(key);
+	}
+
+	public void update(CacheElement ce) throws IOException {
+		cache.update(ce);
+		publish(ce.getKey());
+	}
+
+	public void put(Object key, Object val) throws IOException {
+		cache.put(key, val);
+		publish((Serializable) key);
+	}
+
+	public void put(Object key, Object val, Expiry expiry) throws IOException {
+		cache.put(key, val, expiry);
+		publish((Serializable) key);
+	}
+
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		return cache.getAll(keys);
+	}
+
+	public void putAll(Map<?, ?> map) throws IOException {
+		cache.putAll(map);
+		for (Object key : map.keySet()) {
+			publish((Serializable) key);
+		}
+	}
+
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		int removed = cache.removeAll(keys);
+		for (Serializable key : keys) {
+			publish(key);
+		}
+		return removed;
+	}
+
+	public CacheStats getStats() {
+		return cache.getStats();
+	}
+
+}
@@ -0,0 +1,494 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>InvalidationBus</code> tells the other nodes running the same caches
+ * which keys have changed, so they drop their copies instead of serving them
+ * until their TTL.
+ * <p>
+ * The writes through an <code>InvalidatingMemoryCache</code> publish their
+ * keys on the bus of its cache manager. The keys are batched: a daemon thread
+ * waits for the first key, lingers for
+ * <code>com.cba.inmemorycache.invalidationLingerMillis</code> (1 ms by
+ * default) so a burst of writes shares its messages, then sends the batch.
+ * A key published twice in a batch is sent once, and a cleared cache drops
+ * the keys of the cache pending before it. The messages are kept under
+ * <code>com.cba.inmemorycache.invalidationMessageBytes</code> (1400 bytes by
+ * default) for the datagram transports.
+ * </p>
+ * <p>
+ * A message is a header, with the random id of the sending bus to drop its
+ * own messages, followed by operations: the name of a cache, then its keys,
+ * written like the keys of a snapshot with the key codec of the cache, or
+ * the removal of all its elements. A peer removes the keys from its cache of
+ * the same name, if it has one, without publishing them again. The caches of
+ * the same name must have the same key codec on all the nodes.
+ * </p>
+ * <p>
+ * Start the bus of a cache manager with
+ * {@link InMemoryCache#startInvalidationBus(InvalidationTransport)}.
+ * </p>
+ */
+public class InvalidationBus {
+
+	/** For logging */
+	private final static Logger log = Logger.getLogger(InvalidationBus.class
+			.getName());
+
+	/** The time the first key of a batch waits for others, in milliseconds */
+	static final long LINGER_MILLIS = Long.getLong(
+			"com.cba.inmemorycache.invalidationLingerMillis", 1);
+
+	/** The size over which a batch is split into several messages */
+	static final int MESSAGE_BYTES = Integer.getInteger(
+			"com.cba.inmemorycache.invalidationMessageBytes", 1400);
+
+	/** The first bytes of a message */
+	private static final int MAGIC = 0x43424956;
+
+	/** The operation ending a message */
+	private static final int END = 0;
+
+	/** The operation naming the cache of the following operations */
+	private static final int CACHE = 1;
+
+	/** The operation removing a key */
+	private static final int KEY = 2;
+
+	/** The operation removing all the elements */
+	private static final int CLEAR = 3;
+
+	/** The cache manager whose caches are invalidated */
+	private final InMemoryCache manager;
+
+	/** The transport carrying the messages */
+	private final InvalidationTransport transport;
+
+	/** The id of this bus in the messages it sends */
+	private final long senderId = new Random().nextLong();
+
+	/**
+	 * The keys to be sent by cache name, a null set for a cleared cache.
+	 * Guarded by this.
+	 */
+	private Map<String, Set<Serializable>> pending = new LinkedHashMap<String, Set<Serializable>>();
+
+	/** Set once the bus is stopped, guarded by this */
+	private boolean closed;
+
+	/** Lock keeping the batches in order, guarding the buffers */
+	private final Object sendLock = new Object();
+
+	/** The message being written, guarded by the send lock */
+	private final MessageBuffer message = new MessageBuffer();
+
+	/** The stream writing the message */
+	private final DataOutputStream messageOut = new DataOutputStream(message);
+
+	/** An operation being written, guarded by the send lock */
+	private final MessageBuffer operation = new MessageBuffer();
+
+	/** The stream writing the operation */
+	private final DataOutputStream operationOut = new DataOutputStream(
+			operation);
+
+	/** The thread sending the batches */
+	private final Thread sender;
+
+	/** The number of messages sent */
+	private final AtomicLong sentMessages = new AtomicLong();
+
+	/** The number of keys and clears sent */
+	private final AtomicLong sentInvalidations = new AtomicLong();
+
+	/** The number of messages received from the other nodes */
+	private final AtomicLong receivedMessages = new AtomicLong();
+
+	/** The number of keys and clears received and applied */
+	private final AtomicLong appliedInvalidations = new AtomicLong();
+
+	/**
+	 * Constructs the bus of a cache manager.
+	 *
+	 * @param manager The cache manager.
+	 * @param transport The transport carrying the messages.
+	 */
+	InvalidationBus(InMemoryCache manager, InvalidationTransport transport) {
+		this.manager = manager;
+		this.transport = transport;
+		this.sender = new Thread(new Runnable() {
+			public void run() {
+				sendBatches();
+			}
+		}, "InMemoryCache-invalidation");
+		sender.setDaemon(true);
+	}
+
+	/**
+	 * Opens the transport and starts sending the batches.
+	 *
+	 * @exception IOException Error when opening the transport.
+	 */
+	void start() throws IOException {
+		transport.open(new InvalidationTransport.Receiver() {
+			public void receive(ByteBuffer message) {
+				InvalidationBus.this.receive(message);
+			}
+		});
+		sender.start();
+	}
+
+	/**
+	 * Sends the pending keys and closes the transport.
+	 */
+	void stop() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		sender.interrupt();
+		try {
+			sender.join(1000);
+			flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot send the last invalidations", e);
+		}
+		try {
+			transport.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot close " + transport, e);
+		}
+	}
+
+	/**
+	 * Publishes a key of a cache which has changed.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param key The key.
+	 */
+	void publish(String cacheName, Serializable key) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			boolean first = pending.isEmpty();
+			Set<Serializable> keys = pending.get(cacheName);
+			if (keys == null && !pending.containsKey(cacheName)) {
+				keys = new LinkedHashSet<Serializable>();
+				pending.put(cacheName, keys);
+			}
+			// the keys of a cleared cache need not be sent
+			if (keys != null) {
+				keys.add(key);
+			}
+			if (first) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Publishes the removal of all the elements of a cache.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	void publishAll(String cacheName) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			boolean first = pending.isEmpty();
+			pending.put(cacheName, null);
+			if (first) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sends the pending keys now, in the calling thread.
+	 *
+	 * @exception IOException Error when sending a message; the rest of the
+	 *                batch is dropped.
+	 */
+	public void flush() throws IOException {
+		synchronized (sendLock) {
+			Map<String, Set<Serializable>> batch;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new LinkedHashMap<String, Set<Serializable>>();
+			}
+			send(batch);
+		}
+	}
+
+	/**
+	 * Returns the number of messages sent.
+	 *
+	 * @return the number of messages sent.
+	 */
+	public long getSentMessages() {
+		return sentMessages.get();
+	}
+
+	/**
+	 * Returns the number of keys sent, a cleared cache counting for one.
+	 *
+	 * @return the number of invalidations sent.
+	 */
+	public long getSentInvalidations() {
+		return sentInvalidations.get();
+	}
+
+	/**
+	 * Returns the number of messages received from the other nodes.
+	 *
+	 * @return the number of messages received.
+	 */
+	public long getReceivedMessages() {
+		return receivedMessages.get();
+	}
+
+	/**
+	 * Returns the number of keys received and removed from the caches, a
+	 * cleared cache counting for one. The keys of the caches this node does
+	 * not have are not counted.
+	 *
+	 * @return the number of invalidations applied.
+	 */
+	public long getAppliedInvalidations() {
+		return appliedInvalidations.get();
+	}
+
+	/**
+	 * Waits for keys, lets the batch fill for the linger time and sends it,
+	 * until the bus is stopped.
+	 */
+	private void sendBatches() {
+		while (true) {
+			try {
+				synchronized (this) {
+					while (pending.isEmpty() && !closed) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+				}
+				if (LINGER_MILLIS > 0) {
+					Thread.sleep(LINGER_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				// stopped, the pending keys are sent by stop
+				return;
+			}
+			try {
+				flush();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Cannot send invalidations", e);
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch into messages and sends them. Must be called while
+	 * holding the send lock.
+	 *
+	 * @param batch The keys by cache name, a null set for a cleared cache.
+	 * @exception IOException Error when writing or sending a message.
+	 */
+	private void send(Map<String, Set<Serializable>> batch) throws IOException {
+		beginMessage();
+		int operations = 0;
+		for (Map.Entry<String, Set<Serializable>> entry : batch.entrySet()) {
+			String cacheName = entry.getKey();
+			operation.reset();
+			operationOut.writeByte(CACHE);
+			CacheSnapshot.writeObject(operationOut, cacheName, null);
+			byte[] header = operation.toByteArray();
+			boolean named = false;
+
+			Set<Serializable> keys = entry.getValue();
+			if (keys != null) {
+				CacheCodec<?> codec = keyCodecOf(cacheName);
+				for (Serializable key : keys) {
+					operation.reset();
+					operationOut.writeByte(KEY);
+					CacheSnapshot.writeObject(operationOut, key, codec);
+					if (operations > 0
+							&& message.size() + (named ? 0 : header.length)
+									+ operation.size() + 1 > MESSAGE_BYTES) {
+						endMessage(operations);
+						beginMessage();
+						operations = 0;
+						named = false;
+					}
+					if (!named) {
+						message.write(header);
+						named = true;
+					}
+					operation.writeTo(message);
+					operations++;
+				}
+			} else {
+				if (operations > 0
+						&& message.size() + header.length + 2 > MESSAGE_BYTES) {
+					endMessage(operations);
+					beginMessage();
+					operations = 0;
+				}
+				message.write(header);
+				messageOut.writeByte(CLEAR);
+				operations++;
+			}
+		}
+		if (operations > 0) {
+			endMessage(operations);
+		}
+	}
+
+	/**
+	 * Starts a message with its header.
+	 *
+	 * @exception IOException Error when writing the header.
+	 */
+	private void beginMessage() throws IOException {
+		message.reset();
+		messageOut.writeInt(MAGIC);
+		messageOut.writeLong(senderId);
+	}
+
+	/**
+	 * Ends the message and sends it.
+	 *
+	 * @param operations The number of keys and clears in the message.
+	 * @exception IOException Error when sending the message.
+	 */
+	private void endMessage(int operations) throws IOException {
+		messageOut.writeByte(END);
+		transport.send(message.array(), message.size());
+		sentMessages.incrementAndGet();
+		sentInvalidations.addAndGet(operations);
+	}
+
+	/**
+	 * Returns the key codec of a cache of this node.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @return the key codec, or null if the cache has none.
+	 */
+	private CacheCodec<?> keyCodecOf(String cacheName) {
+		MemoryCache cache = manager.hasCache(cacheName) ? manager
+				.getCache(cacheName) : null;
+		return cache instanceof AbstractMemoryCache ? ((AbstractMemoryCache) cache)
+				.getCacheAttributes().getKeyCodec()
+				: null;
+	}
+
+	/**
+	 * Applies a message of another node to the caches of this node.
+	 *
+	 * @param buffer The message.
+	 */
+	private void receive(ByteBuffer buffer) {
+		CacheSnapshot.MappedReader in = new CacheSnapshot.MappedReader(buffer);
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not an invalidation message");
+			}
+			if (in.readLong() == senderId) {
+				// sent by this bus
+				return;
+			}
+			receivedMessages.incrementAndGet();
+
+			MemoryCache cache = null;
+			CacheCodec<?> codec = null;
+			for (int op = in.readByte(); op != END; op = in.readByte()) {
+				switch (op) {
+				case CACHE:
+					String cacheName = (String) CacheSnapshot.readObject(in, in
+							.readByte(), null);
+					cache = manager.hasCache(cacheName) ? manager
+							.getCache(cacheName) : null;
+					codec = keyCodecOf(cacheName);
+					break;
+				case KEY:
+					int tag = in.readByte();
+					if (cache == null) {
+						CacheSnapshot.skipObject(in, tag);
+					} else {
+						cache.remove(CacheSnapshot.readObject(in, tag, codec));
+						appliedInvalidations.incrementAndGet();
+					}
+					break;
+				case CLEAR:
+					if (cache != null) {
+						cache.removeAll();
+						appliedInvalidations.incrementAndGet();
+					}
+					break;
+				default:
+					throw new IOException(
+							"Corrupted invalidation message, operation " + op);
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot apply an invalidation message", e);
+		}
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return String info about the bus.
+	 */
+	public String toString() {
+		StringBuffer str = new StringBuffer();
+		str.append("InvalidationBus over ").append(transport);
+		str.append(", SentMessages = ").append(getSentMessages());
+		str.append(", SentInvalidations = ").append(getSentInvalidations());
+		str.append(", ReceivedMessages = ").append(getReceivedMessages());
+		str.append(", AppliedInvalidations = ").append(
+				getAppliedInvalidations());
+		return str.toString();
+	}
+
+	/**
+	 * A byte stream whose buffer is sent without a copy.
+	 */
+	private static final class MessageBuffer extends ByteArrayOutputStream {
+
+		MessageBuffer() {
+			super(MESSAGE_BYTES + 64);
+		}
+
+		/**
+		 * Returns the buffer, valid up to the size of the stream.
+		 *
+		 * @return the buffer.
+		 */
+		byte[] array() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.cba.inmemorycache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <code>InvalidationTransport</code> carries the messages of an
+ * <code>InvalidationBus</code> between the nodes running the same caches.
+ * <p>
+ * A message sent by a node is delivered to the other nodes, at most once and
+ * in any order. The transport need not be reliable: an invalidation that is
+ * lost leaves a stale element until its TTL. <code>send</code> may be called
+ * by several threads.
+ * </p>
+ */
+public interface InvalidationTransport extends Closeable {
+
+	/**
+	 * The receiver of the messages of the other nodes.
+	 */
+	interface Receiver {
+
+		/**
+		 * Receives a message. The buffer is only valid until the method
+		 * returns.
+		 *
+		 * @param message The bytes of the message.
+		 */
+		void receive(ByteBuffer message);
+	}
+
+	/**
+	 * Starts delivering the messages of the other nodes to a receiver.
+	 *
+	 * @param receiver The receiver of the messages.
+	 * @exception IOException Error when opening the transport.
+	 */
+	void open(Receiver receiver) throws IOException;
+
+	/**
+	 * Sends a message to the other nodes.
+	 *
+	 * @param message The buffer holding the message.
+	 * @param length The length of the message.
+	 * @exception IOException Error when sending the message.
+	 */
+	void send(byte[] message, int length) throws IOException;
+
+	/**
+	 * Stops sending and delivering messages.
+	 *
+	 * @exception IOException Error when closing the transport.
+	 */
+	void close() throws IOException;
+
+}
@@ -0,0 +1,174 @@
+package com.cba.inmemorycache;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * <code>JfrCacheEvents</code> holds the Flight Recorder events of the caches.
+ * It is only loaded by <code>CacheEvents</code> if the JVM has the Flight
+ * Recorder.
+ */
+final class JfrCacheEvents {
+
+	/**
+	 * Not to be instantiated.
+	 */
+	private JfrCacheEvents() {
+	}
+
+	/**
+	 * Keeps <code>CacheEvents</code> informed of whether a recording is
+	 * running.
+	 */
+	static void listen() {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			public void recorderInitialized(FlightRecorder recorder) {
+				update(recorder);
+			}
+
+			public void recordingStateChanged(Recording recording) {
+				update(FlightRecorder.getFlightRecorder());
+			}
+		});
+	}
+
+	/**
+	 * Checks the recordings of the recorder.
+	 *
+	 * @param recorder The Flight Recorder.
+	 */
+	private static void update(FlightRecorder recorder) {
+		boolean running = false;
+		for (Recording recording : recorder.getRecordings()) {
+			if (recording.getState() == RecordingState.RUNNING) {
+				running = true;
+			}
+		}
+		CacheEvents.setRecording(running);
+	}
+
+	/**
+	 * Commits a lock hold event.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param operation The operation holding the lock.
+	 * @param duration The time the lock was held, in nanoseconds.
+	 */
+	static void lockHeld(String cacheName, String operation, long duration) {
+		LockHold event = new LockHold();
+		if (event.shouldCommit()) {
+			event.cacheName = cacheName;
+			event.operation = operation;
+			event.held = duration;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Commits a cleanup event.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param sizeBefore The number of elements before the pass.
+	 * @param sizeAfter The number of elements after the pass.
+	 * @param duration The time spent in the pass, in nanoseconds.
+	 */
+	static void cleanup(String cacheName, int sizeBefore, int sizeAfter,
+			long duration) {
+		Cleanup event = new Cleanup();
+		if (event.shouldCommit()) {
+			event.cacheName = cacheName;
+			event.sizeBefore = sizeBefore;
+			event.sizeAfter = sizeAfter;
+			event.cleanupTime = duration;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Commits an eviction burst event.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param count The number of elements evicted at once.
+	 */
+	static void evictionBurst(String cacheName, int count) {
+		EvictionBurst event = new EvictionBurst();
+		if (event.shouldCommit()) {
+			event.cacheName = cacheName;
+			event.count = count;
+			event.commit();
+		}
+	}
+
+	/**
+	 * The lock of a cache was held longer than the threshold.
+	 */
+	@Name("com.cba.inmemorycache.LockHold")
+	@Label("Cache Lock Hold")
+	@Category({ "In-Memory Cache" })
+	@Description("The lock of a cache was held for a batch of work")
+	static final class LockHold extends Event {
+
+		@Label("Cache Name")
+		String cacheName;
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Held")
+		@Timespan(Timespan.NANOSECONDS)
+		long held;
+
+	}
+
+	/**
+	 * A maintenance pass over a cache.
+	 */
+	@Name("com.cba.inmemorycache.Cleanup")
+	@Label("Cache Cleanup")
+	@Category({ "In-Memory Cache" })
+	@Description("Expired elements removed and overflow evicted by the maintenance")
+	@StackTrace(false)
+	static final class Cleanup extends Event {
+
+		@Label("Cache Name")
+		String cacheName;
+
+		@Label("Size Before")
+		int sizeBefore;
+
+		@Label("Size After")
+		int sizeAfter;
+
+		@Label("Cleanup Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long cleanupTime;
+
+	}
+
+	/**
+	 * Many elements were evicted at once.
+	 */
+	@Name("com.cba.inmemorycache.EvictionBurst")
+	@Label("Cache Eviction Burst")
+	@Category({ "In-Memory Cache" })
+	@Description("Elements evicted at once by a cleanup or freeElements")
+	static final class EvictionBurst extends Event {
+
+		@Label("Cache Name")
+		String cacheName;
+
+		@Label("Evicted")
+		int count;
+
+	}
+
+}
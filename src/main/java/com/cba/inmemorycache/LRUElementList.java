@@ -0,0 +1,245 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * <code>LRUElementList</code> is a doubly linked list that keeps track of the
+ * usage of the elements in a cache. The links are stored in the
+ * <code>CacheElement</code> objects themselves, so moving an element to the
+ * top of the list or removing it from the list takes constant time.
+ * <p>
+ * The first element is the most recently used one, the last element is the
+ * least recently used one. An element can only be linked into one list at a
+ * time. This class is not thread safe, callers are responsible for the
+ * locking.
+ * </p>
+ */
+class LRUElementList implements Serializable {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The most recently used element. */
+	private transient CacheElement first;
+
+	/** The least recently used element. */
+	private transient CacheElement last;
+
+	/** The number of elements in the list. */
+	private transient int size;
+
+	/**
+	 * Returns the number of elements in the list.
+	 *
+	 * @return the number of elements in the list.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if there is no element in the list.
+	 *
+	 * @return true if there is no element in the list.
+	 */
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the most recently used element.
+	 *
+	 * @return the first element, or null if the list is empty.
+	 */
+	CacheElement getFirst() {
+		return first;
+	}
+
+	/**
+	 * Returns the least recently used element.
+	 *
+	 * @return the last element, or null if the list is empty.
+	 */
+	CacheElement getLast() {
+		return last;
+	}
+
+	/**
+	 * Returns true if the element is linked into this list.
+	 *
+	 * @param ce The element to be checked.
+	 * @return true if the element is in this list.
+	 */
+	boolean contains(CacheElement ce) {
+		return ce.prev != null || first == ce;
+	}
+
+	/**
+	 * Adds the element to the top of the list. The element must not be linked
+	 * into any list.
+	 *
+	 * @param ce The element to be added.
+	 */
+	void addFirst(CacheElement ce) {
+		ce.prev = null;
+		ce.next = first;
+		if (first == null) {
+			last = ce;
+		} else {
+			first.prev = ce;
+		}
+		first = ce;
+		size++;
+	}
+
+	/**
+	 * Adds the element to the end of the list. The element must not be linked
+	 * into any list.
+	 *
+	 * @param ce The element to be added.
+	 */
+	void addLast(CacheElement ce) {
+		ce.next = null;
+		ce.prev = last;
+		if (last == null) {
+			first = ce;
+		} else {
+			last.next = ce;
+		}
+		last = ce;
+		size++;
+	}
+
+	/**
+	 * Moves the element to the top of the list. If the element is not in the
+	 * list yet, it is added.
+	 *
+	 * @param ce The element that is the most recently used.
+	 */
+	void moveToFirst(CacheElement ce) {
+		if (first == ce) {
+			return;
+		}
+		if (contains(ce)) {
+			unlink(ce);
+		}
+		addFirst(ce);
+	}
+
+	/**
+	 * Removes the element from the list.
+	 *
+	 * @param ce The element to be removed.
+	 * @return true if the element was in the list, false otherwise.
+	 */
+	boolean remove(CacheElement ce) {
+		if (!contains(ce)) {
+			return false;
+		}
+		unlink(ce);
+		return true;
+	}
+
+	/**
+	 * Removes the least recently used element from the list.
+	 *
+	 * @return the removed element, or null if the list is empty.
+	 */
+	CacheElement removeLast() {
+		CacheElement ce = last;
+		if (ce != null) {
+			unlink(ce);
+		}
+		return ce;
+	}
+
+	/**
+	 * Adds the elements of the list to another list, from the least to the
+	 * most recently used one.
+	 *
+	 * @param elements The list the elements are added to.
+	 */
+	void addLeastRecentFirst(List<CacheElement> elements) {
+		for (CacheElement ce = last; ce != null; ce = ce.prev) {
+			elements.add(ce);
+		}
+	}
+
+	/**
+	 * Removes all elements from the list.
+	 */
+	void clear() {
+		CacheElement ce = first;
+		while (ce != null) {
+			CacheElement next = ce.next;
+			ce.prev = null;
+			ce.next = null;
+			ce = next;
+		}
+		first = null;
+		last = null;
+		size = 0;
+	}
+
+	/**
+	 * Unlinks an element that is known to be in the list.
+	 *
+	 * @param ce The element to be unlinked.
+	 */
+	private void unlink(CacheElement ce) {
+		CacheElement prev = ce.prev;
+		CacheElement next = ce.next;
+
+		if (prev == null) {
+			first = next;
+		} else {
+			prev.next = next;
+		}
+
+		if (next == null) {
+			last = prev;
+		} else {
+			next.prev = prev;
+		}
+
+		ce.prev = null;
+		ce.next = null;
+		size--;
+	}
+
+	/**
+	 * Writes the elements from the most to the least recently used one, the
+	 * links themselves are not serialized.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException Error when writing the list.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for (CacheElement ce = first; ce != null; ce = ce.next) {
+			out.writeObject(ce);
+		}
+	}
+
+	/**
+	 * Reads the elements and links them in the order they were written.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException Error when reading the list.
+	 * @throws ClassNotFoundException Class of an element cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			addLast((CacheElement) in.readObject());
+		}
+	}
+
+}
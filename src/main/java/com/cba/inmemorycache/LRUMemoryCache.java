@@ -3,43 +3,76 @@
  */
 package com.cba.inmemorycache;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * <code>LRUMemoryCache</code> provides a cache in which the Least Recently Used
  * items move to the end of the list.
+ * <p>
+ * All operations lock the cache itself, so the map and the list are always
+ * consistent. The bulk operations take the lock once for all their keys.
+ * See <code>SegmentedLRUMemoryCache</code> for a cache that scales with
+ * concurrent access.
+ * </p>
+ * <p>
+ * With an overflow directory in its attributes, the cache writes the
+ * elements it evicts to a <code>DiskOverflowStore</code>, and a miss takes
+ * the element back from there. The evicted elements are only staged in the
+ * store under the lock of the cache, and written to the log once the lock
+ * is released. Likewise, a miss reads the log without holding the lock, and
+ * puts the element back unless its key has been written meanwhile. The cleanup compacts the log once it holds enough dead
+ * records, outside the lock of the cache.
+ * </p>
  * 
  * @author Van Hai Ho 
  *
  */
-public class LRUMemoryCache implements MemoryCache, Serializable {
+public class LRUMemoryCache extends AbstractMemoryCache {
 
 	/** Default serial version UID */
 	private static final long serialVersionUID = 1L;
 
-	/** For logging */
-	private final static Logger log = Logger.getLogger(LRUMemoryCache.class
-			.getName());
+	/** Table where items are stored by key, guarded by the lock of the cache */
+	private ElementTable cacheMap;
 
-	/** The name of the cache */
-	private String cacheName;
+	/** List to keep track of the usage of the element in the cache */
+	private LRUElementList cacheList;
 
-	/** Map where items are stored by key */
-	private Map<Serializable, CacheElement> cacheMap;
+	/** Wheel to keep track of the expiry of the elements in the cache */
+	private transient TimerWheel timerWheel;
 
-	/** LinkedList to keep track of the usage of the element in the cache */
-	private LinkedList<Serializable> cacheList;
-	
-	/** Attributes for elements in this cache */
-	private CacheElementAttributes attributes = new CacheElementAttributes();
+	/** Total weight of the elements in this cache */
+	private long weightedSize;
+
+	/** Number of elements evicted from this cache */
+	private long evictionCount;
+
+	/** Log of the evicted elements, opened by the first eviction */
+	private transient DiskOverflowStore overflowStore;
+
+	/**
+	 * Elements staged in the overflow log and not written yet, guarded by the
+	 * lock of the cache
+	 */
+	private transient List<CacheElement> overflowed;
+
+	/**
+	 * Keys being taken back from the overflow log, unmarked when they are
+	 * written meanwhile, guarded by the lock of the cache
+	 */
+	private transient Set<Serializable> taking;
 	
 	/**
 	 * Constructs a <code>LRUMemoryCache</code> with the given name.
@@ -47,56 +80,69 @@ public class LRUMemoryCache implements MemoryCache, Serializable {
 	 * @param cacheName The name of the cache.
 	 */
 	protected LRUMemoryCache(String cacheName) {
-		this.cacheName = cacheName;
-		cacheMap = new Hashtable<Serializable, CacheElement>();
-		cacheList = new LinkedList<Serializable>();
+		super(cacheName);
+		cacheMap = new ElementTable();
+		cacheList = new LRUElementList();
+		timerWheel = new TimerWheel(currentTimeMillis());
 	}
 
 	/**
-	 * Returns the name of the cache.
+	 * Returns the total weight of the elements in the cache, as calculated by
+	 * the weigher of the cache attributes.
 	 * 
-	 * @return the name of the cache.
+	 * @return the total weight of the elements in the cache.
 	 */
-	public String getCacheName() {
-		return cacheName;
+	public long getWeightedSize() {
+		synchronized (this) {
+			return weightedSize;
+		}
 	}
 
 	/**
-	 * Sets the name for the cache.
+	 * Returns the number of elements evicted from the cache, either because
+	 * the cache was full or by <code>freeElements</code>.
 	 * 
-	 * @param cacheName the name for the cache.
+	 * @return the number of elements evicted from the cache.
 	 */
-	public void setCacheName(String cacheName) {
-		this.cacheName = cacheName;
+	public long getEvictionCount() {
+		synchronized (this) {
+			return evictionCount;
+		}
 	}
 
 	/**
-	 * Returns the attributes of the elements for tracking their life in the cache.
+	 * Returns the current size of the cache.
 	 * 
-	 * @return the attributes of the elements for tracking their life in the cache.
+	 * @return the size of the cache.
 	 */
-	public CacheElementAttributes getAttributes() {
-		return attributes;
+	public int getSize() {
+		synchronized (this) {
+			return cacheMap.size();
+		}
 	}
 
 	/**
-	 * Sets the attributes of the elements for tracking their life in the cache.
+	 * Returns the number of evicted elements in the overflow log.
 	 * 
-	 * @param attributes the attributes of the elements for tracking their life in the cache.
+	 * @return the number of elements on disk, 0 without an overflow
+	 *         directory.
 	 */
-	public void setAttributes(CacheElementAttributes attributes) {
-		this.attributes = attributes;
+	public int getOverflowSize() {
+		DiskOverflowStore store;
+		synchronized (this) {
+			store = overflowStore;
+		}
+		return store == null ? 0 : store.getSize();
 	}
 
 	/**
-	 * Returns the current size of the cache.
+	 * Determines if the elements are kept on the Java heap, which is not the
+	 * case with an overflow directory, as a miss may read the disk.
 	 * 
-	 * @return the size of the cache.
+	 * @return true if the cache does not overflow to disk.
 	 */
-	public int getSize() {
-		synchronized (this) {
-			return cacheMap.size();
-		}
+	boolean isHeapResident() {
+		return getCacheAttributes().getOverflowDirectory() == null;
 	}
 
 	/**
@@ -110,26 +156,118 @@ public class LRUMemoryCache implements MemoryCache, Serializable {
 		boolean removed = false;
 
 		synchronized (this) {
-			// remove the cache item
-			CacheElement ce = (CacheElement) cacheMap.remove(key);
+			removed = removeElement(key);
+		}
+
+		if (removed) {
+			getStatsCounter().recordRemoval();
+		}
+		return removed;
+	}
 
-			if (ce != null) {
-				// Update list
-				cacheList.remove(key);
-				removed = true;
+	/**
+	 * Removes the cached objects with the specified keys, under a single
+	 * acquisition of the lock.
+	 * 
+	 * @param keys The keys for the objects to be removed from the cache.
+	 * @return the number of objects removed.
+	 * @exception IOException Error when removing the objects from the cache.
+	 */
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		int removed = 0;
+
+		synchronized (this) {
+			for (Serializable key : keys) {
+				if (removeElement(key)) {
+					removed++;
+				}
 			}
 		}
 
+		getStatsCounter().recordRemovals(removed);
 		return removed;
 	}
 
+	/**
+	 * Removes the element with the specified key. Must be called while
+	 * holding the lock of the cache.
+	 * 
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 */
+	private boolean removeElement(Serializable key) {
+		// remove the cache item
+		CacheElement ce = cacheMap.remove(key);
+		boolean overflowed = overflowStore != null
+				&& overflowStore.remove(key);
+		// an element being taken back from the log is not put back
+		if (taking != null) {
+			taking.remove(key);
+		}
+
+		if (ce != null) {
+			// Update list
+			unlinkElement(ce);
+			return true;
+		}
+		return overflowed;
+	}
+
 	/**
      * Removes all cached items from the cache.
      * @exception IOException Error when removing all objects from the cache.
 	 */
 	public void removeAll() throws IOException {
-		cacheMap.clear();
-		cacheList.clear();
+		synchronized (this) {
+			cacheMap.clear();
+			cacheList.clear();
+			timerWheel.clear();
+			weightedSize = 0;
+			taking = null;
+			if (overflowStore != null) {
+				overflowStore.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the last access time of the least recently used object.
+	 * 
+	 * @return the last access time, or Long.MAX_VALUE if the cache is empty.
+	 */
+	long getLeastRecentAccessTime() {
+		synchronized (this) {
+			CacheElement last = cacheList.getLast();
+			return last == null ? Long.MAX_VALUE : last.getLastAccessTime();
+		}
+	}
+
+	/**
+	 * Returns the elements of the cache from the least to the most recently
+	 * used one.
+	 * 
+	 * @return the elements of the cache.
+	 */
+	List<CacheElement> getElementsInAccessOrder() {
+		synchronized (this) {
+			List<CacheElement> elements = new ArrayList<CacheElement>(cacheMap
+					.size());
+			cacheList.addLeastRecentFirst(elements);
+			return elements;
+		}
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, which reads a page of
+	 * keys at a time under the lock of the cache. The keys of the
+	 * elements on disk are not returned.
+	 *
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(int pageSize) {
+		return cacheMap.keys(this, pageSize);
 	}
 
 	/**
@@ -141,46 +279,71 @@ public class LRUMemoryCache implements MemoryCache, Serializable {
 	 */
 	public int freeElements(int numberToFree) throws IOException {
 		int freed = 0;
+		List<CacheElement> evicted;
 		for (; freed < numberToFree; freed++) {
 			synchronized (this) {
-				Serializable lastKey = cacheList.getLast();
+				CacheElement last = cacheList.getLast();
 
-				if (lastKey != null) {
+				if (last != null) {
 					// remove the cache item
-					cacheMap.remove(lastKey);
-					cacheList.removeLast();
+					cacheMap.remove(last.getKey());
+					unlinkElement(last);
+					overflow(last);
+					evictionCount++;
 				} else {
 					// no more item in the cache
 					break;
 				}
 			}
 		}
+		synchronized (this) {
+			evicted = takeOverflowed();
+		}
+		writeOverflowed(evicted);
+		getStatsCounter().recordEvictions(freed);
 		return freed;
 	}
 
 	/**
-	 * This will clean up the cache to remove objects that TTL has been expired.
+	 * This will clean up the cache to remove objects that TTL has been expired,
+	 * and evict the elements a burst of puts left over the cache limits. Only
+	 * the elements the timer wheel finds due are looked at.
 	 * 
 	 * @exception IOException Error when retrieving object from the cache.
 	 */
 	public void cleanup() throws IOException {
-		CacheElement ce = null;
-		Serializable key;
+		cleanup(Integer.MAX_VALUE);
+	}
 
-		synchronized (cacheMap) {
-			Set<Serializable> keys = cacheMap.keySet();
-			for (Iterator<Serializable> i = keys.iterator(); i.hasNext(); ) {
-				key = i.next();
-				ce = cacheMap.get(key);
-	
-				// Check if the cache has been expired
-				if (ce == null || isExpired(ce)) {
-					// The TTL for this element has been expired, remove from cache
-					i.remove(); 
-					cacheList.remove(key);
-				}
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		DiskOverflowStore store;
+		List<CacheElement> evicted;
+		boolean done;
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			List<CacheElement> expired = timerWheel.advance(
+					currentTimeMillis(), maxToRemove);
+			for (CacheElement ce : expired) {
+				// The TTL for this element has been expired, remove from cache
+				cacheMap.removeElement(ce);
+				unlinkElement(ce);
+				getStatsCounter().recordExpiration();
 			}
+
+			int maxToEvict = maxToRemove - expired.size();
+			done = !timerWheel.hasOverdue()
+					&& evictOverflow(maxToEvict) < maxToEvict;
+			CacheEvents.lockHeld(getCacheName(), "cleanup", held);
+			store = overflowStore;
+			evicted = takeOverflowed();
+		}
+		writeOverflowed(evicted);
+
+		// compact the log without holding the lock of the cache
+		if (store != null && store.needsCompaction()) {
+			store.compact(currentTimeMillis());
 		}
+		return done;
 	}
 
 	/**
@@ -191,122 +354,443 @@ public class LRUMemoryCache implements MemoryCache, Serializable {
 	 * @exception IOException Error when retrieving object from the cache.
 	 */
 	public CacheElement get(Serializable key) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
 		CacheElement ce = null;
+		DiskOverflowStore store = null;
+		List<CacheElement> evicted;
 
-		synchronized (cacheMap) {
-			ce = (CacheElement) cacheMap.get(key);
+		synchronized (this) {
+			ce = access(key, statsCounter);
+			if (ce == null) {
+				store = startTake(key);
+			}
+			evicted = takeOverflowed();
+		}
+		writeOverflowed(evicted);
+
+		if (store != null) {
+			ce = takeBack(store, Collections.singletonList(key),
+					statsCounter).get(key);
+		}
+		statsCounter.recordGet(start, ce != null);
+		return ce;
+	}
+
+	/**
+	 * Returns the cached objects for the specified keys, under a single
+	 * acquisition of the lock.
+	 * 
+	 * @param keys the keys for the objects to be retrieved.
+	 * @return The cached objects found, by key, in the order of the keys.
+	 * @exception IOException Error when retrieving the objects from the cache.
+	 */
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		Map<Serializable, CacheElement> found = new LinkedHashMap<Serializable, CacheElement>();
+		List<Serializable> missing = new ArrayList<Serializable>();
+		DiskOverflowStore store = null;
+		int hits = 0;
+		List<CacheElement> evicted;
 
-			if (ce != null) {
-				// Check if the cache has been expired
-				if (!isExpired(ce)) {
-					// The cache for this item has not been expired, update access time for this element
-					ce.setLastAccessTimeNow();
-					makeFirst(key);
+		synchronized (this) {
+			for (Serializable key : keys) {
+				CacheElement ce = access(key, statsCounter);
+				if (ce != null) {
+					found.put(key, ce);
+					hits++;
+				} else if (startTake(key) != null) {
+					// keep the place of the key in the order of the keys
+					found.put(key, null);
+					missing.add(key);
+					store = overflowStore;
+				}
+			}
+			evicted = takeOverflowed();
+		}
+		writeOverflowed(evicted);
+
+		if (!missing.isEmpty()) {
+			Map<Serializable, CacheElement> taken = takeBack(store, missing,
+					statsCounter);
+			for (Serializable key : missing) {
+				CacheElement ce = taken.get(key);
+				if (ce != null) {
+					found.put(key, ce);
+					hits++;
 				} else {
-					// The cache for this element has been expired, remove from cache
-					cacheMap.remove(key);
-					cacheList.remove(key);
-					ce = null;
+					found.remove(key);
 				}
 			}
 		}
+		statsCounter.recordGets(hits, keys.size() - hits);
+		return found;
+	}
 
+	/**
+	 * Returns the element with the specified key and records the access to
+	 * it, or removes it if it is expired. The overflow log is not read, see
+	 * <code>takeBack</code>. Must be called while holding the lock of the
+	 * cache.
+	 * 
+	 * @param key the key for the object to be retrieved.
+	 * @param statsCounter The counters of the cache.
+	 * @return The cached object, or null if not found or expired.
+	 */
+	private CacheElement access(Serializable key, CacheStatsCounter statsCounter) {
+		CacheElement ce = cacheMap.get(key);
+		// a single read of the clock for the expiry and the access time
+		long now = currentTimeMillis();
+
+		if (ce != null) {
+			// Check if the cache has been expired
+			if (!isExpired(ce, now)) {
+				// The cache for this item has not been expired, update access time for this element
+				ce.touch(now);
+				ce.expireAfterRead(ce.getValue(), now);
+				makeFirst(ce);
+			} else {
+				// The cache for this element has been expired, remove from cache
+				cacheMap.remove(key);
+				unlinkElement(ce);
+				statsCounter.recordExpiration();
+				ce = null;
+			}
+		}
 		return ce;
 	}
 
 	/**
-	 * Constructs a cache element and puts it into the cache.
-	 * <p>
-	 * If the key or the value is null, and InvalidArgumentException is thrown.
-	 * </p>
+	 * Marks a key missing from the cache to be taken back from the overflow
+	 * log, unless another thread is taking it back already. Must be called
+	 * while holding the lock of the cache.
 	 * 
-	 * @param key The key for the object to be cached.
-	 * @param val The object to be cached.
+	 * @param key The key missing from the cache.
+	 * @return the overflow log to take the key from, or null if none.
 	 */
-	public void put(Object key, Object val) throws IOException {
-		if (key == null) {
-			throw new IOException("Key must not be null");
-		} else if (val == null) {
-			throw new IOException("Value must not be null");
+	private DiskOverflowStore startTake(Serializable key) {
+		if (overflowStore == null) {
+			return null;
+		}
+		if (taking == null) {
+			taking = new HashSet<Serializable>();
 		}
+		return taking.add(key) ? overflowStore : null;
+	}
 
-		// Create the element and update
+	/**
+	 * Takes the elements of the keys marked by <code>startTake</code> out of
+	 * the overflow log without holding the lock of the cache, then puts them
+	 * back into the cache under a single acquisition of the lock. A key put
+	 * or removed in the meantime is looked up in the cache instead, as its
+	 * element on disk is stale.
+	 * 
+	 * @param store The overflow log.
+	 * @param keys The keys marked to be taken back.
+	 * @param statsCounter The counters of the cache.
+	 * @return the elements found, by key.
+	 * @exception IOException Error when reading or writing the overflow log.
+	 */
+	private Map<Serializable, CacheElement> takeBack(DiskOverflowStore store,
+			List<Serializable> keys, CacheStatsCounter statsCounter)
+			throws IOException {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		long now = currentTimeMillis();
+		List<CacheElement> taken = new ArrayList<CacheElement>(keys.size());
+		int[] weights = new int[keys.size()];
+		IOException failure = null;
 		try {
-			CacheElement ce = new CacheElement(cacheName, (Serializable) key,
-					(Serializable) val);
-			ce.setMaxIdleTimeSeconds(attributes.getMaxIdleTimeSeconds());
-			ce.setMaxLifeSeconds(attributes.getMaxLifeSeconds());
-			update(ce);
-		} catch (Exception e) {
-			log.log(Level.WARNING, e.getMessage());
-			throw new IOException(e);
+			for (Serializable key : keys) {
+				CacheElement ce = store.take(key, this, now);
+				if (ce != null) {
+					ce = adopt(ce);
+					weights[taken.size()] = cacheAttributes.weigh(key, ce
+							.getValue());
+					ce.touch(now);
+				}
+				taken.add(ce);
+			}
+		} catch (IOException e) {
+			// the keys not read yet are unmarked below
+			failure = e;
 		}
+
+		Map<Serializable, CacheElement> found = new LinkedHashMap<Serializable, CacheElement>();
+		List<CacheElement> evicted;
+		synchronized (this) {
+			for (int i = 0; i < keys.size(); i++) {
+				Serializable key = keys.get(i);
+				CacheElement ce = i < taken.size() ? taken.get(i) : null;
+				if (taking == null || !taking.remove(key)) {
+					ce = access(key, statsCounter);
+				} else if (ce != null) {
+					insert(ce, weights[i], cacheAttributes);
+				}
+				if (ce != null) {
+					found.put(key, ce);
+				}
+			}
+			evicted = takeOverflowed();
+		}
+		writeOverflowed(evicted);
+
+		if (failure != null) {
+			throw failure;
+		}
+		return found;
 	}
 
 	/**
-	 * Updates the cached object.
+	 * Updates the cached object. An element held by another cache is copied,
+	 * as an element is linked by a single cache.
 	 * 
 	 * @param ce The cached object to be updated.
 	 * @exception IOException Error when updating the cache.
 	 */
 	public void update(CacheElement ce) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		ce = adopt(ce);
+		// weigh the element before taking the lock
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int weight = cacheAttributes.weigh(ce.getKey(), ce.getValue());
 		// update access time
-		ce.setLastAccessTimeNow();
+		ce.touch(currentTimeMillis());
+		List<CacheElement> evicted;
 		synchronized (this) {
-			Serializable key = ce.getKey();
-			// update object in the map
-			cacheMap.put(key, ce);
-			// update cache list
-			makeFirst(key);
+			insert(ce, weight, cacheAttributes);
+			evicted = takeOverflowed();
 		}
+		writeOverflowed(evicted);
+		statsCounter.recordPut(start);
 	}
 
-	/** 
-	 * Moves the cached object with the specified key to the top of the list.
+	/**
+	 * Puts a number of objects into the cache, under a single acquisition of
+	 * the lock.
 	 * 
-	 * @param key The key of the object that is the most recently accessed. 
+	 * @param map The objects to be put into cache, by key.
+	 * @exception IOException Error when adding the objects to the cache.
 	 */
-	private void makeFirst(Serializable key) {
-		if (cacheList.isEmpty()) {
-			// the cache is empty, add to cache
-			cacheList.addFirst(key);
-		} else {
-			Serializable first = cacheList.getFirst();
-			if (!first.equals(key)) {
-				// remove the previous occurrences of the key from the list
-				cacheList.remove(key);
-				// add cache element to the top of the list
-				cacheList.addFirst(key);
+	public void putAll(Map<?, ?> map) throws IOException {
+		updateAll(createElements(map));
+	}
+
+	/**
+	 * Updates a number of cached objects, under a single acquisition of the
+	 * lock. The elements are weighed before taking the lock, and the ones
+	 * held by another cache are replaced by copies in the list.
+	 * 
+	 * @param elements The cached objects to be updated.
+	 * @exception IOException Error when writing the overflow log.
+	 */
+	void updateAll(List<CacheElement> elements) throws IOException {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int[] weights = new int[elements.size()];
+		long now = currentTimeMillis();
+		for (int i = 0; i < weights.length; i++) {
+			CacheElement ce = adopt(elements.get(i));
+			elements.set(i, ce);
+			weights[i] = cacheAttributes.weigh(ce.getKey(), ce.getValue());
+			ce.touch(now);
+		}
+		List<CacheElement> evicted;
+		synchronized (this) {
+			for (int i = 0; i < weights.length; i++) {
+				insert(elements.get(i), weights[i], cacheAttributes);
+			}
+			evicted = takeOverflowed();
+		}
+		writeOverflowed(evicted);
+		getStatsCounter().recordPuts(weights.length);
+	}
+
+	/**
+	 * Puts an element into the map and at the top of the list, and evicts a
+	 * bounded batch of elements if the cache is full. Must be called while
+	 * holding the lock of the cache.
+	 * 
+	 * @param ce The cached object to be updated.
+	 * @param weight The weight of the element.
+	 * @param cacheAttributes The attributes bounding the size of the cache.
+	 * @exception IOException Error when writing the overflow log.
+	 */
+	private void insert(CacheElement ce, int weight,
+			CacheAttributes cacheAttributes) throws IOException {
+		// update object in the map
+		CacheElement old = cacheMap.put(ce);
+		if (old != null) {
+			// the element is replaced, drop the old one from the list
+			unlinkElement(old);
+			expireAfterUpdate(ce, old);
+		} else if (overflowStore != null) {
+			// the element on disk, if any, is stale
+			overflowStore.remove(ce.getKey());
+		}
+		if (taking != null) {
+			taking.remove(ce.getKey());
+		}
+		ce.weight = weight;
+		weightedSize += weight;
+		// update cache list and expiry
+		makeFirst(ce);
+		timerWheel.schedule(ce);
+		// evict a bounded batch of elements if the cache is full
+		evictOverflow(cacheAttributes.getMaxEvictionsPerPut());
+	}
+
+	/**
+	 * Removes the least recently used elements while the cache is over its
+	 * limits. Must be called while holding the lock of the cache.
+	 * 
+	 * @param maxToEvict The maximum number of elements to be evicted.
+	 * @return The number of elements evicted.
+	 * @exception IOException Error when writing the overflow log.
+	 */
+	private int evictOverflow(int maxToEvict) throws IOException {
+		int evicted = 0;
+		while (evicted < maxToEvict && isOverflowing()) {
+			CacheElement last = cacheList.getLast();
+			if (last == null) {
+				break;
 			}
+			cacheMap.remove(last.getKey());
+			unlinkElement(last);
+			overflow(last);
+			evicted++;
 		}
+		evictionCount += evicted;
+		getStatsCounter().recordEvictions(evicted);
+		return evicted;
 	}
 
 	/**
-	 * Determines if the element has exceeded its max life.
-	 * <p>
+	 * Stages an evicted element in the overflow log, opening the log on the
+	 * first eviction, and queues it to be written once the lock is released.
+	 * The log is closed if the overflow directory has been unset. Must be
+	 * called while holding the lock of the cache.
 	 * 
-	 * @param ce The object to be checked.
-	 * @return true if the element is expired, else false.
+	 * @param ce The element evicted from the cache.
+	 * @exception IOException Error when opening the overflow log.
 	 */
-	private boolean isExpired(CacheElement ce) {
-		long now = System.currentTimeMillis();
+	private void overflow(CacheElement ce) throws IOException {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		File directory = cacheAttributes.getOverflowDirectory();
+		if (directory == null) {
+			if (overflowStore != null) {
+				overflowStore.close();
+				overflowStore = null;
+			}
+			return;
+		}
+		if (overflowStore == null) {
+			directory.mkdirs();
+			overflowStore = new DiskOverflowStore(CacheSnapshot.fileOf(
+					directory, getCacheName(), DiskOverflowStore.SUFFIX),
+					cacheAttributes.getMaxOverflowBytes());
+		} else {
+			overflowStore.setCapacity(cacheAttributes.getMaxOverflowBytes());
+		}
+		overflowStore.stage(ce);
+		if (overflowed == null) {
+			overflowed = new ArrayList<CacheElement>();
+		}
+		overflowed.add(ce);
+	}
 
-		// Remove if maxLifeSeconds exceeded
-		long maxLifeSeconds = ce.getMaxLifeSeconds();
-		long createTime = ce.getCreateTime();
+	/**
+	 * Takes the elements staged by the evictions of an operation. Must be
+	 * called while holding the lock of the cache.
+	 * 
+	 * @return the staged elements, or null if none.
+	 */
+	private List<CacheElement> takeOverflowed() {
+		List<CacheElement> evicted = overflowed;
+		overflowed = null;
+		return evicted;
+	}
 
-		if (maxLifeSeconds != -1
-				&& ((now - createTime) > (maxLifeSeconds * 1000))) {
-			return true;
+	/**
+	 * Writes the staged elements to the overflow log, without holding the
+	 * lock of the cache. An element taken back or removed in the meantime is
+	 * no longer staged and is skipped.
+	 * 
+	 * @param evicted The staged elements, or null if none.
+	 * @exception IOException Error when writing the overflow log.
+	 */
+	private void writeOverflowed(List<CacheElement> evicted)
+			throws IOException {
+		if (evicted == null) {
+			return;
+		}
+		DiskOverflowStore store;
+		synchronized (this) {
+			store = overflowStore;
+		}
+		if (store == null) {
+			return;
 		}
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		long now = currentTimeMillis();
+		for (CacheElement ce : evicted) {
+			store.writeStaged(ce, cacheAttributes, now);
+		}
+	}
 
-		// Remove if maxIdleTime exceeded
-		long idleTime = ce.getMaxIdleTimeSeconds();
-		long lastAccessTime = ce.getLastAccessTime();
-		if ((idleTime != -1) && ((now - lastAccessTime) > (idleTime * 1000))) {
+	/**
+	 * Determines if the cache is over the limits of its attributes.
+	 * 
+	 * @return true if the cache holds too many elements or too much weight.
+	 */
+	private boolean isOverflowing() {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int maxEntries = cacheAttributes.getMaxEntries();
+		if (maxEntries >= 0 && cacheMap.size() > maxEntries) {
 			return true;
 		}
-		return false;
+		long maxWeight = cacheAttributes.getMaxWeight();
+		return maxWeight >= 0 && weightedSize > maxWeight;
+	}
+
+	/**
+	 * Removes the element from the list and its weight from the cache. The
+	 * caller removes the element from the map.
+	 * 
+	 * @param ce The element that has been removed from the cache.
+	 */
+	private void unlinkElement(CacheElement ce) {
+		timerWheel.deschedule(ce);
+		if (cacheList.remove(ce)) {
+			weightedSize -= ce.weight;
+		}
+	}
+
+	/** 
+	 * Moves the cached object to the top of the list. This takes constant
+	 * time as the element carries its own links.
+	 * 
+	 * @param ce The object that is the most recently accessed. 
+	 */
+	private void makeFirst(CacheElement ce) {
+		cacheList.moveToFirst(ce);
+	}
+
+	/**
+	 * Recreates the timer wheel, which is not serialized.
+	 * 
+	 * @param in The stream to read from.
+	 * @throws IOException Error when reading the cache.
+	 * @throws ClassNotFoundException Class of an element cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		timerWheel = new TimerWheel(currentTimeMillis());
+		for (CacheElement ce : cacheMap) {
+			ce.claim(this);
+			timerWheel.schedule(ce);
+		}
 	}
 
 }
@@ -0,0 +1,179 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <code>LatencyHistogram</code> counts latencies in nanoseconds, in the
+ * buckets of a high dynamic range histogram: the values below 64 have a
+ * bucket each, and every power of two above is split into 32 buckets, so a
+ * percentile is within about 3% of the recorded value whatever its
+ * magnitude. Recording increments a bucket without locking or allocating.
+ * <p>
+ * The histograms returned by <code>CacheStats</code> are copies, which do
+ * not change any more.
+ * </p>
+ */
+public final class LatencyHistogram implements Serializable {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** log2 of the number of buckets a power of two is split into. */
+	private static final int SUB_BUCKET_BITS = 5;
+
+	/** The number of buckets a power of two is split into. */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The number of buckets, enough for any positive long. */
+	private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS);
+
+	/** The number of values recorded in each bucket. */
+	private final AtomicLongArray counts;
+
+	/** The sum of the values recorded, for the mean. */
+	private final LongAdder total;
+
+	/**
+	 * Constructs an empty histogram.
+	 */
+	LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		total = new LongAdder();
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos The latency in nanoseconds, negative values count as 0.
+	 */
+	void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		counts.incrementAndGet(bucketOf(value));
+		total.add(value);
+	}
+
+	/**
+	 * Returns a copy of the histogram.
+	 *
+	 * @return the copy.
+	 */
+	LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; i++) {
+			copy.counts.set(i, counts.get(i));
+		}
+		copy.total.add(total.sum());
+		return copy;
+	}
+
+	/**
+	 * Returns the number of latencies recorded.
+	 *
+	 * @return the number of latencies.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the mean of the latencies recorded.
+	 *
+	 * @return the mean in nanoseconds, 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.sum() / count;
+	}
+
+	/**
+	 * Returns the highest latency recorded, rounded up to its bucket.
+	 *
+	 * @return the maximum in nanoseconds, 0 if nothing was recorded.
+	 */
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return highestValueOf(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the latency at a percentile: the percentage of the latencies
+	 * recorded are lower or equal, within the precision of the buckets.
+	 *
+	 * @param percentile The percentile, from 0 to 100, e.g. 99.9.
+	 * @return the latency in nanoseconds, 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(Math.min(percentile, 100) / 100 * count);
+		rank = Math.max(rank, 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return highestValueOf(i);
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Returns the index of the bucket of a value.
+	 *
+	 * @param value The value, not negative.
+	 * @return the index of the bucket.
+	 */
+	static int bucketOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS * (shift + 1) + (int) (value >>> shift)
+				- SUB_BUCKETS;
+	}
+
+	/**
+	 * Returns the highest value counted in a bucket.
+	 *
+	 * @param bucket The index of the bucket.
+	 * @return the highest value of the bucket.
+	 */
+	static long highestValueOf(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long first = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+		return first + (1L << shift) - 1;
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return String info about the percentiles.
+	 */
+	public String toString() {
+		StringBuffer str = new StringBuffer();
+
+		str.append("Count = ").append(getCount());
+		str.append(", p50 = ").append(getValueAtPercentile(50)).append("ns");
+		str.append(", p99 = ").append(getValueAtPercentile(99)).append("ns");
+		str.append(", p999 = ").append(getValueAtPercentile(99.9)).append("ns");
+		str.append(", Max = ").append(getMax()).append("ns");
+
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,586 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * <code>LoadingMemoryCache</code> reads through a cache: on a miss, the value
+ * is computed by a <code>CacheLoader</code> and put into the cache. The
+ * concurrent misses on a key share a single load, so a popular key that
+ * expires is loaded once, not by every caller at the same time.
+ * <p>
+ * The loads in flight are futures by key. The first caller to miss a key
+ * loads it, in its own thread for {@link #get(Serializable, CacheLoader)} or
+ * on the executor of the cache for {@link #getAsync(Serializable, CacheLoader)};
+ * the other callers wait for the same future. A failed load is reported to
+ * all of them, and the next miss loads again. The executor can be any
+ * <code>Executor</code>, e.g. one starting a virtual thread per load on a
+ * JVM that has them.
+ * </p>
+ * <p>
+ * {@link #getAll(Collection, CacheLoader)} reads a number of keys at once,
+ * and loads the keys missed and not already being loaded with a single call
+ * to {@link CacheLoader#loadAll(Collection)}.
+ * </p>
+ * <p>
+ * An element given a refresh age by its attributes is reloaded on the
+ * executor when a read finds it older; the read returns the current value
+ * without waiting, and the reload replaces the element when it completes,
+ * unless the element has been replaced or removed meanwhile. A hot key
+ * refreshed before its max life is never missed, so its readers never wait
+ * for a load. A reload finding no value removes the element. A failed
+ * reload keeps the current value, and the key is not reloaded again before
+ * another refresh age has passed.
+ * </p>
+ * <p>
+ * The other operations are those of the cache read through. A key removed
+ * or put while it is being loaded on a miss gets the loaded value when the
+ * load completes, while a refresh leaves it as it is.
+ * </p>
+ * <p>
+ * Get the loading cache of a named cache with
+ * {@link InMemoryCache#getLoadingCache(String)}, so all callers share its
+ * loads.
+ * </p>
+ */
+public class LoadingMemoryCache implements MemoryCache {
+
+	/** The cache read through */
+	private final MemoryCache cache;
+
+	/** The loads in flight, by key */
+	private final ConcurrentHashMap<Serializable, CompletableFuture<Serializable>> loads = new ConcurrentHashMap<Serializable, CompletableFuture<Serializable>>();
+
+	/** The executor of the asynchronous loads */
+	private volatile Executor executor = ForkJoinPool.commonPool();
+
+	/**
+	 * Lock held shared by the writes through this cache, and exclusively by a
+	 * refresh checking the element it started from before replacing it
+	 */
+	private final ReadWriteLock refreshLock = new ReentrantReadWriteLock();
+
+	/** The times the last refresh of a key failed, by key */
+	private final ConcurrentHashMap<Serializable, Long> failedRefreshes = new ConcurrentHashMap<Serializable, Long>();
+
+	/**
+	 * Constructs a <code>LoadingMemoryCache</code> reading through a cache.
+	 *
+	 * @param cache The cache read through.
+	 */
+	protected LoadingMemoryCache(MemoryCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the cache read through.
+	 *
+	 * @return the cache.
+	 */
+	public MemoryCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Returns the executor of the asynchronous loads.
+	 *
+	 * @return the executor.
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Sets the executor of the asynchronous loads, the common fork join pool
+	 * by default.
+	 *
+	 * @param executor the executor.
+	 */
+	public void setExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor must not be null");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the cached value of a key, loading it on a miss. If the key is
+	 * already being loaded, waits for that load instead of starting another.
+	 * If the element is due for a refresh, returns its value and reloads it
+	 * on the executor.
+	 *
+	 * @param key The key of the value.
+	 * @param loader Computes the value on a miss.
+	 * @return the value, or null if the loader found none.
+	 * @exception IOException Error when accessing the cache, or the load
+	 *                failed.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V extends Serializable> V get(Serializable key,
+			CacheLoader<V> loader) throws IOException {
+		CacheElement ce = cache.get(key);
+		if (ce != null) {
+			refreshIfDue(ce, loader);
+			return (V) ce.getValue();
+		}
+
+		CompletableFuture<Serializable> load = new CompletableFuture<Serializable>();
+		CompletableFuture<Serializable> inFlight = loads.putIfAbsent(key, load);
+		if (inFlight == null) {
+			load(key, loader, load);
+			inFlight = load;
+		}
+
+		return (V) join(key, inFlight);
+	}
+
+	/**
+	 * Returns the cached values of a number of keys, loading the keys missed
+	 * with a single call to the loader. The keys already being loaded are
+	 * waited for instead. The elements due for a refresh are reloaded on the
+	 * executor.
+	 *
+	 * @param keys The keys of the values.
+	 * @param loader Computes the values missed.
+	 * @return the values, by key, in the order of the keys. The keys the
+	 *         loader found no value for are left out.
+	 * @exception IOException Error when accessing the cache, or a load
+	 *                failed.
+	 */
+	@SuppressWarnings("unchecked")
+	public <V extends Serializable> Map<Serializable, V> getAll(
+			Collection<? extends Serializable> keys, CacheLoader<V> loader)
+			throws IOException {
+		Map<Serializable, CacheElement> cached = cache.getAll(keys);
+		Map<Serializable, CompletableFuture<Serializable>> inFlight = new HashMap<Serializable, CompletableFuture<Serializable>>();
+		Map<Serializable, CompletableFuture<Serializable>> toLoad = new LinkedHashMap<Serializable, CompletableFuture<Serializable>>();
+		for (Serializable key : keys) {
+			CacheElement ce = cached.get(key);
+			if (ce != null) {
+				refreshIfDue(ce, loader);
+			} else if (!inFlight.containsKey(key) && !toLoad.containsKey(key)) {
+				CompletableFuture<Serializable> load = new CompletableFuture<Serializable>();
+				CompletableFuture<Serializable> other = loads.putIfAbsent(key,
+						load);
+				if (other == null) {
+					toLoad.put(key, load);
+				} else {
+					inFlight.put(key, other);
+				}
+			}
+		}
+		if (!toLoad.isEmpty()) {
+			loadAll(toLoad, loader);
+			inFlight.putAll(toLoad);
+		}
+
+		Map<Serializable, V> values = new LinkedHashMap<Serializable, V>();
+		for (Serializable key : keys) {
+			CacheElement ce = cached.get(key);
+			Serializable value = ce != null ? ce.getValue() : join(key,
+					inFlight.get(key));
+			if (value != null) {
+				values.put(key, (V) value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Waits for the load of a key.
+	 *
+	 * @param key The key being loaded.
+	 * @param load The future of the load.
+	 * @return the value loaded, or null if the loader found none.
+	 * @exception IOException The load failed, or the thread was interrupted.
+	 */
+	private Serializable join(Serializable key,
+			CompletableFuture<Serializable> load) throws IOException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading key "
+					+ key);
+		} catch (ExecutionException e) {
+			throw new IOException("Loading key " + key + " failed", e
+					.getCause());
+		}
+	}
+
+	/**
+	 * Returns the cached value of a key, loading it on the executor of the
+	 * cache on a miss. If the key is already being loaded, the future
+	 * completes with that load. If the element is due for a refresh, the
+	 * future completes with its current value and the element is reloaded.
+	 *
+	 * @param key The key of the value.
+	 * @param loader Computes the value on a miss.
+	 * @return the future value, null if the loader found none.
+	 */
+	public <V extends Serializable> CompletableFuture<V> getAsync(
+			final Serializable key, final CacheLoader<V> loader) {
+		CompletableFuture<Serializable> inFlight;
+		try {
+			CacheElement ce = cache.get(key);
+			if (ce != null) {
+				refreshIfDue(ce, loader);
+				inFlight = CompletableFuture.completedFuture(ce.getValue());
+				return inFlight.thenApply(this.<V> valueCast());
+			}
+		} catch (IOException e) {
+			CompletableFuture<V> failed = new CompletableFuture<V>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		// every caller gets its own future, so cancelling it does not cancel
+		// the load shared with the others
+		return loadAsync(key, loader).thenApply(this.<V> valueCast());
+	}
+
+	/**
+	 * Returns the current time of the ticker of the cache.
+	 *
+	 * @return the current time in milliseconds.
+	 */
+	private long currentTimeMillis() {
+		return cache instanceof AbstractMemoryCache ? ((AbstractMemoryCache) cache)
+				.currentTimeMillis()
+				: System.currentTimeMillis();
+	}
+
+	/**
+	 * Reloads an element on the executor if it is due for a refresh, unless
+	 * its key is already being loaded, or its last refresh failed less than
+	 * a refresh age ago.
+	 *
+	 * @param ce The element read.
+	 * @param loader Computes the new value.
+	 */
+	private void refreshIfDue(CacheElement ce, CacheLoader<?> loader) {
+		long refreshAfterSeconds = ce.getRefreshAfterSeconds();
+		long now = currentTimeMillis();
+		if (refreshAfterSeconds == -1 || !ce.isRefreshDue(now)) {
+			return;
+		}
+		Serializable key = ce.getKey();
+		Long failed = failedRefreshes.get(key);
+		if (failed != null) {
+			if (now - failed.longValue() < refreshAfterSeconds * 1000) {
+				return;
+			}
+			failedRefreshes.remove(key, failed);
+		}
+		loadAsync(key, loader, ce);
+	}
+
+	/**
+	 * Starts loading a key on the executor, unless it is already being
+	 * loaded.
+	 *
+	 * @param key The key of the value.
+	 * @param loader Computes the value.
+	 * @return the future of the load in flight for the key.
+	 */
+	private CompletableFuture<Serializable> loadAsync(Serializable key,
+			CacheLoader<?> loader) {
+		return loadAsync(key, loader, null);
+	}
+
+	/**
+	 * Starts loading a key on the executor, or refreshing its element,
+	 * unless it is already being loaded.
+	 *
+	 * @param key The key of the value.
+	 * @param loader Computes the value.
+	 * @param refreshed The element to be refreshed, or null for a miss.
+	 * @return the future of the load in flight for the key.
+	 */
+	private CompletableFuture<Serializable> loadAsync(final Serializable key,
+			final CacheLoader<?> loader, final CacheElement refreshed) {
+		final CompletableFuture<Serializable> load = new CompletableFuture<Serializable>();
+		CompletableFuture<Serializable> inFlight = loads.putIfAbsent(key, load);
+		if (inFlight != null) {
+			return inFlight;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (refreshed == null) {
+						load(key, loader, load);
+					} else {
+						refresh(refreshed, loader, load);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			loads.remove(key, load);
+			load.completeExceptionally(e);
+		}
+		return load;
+	}
+
+	/**
+	 * Loads a key and puts its value into the cache, then completes the
+	 * future of the load.
+	 *
+	 * @param key The key of the value.
+	 * @param loader Computes the value.
+	 * @param load The future of the load, registered for the key.
+	 */
+	private void load(Serializable key, CacheLoader<?> loader,
+			CompletableFuture<Serializable> load) {
+		long start = System.nanoTime();
+		try {
+			Serializable value = loader.load(key);
+			if (value != null) {
+				cache.put(key, value);
+			}
+			recordLoad(System.nanoTime() - start, value != null);
+			loads.remove(key, load);
+			load.complete(value);
+		} catch (Throwable e) {
+			recordLoad(System.nanoTime() - start, false);
+			loads.remove(key, load);
+			load.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Reloads an element due for a refresh and replaces it, or removes it if
+	 * the loader finds no value, unless the element has been replaced or
+	 * removed since the refresh started. Then completes the future of the
+	 * load. A failed reload keeps the element.
+	 *
+	 * @param ce The element to be refreshed.
+	 * @param loader Computes the new value.
+	 * @param load The future of the load, registered for the key.
+	 */
+	private void refresh(CacheElement ce, CacheLoader<?> loader,
+			CompletableFuture<Serializable> load) {
+		Serializable key = ce.getKey();
+		long start = System.nanoTime();
+		try {
+			Serializable value = loader.load(key);
+			recordLoad(System.nanoTime() - start, value != null);
+			Lock lock = refreshLock.writeLock();
+			lock.lock();
+			try {
+				CacheElement current = cache.get(key);
+				if (current != null
+						&& current.getCreateTime() == ce.getCreateTime()
+						&& current.getValue().equals(ce.getValue())) {
+					if (value != null) {
+						cache.put(key, value);
+					} else {
+						cache.remove(key);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			failedRefreshes.remove(key);
+			loads.remove(key, load);
+			load.complete(value);
+		} catch (Throwable e) {
+			recordLoad(System.nanoTime() - start, false);
+			// back off until another refresh age has passed
+			failedRefreshes.put(key, Long.valueOf(currentTimeMillis()));
+			loads.remove(key, load);
+			load.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Loads a number of keys with a single call to the loader and puts their
+	 * values into the cache, then completes the futures of the loads.
+	 *
+	 * @param toLoad The futures of the loads, registered for the keys.
+	 * @param loader Computes the values.
+	 */
+	private void loadAll(Map<Serializable, CompletableFuture<Serializable>> toLoad,
+			CacheLoader<?> loader) {
+		long start = System.nanoTime();
+		try {
+			Map<Serializable, ? extends Serializable> loaded = loader
+					.loadAll(Collections.unmodifiableSet(toLoad.keySet()));
+			Map<Serializable, Serializable> found = new HashMap<Serializable, Serializable>();
+			for (Serializable key : toLoad.keySet()) {
+				Serializable value = loaded.get(key);
+				if (value != null) {
+					found.put(key, value);
+				}
+			}
+			if (!found.isEmpty()) {
+				cache.putAll(found);
+			}
+			recordLoad(System.nanoTime() - start, true);
+			for (Map.Entry<Serializable, CompletableFuture<Serializable>> load : toLoad
+					.entrySet()) {
+				loads.remove(load.getKey(), load.getValue());
+				load.getValue().complete(found.get(load.getKey()));
+			}
+		} catch (Throwable e) {
+			recordLoad(System.nanoTime() - start, false);
+			for (Map.Entry<Serializable, CompletableFuture<Serializable>> load : toLoad
+					.entrySet()) {
+				loads.remove(load.getKey(), load.getValue());
+				load.getValue().completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Records a load in the statistics of the cache.
+	 *
+	 * @param loadTime The time spent loading, in nanoseconds.
+	 * @param success true if a value was loaded.
+	 */
+	private void recordLoad(long loadTime, boolean success) {
+		if (cache instanceof AbstractMemoryCache) {
+			((AbstractMemoryCache) cache).getStatsCounter().recordLoad(
+					loadTime, success);
+		}
+	}
+
+	/**
+	 * Returns the function casting a loaded value to the type of the loader.
+	 *
+	 * @return the function.
+	 */
+	private <V extends Serializable> Function<Serializable, V> valueCast() {
+		return new Function<Serializable, V>() {
+			@SuppressWarnings("unchecked")
+			public V apply(Serializable value) {
+				return (V) value;
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of loads in flight.
+	 *
+	 * @return the number of keys being loaded.
+	 */
+	public int getLoadingCount() {
+		return loads.size();
+	}
+
+	public int getSize() {
+		return cache.getSize();
+	}
+
+	public boolean remove(Serializable key) throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			failedRefreshes.remove(key);
+			return cache.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void removeAll() throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			failedRefreshes.clear();
+			cache.removeAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int freeElements(int numberToFree) throws IOException {
+		return cache.freeElements(numberToFree);
+	}
+
+	public void cleanup() throws IOException {
+		cache.cleanup();
+	}
+
+	public CacheElement get(Serializable key) throws IOException {
+		return cache.get(key);
+	}
+
+	public void update(CacheElement ce) throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			cache.update(ce);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void put(Object key, Object val) throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			cache.put(key, val);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void put(Object key, Object val, Expiry expiry) throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			cache.put(key, val, expiry);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		return cache.getAll(keys);
+	}
+
+	public void putAll(Map<?, ?> map) throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			cache.putAll(map);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		Lock lock = refreshLock.readLock();
+		lock.lock();
+		try {
+			failedRefreshes.keySet().removeAll(keys);
+			return cache.removeAll(keys);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public CacheStats getStats() {
+		return cache.getStats();
+	}
+
+}
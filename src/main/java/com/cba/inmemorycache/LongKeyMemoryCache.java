@@ -0,0 +1,95 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * <code>LongKeyMemoryCache</code> provides a least recently used cache keyed
+ * by <code>long</code> numbers, such as database ids.
+ * <p>
+ * The keys are stored in a <code>long</code> array and the LRU list is made
+ * of slot indexes, so {@link #get(long)} does not box the key and allocates
+ * nothing, nor does {@link #put(long, Serializable)} of an existing key. The
+ * <code>MemoryCache</code> methods are available too, for integral
+ * <code>Number</code>s in the range of <code>long</code>, but they allocate
+ * the <code>CacheElement</code> they exchange. See
+ * <code>PrimitiveKeyMemoryCache</code> for how the elements are stored.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+public class LongKeyMemoryCache<V extends Serializable> extends
+		PrimitiveKeyMemoryCache<V> {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The keys by slot. */
+	private long[] keys;
+
+	/**
+	 * Constructs a <code>LongKeyMemoryCache</code> with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	protected LongKeyMemoryCache(String cacheName) {
+		super(cacheName, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the cached value for a key, without allocating.
+	 *
+	 * @param key The key of the value.
+	 * @return the value, or null if it is not cached or expired.
+	 */
+	public V get(long key) {
+		return getValue(key);
+	}
+
+	/**
+	 * Puts a value into the cache. Replacing the value of a cached key does
+	 * not allocate unless the cache has a weigher.
+	 *
+	 * @param key The key of the value.
+	 * @param value The value to be cached.
+	 * @exception IOException The value is null.
+	 */
+	public void put(long key, V value) throws IOException {
+		putValue(key, value);
+	}
+
+	/**
+	 * Removes the value for a key.
+	 *
+	 * @param key The key of the value.
+	 * @return true if the value has been removed, false if it was not cached.
+	 */
+	public boolean remove(long key) {
+		return removeKey(key);
+	}
+
+	long keyOf(int slot) {
+		return keys[slot];
+	}
+
+	long keyOf(Object keys, int slot) {
+		return ((long[]) keys)[slot];
+	}
+
+	void setKey(int slot, long key) {
+		keys[slot] = key;
+	}
+
+	Serializable box(long key) {
+		return Long.valueOf(key);
+	}
+
+	void allocateKeys(int capacity) {
+		keys = new long[capacity];
+	}
+
+	Object keyArray() {
+		return keys;
+	}
+
+}
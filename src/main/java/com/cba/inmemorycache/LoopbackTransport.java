@@ -0,0 +1,66 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <code>LoopbackTransport</code> carries the invalidation messages between
+ * the cache managers of one JVM, to test an <code>InvalidationBus</code>
+ * without a network.
+ * <p>
+ * The transports constructed from one another form a group. A message is
+ * delivered to the other open members of the group in the thread sending
+ * it, so the peers have applied it when <code>send</code> returns.
+ * </p>
+ */
+public class LoopbackTransport implements InvalidationTransport {
+
+	/** The members of the group, shared by its transports */
+	private final List<LoopbackTransport> group;
+
+	/** The receiver of the messages, null until opened */
+	private volatile Receiver receiver;
+
+	/**
+	 * Constructs the first transport of a new group.
+	 */
+	public LoopbackTransport() {
+		this.group = new CopyOnWriteArrayList<LoopbackTransport>();
+	}
+
+	/**
+	 * Constructs a transport joining the group of another one.
+	 *
+	 * @param peer A transport of the group.
+	 */
+	public LoopbackTransport(LoopbackTransport peer) {
+		this.group = peer.group;
+	}
+
+	public void open(Receiver receiver) throws IOException {
+		this.receiver = receiver;
+		group.add(this);
+	}
+
+	public void send(byte[] message, int length) throws IOException {
+		if (receiver == null) {
+			throw new IOException("Transport is not open");
+		}
+		byte[] copy = Arrays.copyOf(message, length);
+		for (LoopbackTransport member : group) {
+			Receiver peer = member.receiver;
+			if (member != this && peer != null) {
+				peer.receive(ByteBuffer.wrap(copy).asReadOnlyBuffer());
+			}
+		}
+	}
+
+	public void close() {
+		group.remove(this);
+		receiver = null;
+	}
+
+}
@@ -0,0 +1,183 @@
+package com.cba.inmemorycache;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <code>MaintenanceAttributes</code> contains the attributes of the
+ * maintenance <code>InMemoryCache</code> runs on its caches: removing the
+ * expired elements, replaying buffered reads and evicting the elements over
+ * the cache limits.
+ */
+public class MaintenanceAttributes {
+
+	/** Default time between two passes in milliseconds. */
+	public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+	/** Default jitter of the interval in percent. */
+	public static final int DEFAULT_JITTER_PERCENT = 10;
+
+	/** Default time budget of a pass in milliseconds. */
+	public static final long DEFAULT_TIME_BUDGET_MILLIS = 50;
+
+	/** Default number of elements removed under one lock of a cache. */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** How the maintenance is run. */
+	private MaintenanceMode mode = MaintenanceMode.SHARED_THREAD;
+
+	/** Time between two passes in milliseconds. */
+	private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+	/** Jitter of the interval in percent. */
+	private int jitterPercent = DEFAULT_JITTER_PERCENT;
+
+	/** Time budget of a pass in milliseconds. */
+	private long timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+
+	/** Number of elements removed under one lock of a cache. */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/** Creates the maintenance threads, null for daemon threads. */
+	private ThreadFactory threadFactory;
+
+	/**
+	 * Returns how the maintenance is run.
+	 * 
+	 * @return the maintenance mode.
+	 */
+	public MaintenanceMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Sets how the maintenance is run.
+	 * 
+	 * @param mode
+	 *            the maintenance mode.
+	 */
+	public void setMode(MaintenanceMode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Returns the time between two passes in milliseconds.
+	 * 
+	 * @return the time between two passes.
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * Sets the time between two passes in milliseconds.
+	 * 
+	 * @param intervalMillis
+	 *            the time between two passes.
+	 */
+	public void setIntervalMillis(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Returns the jitter of the interval in percent.
+	 * 
+	 * @return the jitter of the interval.
+	 */
+	public int getJitterPercent() {
+		return jitterPercent;
+	}
+
+	/**
+	 * Sets the jitter of the interval in percent. Each interval is picked at
+	 * random within this percentage of the configured interval, so the passes
+	 * of several caches or several JVMs do not line up.
+	 * 
+	 * @param jitterPercent
+	 *            the jitter of the interval, from 0 to 100.
+	 */
+	public void setJitterPercent(int jitterPercent) {
+		this.jitterPercent = jitterPercent;
+	}
+
+	/**
+	 * Returns the time budget of a pass in milliseconds.
+	 * 
+	 * @return the time budget of a pass.
+	 */
+	public long getTimeBudgetMillis() {
+		return timeBudgetMillis;
+	}
+
+	/**
+	 * Sets the time budget of a pass in milliseconds. A cache is cleaned up
+	 * in batches, and a pass stops after the batch that spends the budget:
+	 * the next pass carries on with the elements and, with a shared thread,
+	 * the caches that are left.
+	 * 
+	 * @param timeBudgetMillis
+	 *            the time budget of a pass.
+	 */
+	public void setTimeBudgetMillis(long timeBudgetMillis) {
+		this.timeBudgetMillis = timeBudgetMillis;
+	}
+
+	/**
+	 * Returns the number of elements a cleanup removes under one lock of a
+	 * cache.
+	 * 
+	 * @return the size of a batch.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of elements a cleanup expires or evicts under one lock
+	 * of a cache. The lock is released between two batches, so the other
+	 * threads wait for a batch at most, and the time budget is checked.
+	 * 
+	 * @param batchSize
+	 *            the size of a batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Returns the factory creating the maintenance threads.
+	 * 
+	 * @return the thread factory, or null for daemon threads.
+	 */
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Sets the factory creating the maintenance threads, for example
+	 * <code>Thread.ofVirtual().factory()</code> on Java 21 and later.
+	 * 
+	 * @param threadFactory
+	 *            the thread factory, or null for daemon threads.
+	 */
+	public void setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 * 
+	 * @return String info about the values.
+	 */
+	public String toString() {
+		StringBuffer str = new StringBuffer();
+
+		str.append("Mode = ").append(this.getMode());
+		str.append(", IntervalMillis = ").append(this.getIntervalMillis());
+		str.append(", JitterPercent = ").append(this.getJitterPercent());
+		str.append(", TimeBudgetMillis = ").append(this.getTimeBudgetMillis());
+		str.append(", BatchSize = ").append(this.getBatchSize());
+
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,21 @@
+package com.cba.inmemorycache;
+
+/**
+ * <code>MaintenanceMode</code> lists the ways <code>InMemoryCache</code> can
+ * run the maintenance of its caches.
+ */
+public enum MaintenanceMode {
+
+	/**
+	 * One thread maintains all caches, one after the other, within the time
+	 * budget of a pass.
+	 */
+	SHARED_THREAD,
+
+	/**
+	 * Each cache is maintained by its own thread. This is meant to be used
+	 * with a thread factory creating virtual threads.
+	 */
+	THREAD_PER_CACHE
+
+}
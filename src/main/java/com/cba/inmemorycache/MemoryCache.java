@@ -2,6 +2,8 @@ package com.cba.inmemorycache;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * This provides the methods a MemoryCache needs to access.
@@ -82,4 +84,60 @@ public interface MemoryCache {
 	 */
 	public void put(Object key, Object val) throws IOException;
 
+	/**
+	 * Puts an object into the cache, living for the time an expiry policy
+	 * computes from the key and the value.
+	 * <p>
+	 * If the key or the value is null, and IOException is thrown.
+	 * </p>
+	 * 
+	 * @param key The key of the object to be put into cache.
+	 * @param val The object to be put into cache.
+	 * @param expiry The expiry policy, null for the policy of the cache.
+	 * @exception IOException Error when adding object to the cache.
+	 */
+	public void put(Object key, Object val, Expiry expiry) throws IOException;
+
+	/**
+	 * Gets the items of a number of keys from the cache, locking the cache
+	 * or each of its segments once rather than once per key.
+	 * 
+	 * @param keys The keys of the items to be retrieved.
+	 * @return The items found, by key. The keys not found are left out.
+	 * @exception IOException Error when retrieving the items.
+	 */
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException;
+
+	/**
+	 * Puts a number of objects into the cache, locking the cache or each of
+	 * its segments once rather than once per object.
+	 * <p>
+	 * If a key or a value is null, and IOException is thrown before any
+	 * object is put.
+	 * </p>
+	 * 
+	 * @param map The objects to be put into cache, by key.
+	 * @exception IOException Error when adding the objects to the cache.
+	 */
+	public void putAll(Map<?, ?> map) throws IOException;
+
+	/**
+	 * Removes the items of a number of keys from the cache, locking the
+	 * cache or each of its segments once rather than once per key.
+	 * 
+	 * @param keys The keys of the items to be removed.
+	 * @return the number of items removed.
+	 * @exception IOException Error when removing the items from the cache.
+	 */
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException;
+
+	/**
+	 * Returns a snapshot of the statistics of the cache.
+	 * 
+	 * @return the hit, miss, eviction and expiration counts of the cache.
+	 */
+	public CacheStats getStats();
+
 }
@@ -0,0 +1,164 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+
+/**
+ * <code>MemoryCacheMXBean</code> is the management interface of a cache,
+ * registered by <code>InMemoryCache</code> in the platform MBean server as
+ * <code>com.cba.inmemorycache:type=MemoryCache,name="cache name"</code>.
+ */
+public interface MemoryCacheMXBean {
+
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return the name of the cache.
+	 */
+	public String getCacheName();
+
+	/**
+	 * Returns the implementation of the cache.
+	 *
+	 * @return the name of the <code>MemoryCacheType</code> of the cache.
+	 */
+	public String getMemoryCacheType();
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return the number of elements in the cache.
+	 */
+	public int getSize();
+
+	/**
+	 * Returns the maximum number of elements in the cache.
+	 *
+	 * @return the maximum number of elements, -1 for no limit.
+	 */
+	public int getMaxEntries();
+
+	/**
+	 * Resizes the cache: sets the maximum number of elements, and evicts the
+	 * elements over the new limit at once.
+	 *
+	 * @param maxEntries the maximum number of elements, -1 for no limit.
+	 * @exception IOException Error when evicting the elements.
+	 */
+	public void setMaxEntries(int maxEntries) throws IOException;
+
+	/**
+	 * Returns the maximum total weight of the elements in the cache.
+	 *
+	 * @return the maximum total weight, -1 for no limit.
+	 */
+	public long getMaxWeight();
+
+	/**
+	 * Sets the maximum total weight of the elements in the cache, and evicts
+	 * the elements over the new limit at once.
+	 *
+	 * @param maxWeight the maximum total weight, -1 for no limit.
+	 * @exception IOException Error when evicting the elements.
+	 */
+	public void setMaxWeight(long maxWeight) throws IOException;
+
+	/**
+	 * Returns the number of gets that found an element.
+	 *
+	 * @return the number of hits.
+	 */
+	public long getHitCount();
+
+	/**
+	 * Returns the number of gets that found no element.
+	 *
+	 * @return the number of misses.
+	 */
+	public long getMissCount();
+
+	/**
+	 * Returns the ratio of the gets that found an element.
+	 *
+	 * @return the hit ratio, 1 if there was no get.
+	 */
+	public double getHitRatio();
+
+	/**
+	 * Returns the number of elements evicted from the cache.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictionCount();
+
+	/**
+	 * Returns the number of elements evicted per second, between the last
+	 * two reads of the rate at least a second apart.
+	 *
+	 * @return the evictions per second.
+	 */
+	public double getEvictionRate();
+
+	/**
+	 * Returns the number of elements removed because their TTL expired.
+	 *
+	 * @return the number of expirations.
+	 */
+	public long getExpirationCount();
+
+	/**
+	 * Returns the number of maintenance passes over the cache.
+	 *
+	 * @return the number of cleanups.
+	 */
+	public long getCleanupCount();
+
+	/**
+	 * Returns the time spent in the last maintenance pass over the cache.
+	 *
+	 * @return the last cleanup time in milliseconds.
+	 */
+	public double getLastCleanupMillis();
+
+	/**
+	 * Returns the mean time spent in a maintenance pass over the cache.
+	 *
+	 * @return the mean cleanup time in milliseconds, 0 if there was none.
+	 */
+	public double getAverageCleanupMillis();
+
+	/**
+	 * Returns the latency of the gets at the 99th percentile.
+	 *
+	 * @return the latency in microseconds, -1 if it is not recorded.
+	 */
+	public double getGetLatencyP99Micros();
+
+	/**
+	 * Returns the latency of the puts at the 99th percentile.
+	 *
+	 * @return the latency in microseconds, -1 if it is not recorded.
+	 */
+	public double getPutLatencyP99Micros();
+
+	/**
+	 * Removes the least recently used elements of the cache.
+	 *
+	 * @param numberToFree The number of elements to be removed.
+	 * @return The number of elements actually removed.
+	 * @exception IOException Error when removing the elements.
+	 */
+	public int freeElements(int numberToFree) throws IOException;
+
+	/**
+	 * Removes all elements of the cache.
+	 *
+	 * @exception IOException Error when removing the elements.
+	 */
+	public void removeAll() throws IOException;
+
+	/**
+	 * Runs a maintenance pass over the cache now.
+	 */
+	public void cleanup();
+
+}
@@ -0,0 +1,164 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+
+/**
+ * <code>MemoryCacheManagement</code> exposes a cache through the
+ * <code>MemoryCacheMXBean</code> interface. The statistics are read from a
+ * snapshot of the cache statistics, the operations are run on the cache.
+ */
+final class MemoryCacheManagement implements MemoryCacheMXBean {
+
+	/** Nanoseconds in a second */
+	private static final long SECOND = 1000000000L;
+
+	/** The manager of the cache, which runs the maintenance passes */
+	private final InMemoryCache manager;
+
+	/** The cache */
+	private final AbstractMemoryCache cache;
+
+	/** The time of the last sample of the eviction rate, in nanoseconds */
+	private long sampleTime;
+
+	/** The eviction count of the last sample of the eviction rate */
+	private long sampleEvictions;
+
+	/** The eviction rate between the last two samples */
+	private double evictionRate;
+
+	/**
+	 * Constructs the management interface of a cache.
+	 *
+	 * @param manager The manager of the cache.
+	 * @param cache The cache.
+	 */
+	MemoryCacheManagement(InMemoryCache manager, AbstractMemoryCache cache) {
+		this.manager = manager;
+		this.cache = cache;
+		this.sampleTime = System.nanoTime();
+		this.sampleEvictions = cache.getStats().getEvictionCount();
+	}
+
+	public String getCacheName() {
+		return cache.getCacheName();
+	}
+
+	public String getMemoryCacheType() {
+		return cache.getCacheAttributes().getMemoryCacheType().name();
+	}
+
+	public int getSize() {
+		return cache.getSize();
+	}
+
+	public int getMaxEntries() {
+		return cache.getCacheAttributes().getMaxEntries();
+	}
+
+	public void setMaxEntries(int maxEntries) throws IOException {
+		CacheAttributes cacheAttributes = cache.getCacheAttributes();
+		cacheAttributes.setMaxEntries(maxEntries);
+		resize(cacheAttributes);
+	}
+
+	public long getMaxWeight() {
+		return cache.getCacheAttributes().getMaxWeight();
+	}
+
+	public void setMaxWeight(long maxWeight) throws IOException {
+		CacheAttributes cacheAttributes = cache.getCacheAttributes();
+		cacheAttributes.setMaxWeight(maxWeight);
+		resize(cacheAttributes);
+	}
+
+	public long getHitCount() {
+		return cache.getStats().getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getStats().getMissCount();
+	}
+
+	public double getHitRatio() {
+		return cache.getStats().getHitRatio();
+	}
+
+	public long getEvictionCount() {
+		return cache.getStats().getEvictionCount();
+	}
+
+	public synchronized double getEvictionRate() {
+		long now = System.nanoTime();
+		if (now - sampleTime >= SECOND) {
+			long evictions = cache.getStats().getEvictionCount();
+			evictionRate = (double) (evictions - sampleEvictions) * SECOND
+					/ (now - sampleTime);
+			sampleTime = now;
+			sampleEvictions = evictions;
+		}
+		return evictionRate;
+	}
+
+	public long getExpirationCount() {
+		return cache.getStats().getExpirationCount();
+	}
+
+	public long getCleanupCount() {
+		return cache.getStats().getCleanupCount();
+	}
+
+	public double getLastCleanupMillis() {
+		return cache.getStats().getLastCleanupTime() / 1e6;
+	}
+
+	public double getAverageCleanupMillis() {
+		CacheStats stats = cache.getStats();
+		long cleanupCount = stats.getCleanupCount();
+		return cleanupCount == 0 ? 0.0 : stats.getTotalCleanupTime() / 1e6
+				/ cleanupCount;
+	}
+
+	public double getGetLatencyP99Micros() {
+		return p99Micros(cache.getStats().getGetLatency());
+	}
+
+	public double getPutLatencyP99Micros() {
+		return p99Micros(cache.getStats().getPutLatency());
+	}
+
+	public int freeElements(int numberToFree) throws IOException {
+		return cache.freeElements(numberToFree);
+	}
+
+	public void removeAll() throws IOException {
+		cache.removeAll();
+	}
+
+	public void cleanup() {
+		manager.maintainCache(cache.getCacheName());
+	}
+
+	/**
+	 * Applies new limits to the cache and evicts the elements over them.
+	 *
+	 * @param cacheAttributes The attributes of the cache, with the new
+	 *            limits.
+	 * @exception IOException Error when evicting the elements.
+	 */
+	private void resize(CacheAttributes cacheAttributes) throws IOException {
+		cache.setCacheAttributes(cacheAttributes);
+		cache.cleanup();
+	}
+
+	/**
+	 * Returns the 99th percentile of a latency histogram.
+	 *
+	 * @param histogram The histogram, null if the latency is not recorded.
+	 * @return the percentile in microseconds, -1 if not recorded.
+	 */
+	private static double p99Micros(LatencyHistogram histogram) {
+		return histogram == null ? -1 : histogram.getValueAtPercentile(99) / 1e3;
+	}
+
+}
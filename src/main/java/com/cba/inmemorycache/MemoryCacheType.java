@@ -0,0 +1,48 @@
+package com.cba.inmemorycache;
+
+/**
+ * <code>MemoryCacheType</code> lists the <code>MemoryCache</code>
+ * implementations <code>InMemoryCache</code> can create for a named cache.
+ */
+public enum MemoryCacheType {
+
+	/** A single <code>LRUMemoryCache</code>, the default. */
+	LRU,
+
+	/**
+	 * A <code>SegmentedLRUMemoryCache</code>, which splits the keys into
+	 * independently locked LRU segments.
+	 */
+	SEGMENTED_LRU,
+
+	/**
+	 * A <code>ConcurrentLRUMemoryCache</code>, whose reads do not lock and
+	 * are replayed on the LRU list in batches.
+	 */
+	CONCURRENT_LRU,
+
+	/**
+	 * A <code>TinyLfuMemoryCache</code>, which admits elements into the cache
+	 * based on how often they have been used recently.
+	 */
+	TINY_LFU,
+
+	/**
+	 * An <code>OffHeapMemoryCache</code>, which keeps the values serialized
+	 * outside the Java heap.
+	 */
+	OFF_HEAP,
+
+	/**
+	 * A <code>LongKeyMemoryCache</code>, for keys that are <code>long</code>
+	 * numbers, stored in primitive arrays.
+	 */
+	LONG_KEY,
+
+	/**
+	 * An <code>IntKeyMemoryCache</code>, for keys that are <code>int</code>
+	 * numbers, stored in primitive arrays.
+	 */
+	INT_KEY
+
+}
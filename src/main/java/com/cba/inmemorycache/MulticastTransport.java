@@ -0,0 +1,156 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>MulticastTransport</code> carries the invalidation messages between
+ * the nodes of a network as UDP multicast datagrams.
+ * <p>
+ * Every node joins the same group address and port; a datagram sent to the
+ * group reaches all of them in one packet, whatever their number. A daemon
+ * thread receives the datagrams and hands them to the receiver. UDP does not
+ * retransmit, so a datagram lost under load leaves stale elements until
+ * their TTL; the <code>InvalidationBus</code> keeps its messages under the
+ * usual MTU so that they are not fragmented.
+ * </p>
+ */
+public class MulticastTransport implements InvalidationTransport {
+
+	/** For logging */
+	private final static Logger log = Logger.getLogger(MulticastTransport.class
+			.getName());
+
+	/** The largest UDP payload */
+	private static final int MAX_DATAGRAM = 65507;
+
+	/** The multicast group */
+	private final InetAddress group;
+
+	/** The port of the group */
+	private final int port;
+
+	/** The interface to join the group on, or null for the default one */
+	private final NetworkInterface networkInterface;
+
+	/** The number of routers the datagrams may cross */
+	private final int timeToLive;
+
+	/** The socket, null until opened */
+	private volatile MulticastSocket socket;
+
+	/**
+	 * Constructs a transport on a group, joined on the default interface,
+	 * whose datagrams do not leave the local network.
+	 *
+	 * @param group The multicast group address.
+	 * @param port The port of the group.
+	 */
+	public MulticastTransport(InetAddress group, int port) {
+		this(group, port, null, 1);
+	}
+
+	/**
+	 * Constructs a transport on a group.
+	 *
+	 * @param group The multicast group address.
+	 * @param port The port of the group.
+	 * @param networkInterface The interface to join the group on, or null for
+	 *            the default one.
+	 * @param timeToLive The number of routers the datagrams may cross.
+	 */
+	public MulticastTransport(InetAddress group, int port,
+			NetworkInterface networkInterface, int timeToLive) {
+		if (!group.isMulticastAddress()) {
+			throw new IllegalArgumentException(group
+					+ " is not a multicast address");
+		}
+		this.group = group;
+		this.port = port;
+		this.networkInterface = networkInterface;
+		this.timeToLive = timeToLive;
+	}
+
+	@SuppressWarnings("deprecation")
+	public void open(final Receiver receiver) throws IOException {
+		final MulticastSocket opened = new MulticastSocket(port);
+		try {
+			if (networkInterface != null) {
+				opened.setNetworkInterface(networkInterface);
+			}
+			opened.setTimeToLive(timeToLive);
+			opened.joinGroup(group);
+		} catch (IOException e) {
+			opened.close();
+			throw e;
+		}
+		socket = opened;
+
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				byte[] buffer = new byte[MAX_DATAGRAM];
+				DatagramPacket packet = new DatagramPacket(buffer,
+						buffer.length);
+				while (!opened.isClosed()) {
+					try {
+						packet.setLength(buffer.length);
+						opened.receive(packet);
+						receiver.receive(ByteBuffer.wrap(buffer, 0,
+								packet.getLength()).slice());
+					} catch (IOException e) {
+						if (!opened.isClosed()) {
+							log.log(Level.WARNING, "Cannot receive from "
+									+ group + ":" + port, e);
+						}
+					} catch (RuntimeException e) {
+						log.log(Level.WARNING, "Cannot apply a message from "
+								+ packet.getAddress(), e);
+					}
+				}
+			}
+		}, "InMemoryCache-multicast-" + port);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void send(byte[] message, int length) throws IOException {
+		MulticastSocket current = socket;
+		if (current == null) {
+			throw new IOException("Transport is not open");
+		}
+		current.send(new DatagramPacket(message, length, group, port));
+	}
+
+	@SuppressWarnings("deprecation")
+	public void close() throws IOException {
+		MulticastSocket current = socket;
+		if (current != null) {
+			socket = null;
+			try {
+				current.leaveGroup(group);
+			} finally {
+				current.close();
+			}
+		}
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return String info about the transport.
+	 */
+	public String toString() {
+		StringBuffer str = new StringBuffer();
+		str.append("MulticastTransport ").append(group.getHostAddress())
+				.append(':').append(port);
+		str.append(", TimeToLive = ").append(timeToLive);
+		return str.toString();
+	}
+
+}
@@ -0,0 +1,583 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <code>OffHeapMemoryCache</code> provides a least recently used cache whose
+ * values are kept serialized outside the Java heap, so a large cache does
+ * not add to the work of the garbage collector.
+ * <p>
+ * The values are serialized into an <code>OffHeapStore</code>. The heap only
+ * holds an index entry per element, with the key, the location of the value
+ * in the store and the times used for the expiry, linked in the LRU list and
+ * the timer wheel like the elements of <code>LRUMemoryCache</code>. The
+ * eviction and the expiry work the same way, and the cache is also bounded
+ * by the <code>maxOffHeapBytes</code> of its attributes: a put that does not
+ * fit evicts the least recently used elements until it does.
+ * </p>
+ * <p>
+ * A get deserializes the value into a new <code>CacheElement</code>, which
+ * is a copy: changing its times does not change the element in the cache.
+ * All operations lock the cache itself, the serialization is done outside
+ * the lock.
+ * </p>
+ */
+public class OffHeapMemoryCache extends AbstractMemoryCache {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** Table where the index entries are stored by key */
+	private transient ElementTable cacheMap;
+
+	/** List to keep track of the usage of the elements in the cache */
+	private transient LRUElementList cacheList;
+
+	/** Wheel to keep track of the expiry of the elements in the cache */
+	private transient TimerWheel timerWheel;
+
+	/** The serialized values */
+	private transient OffHeapStore store;
+
+	/** Total weight of the elements in this cache */
+	private transient long weightedSize;
+
+	/** Number of elements evicted from this cache */
+	private long evictionCount;
+
+	/**
+	 * Constructs an <code>OffHeapMemoryCache</code> with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	protected OffHeapMemoryCache(String cacheName) {
+		super(cacheName);
+		init();
+	}
+
+	/**
+	 * Creates the structures holding the elements.
+	 */
+	private void init() {
+		cacheMap = new ElementTable();
+		cacheList = new LRUElementList();
+		timerWheel = new TimerWheel(currentTimeMillis());
+		store = new OffHeapStore(getCacheAttributes().getMaxOffHeapBytes());
+	}
+
+	/**
+	 * Determines if the elements are kept on the Java heap.
+	 *
+	 * @return false, the values are serialized off the heap.
+	 */
+	boolean isHeapResident() {
+		return false;
+	}
+
+	/**
+	 * Sets the attributes bounding the size of this cache. A new off-heap
+	 * limit applies to the memory allocated from then on.
+	 *
+	 * @param cacheAttributes the attributes bounding the size of this cache.
+	 */
+	public void setCacheAttributes(CacheAttributes cacheAttributes) {
+		super.setCacheAttributes(cacheAttributes);
+		synchronized (this) {
+			if (store != null) {
+				store.setCapacity(cacheAttributes.getMaxOffHeapBytes());
+			}
+		}
+	}
+
+	/**
+	 * Returns the total weight of the elements in the cache, as calculated by
+	 * the weigher of the cache attributes.
+	 *
+	 * @return the total weight of the elements in the cache.
+	 */
+	public long getWeightedSize() {
+		synchronized (this) {
+			return weightedSize;
+		}
+	}
+
+	/**
+	 * Returns the number of elements evicted from the cache, either because
+	 * the cache was full or by <code>freeElements</code>.
+	 *
+	 * @return the number of elements evicted from the cache.
+	 */
+	public long getEvictionCount() {
+		synchronized (this) {
+			return evictionCount;
+		}
+	}
+
+	/**
+	 * Returns the memory allocated outside the heap for the values.
+	 *
+	 * @return the number of bytes allocated.
+	 */
+	public long getOffHeapAllocatedBytes() {
+		synchronized (this) {
+			return store.getAllocatedBytes();
+		}
+	}
+
+	/**
+	 * Returns the memory outside the heap holding values, including the
+	 * unused end of their last block.
+	 *
+	 * @return the number of bytes used.
+	 */
+	public long getOffHeapUsedBytes() {
+		synchronized (this) {
+			return store.getUsedBytes();
+		}
+	}
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return the size of the cache.
+	 */
+	public int getSize() {
+		synchronized (this) {
+			return cacheMap.size();
+		}
+	}
+
+	/**
+	 * Removes cached object with the specified key.
+	 *
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 * @exception IOException Error when removing the object from the cache.
+	 */
+	public boolean remove(Serializable key) throws IOException {
+		synchronized (this) {
+			OffHeapElement ce = (OffHeapElement) cacheMap.remove(key);
+			if (ce == null) {
+				return false;
+			}
+			unlinkElement(ce);
+		}
+		getStatsCounter().recordRemoval();
+		return true;
+	}
+
+	/**
+	 * Removes all cached items from the cache, and releases the off-heap
+	 * memory.
+	 *
+	 * @exception IOException Error when removing all objects from the cache.
+	 */
+	public void removeAll() throws IOException {
+		synchronized (this) {
+			cacheMap.clear();
+			cacheList.clear();
+			timerWheel.clear();
+			store.clear();
+			weightedSize = 0;
+		}
+	}
+
+	/**
+	 * Removes the least recently used objects in the cache.
+	 *
+	 * @param numberToFree The number of objects to be removed from the cached.
+	 * @return The number of objects that are actually removed from the cached.
+	 * @exception IOException Error when removing objects from the cache.
+	 */
+	public int freeElements(int numberToFree) throws IOException {
+		int freed = 0;
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			for (; freed < numberToFree; freed++) {
+				if (!evictLast()) {
+					// no more item in the cache
+					break;
+				}
+			}
+			CacheEvents.lockHeld(getCacheName(), "freeElements", held);
+		}
+		getStatsCounter().recordEvictions(freed);
+		return freed;
+	}
+
+	/**
+	 * This will clean up the cache to remove objects that TTL has been expired,
+	 * and evict the elements a burst of puts left over the cache limits. Only
+	 * the elements the timer wheel finds due are looked at.
+	 *
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	public void cleanup() throws IOException {
+		cleanup(Integer.MAX_VALUE);
+	}
+
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			List<CacheElement> expired = timerWheel.advance(
+					currentTimeMillis(), maxToRemove);
+			for (CacheElement ce : expired) {
+				cacheMap.removeElement(ce);
+				unlinkElement((OffHeapElement) ce);
+				getStatsCounter().recordExpiration();
+			}
+
+			int maxToEvict = maxToRemove - expired.size();
+			boolean done = !timerWheel.hasOverdue()
+					&& evictOverflow(maxToEvict) < maxToEvict;
+			CacheEvents.lockHeld(getCacheName(), "cleanup", held);
+			return done;
+		}
+	}
+
+	/**
+	 * Puts an element restored from a snapshot into the cache, then gives
+	 * the entry copied from it the time it was last accessed.
+	 *
+	 * @param ce The restored element.
+	 * @param lastAccessTime The time the element was last accessed.
+	 * @exception IOException Error when updating the cache.
+	 */
+	void restore(CacheElement ce, long lastAccessTime) throws IOException {
+		update(ce);
+		synchronized (this) {
+			CacheElement entry = cacheMap.get(ce.getKey());
+			if (entry != null) {
+				entry.setLastAccessTime(lastAccessTime);
+			}
+		}
+	}
+
+	/**
+	 * Returns copies of the elements of the cache from the least to the most
+	 * recently used one. The values are read under the lock and deserialized
+	 * outside it.
+	 *
+	 * @return the elements of the cache.
+	 * @exception IOException Error when deserializing a value.
+	 */
+	List<CacheElement> getElementsInAccessOrder() throws IOException {
+		List<CacheElement> entries = new ArrayList<CacheElement>();
+		List<byte[]> data = new ArrayList<byte[]>();
+		synchronized (this) {
+			cacheList.addLeastRecentFirst(entries);
+			for (CacheElement entry : entries) {
+				OffHeapElement ce = (OffHeapElement) entry;
+				data.add(store.read(ce.block, ce.length));
+			}
+		}
+
+		List<CacheElement> elements = new ArrayList<CacheElement>(entries
+				.size());
+		for (int i = 0; i < entries.size(); i++) {
+			elements.add(new CacheElement(entries.get(i), deserializeValue(data
+					.get(i))));
+		}
+		return elements;
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, which reads a page of
+	 * keys at a time under the lock of the cache.
+	 *
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(int pageSize) {
+		return cacheMap.keys(this, pageSize);
+	}
+
+	/**
+	 * Returns a copy of the cached object for the specified key.
+	 *
+	 * @param key the key for the object to be retrieved.
+	 * @return The cached object for the specified key.
+	 * @exception IOException Error when retrieving object from the cache.
+	 */
+	public CacheElement get(Serializable key) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		OffHeapElement ce;
+		byte[] data;
+		long now;
+
+		synchronized (this) {
+			ce = (OffHeapElement) cacheMap.get(key);
+			if (ce == null) {
+				statsCounter.recordGet(start, false);
+				return null;
+			}
+
+			now = currentTimeMillis();
+			if (isExpired(ce, now)) {
+				// The cache for this element has been expired, remove from cache
+				cacheMap.remove(key);
+				unlinkElement(ce);
+				statsCounter.recordExpiration();
+				statsCounter.recordGet(start, false);
+				return null;
+			}
+
+			ce.touch(now);
+			cacheList.moveToFirst(ce);
+			data = store.read(ce.block, ce.length);
+		}
+
+		Serializable value = deserializeValue(data);
+		// the value is only on the heap now, ask the expiry policy here
+		ce.expireAfterRead(value, now);
+		CacheElement copy = new CacheElement(ce, value);
+		statsCounter.recordGet(start, true);
+		return copy;
+	}
+
+	/**
+	 * Updates the cached object. Its value is serialized outside the heap.
+	 *
+	 * @param ce The cached object to be updated.
+	 * @exception IOException Error when updating the cache, or the value does
+	 *                not fit in the off-heap memory of the cache.
+	 */
+	public void update(CacheElement ce) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		// weigh and serialize the element before taking the lock
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int weight = cacheAttributes.weigh(ce.getKey(), ce.getValue());
+		byte[] data = serializeValue(ce.getValue());
+
+		OffHeapElement entry = new OffHeapElement(ce);
+		entry.touch(currentTimeMillis());
+		entry.weight = weight;
+
+		synchronized (this) {
+			if (!store.fits(data.length)) {
+				// reject the value before the old one or others are evicted
+				throw new IOException("Value of " + data.length
+						+ " bytes does not fit in the off-heap memory of cache "
+						+ getCacheName());
+			}
+			OffHeapElement old = (OffHeapElement) cacheMap.remove(entry.getKey());
+			if (old != null) {
+				// the element is replaced, free the old value first
+				unlinkElement(old);
+				if (entry.getProfile().getExpiry() != null) {
+					entry.expireAfterUpdate(old, ce.getValue(),
+							currentTimeMillis());
+				}
+			}
+			link(entry, data);
+			// evict a bounded batch of elements if the cache is full
+			evictOverflow(cacheAttributes.getMaxEvictionsPerPut());
+		}
+		statsCounter.recordPut(start);
+	}
+
+	/**
+	 * Serializes a value to be stored outside the heap, with the value codec
+	 * of the cache if it has one, else with Java serialization.
+	 *
+	 * @param value The value.
+	 * @return the serialized value.
+	 * @exception IOException Error when serializing the value.
+	 */
+	protected byte[] serializeValue(Serializable value) throws IOException {
+		CacheCodec<?> codec = getCacheAttributes().getValueCodec();
+		if (codec != null) {
+			return CacheCodecs.toBytes(codec, value);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(value);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Deserializes a value read from outside the heap.
+	 *
+	 * @param data The serialized value.
+	 * @return the value.
+	 * @exception IOException Error when deserializing the value.
+	 */
+	protected Serializable deserializeValue(byte[] data) throws IOException {
+		CacheCodec<?> codec = getCacheAttributes().getValueCodec();
+		if (codec != null) {
+			return CacheCodecs.fromBytes(codec, data);
+		}
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				data));
+		try {
+			return (Serializable) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Stores the value of an element and adds it to the cache as the most
+	 * recently used element, evicting the least recently used elements until
+	 * the value fits. Must be called while holding the lock of the cache.
+	 *
+	 * @param entry The index entry of the element.
+	 * @param data The serialized value.
+	 * @exception IOException The value does not fit in the off-heap memory of
+	 *                the cache.
+	 */
+	private void link(OffHeapElement entry, byte[] data) throws IOException {
+		int block;
+		int evicted = 0;
+		while ((block = store.allocate(data)) < 0) {
+			if (!evictLast()) {
+				getStatsCounter().recordEvictions(evicted);
+				throw new IOException("Value of " + data.length
+						+ " bytes does not fit in the off-heap memory of cache "
+						+ getCacheName());
+			}
+			evicted++;
+		}
+		getStatsCounter().recordEvictions(evicted);
+		entry.block = block;
+		entry.length = data.length;
+		cacheMap.put(entry);
+		weightedSize += entry.weight;
+		cacheList.addFirst(entry);
+		timerWheel.schedule(entry);
+	}
+
+	/**
+	 * Removes the least recently used elements while the cache is over its
+	 * limits. Must be called while holding the lock of the cache.
+	 *
+	 * @param maxToEvict The maximum number of elements to be evicted.
+	 * @return the number of elements evicted.
+	 */
+	private int evictOverflow(int maxToEvict) {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int maxEntries = cacheAttributes.getMaxEntries();
+		long maxWeight = cacheAttributes.getMaxWeight();
+		int evicted = 0;
+		for (; evicted < maxToEvict; evicted++) {
+			boolean overflowing = (maxEntries >= 0 && cacheMap.size() > maxEntries)
+					|| (maxWeight >= 0 && weightedSize > maxWeight);
+			if (!overflowing || !evictLast()) {
+				break;
+			}
+		}
+		getStatsCounter().recordEvictions(evicted);
+		return evicted;
+	}
+
+	/**
+	 * Evicts the least recently used element. Must be called while holding
+	 * the lock of the cache.
+	 *
+	 * @return true if an element has been evicted, false if the cache is
+	 *         empty.
+	 */
+	private boolean evictLast() {
+		OffHeapElement last = (OffHeapElement) cacheList.getLast();
+		if (last == null) {
+			return false;
+		}
+		cacheMap.remove(last.getKey());
+		unlinkElement(last);
+		evictionCount++;
+		return true;
+	}
+
+	/**
+	 * Removes the element from the list, its weight from the cache and frees
+	 * its value. The caller removes the element from the map.
+	 *
+	 * @param ce The element that has been removed from the cache.
+	 */
+	private void unlinkElement(OffHeapElement ce) {
+		timerWheel.deschedule(ce);
+		if (cacheList.remove(ce)) {
+			weightedSize -= ce.weight;
+			store.free(ce.block, ce.length);
+		}
+	}
+
+	/**
+	 * Writes the elements with their values, from the least to the most
+	 * recently used.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException Error when writing the cache.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		synchronized (this) {
+			out.defaultWriteObject();
+			out.writeInt(cacheList.size());
+			for (CacheElement ce = cacheList.getLast(); ce != null; ce = ce.prev) {
+				OffHeapElement entry = (OffHeapElement) ce;
+				out.writeObject(entry);
+				out.writeObject(store.read(entry.block, entry.length));
+			}
+		}
+	}
+
+	/**
+	 * Reads the elements and stores their values outside the heap again.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException Error when reading the cache.
+	 * @throws ClassNotFoundException Class of an element cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		init();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			OffHeapElement entry = (OffHeapElement) in.readObject();
+			link(entry, (byte[]) in.readObject());
+		}
+	}
+
+	/**
+	 * <code>OffHeapElement</code> is the index entry of an element on the
+	 * heap. It has no value, only the location of the serialized value in the
+	 * store.
+	 */
+	private static class OffHeapElement extends CacheElement {
+
+		/** Default serial version UID */
+		private static final long serialVersionUID = 1L;
+
+		/** The first block of the serialized value. */
+		transient int block;
+
+		/** The length of the serialized value in bytes. */
+		transient int length;
+
+		/**
+		 * Constructs the index entry of an element, with its settings and
+		 * times.
+		 *
+		 * @param ce The element.
+		 */
+		OffHeapElement(CacheElement ce) {
+			super(ce, null);
+		}
+
+	}
+
+}
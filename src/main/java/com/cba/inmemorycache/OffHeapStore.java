@@ -0,0 +1,319 @@
+package com.cba.inmemorycache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>OffHeapStore</code> stores byte arrays outside the Java heap, in
+ * slabs of direct <code>ByteBuffer</code>s.
+ * <p>
+ * The slabs are divided into blocks of {@link #BLOCK_SIZE} bytes. A stored
+ * array is a chain of blocks, each starting with the index of the next
+ * block, so any freed block can be reused by any array and the store never
+ * needs to be compacted. The free blocks are chained the same way, so the
+ * store keeps no bookkeeping on the heap besides the slabs themselves. An
+ * array is referenced by the index of its first block and its length.
+ * </p>
+ * <p>
+ * Slabs are allocated as the store grows, up to its capacity. The store is
+ * not thread safe, it must be called while holding the lock of the cache.
+ * </p>
+ */
+class OffHeapStore {
+
+	/** The size of a block in bytes. */
+	static final int BLOCK_SIZE = 64;
+
+	/** The bytes of a block holding data, after the index of the next block. */
+	static final int BLOCK_DATA = BLOCK_SIZE - 4;
+
+	/** The number of blocks of a slab, as a power of two. */
+	private static final int SLAB_SHIFT = 14;
+
+	/** The mask giving the block of a slab from a block index. */
+	private static final int SLAB_MASK = (1 << SLAB_SHIFT) - 1;
+
+	/** The size of a full slab in bytes, 1 MB. */
+	static final int SLAB_SIZE = BLOCK_SIZE << SLAB_SHIFT;
+
+	/** The index marking the end of a chain. */
+	private static final int NONE = -1;
+
+	/** The maximum number of bytes of the slabs, -1 for no limit. */
+	private long capacity;
+
+	/** The slabs, the last one may be partly used and smaller than the others. */
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+	/** The number of blocks handed out of the last slab. */
+	private int lastSlabUsed;
+
+	/** The first free block. */
+	private int freeHead = NONE;
+
+	/** The number of free blocks. */
+	private long freeCount;
+
+	/** The number of blocks holding arrays. */
+	private long usedCount;
+
+	/** The number of bytes of the slabs. */
+	private long allocatedBytes;
+
+	/**
+	 * Constructs an empty store.
+	 *
+	 * @param capacity The maximum number of bytes of the slabs, -1 for no
+	 *            limit.
+	 */
+	OffHeapStore(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of the slabs. A lower capacity stops
+	 * the store from growing, the slabs already allocated are kept.
+	 *
+	 * @param capacity The maximum number of bytes of the slabs, -1 for no
+	 *            limit.
+	 */
+	void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the number of blocks needed to store an array.
+	 *
+	 * @param length The length of the array.
+	 * @return the number of blocks.
+	 */
+	static int blocksFor(int length) {
+		return Math.max(1, (length + BLOCK_DATA - 1) / BLOCK_DATA);
+	}
+
+	/**
+	 * Determines if an array can be stored once the store is emptied, that
+	 * is if its blocks are within the capacity of the store.
+	 *
+	 * @param length The length of the array.
+	 * @return true if the array fits in the store.
+	 */
+	boolean fits(int length) {
+		if (capacity < 0) {
+			return true;
+		}
+		// the slabs of a former larger capacity are kept
+		return blocksFor(length) <= Math.max(capacity, allocatedBytes)
+				/ BLOCK_SIZE;
+	}
+
+	/**
+	 * Stores an array.
+	 *
+	 * @param data The array.
+	 * @return the index of the first block of the array, or -1 if the store
+	 *         is full.
+	 */
+	int allocate(byte[] data) {
+		int needed = blocksFor(data.length);
+		while (freeCount + lastSlabRemaining() < needed) {
+			if (!addSlab()) {
+				return NONE;
+			}
+		}
+
+		int first = NONE;
+		int previous = NONE;
+		for (int i = 0; i < needed; i++) {
+			int block = takeBlock();
+			if (previous == NONE) {
+				first = block;
+			} else {
+				setNext(previous, block);
+			}
+			int offset = i * BLOCK_DATA;
+			ByteBuffer slab = slabOf(block);
+			slab.position(positionOf(block) + 4);
+			slab.put(data, offset, Math.min(BLOCK_DATA, data.length - offset));
+			previous = block;
+		}
+		setNext(previous, NONE);
+		usedCount += needed;
+		return first;
+	}
+
+	/**
+	 * Reads an array back.
+	 *
+	 * @param first The index of the first block of the array.
+	 * @param length The length of the array.
+	 * @return a copy of the array.
+	 */
+	byte[] read(int first, int length) {
+		byte[] data = new byte[length];
+		int block = first;
+		for (int offset = 0; offset < length; offset += BLOCK_DATA) {
+			ByteBuffer slab = slabOf(block);
+			slab.position(positionOf(block) + 4);
+			slab.get(data, offset, Math.min(BLOCK_DATA, length - offset));
+			block = nextOf(block);
+		}
+		return data;
+	}
+
+	/**
+	 * Frees the blocks of an array.
+	 *
+	 * @param first The index of the first block of the array.
+	 * @param length The length of the array.
+	 */
+	void free(int first, int length) {
+		int blocks = blocksFor(length);
+		int last = first;
+		for (int i = 1; i < blocks; i++) {
+			last = nextOf(last);
+		}
+		setNext(last, freeHead);
+		freeHead = first;
+		freeCount += blocks;
+		usedCount -= blocks;
+	}
+
+	/**
+	 * Frees all arrays and releases the slabs, which are reclaimed with
+	 * their <code>ByteBuffer</code>s.
+	 */
+	void clear() {
+		slabs.clear();
+		lastSlabUsed = 0;
+		freeHead = NONE;
+		freeCount = 0;
+		usedCount = 0;
+		allocatedBytes = 0;
+	}
+
+	/**
+	 * Returns the number of bytes of the slabs allocated outside the heap.
+	 *
+	 * @return the number of bytes allocated.
+	 */
+	long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes of the blocks holding arrays.
+	 *
+	 * @return the number of bytes used.
+	 */
+	long getUsedBytes() {
+		return usedCount * BLOCK_SIZE;
+	}
+
+	/**
+	 * Returns the number of blocks never handed out of the last slab.
+	 *
+	 * @return the number of blocks.
+	 */
+	private int lastSlabRemaining() {
+		if (slabs.isEmpty()) {
+			return 0;
+		}
+		return slabs.get(slabs.size() - 1).capacity() / BLOCK_SIZE
+				- lastSlabUsed;
+	}
+
+	/**
+	 * Allocates a new slab, the free blocks of the last slab are given to
+	 * the free list first.
+	 *
+	 * @return true if a slab has been allocated, false if the store is full.
+	 */
+	private boolean addSlab() {
+		long size = SLAB_SIZE;
+		if (capacity >= 0) {
+			size = Math.min(size, (capacity - allocatedBytes) / BLOCK_SIZE
+					* BLOCK_SIZE);
+		}
+		if (size <= 0) {
+			return false;
+		}
+
+		ByteBuffer slab;
+		try {
+			slab = ByteBuffer.allocateDirect((int) size);
+		} catch (OutOfMemoryError e) {
+			// out of direct memory, the cache evicts instead
+			return false;
+		}
+
+		int lastSlab = slabs.size() - 1;
+		for (int remaining = lastSlabRemaining(); remaining > 0; remaining--) {
+			int block = (lastSlab << SLAB_SHIFT) + lastSlabUsed++;
+			setNext(block, freeHead);
+			freeHead = block;
+			freeCount++;
+		}
+		slabs.add(slab);
+		lastSlabUsed = 0;
+		allocatedBytes += size;
+		return true;
+	}
+
+	/**
+	 * Takes a free block, from the free list or the last slab.
+	 *
+	 * @return the index of the block.
+	 */
+	private int takeBlock() {
+		if (freeHead != NONE) {
+			int block = freeHead;
+			freeHead = nextOf(block);
+			freeCount--;
+			return block;
+		}
+		return ((slabs.size() - 1) << SLAB_SHIFT) + lastSlabUsed++;
+	}
+
+	/**
+	 * Returns the slab holding a block.
+	 *
+	 * @param block The index of the block.
+	 * @return the slab.
+	 */
+	private ByteBuffer slabOf(int block) {
+		return slabs.get(block >>> SLAB_SHIFT);
+	}
+
+	/**
+	 * Returns the position of a block in its slab.
+	 *
+	 * @param block The index of the block.
+	 * @return the position in bytes.
+	 */
+	private static int positionOf(int block) {
+		return (block & SLAB_MASK) * BLOCK_SIZE;
+	}
+
+	/**
+	 * Returns the index of the block following a block in its chain.
+	 *
+	 * @param block The index of the block.
+	 * @return the index of the next block, or -1 at the end of the chain.
+	 */
+	private int nextOf(int block) {
+		return slabOf(block).getInt(positionOf(block));
+	}
+
+	/**
+	 * Sets the index of the block following a block in its chain.
+	 *
+	 * @param block The index of the block.
+	 * @param next The index of the next block, or -1 at the end of the chain.
+	 */
+	private void setNext(int block, int next) {
+		slabOf(block).putInt(positionOf(block), next);
+	}
+
+}
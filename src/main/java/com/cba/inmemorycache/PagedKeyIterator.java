@@ -0,0 +1,54 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * <code>PagedKeyIterator</code> iterates over the keys of a cache a page at a
+ * time, each page read under a single acquisition of the lock of the cache,
+ * so the keys are neither copied at once nor read with the lock held between
+ * the pages. The iterator does not support removal.
+ */
+abstract class PagedKeyIterator implements Iterator<Serializable> {
+
+	/** The keys of the current page. */
+	private final List<Serializable> page = new ArrayList<Serializable>();
+
+	/** The index of the next key in the page. */
+	private int index;
+
+	/** Whether the current page is the last one. */
+	private boolean last;
+
+	public boolean hasNext() {
+		while (index == page.size() && !last) {
+			page.clear();
+			index = 0;
+			last = !nextPage(page);
+		}
+		return index < page.size();
+	}
+
+	public Serializable next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.get(index++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Reads the next page of keys.
+	 *
+	 * @param page The list to add the keys to.
+	 * @return false if no key follows this page.
+	 */
+	abstract boolean nextPage(List<Serializable> page);
+
+}
@@ -0,0 +1,888 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>PartitionedMemoryCache</code> spreads the keys of a cache over a
+ * number of shards, each a <code>MemoryCache</code> of its own: caches of this
+ * JVM, e.g. off-heap caches each in its own memory, or the
+ * <code>RemoteMemoryCache</code>s of cache servers, so the data set is not
+ * bounded by one heap.
+ * <p>
+ * The keys are placed on a consistent hash ring, where each shard has a
+ * number of virtual nodes: a key belongs to the shard of the first virtual
+ * node after the hash of the key. Adding a shard moves to it only the keys
+ * of the ranges its virtual nodes take over, about one key in the new number
+ * of shards, and removing a shard moves only its own keys. The keys are
+ * streamed from the shards losing them in batches of
+ * <code>com.cba.inmemorycache.rebalanceBatchSize</code> (1000) keys, read
+ * and removed with the bulk operations of the shards, so a remote shard is
+ * moved in a few round trips per batch. A remote shard is scanned a page at
+ * a time, and a local shard lists its keys a page at a time under its lock.
+ * </p>
+ * <p>
+ * If moving the keys fails, the rebalance stays in progress: the keys left
+ * on the shards losing them are still found there, and
+ * <code>finishRebalance</code>, or the next change of the shards, moves
+ * them.
+ * </p>
+ * <p>
+ * The cache stays usable while it rebalances. The keys are routed by the new
+ * ring at once; a get missing a moving key on its new shard reads it from
+ * the old one, and a put or a remove of a moving key removes it from the old
+ * one and marks it, so the rebalance neither overwrites it nor brings it
+ * back. The writes hold the read lock of a <code>ReadWriteLock</code>, and a
+ * batch holds its write lock from checking the marks to writing the batch to
+ * the new shard, so a write is either moved or kept. The nodes sharing
+ * remote shards must give them the same names, and use keys whose hash code
+ * is the same in every JVM, like <code>String</code> or <code>Long</code>.
+ * </p>
+ */
+public class PartitionedMemoryCache implements MemoryCache {
+
+	/** For logging */
+	private final static Logger log = Logger
+			.getLogger(PartitionedMemoryCache.class.getName());
+
+	/** The default number of virtual nodes of a shard */
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	/** The number of keys moved at once when rebalancing */
+	static final int REBALANCE_BATCH_SIZE = Integer.getInteger(
+			"com.cba.inmemorycache.rebalanceBatchSize", 1000);
+
+	/** The name of the cache */
+	private final String cacheName;
+
+	/** The number of virtual nodes of each shard */
+	private final int virtualNodes;
+
+	/** The ring routing the keys */
+	private volatile Ring ring;
+
+	/** The ring before the rebalance in progress, null when not rebalancing */
+	private volatile Ring previous;
+
+	/**
+	 * The indexes in the previous ring of the shards whose keys are not moved
+	 * yet, guarded by this
+	 */
+	private final Set<Integer> sources = new LinkedHashSet<Integer>();
+
+	/**
+	 * Held for reading by the writes, and for writing by the switch of the
+	 * rings and by each batch of a rebalance
+	 */
+	private final ReadWriteLock moveLock = new ReentrantReadWriteLock();
+
+	/** The moving keys put or removed since the rebalance in progress started */
+	private final Set<Serializable> written = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Constructs a cache without shards, with the default number of virtual
+	 * nodes per shard.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	public PartitionedMemoryCache(String cacheName) {
+		this(cacheName, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Constructs a cache without shards.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param virtualNodes The number of virtual nodes of each shard; more
+	 *            nodes spread the keys more evenly.
+	 */
+	public PartitionedMemoryCache(String cacheName, int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("Virtual nodes " + virtualNodes
+					+ " must be positive");
+		}
+		this.cacheName = cacheName;
+		this.virtualNodes = virtualNodes;
+		this.ring = new Ring(new String[0], new MemoryCache[0], virtualNodes);
+	}
+
+	/**
+	 * Returns the name of the cache.
+	 *
+	 * @return the name of the cache.
+	 */
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	/**
+	 * Adds a shard, and moves to it the keys it takes over from the others.
+	 * A rebalance left in progress by a failure is finished first.
+	 *
+	 * @param shardName The name of the shard, which places it on the ring.
+	 * @param shard The shard.
+	 * @return the number of elements moved to the shard.
+	 * @exception IOException Error when moving the elements.
+	 */
+	public synchronized int addShard(String shardName, MemoryCache shard)
+			throws IOException {
+		finishRebalance();
+		Ring from = ring;
+		if (from.indexOf(shardName) >= 0) {
+			throw new IllegalArgumentException("Shard " + shardName
+					+ " is already in cache " + cacheName);
+		}
+		String[] names = Arrays.copyOf(from.names, from.names.length + 1);
+		MemoryCache[] shards = Arrays.copyOf(from.shards,
+				from.shards.length + 1);
+		names[names.length - 1] = shardName;
+		shards[shards.length - 1] = shard;
+		Ring to = new Ring(names, shards, virtualNodes);
+
+		// the shards losing keys own the ranges of the new virtual nodes
+		Set<Integer> sources = new LinkedHashSet<Integer>();
+		if (from.points.length > 0) {
+			for (long point : to.points) {
+				if (to.ownerOf(point) == names.length - 1) {
+					sources.add(Integer.valueOf(from.ownerOf(point)));
+				}
+			}
+		}
+		return rebalance(from, to, sources);
+	}
+
+	/**
+	 * Removes a shard, and moves its keys to the others. A rebalance left in
+	 * progress by a failure is finished first. If the move fails, the shard
+	 * keeps the elements not moved yet, which are still found through this
+	 * cache until the rebalance is finished.
+	 *
+	 * @param shardName The name of the shard.
+	 * @return the number of elements moved from the shard.
+	 * @exception IOException Error when moving the elements.
+	 */
+	public synchronized int removeShard(String shardName) throws IOException {
+		finishRebalance();
+		Ring from = ring;
+		int index = from.indexOf(shardName);
+		if (index < 0) {
+			throw new IllegalArgumentException("Shard " + shardName
+					+ " is not in cache " + cacheName);
+		}
+		String[] names = new String[from.names.length - 1];
+		MemoryCache[] shards = new MemoryCache[from.shards.length - 1];
+		for (int i = 0, j = 0; i < from.names.length; i++) {
+			if (i != index) {
+				names[j] = from.names[i];
+				shards[j++] = from.shards[i];
+			}
+		}
+		Ring to = new Ring(names, shards, virtualNodes);
+		if (names.length == 0) {
+			ring = to;
+			return 0;
+		}
+		return rebalance(from, to, Collections.singleton(Integer
+				.valueOf(index)));
+	}
+
+	/**
+	 * Returns the names of the shards.
+	 *
+	 * @return the names of the shards, in the order they were added.
+	 */
+	public List<String> getShardNames() {
+		return Collections.unmodifiableList(Arrays.asList(ring.names));
+	}
+
+	/**
+	 * Returns a shard.
+	 *
+	 * @param shardName The name of the shard.
+	 * @return the shard, null if there is no shard of that name.
+	 */
+	public MemoryCache getShard(String shardName) {
+		Ring current = ring;
+		int index = current.indexOf(shardName);
+		return index < 0 ? null : current.shards[index];
+	}
+
+	/**
+	 * Returns the name of the shard a key belongs to.
+	 *
+	 * @param key The key.
+	 * @return the name of the shard, null if there is no shard.
+	 */
+	public String getShardName(Serializable key) {
+		Ring current = ring;
+		return current.points.length == 0 ? null : current.names[current
+				.ownerOf(hash(key))];
+	}
+
+	/**
+	 * Finishes a rebalance left in progress by a failure, moving the keys
+	 * still on the shards losing them.
+	 *
+	 * @return the number of elements moved, 0 if no rebalance is in
+	 *         progress.
+	 * @exception IOException Error when moving the elements, the rebalance
+	 *                is still in progress.
+	 */
+	public synchronized int finishRebalance() throws IOException {
+		return previous == null ? 0 : transfer();
+	}
+
+	/**
+	 * Routes the keys to their new shards and moves them there from the
+	 * shards losing them.
+	 *
+	 * @param from The ring before the change.
+	 * @param to The ring after the change.
+	 * @param losing The indexes in <code>from</code> of the shards losing
+	 *            keys.
+	 * @return the number of elements moved.
+	 * @exception IOException Error when moving the elements.
+	 */
+	private int rebalance(Ring from, Ring to, Set<Integer> losing)
+			throws IOException {
+		Lock lock = moveLock.writeLock();
+		lock.lock();
+		try {
+			previous = from;
+			ring = to;
+		} finally {
+			lock.unlock();
+		}
+		sources.addAll(losing);
+		return transfer();
+	}
+
+	/**
+	 * Moves the keys of the shards losing keys, and ends the rebalance once
+	 * they are all moved. A shard is only dropped from the sources once its
+	 * keys are moved, so the rebalance stays in progress after a failure.
+	 *
+	 * @return the number of elements moved.
+	 * @exception IOException Error when moving the elements.
+	 */
+	private int transfer() throws IOException {
+		Ring from = previous;
+		Ring to = ring;
+		int moved = 0;
+		for (Iterator<Integer> it = sources.iterator(); it.hasNext();) {
+			int source = it.next().intValue();
+			moved += transfer(from.names[source], from.shards[source], to);
+			it.remove();
+		}
+		Lock lock = moveLock.writeLock();
+		lock.lock();
+		try {
+			previous = null;
+			written.clear();
+		} finally {
+			lock.unlock();
+		}
+		log.log(Level.INFO, "Moved " + moved + " elements of cache "
+				+ cacheName + " to " + to.names.length + " shards");
+		return moved;
+	}
+
+	/**
+	 * Streams the keys of a shard which belong to other shards in a ring to
+	 * those shards.
+	 *
+	 * @param sourceName The name of the shard.
+	 * @param source The shard.
+	 * @param to The ring.
+	 * @return the number of elements moved.
+	 * @exception IOException Error when moving the elements.
+	 */
+	private int transfer(String sourceName, MemoryCache source, Ring to)
+			throws IOException {
+		Map<MemoryCache, List<Serializable>> batches = new HashMap<MemoryCache, List<Serializable>>();
+		int moved = 0;
+		if (source instanceof RemoteMemoryCache) {
+			RemoteMemoryCache remote = (RemoteMemoryCache) source;
+			int cursor = 0;
+			do {
+				RemoteMemoryCache.Scan scan = remote.scan(cursor,
+						REBALANCE_BATCH_SIZE);
+				for (CacheElement ce : scan.elements) {
+					moved += add(batches, source, to, ce.getKey());
+				}
+				cursor = scan.next;
+			} while (cursor != 0);
+		} else if (source instanceof AbstractMemoryCache) {
+			Iterator<Serializable> keys = ((AbstractMemoryCache) source)
+					.keys(REBALANCE_BATCH_SIZE);
+			while (keys.hasNext()) {
+				moved += add(batches, source, to, keys.next());
+			}
+		} else {
+			throw new IOException("Shard " + sourceName + " of "
+					+ source.getClass().getSimpleName()
+					+ " cannot list its elements");
+		}
+		for (Map.Entry<MemoryCache, List<Serializable>> batch : batches
+				.entrySet()) {
+			moved += move(source, batch.getKey(), batch.getValue());
+		}
+		return moved;
+	}
+
+	/**
+	 * Adds a key of a shard to the batch of the shard it belongs to, and
+	 * moves the batch once it is full.
+	 *
+	 * @param batches The keys to be moved, by shard.
+	 * @param source The shard holding the key.
+	 * @param to The ring.
+	 * @param key The key.
+	 * @return the number of elements moved.
+	 * @exception IOException Error when moving the elements.
+	 */
+	private int add(Map<MemoryCache, List<Serializable>> batches,
+			MemoryCache source, Ring to, Serializable key) throws IOException {
+		MemoryCache target = to.shards[to.ownerOf(hash(key))];
+		if (target == source) {
+			return 0;
+		}
+		List<Serializable> keys = batches.get(target);
+		if (keys == null) {
+			keys = new ArrayList<Serializable>(REBALANCE_BATCH_SIZE);
+			batches.put(target, keys);
+		}
+		keys.add(key);
+		if (keys.size() < REBALANCE_BATCH_SIZE) {
+			return 0;
+		}
+		batches.remove(target);
+		return move(source, target, keys);
+	}
+
+	/**
+	 * Moves a batch of keys from a shard to another. The elements are read
+	 * from the source when moved, and the keys put or removed since the
+	 * rebalance started are skipped, under the write lock of the moves.
+	 *
+	 * @param source The shard losing the keys.
+	 * @param target The shard taking the keys.
+	 * @param keys The keys.
+	 * @return the number of elements moved.
+	 * @exception IOException Error when moving the elements.
+	 */
+	private int move(MemoryCache source, MemoryCache target,
+			List<Serializable> keys) throws IOException {
+		Map<Serializable, CacheElement> found = source.getAll(keys);
+		long now = currentTimeMillis(source);
+		List<CacheElement> copies = new ArrayList<CacheElement>(found.size());
+		Lock lock = moveLock.writeLock();
+		lock.lock();
+		try {
+			// a key written meanwhile is not checked again until the batch
+			// is written
+			for (CacheElement ce : found.values()) {
+				long remainingLifeSeconds = ce.getRemainingLifeSeconds(now);
+				// an element about to expire is not worth moving
+				if (remainingLifeSeconds != 0
+						&& !written.contains(ce.getKey())) {
+					copies.add(copyOf(target, ce, remainingLifeSeconds));
+				}
+			}
+			if (target instanceof RemoteMemoryCache) {
+				((RemoteMemoryCache) target).updateAll(copies);
+			} else {
+				for (CacheElement ce : copies) {
+					target.update(ce);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		source.removeAll(keys);
+		return copies.size();
+	}
+
+	/**
+	 * Returns a copy of an element to be put into another shard, with the
+	 * life it has left.
+	 *
+	 * @param target The shard.
+	 * @param ce The element.
+	 * @param remainingLifeSeconds The life the element has left, -1 for no
+	 *            limit.
+	 * @return the copy.
+	 */
+	private CacheElement copyOf(MemoryCache target, CacheElement ce,
+			long remainingLifeSeconds) {
+		CacheElement copy = target instanceof AbstractMemoryCache ? ((AbstractMemoryCache) target)
+				.createElement(ce.getKey(), ce.getValue())
+				: new CacheElement(cacheName, ce.getKey(), ce.getValue());
+		copy.setMaxLifeSeconds(remainingLifeSeconds);
+		return copy;
+	}
+
+	/**
+	 * Returns the current time of the clock the elements of a shard are
+	 * timed with.
+	 *
+	 * @param shard The shard.
+	 * @return the current time in milliseconds.
+	 */
+	private static long currentTimeMillis(MemoryCache shard) {
+		if (shard instanceof RemoteMemoryCache) {
+			shard = ((RemoteMemoryCache) shard).getNearCache();
+		}
+		return shard instanceof AbstractMemoryCache ? ((AbstractMemoryCache) shard)
+				.currentTimeMillis()
+				: System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the shard of a key.
+	 *
+	 * @param key The key.
+	 * @return the shard.
+	 * @exception IOException The cache has no shard.
+	 */
+	private MemoryCache shardOf(Serializable key) throws IOException {
+		Ring current = ring;
+		if (current.points.length == 0) {
+			throw new IOException("Cache " + cacheName + " has no shard");
+		}
+		return current.shards[current.ownerOf(hash(key))];
+	}
+
+	/**
+	 * Returns the shard a key belonged to before the rebalance in progress,
+	 * if it is moving to another shard.
+	 *
+	 * @param key The key.
+	 * @param shard The shard the key belongs to.
+	 * @return the shard the key is moving from, null if it is not moving.
+	 */
+	private MemoryCache movingFrom(Serializable key, MemoryCache shard) {
+		Ring from = previous;
+		if (from == null) {
+			return null;
+		}
+		MemoryCache old = from.shards[from.ownerOf(hash(key))];
+		return old == shard ? null : old;
+	}
+
+	/**
+	 * Removes a key written to its shard from the shard it is moving from,
+	 * if any, and marks it as written, so the rebalance does not move the old
+	 * element. Must be called while holding the read lock of the moves.
+	 *
+	 * @param key The key.
+	 * @param shard The shard the key belongs to.
+	 * @return true if the key was removed from the old shard.
+	 * @exception IOException Error when removing the key.
+	 */
+	private boolean forgetMoving(Serializable key, MemoryCache shard)
+			throws IOException {
+		MemoryCache old = movingFrom(key, shard);
+		if (old == null) {
+			return false;
+		}
+		written.add(key);
+		return old.remove(key);
+	}
+
+	/**
+	 * Groups keys by shard.
+	 *
+	 * @param keys The keys.
+	 * @return the keys of each shard.
+	 * @exception IOException The cache has no shard.
+	 */
+	private Map<MemoryCache, List<Serializable>> groupByShard(
+			Collection<? extends Serializable> keys) throws IOException {
+		Map<MemoryCache, List<Serializable>> groups = new LinkedHashMap<MemoryCache, List<Serializable>>();
+		for (Serializable key : keys) {
+			MemoryCache shard = shardOf(key);
+			List<Serializable> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<Serializable>();
+				groups.put(shard, group);
+			}
+			group.add(key);
+		}
+		return groups;
+	}
+
+	/**
+	 * Returns the shards, with the shards still losing keys to a rebalance
+	 * in progress.
+	 *
+	 * @return the shards.
+	 */
+	private Collection<MemoryCache> shards() {
+		Set<MemoryCache> shards = new LinkedHashSet<MemoryCache>(Arrays
+				.asList(ring.shards));
+		Ring from = previous;
+		if (from != null) {
+			shards.addAll(Arrays.asList(from.shards));
+		}
+		return shards;
+	}
+
+	/**
+	 * Returns the number of elements of all the shards.
+	 *
+	 * @return the number of elements.
+	 */
+	public int getSize() {
+		int size = 0;
+		for (MemoryCache shard : shards()) {
+			size += shard.getSize();
+		}
+		return size;
+	}
+
+	public boolean remove(Serializable key) throws IOException {
+		Lock lock = moveLock.readLock();
+		lock.lock();
+		try {
+			MemoryCache shard = shardOf(key);
+			boolean removed = shard.remove(key);
+			return forgetMoving(key, shard) || removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void removeAll() throws IOException {
+		for (MemoryCache shard : shards()) {
+			shard.removeAll();
+		}
+	}
+
+	/**
+	 * Removes elements from the shards, each in proportion to its size.
+	 *
+	 * @param numberToFree the number of elements to be removed.
+	 * @return the number of elements removed.
+	 * @exception IOException Error when removing the elements.
+	 */
+	public int freeElements(int numberToFree) throws IOException {
+		MemoryCache[] shards = ring.shards;
+		long size = 0;
+		int[] sizes = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			sizes[i] = shards[i].getSize();
+			size += sizes[i];
+		}
+		int freed = 0;
+		for (int i = 0; i < shards.length && freed < numberToFree
+				&& size > 0; i++) {
+			int share = (int) Math.min(numberToFree - freed,
+					(numberToFree * (long) sizes[i] + size - 1) / size);
+			if (share > 0) {
+				freed += shards[i].freeElements(share);
+			}
+		}
+		return freed;
+	}
+
+	public void cleanup() throws IOException {
+		for (MemoryCache shard : shards()) {
+			shard.cleanup();
+		}
+	}
+
+	public CacheElement get(Serializable key) throws IOException {
+		MemoryCache shard = shardOf(key);
+		CacheElement ce = shard.get(key);
+		if (ce == null) {
+			MemoryCache old = movingFrom(key, shard);
+			if (old != null) {
+				ce = old.get(key);
+			}
+		}
+		return ce;
+	}
+
+	public void update(CacheElement ce) throws IOException {
+		Lock lock = moveLock.readLock();
+		lock.lock();
+		try {
+			MemoryCache shard = shardOf(ce.getKey());
+			shard.update(ce);
+			forgetMoving(ce.getKey(), shard);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void put(Object key, Object val) throws IOException {
+		if (!(key instanceof Serializable)) {
+			throw new IOException("Key " + key + " is not serializable");
+		}
+		Lock lock = moveLock.readLock();
+		lock.lock();
+		try {
+			MemoryCache shard = shardOf((Serializable) key);
+			shard.put(key, val);
+			forgetMoving((Serializable) key, shard);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void put(Object key, Object val, Expiry expiry) throws IOException {
+		if (!(key instanceof Serializable)) {
+			throw new IOException("Key " + key + " is not serializable");
+		}
+		Lock lock = moveLock.readLock();
+		lock.lock();
+		try {
+			MemoryCache shard = shardOf((Serializable) key);
+			shard.put(key, val, expiry);
+			forgetMoving((Serializable) key, shard);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		Map<Serializable, CacheElement> all = new HashMap<Serializable, CacheElement>();
+		for (Map.Entry<MemoryCache, List<Serializable>> group : groupByShard(
+				keys).entrySet()) {
+			all.putAll(group.getKey().getAll(group.getValue()));
+		}
+
+		Map<Serializable, CacheElement> found = new LinkedHashMap<Serializable, CacheElement>();
+		for (Serializable key : keys) {
+			CacheElement ce = all.get(key);
+			if (ce == null && previous != null) {
+				ce = get(key);
+			}
+			if (ce != null) {
+				found.put(key, ce);
+			}
+		}
+		return found;
+	}
+
+	public void putAll(Map<?, ?> map) throws IOException {
+		Lock lock = moveLock.readLock();
+		lock.lock();
+		try {
+			Map<MemoryCache, Map<Object, Object>> groups = new LinkedHashMap<MemoryCache, Map<Object, Object>>();
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				if (!(entry.getKey() instanceof Serializable)) {
+					throw new IOException("Key " + entry.getKey()
+							+ " is not serializable");
+				}
+				MemoryCache shard = shardOf((Serializable) entry.getKey());
+				Map<Object, Object> group = groups.get(shard);
+				if (group == null) {
+					group = new LinkedHashMap<Object, Object>();
+					groups.put(shard, group);
+				}
+				group.put(entry.getKey(), entry.getValue());
+			}
+			for (Map.Entry<MemoryCache, Map<Object, Object>> group : groups
+					.entrySet()) {
+				group.getKey().putAll(group.getValue());
+				if (previous != null) {
+					for (Object key : group.getValue().keySet()) {
+						forgetMoving((Serializable) key, group.getKey());
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		Lock lock = moveLock.readLock();
+		lock.lock();
+		try {
+			int removed = 0;
+			for (Map.Entry<MemoryCache, List<Serializable>> group : groupByShard(
+					keys).entrySet()) {
+				removed += group.getKey().removeAll(group.getValue());
+				if (previous != null) {
+					for (Serializable key : group.getValue()) {
+						if (forgetMoving(key, group.getKey())) {
+							removed++;
+						}
+					}
+				}
+			}
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the statistics of all the shards added up, without the
+	 * latencies.
+	 *
+	 * @return the statistics of the cache.
+	 */
+	public CacheStats getStats() {
+		List<CacheStats> parts = new ArrayList<CacheStats>();
+		for (MemoryCache shard : shards()) {
+			parts.add(shard.getStats());
+		}
+		return CacheStats.sum(cacheName, parts);
+	}
+
+	/**
+	 * Returns the position of a key on the ring.
+	 *
+	 * @param key The key.
+	 * @return the hash of the key.
+	 */
+	static long hash(Serializable key) {
+		return mix(key.hashCode());
+	}
+
+	/**
+	 * Returns the position of a virtual node on the ring.
+	 *
+	 * @param shardName The name of the shard.
+	 * @param node The number of the virtual node.
+	 * @return the hash of the virtual node.
+	 */
+	static long hash(String shardName, int node) {
+		// FNV-1a over the characters, then mixed with the number
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < shardName.length(); i++) {
+			h ^= shardName.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h + node * 0x9E3779B97F4A7C15L);
+	}
+
+	/**
+	 * Spreads the bits of a number over the 64 bits of its hash, the
+	 * finalizer of MurmurHash3.
+	 *
+	 * @param h The number.
+	 * @return the hash.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * The virtual nodes of the shards, sorted by their position on the ring.
+	 * A ring is not changed once built.
+	 */
+	private static final class Ring {
+
+		/** The names of the shards */
+		final String[] names;
+
+		/** The shards */
+		final MemoryCache[] shards;
+
+		/** The positions of the virtual nodes, sorted */
+		final long[] points;
+
+		/** The index of the shard of each virtual node */
+		final int[] owners;
+
+		/**
+		 * Builds the ring of a number of shards.
+		 *
+		 * @param names The names of the shards.
+		 * @param shards The shards.
+		 * @param virtualNodes The number of virtual nodes of each shard.
+		 */
+		Ring(String[] names, MemoryCache[] shards, int virtualNodes) {
+			this.names = names;
+			this.shards = shards;
+			final long[] hashes = new long[names.length * virtualNodes];
+			Integer[] order = new Integer[hashes.length];
+			for (int i = 0; i < names.length; i++) {
+				for (int j = 0; j < virtualNodes; j++) {
+					int node = i * virtualNodes + j;
+					hashes[node] = hash(names[i], j);
+					order[node] = Integer.valueOf(node);
+				}
+			}
+			// two nodes at the same position go by the name of their shard
+			final String[] shardNames = names;
+			final int nodesPerShard = virtualNodes;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = Long.compare(hashes[a.intValue()], hashes[b
+							.intValue()]);
+					return c != 0 ? c : shardNames[a.intValue()
+							/ nodesPerShard].compareTo(shardNames[b.intValue()
+							/ nodesPerShard]);
+				}
+			});
+			points = new long[hashes.length];
+			owners = new int[hashes.length];
+			for (int i = 0; i < order.length; i++) {
+				points[i] = hashes[order[i].intValue()];
+				owners[i] = order[i].intValue() / virtualNodes;
+			}
+		}
+
+		/**
+		 * Returns the index of a shard.
+		 *
+		 * @param shardName The name of the shard.
+		 * @return the index, -1 if the shard is not on the ring.
+		 */
+		int indexOf(String shardName) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(shardName)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the shard of the first virtual node at or after a
+		 * position, going round the ring.
+		 *
+		 * @param hash The position.
+		 * @return the index of the shard.
+		 */
+		int ownerOf(long hash) {
+			int i = Arrays.binarySearch(points, hash);
+			if (i < 0) {
+				i = -i - 1;
+			}
+			return owners[i == points.length ? 0 : i];
+		}
+	}
+
+}
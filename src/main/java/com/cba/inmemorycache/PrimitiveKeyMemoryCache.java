@@ -0,0 +1,1093 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>PrimitiveKeyMemoryCache</code> is the base of the least recently used
+ * caches keyed by a primitive number, which store their elements in parallel
+ * arrays instead of <code>CacheElement</code> objects.
+ * <p>
+ * The elements are kept in an open addressing table with linear probing.
+ * The subclass holds the keys in an array of its primitive type, this class
+ * holds everything else by slot: the values, the settings and the times of
+ * the elements, and the LRU list, whose links are slot indexes. Removing an
+ * element shifts the following elements of its probe sequence back, so the
+ * table needs no tombstones, and the links of a moved element are updated.
+ * A hit or a put of an existing key allocates nothing.
+ * </p>
+ * <p>
+ * The <code>MemoryCache</code> methods take boxed keys, which must be a
+ * <code>Byte</code>, <code>Short</code>, <code>Integer</code> or
+ * <code>Long</code> in the range of the primitive type of the subclass:
+ * any other key is rejected rather than narrowed, so two keys never share
+ * a slot.
+ * </p>
+ * <p>
+ * The TTL settings are honoured like in <code>LRUMemoryCache</code>, but
+ * without a timer wheel: <code>cleanup</code> scans the table, unless no
+ * element has a TTL. All operations lock the cache itself, the bulk
+ * operations once for all their keys.
+ * </p>
+ *
+ * @param <V> The type of the values.
+ */
+abstract class PrimitiveKeyMemoryCache<V extends Serializable> extends
+		AbstractMemoryCache {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The initial number of slots, a power of two. */
+	static final int INITIAL_CAPACITY = 16;
+
+	/** The link marking the end of the LRU list. */
+	static final int NIL = -1;
+
+	/** The smallest key of the primitive type. */
+	private final long minKey;
+
+	/** The largest key of the primitive type. */
+	private final long maxKey;
+
+	/** The values by slot, null for a free slot. */
+	private Object[] values;
+
+	/** The settings of the elements by slot. */
+	private ElementProfile[] profiles;
+
+	/**
+	 * The max lives set on the elements by an expiry policy by slot, encoded
+	 * as <code>CacheElement.ownMaxLife</code>.
+	 */
+	private int[] ownMaxLives;
+
+	/** The creation times by slot, encoded by their profile. */
+	private int[] createTimes;
+
+	/** The last access times by slot, encoded by their profile. */
+	private int[] lastAccessTimes;
+
+	/** The weights by slot. */
+	private int[] weights;
+
+	/** The previous (more recently used) slot in the LRU list. */
+	private int[] prev;
+
+	/** The next (less recently used) slot in the LRU list. */
+	private int[] next;
+
+	/** The most recently used slot. */
+	private int head = NIL;
+
+	/** The least recently used slot. */
+	private int tail = NIL;
+
+	/** The number of elements. */
+	private int size;
+
+	/** The number of elements with a TTL setting. */
+	private int expiringCount;
+
+	/** The slot the next cleanup scans from. */
+	private int cleanupSlot;
+
+	/** Total weight of the elements in this cache */
+	private long weightedSize;
+
+	/** Number of elements evicted from this cache */
+	private long evictionCount;
+
+	/**
+	 * Constructs an empty cache with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param minKey The smallest key of the primitive type.
+	 * @param maxKey The largest key of the primitive type.
+	 */
+	PrimitiveKeyMemoryCache(String cacheName, long minKey, long maxKey) {
+		super(cacheName);
+		this.minKey = minKey;
+		this.maxKey = maxKey;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the total weight of the elements in the cache, as calculated by
+	 * the weigher of the cache attributes.
+	 *
+	 * @return the total weight of the elements in the cache.
+	 */
+	public long getWeightedSize() {
+		synchronized (this) {
+			return weightedSize;
+		}
+	}
+
+	/**
+	 * Returns the number of elements evicted from the cache, either because
+	 * the cache was full or by <code>freeElements</code>.
+	 *
+	 * @return the number of elements evicted from the cache.
+	 */
+	public long getEvictionCount() {
+		synchronized (this) {
+			return evictionCount;
+		}
+	}
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return the size of the cache.
+	 */
+	public int getSize() {
+		synchronized (this) {
+			return size;
+		}
+	}
+
+	/**
+	 * Removes cached object with the specified key, which must be an integral
+	 * number in the range of the keys.
+	 *
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 * @exception IOException The key is not in the range of the keys.
+	 */
+	public boolean remove(Serializable key) throws IOException {
+		return removeKey(toKey(key));
+	}
+
+	/**
+	 * Removes all cached items from the cache.
+	 *
+	 * @exception IOException Error when removing all objects from the cache.
+	 */
+	public void removeAll() throws IOException {
+		synchronized (this) {
+			allocate(INITIAL_CAPACITY);
+			head = NIL;
+			tail = NIL;
+			size = 0;
+			expiringCount = 0;
+			weightedSize = 0;
+		}
+	}
+
+	/**
+	 * Removes the least recently used objects in the cache.
+	 *
+	 * @param numberToFree The number of objects to be removed from the cached.
+	 * @return The number of objects that are actually removed from the cached.
+	 * @exception IOException Error when removing objects from the cache.
+	 */
+	public int freeElements(int numberToFree) throws IOException {
+		int freed = 0;
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			for (; freed < numberToFree && tail != NIL; freed++) {
+				removeSlot(tail);
+				evictionCount++;
+			}
+			CacheEvents.lockHeld(getCacheName(), "freeElements", held);
+		}
+		getStatsCounter().recordEvictions(freed);
+		return freed;
+	}
+
+	/**
+	 * Removes the objects that TTL has been expired, and evicts the elements
+	 * a burst of puts left over the cache limits. The table is only scanned
+	 * if an element has a TTL setting.
+	 *
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	public void cleanup() throws IOException {
+		cleanup(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Cleans up the cache, visiting at most <code>maxToRemove</code> slots of
+	 * the table and evicting at most as many elements less the expired ones.
+	 * The next call scans the table from the slot this one stopped at.
+	 *
+	 * @param maxToRemove The maximum number of elements to be removed.
+	 * @return true if the cleanup is done, false if elements may be left for
+	 *         the next call.
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			int work = 0;
+			boolean scanned = true;
+			if (expiringCount > 0) {
+				long now = currentTimeMillis();
+				int slot = cleanupSlot;
+				for (; work < maxToRemove && slot < values.length; work++) {
+					if (values[slot] != null && isExpired(slot, now)) {
+						// a following element may be shifted into the slot
+						removeSlot(slot);
+						getStatsCounter().recordExpiration();
+					} else {
+						slot++;
+					}
+				}
+				scanned = slot >= values.length;
+				cleanupSlot = scanned ? 0 : slot;
+			}
+			int maxToEvict = maxToRemove - work;
+			boolean done = scanned && evictOverflow(maxToEvict) < maxToEvict;
+			CacheEvents.lockHeld(getCacheName(), "cleanup", held);
+			return done;
+		}
+	}
+
+	/**
+	 * Returns the cached objects for the specified keys, under a single
+	 * acquisition of the lock.
+	 *
+	 * @param keys the keys for the objects to be retrieved.
+	 * @return The cached objects found, by key, in the order of the keys.
+	 * @exception IOException A key is not in the range of the keys.
+	 */
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		// check every key before taking the lock
+		long[] ks = toKeys(keys);
+		Map<Serializable, CacheElement> found = new LinkedHashMap<Serializable, CacheElement>();
+		int i = 0;
+
+		synchronized (this) {
+			for (Serializable key : keys) {
+				CacheElement ce = lookup(ks[i++], key);
+				if (ce != null) {
+					found.put(key, ce);
+				}
+			}
+		}
+
+		getStatsCounter().recordGets(found.size(), ks.length - found.size());
+		return found;
+	}
+
+	/**
+	 * Puts a number of objects into the cache, under a single acquisition of
+	 * the lock.
+	 *
+	 * @param map The objects to be put into cache, by key.
+	 * @exception IOException Error when adding the objects to the cache.
+	 */
+	public void putAll(Map<?, ?> map) throws IOException {
+		List<CacheElement> elements = createElements(map);
+		// check and weigh every element before taking the lock
+		long[] keys = new long[elements.size()];
+		int[] weights = new int[keys.length];
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		for (int i = 0; i < keys.length; i++) {
+			CacheElement ce = elements.get(i);
+			keys[i] = toKey(ce.getKey());
+			weights[i] = cacheAttributes.weigh(ce.getKey(), ce.getValue());
+		}
+		synchronized (this) {
+			for (int i = 0; i < keys.length; i++) {
+				storeElement(keys[i], elements.get(i), weights[i]);
+			}
+		}
+		getStatsCounter().recordPuts(keys.length);
+	}
+
+	/**
+	 * Removes the cached objects with the specified keys, under a single
+	 * acquisition of the lock.
+	 *
+	 * @param keys The keys for the objects to be removed from the cache.
+	 * @return the number of objects removed.
+	 * @exception IOException Error when removing the objects from the cache.
+	 */
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		// check every key before taking the lock
+		long[] ks = toKeys(keys);
+		int removed = 0;
+
+		synchronized (this) {
+			for (long key : ks) {
+				int slot = indexOf(key);
+				if (slot >= 0) {
+					removeSlot(slot);
+					removed++;
+				}
+			}
+		}
+
+		getStatsCounter().recordRemovals(removed);
+		return removed;
+	}
+
+	/**
+	 * Returns a copy of the cached object for the specified key, which must
+	 * be an integral number in the range of the keys. Prefer the methods
+	 * taking a primitive key, which do not allocate.
+	 *
+	 * @param key the key for the object to be retrieved.
+	 * @return The cached object for the specified key.
+	 * @exception IOException The key is not in the range of the keys.
+	 */
+	public CacheElement get(Serializable key) throws IOException {
+		long k = toKey(key);
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		CacheElement ce;
+
+		synchronized (this) {
+			ce = lookup(k, key);
+		}
+
+		statsCounter.recordGet(start, ce != null);
+		return ce;
+	}
+
+	/**
+	 * Returns a copy of the element of a key, after recording the access to
+	 * it. Must be called while holding the lock of the cache.
+	 *
+	 * @param k The key, in the range of the keys.
+	 * @param key The boxed key, as given by the caller.
+	 * @return the element, or null if it is not cached or expired.
+	 */
+	private CacheElement lookup(long k, Serializable key) {
+		int slot = indexOf(k);
+		if (slot < 0 || hit(slot) == null) {
+			return null;
+		}
+		ElementProfile profile = profiles[slot];
+		CacheElement ce = new CacheElement(profile, key,
+				(Serializable) values[slot], profile.decode(createTimes[slot]));
+		ce.setLastAccessTime(profile.decode(lastAccessTimes[slot]));
+		ce.ownMaxLife = ownMaxLives[slot];
+		return ce;
+	}
+
+	/**
+	 * Updates the cached object, whose key must be an integral number in the
+	 * range of the keys. The element keeps its value, settings and create
+	 * time, not the object.
+	 *
+	 * @param ce The cached object to be updated.
+	 * @exception IOException The key is not in the range of the keys.
+	 */
+	public void update(CacheElement ce) throws IOException {
+		long key = toKey(ce.getKey());
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		int weight = getCacheAttributes().weigh(ce.getKey(), ce.getValue());
+		synchronized (this) {
+			storeElement(key, ce, weight);
+		}
+		statsCounter.recordPut(start);
+	}
+
+	/**
+	 * Stores the value, settings and create time of an element in the slot
+	 * of its key. Must be called while holding the lock of the cache.
+	 *
+	 * @param key The key, in the range of the keys.
+	 * @param ce The element.
+	 * @param weight The weight of the element.
+	 */
+	@SuppressWarnings("unchecked")
+	private void storeElement(long key, CacheElement ce, int weight) {
+		ElementProfile profile = ce.getProfile();
+		int slot = indexOf(key);
+		if (slot < 0) {
+			ensureCapacity();
+			slot = insert(key);
+		}
+		store(slot, (V) ce.getValue(), weight, profile, ce.ownMaxLife, profile
+				.encode(ce.getCreateTime()), currentTimeMillis());
+	}
+
+	/**
+	 * Puts an element restored from a snapshot into the cache, then gives
+	 * the slot of its key the time it was last accessed.
+	 *
+	 * @param ce The restored element.
+	 * @param lastAccessTime The time the element was last accessed.
+	 * @exception IOException The key is not in the range of the keys.
+	 */
+	void restore(CacheElement ce, long lastAccessTime) throws IOException {
+		update(ce);
+		long key = toKey(ce.getKey());
+		synchronized (this) {
+			int slot = indexOf(key);
+			if (slot >= 0) {
+				lastAccessTimes[slot] = profiles[slot].encode(lastAccessTime);
+			}
+		}
+	}
+
+	/**
+	 * Returns copies of the elements of the cache from the least to the most
+	 * recently used one.
+	 *
+	 * @return the elements of the cache.
+	 */
+	List<CacheElement> getElementsInAccessOrder() {
+		synchronized (this) {
+			List<CacheElement> elements = new ArrayList<CacheElement>(size);
+			for (int slot = tail; slot != NIL; slot = prev[slot]) {
+				elements.add(elementAt(slot));
+			}
+			return elements;
+		}
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, which reads a page of
+	 * keys at a time under the lock of the cache, in the order of the slots.
+	 * A page ends on a free slot, so a removal cannot shift a key of the next
+	 * pages back into the slots read. If the free slot has been taken since,
+	 * the next page starts again from the run of elements it joined. A resize
+	 * starts the iteration again from the first slot.
+	 *
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(final int pageSize) {
+		return new PagedKeyIterator() {
+
+			/** The table being read, to notice a resize. */
+			private Object[] table;
+
+			/** The slot of the next page. */
+			private int slot;
+
+			boolean nextPage(List<Serializable> page) {
+				synchronized (PrimitiveKeyMemoryCache.this) {
+					if (table != values) {
+						table = values;
+						slot = 0;
+					} else if (slot < values.length && values[slot] != null) {
+						while (slot > 0 && values[slot - 1] != null) {
+							slot--;
+						}
+					}
+					int added = 0;
+					while (slot < values.length
+							&& (added < pageSize || values[slot] != null)) {
+						if (values[slot] != null) {
+							page.add(keyAt(slot));
+							added++;
+						}
+						slot++;
+					}
+					return slot < values.length;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value for a key, without allocating.
+	 *
+	 * @param key The key of the value, in the range of the keys.
+	 * @return the value, or null if it is not cached or expired.
+	 */
+	final V getValue(long key) {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		V value;
+
+		synchronized (this) {
+			int slot = indexOf(key);
+			value = slot < 0 ? null : hit(slot);
+		}
+
+		statsCounter.recordGet(start, value != null);
+		return value;
+	}
+
+	/**
+	 * Puts a value into the cache. Replacing the value of a cached key does
+	 * not allocate unless the cache has a weigher.
+	 *
+	 * @param key The key of the value, in the range of the keys.
+	 * @param value The value to be cached.
+	 * @exception IOException The value is null.
+	 */
+	final void putValue(long key, V value) throws IOException {
+		if (value == null) {
+			throw new IOException("Value must not be null");
+		}
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		int weight = hasWeigher() ? getCacheAttributes().weigh(box(key), value)
+				: 1;
+		synchronized (this) {
+			int slot = indexOf(key);
+			if (slot < 0) {
+				ensureCapacity();
+				slot = insert(key);
+			}
+			store(slot, value, weight, currentTimeMillis());
+		}
+		statsCounter.recordPut(start);
+	}
+
+	/**
+	 * Removes the value for a key.
+	 *
+	 * @param key The key of the value, in the range of the keys.
+	 * @return true if the value has been removed, false if it was not cached.
+	 */
+	final boolean removeKey(long key) {
+		synchronized (this) {
+			int slot = indexOf(key);
+			if (slot < 0) {
+				return false;
+			}
+			removeSlot(slot);
+		}
+		getStatsCounter().recordRemoval();
+		return true;
+	}
+
+	/**
+	 * Returns the key in a slot.
+	 *
+	 * @param slot The slot.
+	 * @return the key.
+	 */
+	abstract long keyOf(int slot);
+
+	/**
+	 * Returns the key in a slot of an array of the keys.
+	 *
+	 * @param keys The array of the keys, as returned by {@link #keyArray()}.
+	 * @param slot The slot.
+	 * @return the key.
+	 */
+	abstract long keyOf(Object keys, int slot);
+
+	/**
+	 * Stores a key in a slot.
+	 *
+	 * @param slot The slot.
+	 * @param key The key, in the range of the keys.
+	 */
+	abstract void setKey(int slot, long key);
+
+	/**
+	 * Boxes a key, as the <code>MemoryCache</code> methods return it.
+	 *
+	 * @param key The key.
+	 * @return the boxed key.
+	 */
+	abstract Serializable box(long key);
+
+	/**
+	 * Allocates the array of the keys.
+	 *
+	 * @param capacity The number of slots.
+	 */
+	abstract void allocateKeys(int capacity);
+
+	/**
+	 * Returns the array of the keys, kept aside while the table is resized so
+	 * the keys can be inserted again.
+	 *
+	 * @return the array of the keys.
+	 */
+	abstract Object keyArray();
+
+	/**
+	 * Converts a boxed key into a key of the primitive type. Only the
+	 * integral boxes are accepted, so a fraction or a key out of the range is
+	 * not narrowed to the key of another element.
+	 *
+	 * @param key The boxed key.
+	 * @return the key.
+	 * @exception IOException The key is not an integral number in the range
+	 *                of the keys.
+	 */
+	private long toKey(Serializable key) throws IOException {
+		if (key instanceof Long || key instanceof Integer
+				|| key instanceof Short || key instanceof Byte) {
+			long k = ((Number) key).longValue();
+			if (k >= minKey && k <= maxKey) {
+				return k;
+			}
+		}
+		throw new IOException("Key " + key + " of cache " + getCacheName()
+				+ " is not an integral number in [" + minKey + ", " + maxKey
+				+ "]");
+	}
+
+	/**
+	 * Converts a number of boxed keys, in their order.
+	 *
+	 * @param keys The boxed keys.
+	 * @return the keys.
+	 * @exception IOException A key is not an integral number in the range of
+	 *                the keys.
+	 */
+	private long[] toKeys(Collection<? extends Serializable> keys)
+			throws IOException {
+		long[] ks = new long[keys.size()];
+		int i = 0;
+		for (Serializable key : keys) {
+			ks[i++] = toKey(key);
+		}
+		return ks;
+	}
+
+	/**
+	 * Returns the boxed key in a slot.
+	 *
+	 * @param slot The slot.
+	 * @return the key.
+	 */
+	private Serializable keyAt(int slot) {
+		return box(keyOf(slot));
+	}
+
+	/**
+	 * Returns the slot of a key.
+	 *
+	 * @param key The key.
+	 * @return the slot, or -1 if the key is not cached.
+	 */
+	private int indexOf(long key) {
+		int mask = mask();
+		for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+			if (values[slot] == null) {
+				return -1;
+			}
+			if (keyOf(slot) == key) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Takes the first free slot of the probe sequence of a new key.
+	 *
+	 * @param key The key.
+	 * @return the slot of the key.
+	 */
+	private int insert(long key) {
+		int mask = mask();
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		setKey(slot, key);
+		return slot;
+	}
+
+	/**
+	 * Spreads the bits of a key.
+	 *
+	 * @param key The key.
+	 * @return the hash of the key.
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Returns the mask giving a slot from a hash.
+	 *
+	 * @return the number of slots minus one.
+	 */
+	private int mask() {
+		return values.length - 1;
+	}
+
+	/**
+	 * Reads the element in a slot: removes it if it is expired, else records
+	 * the access. Must be called while holding the lock of the cache.
+	 *
+	 * @param slot The slot.
+	 * @return the value, or null if the element is expired.
+	 */
+	@SuppressWarnings("unchecked")
+	private V hit(int slot) {
+		long now = currentTimeMillis();
+		if (isExpired(slot, now)) {
+			removeSlot(slot);
+			getStatsCounter().recordExpiration();
+			return null;
+		}
+		lastAccessTimes[slot] = profiles[slot].encode(now);
+		if (profiles[slot].getExpiry() != null) {
+			CacheElement ce = elementAt(slot);
+			ce.expireAfterRead(ce.getValue(), now);
+			setProfile(slot, ce.getProfile(), ce.ownMaxLife);
+		}
+		moveToFirst(slot);
+		return (V) values[slot];
+	}
+
+	/**
+	 * Makes room for a new key, growing the table if it is too full. Must be
+	 * called while holding the lock of the cache, before a new key takes a
+	 * slot.
+	 */
+	private void ensureCapacity() {
+		if (size + 1 > values.length - (values.length >>> 2)) {
+			resize(values.length << 1);
+		}
+	}
+
+	/**
+	 * Stores an element created now in the slot of its key, as the most
+	 * recently used element, and evicts a bounded batch of elements if the
+	 * cache is full. Must be called while holding the lock of the cache.
+	 *
+	 * @param slot The slot of the key.
+	 * @param value The value.
+	 * @param weight The weight of the element.
+	 * @param now The current time in milliseconds.
+	 */
+	private void store(int slot, V value, int weight, long now) {
+		ElementProfile profile = currentProfile(now);
+		int ownMaxLife = 0;
+		Expiry expiry = profile.getExpiry();
+		if (expiry != null) {
+			CacheElement ce = new CacheElement(profile, keyAt(slot), value, now);
+			ce.expireAfterCreate(expiry, now);
+			profile = ce.getProfile();
+			ownMaxLife = ce.ownMaxLife;
+		}
+		store(slot, value, weight, profile, ownMaxLife, profile.encode(now),
+				now);
+	}
+
+	/**
+	 * Determines if the elements are weighed by a weigher, which takes a
+	 * boxed key.
+	 *
+	 * @return true if the cache attributes have a weigher.
+	 */
+	private boolean hasWeigher() {
+		return getCacheAttributes().getWeigher() != null;
+	}
+
+	/**
+	 * Removes the element in a slot, shifting the following elements of its
+	 * probe sequence back. Must be called while holding the lock of the cache.
+	 *
+	 * @param slot The slot.
+	 */
+	private void removeSlot(int slot) {
+		unlink(slot);
+		size--;
+		weightedSize -= weights[slot];
+		if (hasTtl(profiles[slot], ownMaxLives[slot])) {
+			expiringCount--;
+		}
+
+		int mask = mask();
+		int free = slot;
+		int current = slot;
+		while (true) {
+			current = (current + 1) & mask;
+			if (values[current] == null) {
+				break;
+			}
+			int home = hash(keyOf(current)) & mask;
+			// move the element unless its home lies cyclically in (free, current]
+			boolean stays = free <= current ? (free < home && home <= current)
+					: (free < home || home <= current);
+			if (!stays) {
+				moveSlot(current, free);
+				free = current;
+			}
+		}
+		values[free] = null;
+		profiles[free] = null;
+	}
+
+	/**
+	 * Stores an element in the slot of its key.
+	 *
+	 * @param slot The slot of the key.
+	 * @param value The value.
+	 * @param weight The weight of the element.
+	 * @param profile The settings of the element.
+	 * @param ownMaxLife The max life set on the element, encoded as
+	 *            <code>CacheElement.ownMaxLife</code>.
+	 * @param createTime The create time, encoded by the profile.
+	 * @param now The current time in milliseconds.
+	 */
+	private void store(int slot, V value, int weight, ElementProfile profile,
+			int ownMaxLife, int createTime, long now) {
+		if (values[slot] != null) {
+			if (profile.getExpiry() != null) {
+				CacheElement ce = new CacheElement(profile, keyAt(slot), value,
+						profile.decode(createTime));
+				ce.ownMaxLife = ownMaxLife;
+				ce.expireAfterUpdate(elementAt(slot), value, now);
+				profile = ce.getProfile();
+				ownMaxLife = ce.ownMaxLife;
+			}
+			// replace the element
+			unlink(slot);
+			weightedSize -= weights[slot];
+			if (hasTtl(profiles[slot], ownMaxLives[slot])) {
+				expiringCount--;
+			}
+		} else {
+			size++;
+		}
+		values[slot] = value;
+		profiles[slot] = profile;
+		ownMaxLives[slot] = ownMaxLife;
+		createTimes[slot] = createTime;
+		lastAccessTimes[slot] = profile.encode(now);
+		weights[slot] = weight;
+		weightedSize += weight;
+		if (hasTtl(profile, ownMaxLife)) {
+			expiringCount++;
+		}
+		linkFirst(slot);
+		evictOverflow(getCacheAttributes().getMaxEvictionsPerPut());
+	}
+
+	/**
+	 * Returns a copy of the element in a slot.
+	 *
+	 * @param slot The slot.
+	 * @return the element.
+	 */
+	private CacheElement elementAt(int slot) {
+		ElementProfile profile = profiles[slot];
+		CacheElement ce = new CacheElement(profile, keyAt(slot),
+				(Serializable) values[slot], profile.decode(createTimes[slot]));
+		ce.setLastAccessTime(profile.decode(lastAccessTimes[slot]));
+		ce.ownMaxLife = ownMaxLives[slot];
+		return ce;
+	}
+
+	/**
+	 * Gives the element in a slot other settings, which keep the epoch of its
+	 * times, and another max life.
+	 *
+	 * @param slot The slot.
+	 * @param profile The new settings of the element.
+	 * @param ownMaxLife The max life set on the element, encoded as
+	 *            <code>CacheElement.ownMaxLife</code>.
+	 */
+	private void setProfile(int slot, ElementProfile profile, int ownMaxLife) {
+		if (hasTtl(profiles[slot], ownMaxLives[slot])) {
+			expiringCount--;
+		}
+		if (hasTtl(profile, ownMaxLife)) {
+			expiringCount++;
+		}
+		profiles[slot] = profile;
+		ownMaxLives[slot] = ownMaxLife;
+	}
+
+	/**
+	 * Determines if the element in a slot has exceeded its max life or its
+	 * max idle time.
+	 *
+	 * @param slot The slot.
+	 * @param now The current time in milliseconds.
+	 * @return true if the element is expired.
+	 */
+	private boolean isExpired(int slot, long now) {
+		ElementProfile profile = profiles[slot];
+		long maxLifeSeconds = CacheElement.maxLifeSeconds(profile,
+				ownMaxLives[slot]);
+		if (maxLifeSeconds != -1
+				&& now - profile.decode(createTimes[slot]) > maxLifeSeconds * 1000) {
+			return true;
+		}
+		long maxIdleTimeSeconds = profile.getMaxIdleTimeSeconds();
+		return maxIdleTimeSeconds != -1
+				&& now - profile.decode(lastAccessTimes[slot]) > maxIdleTimeSeconds * 1000;
+	}
+
+	/**
+	 * Determines if an element can expire.
+	 *
+	 * @param profile The settings of the element.
+	 * @param ownMaxLife The max life set on the element, encoded as
+	 *            <code>CacheElement.ownMaxLife</code>.
+	 * @return true if the element has a max life or a max idle time.
+	 */
+	private static boolean hasTtl(ElementProfile profile, int ownMaxLife) {
+		return CacheElement.maxLifeSeconds(profile, ownMaxLife) != -1
+				|| profile.getMaxIdleTimeSeconds() != -1;
+	}
+
+	/**
+	 * Removes the least recently used elements while the cache is over its
+	 * limits.
+	 *
+	 * @param maxToEvict The maximum number of elements to be evicted.
+	 * @return the number of elements evicted.
+	 */
+	private int evictOverflow(int maxToEvict) {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int maxEntries = cacheAttributes.getMaxEntries();
+		long maxWeight = cacheAttributes.getMaxWeight();
+		int evicted = 0;
+		for (; evicted < maxToEvict && tail != NIL; evicted++) {
+			boolean overflowing = (maxEntries >= 0 && size > maxEntries)
+					|| (maxWeight >= 0 && weightedSize > maxWeight);
+			if (!overflowing) {
+				break;
+			}
+			removeSlot(tail);
+		}
+		evictionCount += evicted;
+		getStatsCounter().recordEvictions(evicted);
+		return evicted;
+	}
+
+	/**
+	 * Moves an element to a free slot, keeping its place in the LRU list.
+	 *
+	 * @param from The slot of the element.
+	 * @param to The free slot.
+	 */
+	private void moveSlot(int from, int to) {
+		setKey(to, keyOf(from));
+		values[to] = values[from];
+		profiles[to] = profiles[from];
+		ownMaxLives[to] = ownMaxLives[from];
+		createTimes[to] = createTimes[from];
+		lastAccessTimes[to] = lastAccessTimes[from];
+		weights[to] = weights[from];
+		prev[to] = prev[from];
+		next[to] = next[from];
+		if (prev[to] == NIL) {
+			head = to;
+		} else {
+			next[prev[to]] = to;
+		}
+		if (next[to] == NIL) {
+			tail = to;
+		} else {
+			prev[next[to]] = to;
+		}
+		values[from] = null;
+		profiles[from] = null;
+	}
+
+	/**
+	 * Doubles the number of slots, keeping the LRU order.
+	 *
+	 * @param capacity The new number of slots.
+	 */
+	private void resize(int capacity) {
+		Object[] oldValues = values;
+		ElementProfile[] oldProfiles = profiles;
+		int[] oldOwnMaxLives = ownMaxLives;
+		int[] oldCreateTimes = createTimes;
+		int[] oldLastAccessTimes = lastAccessTimes;
+		int[] oldWeights = weights;
+		int[] oldPrev = prev;
+
+		Object oldKeys = keyArray();
+		allocate(capacity);
+		int oldSlot = tail;
+		head = NIL;
+		tail = NIL;
+		while (oldSlot != NIL) {
+			int slot = insert(keyOf(oldKeys, oldSlot));
+			values[slot] = oldValues[oldSlot];
+			profiles[slot] = oldProfiles[oldSlot];
+			ownMaxLives[slot] = oldOwnMaxLives[oldSlot];
+			createTimes[slot] = oldCreateTimes[oldSlot];
+			lastAccessTimes[slot] = oldLastAccessTimes[oldSlot];
+			weights[slot] = oldWeights[oldSlot];
+			linkFirst(slot);
+			oldSlot = oldPrev[oldSlot];
+		}
+	}
+
+	/**
+	 * Allocates empty arrays.
+	 *
+	 * @param capacity The number of slots, a power of two.
+	 */
+	private void allocate(int capacity) {
+		allocateKeys(capacity);
+		values = new Object[capacity];
+		profiles = new ElementProfile[capacity];
+		ownMaxLives = new int[capacity];
+		createTimes = new int[capacity];
+		lastAccessTimes = new int[capacity];
+		weights = new int[capacity];
+		prev = new int[capacity];
+		next = new int[capacity];
+		Arrays.fill(prev, NIL);
+		Arrays.fill(next, NIL);
+	}
+
+	/**
+	 * Adds a slot at the top of the LRU list.
+	 *
+	 * @param slot The slot.
+	 */
+	private void linkFirst(int slot) {
+		prev[slot] = NIL;
+		next[slot] = head;
+		if (head == NIL) {
+			tail = slot;
+		} else {
+			prev[head] = slot;
+		}
+		head = slot;
+	}
+
+	/**
+	 * Removes a slot from the LRU list.
+	 *
+	 * @param slot The slot.
+	 */
+	private void unlink(int slot) {
+		int p = prev[slot];
+		int n = next[slot];
+		if (p == NIL) {
+			head = n;
+		} else {
+			next[p] = n;
+		}
+		if (n == NIL) {
+			tail = p;
+		} else {
+			prev[n] = p;
+		}
+		prev[slot] = NIL;
+		next[slot] = NIL;
+	}
+
+	/**
+	 * Moves a slot to the top of the LRU list.
+	 *
+	 * @param slot The slot.
+	 */
+	private void moveToFirst(int slot) {
+		if (head != slot) {
+			unlink(slot);
+			linkFirst(slot);
+		}
+	}
+
+}
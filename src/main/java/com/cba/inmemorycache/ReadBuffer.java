@@ -0,0 +1,132 @@
+package com.cba.inmemorycache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <code>ReadBuffer</code> records the elements read from a cache, so the
+ * cache can replay the accesses on its LRU list later in a batch, under its
+ * lock, instead of locking on every read.
+ * <p>
+ * The buffer is striped by thread to reduce contention between readers, and
+ * each stripe is a small ring buffer. The buffer is lossy: a read is dropped
+ * when its stripe is full or another reader won the race for the slot. This
+ * only makes the LRU order slightly less accurate. Any number of threads may
+ * record reads, but only one thread at a time may drain the buffer.
+ * </p>
+ */
+class ReadBuffer {
+
+	/** The number of slots of a stripe, a power of two. */
+	static final int STRIPE_SIZE = 16;
+
+	/** The element was recorded. */
+	static final int SUCCESS = 0;
+
+	/** The element was recorded, or dropped, and the stripe is full. */
+	static final int FULL = 1;
+
+	/** The element was dropped because another reader took the slot. */
+	static final int FAILED = 2;
+
+	/** The slots of all stripes, stripe after stripe. */
+	private final AtomicReferenceArray<CacheElement> slots;
+
+	/** The number of elements ever written to each stripe. */
+	private final AtomicLong[] writeCounters;
+
+	/** The number of elements ever drained from each stripe. */
+	private final AtomicLong[] readCounters;
+
+	/** Mask to select the stripe of a thread. */
+	private final int stripeMask;
+
+	/**
+	 * Constructs a buffer with a number of stripes based on the number of
+	 * available processors.
+	 */
+	ReadBuffer() {
+		int stripes = 1;
+		int target = Math.min(Runtime.getRuntime().availableProcessors() * 4,
+				64);
+		while (stripes < target) {
+			stripes <<= 1;
+		}
+		stripeMask = stripes - 1;
+		slots = new AtomicReferenceArray<CacheElement>(stripes * STRIPE_SIZE);
+		writeCounters = new AtomicLong[stripes];
+		readCounters = new AtomicLong[stripes];
+		for (int i = 0; i < stripes; i++) {
+			writeCounters[i] = new AtomicLong();
+			readCounters[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Records a read of the element without blocking.
+	 *
+	 * @param ce The element that has been read.
+	 * @return SUCCESS, FULL or FAILED.
+	 */
+	int offer(CacheElement ce) {
+		int stripe = stripeOfCurrentThread();
+		AtomicLong writeCounter = writeCounters[stripe];
+		long head = readCounters[stripe].get();
+		long tail = writeCounter.get();
+		if (tail - head >= STRIPE_SIZE) {
+			return FULL;
+		}
+		if (!writeCounter.compareAndSet(tail, tail + 1)) {
+			return FAILED;
+		}
+		slots.lazySet(stripe * STRIPE_SIZE + (int) (tail & (STRIPE_SIZE - 1)),
+				ce);
+		return (tail + 1 - head >= STRIPE_SIZE) ? FULL : SUCCESS;
+	}
+
+	/**
+	 * Moves the recorded elements to the top of the list, in the order they
+	 * were read per stripe. Elements that are no longer in the list, because
+	 * they have been removed since they were read, are skipped. Must be
+	 * called while holding the lock guarding the list.
+	 *
+	 * @param list The LRU list of the cache.
+	 * @return the number of elements drained.
+	 */
+	int drainTo(LRUElementList list) {
+		int drained = 0;
+		for (int stripe = 0; stripe <= stripeMask; stripe++) {
+			AtomicLong readCounter = readCounters[stripe];
+			long head = readCounter.get();
+			long tail = writeCounters[stripe].get();
+			for (; head < tail; head++) {
+				int index = stripe * STRIPE_SIZE
+						+ (int) (head & (STRIPE_SIZE - 1));
+				CacheElement ce = slots.get(index);
+				if (ce == null) {
+					// the reader has not published the element yet
+					break;
+				}
+				slots.lazySet(index, null);
+				if (list.contains(ce)) {
+					list.moveToFirst(ce);
+				}
+				drained++;
+			}
+			readCounter.lazySet(head);
+		}
+		return drained;
+	}
+
+	/**
+	 * Returns the stripe of the current thread.
+	 *
+	 * @return the index of the stripe.
+	 */
+	private int stripeOfCurrentThread() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & stripeMask;
+	}
+
+}
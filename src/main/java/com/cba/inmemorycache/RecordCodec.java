@@ -0,0 +1,165 @@
+package com.cba.inmemorycache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <code>RecordCodec</code> is the base of a compact codec for an application
+ * class, writing its fields one after the other without reflection nor class
+ * descriptors. A subclass writes the fields in
+ * {@link #encode(Serializable, DataOutput)} and reads them back in the same
+ * order in {@link #decode(DataInput)}, with the helpers below for the numbers
+ * and the strings.
+ * <p>
+ * The numbers are written as variable length integers, the small ones in a
+ * single byte, and the strings as their length and their UTF-8 bytes. A
+ * field added to the class must be read in a way the records already written
+ * can still be decoded, for instance at the end of the record.
+ * </p>
+ *
+ * @param <T> The type of the objects encoded.
+ */
+public abstract class RecordCodec<T extends Serializable> implements
+		CacheCodec<T> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The type of the objects encoded. */
+	private final Class<T> type;
+
+	/**
+	 * Constructs a codec of a type.
+	 *
+	 * @param type The type of the objects encoded.
+	 */
+	protected RecordCodec(Class<T> type) {
+		this.type = type;
+	}
+
+	/**
+	 * Returns the type of the objects encoded.
+	 *
+	 * @return the type of the objects.
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Writes a signed number as a variable length integer, the small positive
+	 * and negative numbers in a single byte.
+	 *
+	 * @param out The output to write to.
+	 * @param value The number.
+	 * @exception IOException Error when writing the number.
+	 */
+	protected static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		long encoded = (value << 1) ^ (value >> 63);
+		while ((encoded & ~0x7FL) != 0) {
+			out.writeByte((int) (encoded & 0x7F) | 0x80);
+			encoded >>>= 7;
+		}
+		out.writeByte((int) encoded);
+	}
+
+	/**
+	 * Reads a number written by {@link #writeVarLong(DataOutput, long)}.
+	 *
+	 * @param in The input to read from.
+	 * @return the number.
+	 * @exception IOException Error when reading the number.
+	 */
+	protected static long readVarLong(DataInput in) throws IOException {
+		long encoded = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readByte();
+			encoded |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (encoded >>> 1) ^ -(encoded & 1);
+			}
+		}
+		throw new IOException("Corrupted record, number too long");
+	}
+
+	/**
+	 * Writes a string, which may be null, as its length and its UTF-8 bytes.
+	 *
+	 * @param out The output to write to.
+	 * @param string The string, or null.
+	 * @exception IOException Error when writing the string.
+	 */
+	protected static void writeString(DataOutput out, String string)
+			throws IOException {
+		if (string == null) {
+			writeVarLong(out, -1);
+			return;
+		}
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 *
+	 * @param in The input to read from.
+	 * @return the string, or null.
+	 * @exception IOException Error when reading the string.
+	 */
+	protected static String readString(DataInput in) throws IOException {
+		byte[] bytes = readBytes(in);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes an array of bytes, which may be null, as its length and its
+	 * bytes.
+	 *
+	 * @param out The output to write to.
+	 * @param bytes The array, or null.
+	 * @exception IOException Error when writing the array.
+	 */
+	protected static void writeBytes(DataOutput out, byte[] bytes)
+			throws IOException {
+		if (bytes == null) {
+			writeVarLong(out, -1);
+			return;
+		}
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads an array written by {@link #writeBytes(DataOutput, byte[])}.
+	 *
+	 * @param in The input to read from.
+	 * @return the array, or null.
+	 * @exception IOException Error when reading the array.
+	 */
+	protected static byte[] readBytes(DataInput in) throws IOException {
+		long length = readVarLong(in);
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("Corrupted record, length " + length);
+		}
+		byte[] bytes = new byte[(int) length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * For logging and debugging purposes.
+	 *
+	 * @return the name of the codec and of its type.
+	 */
+	public String toString() {
+		return getClass().getSimpleName() + "[" + type.getName() + "]";
+	}
+
+}
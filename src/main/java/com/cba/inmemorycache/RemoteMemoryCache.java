@@ -0,0 +1,492 @@
+package com.cba.inmemorycache;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>RemoteMemoryCache</code> is a named cache of a
+ * <code>CacheServer</code>, read through a near cache in the local heap.
+ * <p>
+ * A get is answered by the near cache, an <code>LRUMemoryCache</code>, when
+ * it holds the key; otherwise the key is read from the server and kept in the
+ * near cache for the time it has left to live on the server at most. The
+ * writes go to the server and then to the near cache. The server pushes the
+ * keys the other clients change, which are removed from the near cache, so a
+ * client reads a stale value only for the time the invalidation takes to
+ * arrive. The elements expiring on the server are not pushed.
+ * </p>
+ * <p>
+ * <code>getSize</code> and <code>removeAll</code> act on the cache of the
+ * server, <code>freeElements</code>, <code>cleanup</code> and
+ * <code>getStats</code> on the near cache. <code>getAll</code>,
+ * <code>putAll</code> and <code>removeAll(keys)</code> send all their
+ * requests before waiting for the first answer.
+ * </p>
+ * <p>
+ * Get a remote cache with {@link CacheClient#getCache(String)}.
+ * </p>
+ */
+public class RemoteMemoryCache implements MemoryCache {
+
+	/** The connection to the server */
+	private final CacheClient client;
+
+	/** The name of the cache on the server */
+	private final String cacheName;
+
+	/** The near cache */
+	private final LRUMemoryCache nearCache;
+
+	/**
+	 * Constructs a remote cache.
+	 *
+	 * @param client The connection to the server.
+	 * @param cacheName The name of the cache on the server.
+	 * @param nearAttributes The attributes bounding the near cache.
+	 */
+	protected RemoteMemoryCache(CacheClient client, String cacheName,
+			CacheAttributes nearAttributes) {
+		this.client = client;
+		this.cacheName = cacheName;
+		this.nearCache = new LRUMemoryCache(cacheName);
+		nearCache.setCacheAttributes(nearAttributes);
+	}
+
+	/**
+	 * Returns the name of the cache on the server.
+	 *
+	 * @return the name of the cache.
+	 */
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	/**
+	 * Returns the near cache.
+	 *
+	 * @return the near cache.
+	 */
+	public MemoryCache getNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Returns the number of elements of the cache of the server.
+	 *
+	 * @return the number of elements.
+	 * @exception IllegalStateException The server cannot be reached.
+	 */
+	public int getSize() {
+		Size size = new Size();
+		try {
+			client.call(size);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return (int) size.size;
+	}
+
+	public boolean remove(Serializable key) throws IOException {
+		nearCache.remove(key);
+		Remove remove = new Remove(key);
+		client.call(remove);
+		return remove.removed;
+	}
+
+	public void removeAll() throws IOException {
+		client.call(new Clear());
+	}
+
+	public int freeElements(int numberToFree) throws IOException {
+		return nearCache.freeElements(numberToFree);
+	}
+
+	public void cleanup() throws IOException {
+		nearCache.cleanup();
+	}
+
+	public CacheElement get(Serializable key) throws IOException {
+		CacheElement ce = nearCache.get(key);
+		if (ce != null) {
+			return ce;
+		}
+		Get get = new Get(key);
+		client.call(get);
+		return get.element;
+	}
+
+	public void update(CacheElement ce) throws IOException {
+		client.call(new Put(ce.getKey(), ce.getValue(), ce.getMaxLifeSeconds()));
+	}
+
+	public void put(Object key, Object val) throws IOException {
+		client.call(toPut(key, val, null));
+	}
+
+	public void put(Object key, Object val, Expiry expiry) throws IOException {
+		client.call(toPut(key, val, expiry));
+	}
+
+	/**
+	 * Returns the request putting a key.
+	 *
+	 * @param key The key.
+	 * @param val The value.
+	 * @param expiry The expiry policy giving the lifetime of the element, or
+	 *            null for the max life of the cache of the server.
+	 * @return the request.
+	 * @exception IOException The key or the value is not serializable.
+	 */
+	private Put toPut(Object key, Object val, Expiry expiry)
+			throws IOException {
+		if (key == null || val == null) {
+			throw new IOException("Key and value cannot be null");
+		}
+		if (!(key instanceof Serializable) || !(val instanceof Serializable)) {
+			throw new IOException("Key " + key + " or its value is not "
+					+ "serializable");
+		}
+		Serializable k = (Serializable) key;
+		Serializable v = (Serializable) val;
+		return new Put(k, v, expiry == null ? -2 : expiry.expireAfterCreate(k,
+				v));
+	}
+
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		Map<Serializable, CacheElement> near = nearCache.getAll(keys);
+		List<Get> gets = new ArrayList<Get>();
+		for (Serializable key : keys) {
+			if (!near.containsKey(key)) {
+				gets.add(new Get(key));
+			}
+		}
+		client.send(gets);
+		for (Get get : gets) {
+			get.await();
+		}
+
+		Map<Serializable, CacheElement> found = new LinkedHashMap<Serializable, CacheElement>();
+		int next = 0;
+		for (Serializable key : keys) {
+			CacheElement ce = near.get(key);
+			if (ce == null && next < gets.size()
+					&& gets.get(next).key.equals(key)) {
+				ce = gets.get(next++).element;
+			}
+			if (ce != null) {
+				found.put(key, ce);
+			}
+		}
+		return found;
+	}
+
+	public void putAll(Map<?, ?> map) throws IOException {
+		List<Put> puts = new ArrayList<Put>();
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			puts.add(toPut(entry.getKey(), entry.getValue(), null));
+		}
+		client.send(puts);
+		for (Put put : puts) {
+			put.await();
+		}
+	}
+
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		List<Remove> removes = new ArrayList<Remove>();
+		for (Serializable key : keys) {
+			nearCache.remove(key);
+			removes.add(new Remove(key));
+		}
+		client.send(removes);
+		int removed = 0;
+		for (Remove remove : removes) {
+			remove.await();
+			if (remove.removed) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	public CacheStats getStats() {
+		return nearCache.getStats();
+	}
+
+	/**
+	 * Puts a number of elements into the cache, keeping their max life, with
+	 * all the requests sent before waiting for the first answer.
+	 *
+	 * @param elements The elements.
+	 * @exception IOException Error when putting the elements.
+	 */
+	void updateAll(List<CacheElement> elements) throws IOException {
+		List<Put> puts = new ArrayList<Put>(elements.size());
+		for (CacheElement ce : elements) {
+			puts.add(new Put(ce.getKey(), ce.getValue(), ce
+					.getMaxLifeSeconds()));
+		}
+		client.send(puts);
+		for (Put put : puts) {
+			put.await();
+		}
+	}
+
+	/**
+	 * Reads a page of the elements of the cache of the server. The server
+	 * lists the elements when the first page is read, and the following
+	 * pages go on through that list.
+	 *
+	 * @param cursor The cursor returned with the previous page, 0 for the
+	 *            first page.
+	 * @param count The largest number of elements of the page.
+	 * @return the answered request, with the elements and the next cursor.
+	 * @exception IOException Error when reading the elements.
+	 */
+	Scan scan(int cursor, int count) throws IOException {
+		Scan scan = new Scan(cursor, count);
+		client.call(scan);
+		return scan;
+	}
+
+	/**
+	 * Keeps an element read or written on the server in the near cache.
+	 *
+	 * @param key The key.
+	 * @param value The value.
+	 * @param remainingLifeSeconds The time the element has left on the
+	 *            server, -1 for no limit.
+	 * @return the element.
+	 * @exception IOException Error when updating the near cache.
+	 */
+	private CacheElement keep(Serializable key, Serializable value,
+			long remainingLifeSeconds) throws IOException {
+		CacheElement ce = nearCache.createElement(key, value);
+		if (remainingLifeSeconds == 0) {
+			// about to expire on the server, not worth keeping
+			nearCache.remove(key);
+			return ce;
+		}
+		long maxLifeSeconds = ce.getMaxLifeSeconds();
+		if (remainingLifeSeconds != -1
+				&& (maxLifeSeconds == -1 || remainingLifeSeconds < maxLifeSeconds)) {
+			ce.setMaxLifeSeconds(remainingLifeSeconds);
+		}
+		nearCache.update(ce);
+		return ce;
+	}
+
+	/**
+	 * Writes the operation and the name of the cache of a request.
+	 *
+	 * @param out The stream to write to.
+	 * @param op The operation.
+	 * @exception IOException Error when writing the request.
+	 */
+	private void writeHeader(DataOutputStream out, int op) throws IOException {
+		out.writeByte(op);
+		CacheSnapshot.writeObject(out, cacheName, null);
+	}
+
+	/**
+	 * Reads a key.
+	 */
+	private final class Get extends CacheClient.Request {
+
+		/** The key */
+		final Serializable key;
+
+		/** The element read, null if the key is not found */
+		CacheElement element;
+
+		/**
+		 * Constructs the request.
+		 *
+		 * @param key The key.
+		 */
+		Get(Serializable key) {
+			this.key = key;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeHeader(out, CacheProtocol.GET);
+			CacheSnapshot.writeObject(out, key, null);
+		}
+
+		void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException {
+			if (status == CacheProtocol.FOUND) {
+				Serializable value = CacheSnapshot.readObject(in, in
+						.readByte(), null);
+				element = keep(key, value, in.readVarLong() - 1);
+			}
+		}
+	}
+
+	/**
+	 * Puts a key.
+	 */
+	private final class Put extends CacheClient.Request {
+
+		/** The key */
+		private final Serializable key;
+
+		/** The value */
+		private final Serializable value;
+
+		/** The max life, -2 for the max life of the cache of the server */
+		private final long maxLifeSeconds;
+
+		/**
+		 * Constructs the request.
+		 *
+		 * @param key The key.
+		 * @param value The value.
+		 * @param maxLifeSeconds The max life, -1 for no limit, -2 for the max
+		 *            life of the cache of the server.
+		 */
+		Put(Serializable key, Serializable value, long maxLifeSeconds) {
+			this.key = key;
+			this.value = value;
+			this.maxLifeSeconds = maxLifeSeconds;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeHeader(out, CacheProtocol.PUT);
+			CacheSnapshot.writeObject(out, key, null);
+			CacheSnapshot.writeObject(out, value, null);
+			CacheSnapshot.writeVarLong(out, maxLifeSeconds + 2);
+		}
+
+		void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException {
+			keep(key, value, in.readVarLong() - 1);
+		}
+	}
+
+	/**
+	 * Removes a key.
+	 */
+	private final class Remove extends CacheClient.Request {
+
+		/** The key */
+		private final Serializable key;
+
+		/** Whether the server had the key */
+		boolean removed;
+
+		/**
+		 * Constructs the request.
+		 *
+		 * @param key The key.
+		 */
+		Remove(Serializable key) {
+			this.key = key;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeHeader(out, CacheProtocol.REMOVE);
+			CacheSnapshot.writeObject(out, key, null);
+		}
+
+		void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException {
+			removed = in.readBoolean();
+			// a get answered before the remove may have put the key back
+			nearCache.remove(key);
+		}
+	}
+
+	/**
+	 * Removes all the elements.
+	 */
+	private final class Clear extends CacheClient.Request {
+
+		void write(DataOutputStream out) throws IOException {
+			writeHeader(out, CacheProtocol.CLEAR);
+		}
+
+		void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException {
+			nearCache.removeAll();
+		}
+	}
+
+	/**
+	 * Reads a page of the elements.
+	 */
+	final class Scan extends CacheClient.Request {
+
+		/** The position of the page */
+		private final int cursor;
+
+		/** The largest number of elements of the page */
+		private final int count;
+
+		/** The position of the next page, 0 at the end */
+		int next;
+
+		/** The elements of the page, with the life they have left */
+		final List<CacheElement> elements = new ArrayList<CacheElement>();
+
+		/**
+		 * Constructs the request.
+		 *
+		 * @param cursor The position of the page, 0 for the first.
+		 * @param count The largest number of elements of the page.
+		 */
+		Scan(int cursor, int count) {
+			this.cursor = cursor;
+			this.count = count;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			writeHeader(out, CacheProtocol.SCAN);
+			CacheSnapshot.writeVarLong(out, cursor);
+			CacheSnapshot.writeVarLong(out, count);
+		}
+
+		void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException {
+			next = (int) in.readVarLong();
+			for (long n = in.readVarLong(); n > 0; n--) {
+				Serializable key = CacheSnapshot.readObject(in, in.readByte(),
+						null);
+				Serializable value = CacheSnapshot.readObject(in, in
+						.readByte(), null);
+				long remainingLifeSeconds = in.readVarLong() - 1;
+				if (remainingLifeSeconds != 0) {
+					CacheElement ce = new CacheElement(cacheName, key, value);
+					ce.setMaxLifeSeconds(remainingLifeSeconds);
+					elements.add(ce);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the number of elements.
+	 */
+	private final class Size extends CacheClient.Request {
+
+		/** The number of elements on the server */
+		long size;
+
+		void write(DataOutputStream out) throws IOException {
+			writeHeader(out, CacheProtocol.SIZE);
+		}
+
+		void read(int status, CacheSnapshot.MappedReader in)
+				throws IOException {
+			size = in.readVarLong();
+		}
+	}
+
+}
@@ -0,0 +1,460 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>SegmentedLRUMemoryCache</code> splits the keys into a number of
+ * segments, each of which is an independently locked
+ * <code>LRUMemoryCache</code> with its own map and LRU list. Operations on
+ * keys of different segments do not contend with each other, so reads and
+ * writes scale with the number of cores.
+ * <p>
+ * The limits of the cache attributes are shared out between the segments:
+ * each segment gets the limit divided by the number of segments, and the
+ * first segments one more each for the remainder, so the shares add up to
+ * the limit and a put only locks its own segment. A limit below the number
+ * of segments would leave segments without room, so each segment gets the
+ * whole limit instead, and a put over the limit of the cache as a whole
+ * evicts the globally least recently used elements, one put at a time. The
+ * least recently used order is otherwise kept per segment: a segment evicts
+ * its own least recently used element when it is full, even if another
+ * segment holds an element that was used less recently.
+ * <code>freeElements</code> always picks the globally least recently used
+ * element.
+ * </p>
+ * <p>
+ * The bulk operations group their keys by segment, and lock each segment
+ * once for its keys.
+ * </p>
+ * <p>
+ * The segments record their operations in the statistics of this cache.
+ * </p>
+ */
+public class SegmentedLRUMemoryCache extends AbstractMemoryCache {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** The segments, the length is a power of two */
+	private final LRUMemoryCache[] segments;
+
+	/**
+	 * Whether the shares of the segments add up to more than the limits, in
+	 * which case the puts evict over the limits while holding the segments
+	 * array
+	 */
+	private volatile boolean overcommitted;
+
+	/**
+	 * Constructs a <code>SegmentedLRUMemoryCache</code> with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param concurrencyLevel The number of segments, rounded up to a power of
+	 *            two.
+	 */
+	protected SegmentedLRUMemoryCache(String cacheName, int concurrencyLevel) {
+		super(cacheName);
+		int count = 1;
+		while (count < concurrencyLevel) {
+			count <<= 1;
+		}
+		segments = new LRUMemoryCache[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new LRUMemoryCache(cacheName);
+			segments[i].shareStatsCounter(this);
+		}
+		shareCacheAttributes(getCacheAttributes());
+	}
+
+	/**
+	 * Returns the number of segments.
+	 *
+	 * @return the number of segments.
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * Sets the attributes bounding the size of this cache. The limits are
+	 * shared out between the segments.
+	 *
+	 * @param cacheAttributes the attributes bounding the size of this cache.
+	 */
+	public void setCacheAttributes(CacheAttributes cacheAttributes) {
+		super.setCacheAttributes(cacheAttributes);
+		shareCacheAttributes(cacheAttributes);
+	}
+
+	/**
+	 * Returns the total weight of the elements in the cache.
+	 *
+	 * @return the total weight of the elements in the cache.
+	 */
+	public long getWeightedSize() {
+		long weightedSize = 0;
+		for (LRUMemoryCache segment : segments) {
+			weightedSize += segment.getWeightedSize();
+		}
+		return weightedSize;
+	}
+
+	/**
+	 * Returns the number of elements evicted from the cache, either because
+	 * a segment was full or by <code>freeElements</code>.
+	 *
+	 * @return the number of elements evicted from the cache.
+	 */
+	public long getEvictionCount() {
+		long evictionCount = 0;
+		for (LRUMemoryCache segment : segments) {
+			evictionCount += segment.getEvictionCount();
+		}
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return the size of the cache.
+	 */
+	public int getSize() {
+		int size = 0;
+		for (LRUMemoryCache segment : segments) {
+			size += segment.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Removes cached object with the specified key.
+	 *
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 * @exception IOException Error when removing the object from the cache.
+	 */
+	public boolean remove(Serializable key) throws IOException {
+		return segmentFor(key).remove(key);
+	}
+
+	/**
+	 * Removes all cached items from the cache.
+	 *
+	 * @exception IOException Error when removing all objects from the cache.
+	 */
+	public void removeAll() throws IOException {
+		for (LRUMemoryCache segment : segments) {
+			segment.removeAll();
+		}
+	}
+
+	/**
+	 * Removes the least recently used objects in the cache, across all
+	 * segments.
+	 *
+	 * @param numberToFree The number of objects to be removed from the cached.
+	 * @return The number of objects that are actually removed from the cached.
+	 * @exception IOException Error when removing objects from the cache.
+	 */
+	public int freeElements(int numberToFree) throws IOException {
+		int freed = 0;
+		while (freed < numberToFree) {
+			LRUMemoryCache oldest = null;
+			long oldestAccessTime = Long.MAX_VALUE;
+			for (LRUMemoryCache segment : segments) {
+				long accessTime = segment.getLeastRecentAccessTime();
+				if (accessTime < oldestAccessTime) {
+					oldest = segment;
+					oldestAccessTime = accessTime;
+				}
+			}
+			if (oldest == null) {
+				// no more item in the cache
+				break;
+			}
+			freed += oldest.freeElements(1);
+		}
+		return freed;
+	}
+
+	/**
+	 * Returns the elements of the cache, segment after segment, each from the
+	 * least to the most recently used one. Putting them back restores the
+	 * order of each segment.
+	 *
+	 * @return the elements of the cache.
+	 */
+	List<CacheElement> getElementsInAccessOrder() {
+		List<CacheElement> elements = new ArrayList<CacheElement>(getSize());
+		for (LRUMemoryCache segment : segments) {
+			elements.addAll(segment.getElementsInAccessOrder());
+		}
+		return elements;
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, segment after segment,
+	 * which reads a page of keys at a time under the lock of a segment.
+	 *
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(final int pageSize) {
+		return new PagedKeyIterator() {
+
+			/** The index of the segment being read. */
+			private int index;
+
+			/** The keys of the segment being read. */
+			private Iterator<Serializable> keys = segments[0].keys(pageSize);
+
+			boolean nextPage(List<Serializable> page) {
+				while (page.size() < pageSize) {
+					if (keys.hasNext()) {
+						page.add(keys.next());
+					} else if (++index < segments.length) {
+						keys = segments[index].keys(pageSize);
+					} else {
+						return false;
+					}
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Cleans up the segments one after the other, so only one segment is
+	 * locked at a time.
+	 *
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	public void cleanup() throws IOException {
+		for (LRUMemoryCache segment : segments) {
+			segment.cleanup();
+		}
+	}
+
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		boolean done = true;
+		for (LRUMemoryCache segment : segments) {
+			// each segment removes its own batch under its own lock
+			done &= segment.cleanup(maxToRemove);
+		}
+		return done;
+	}
+
+	/**
+	 * Returns the cached object for the specified key.
+	 *
+	 * @param key the key for the object to be retrieved.
+	 * @return The cached object for the specified key.
+	 * @exception IOException Error when retrieving object from the cache.
+	 */
+	public CacheElement get(Serializable key) throws IOException {
+		return segmentFor(key).get(key);
+	}
+
+	/**
+	 * Updates the cached object.
+	 *
+	 * @param ce The cached object to be updated.
+	 * @exception IOException Error when updating the cache.
+	 */
+	public void update(CacheElement ce) throws IOException {
+		segmentFor(ce.getKey()).update(ce);
+		evictOverLimits();
+	}
+
+	/**
+	 * Returns the cached objects for the specified keys, locking each segment
+	 * once for its keys.
+	 *
+	 * @param keys the keys for the objects to be retrieved.
+	 * @return The cached objects found, by key.
+	 * @exception IOException Error when retrieving the objects from the cache.
+	 */
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		Map<Serializable, CacheElement> found = new HashMap<Serializable, CacheElement>();
+		for (Map.Entry<LRUMemoryCache, List<Serializable>> group : groupBySegment(
+				keys).entrySet()) {
+			found.putAll(group.getKey().getAll(group.getValue()));
+		}
+		return found;
+	}
+
+	/**
+	 * Puts a number of objects into the cache, locking each segment once for
+	 * its objects.
+	 *
+	 * @param map The objects to be put into cache, by key.
+	 * @exception IOException Error when adding the objects to the cache.
+	 */
+	public void putAll(Map<?, ?> map) throws IOException {
+		Map<LRUMemoryCache, List<CacheElement>> groups = new HashMap<LRUMemoryCache, List<CacheElement>>();
+		for (CacheElement ce : createElements(map)) {
+			LRUMemoryCache segment = segmentFor(ce.getKey());
+			List<CacheElement> group = groups.get(segment);
+			if (group == null) {
+				group = new ArrayList<CacheElement>();
+				groups.put(segment, group);
+			}
+			group.add(ce);
+		}
+		for (Map.Entry<LRUMemoryCache, List<CacheElement>> group : groups
+				.entrySet()) {
+			group.getKey().updateAll(group.getValue());
+		}
+		evictOverLimits();
+	}
+
+	/**
+	 * Removes the cached objects with the specified keys, locking each
+	 * segment once for its keys.
+	 *
+	 * @param keys The keys for the objects to be removed from the cache.
+	 * @return the number of objects removed.
+	 * @exception IOException Error when removing the objects from the cache.
+	 */
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		int removed = 0;
+		for (Map.Entry<LRUMemoryCache, List<Serializable>> group : groupBySegment(
+				keys).entrySet()) {
+			removed += group.getKey().removeAll(group.getValue());
+		}
+		return removed;
+	}
+
+	/**
+	 * Groups keys by the segment holding them.
+	 *
+	 * @param keys The keys.
+	 * @return the keys of each segment holding any.
+	 */
+	private Map<LRUMemoryCache, List<Serializable>> groupBySegment(
+			Collection<? extends Serializable> keys) {
+		Map<LRUMemoryCache, List<Serializable>> groups = new HashMap<LRUMemoryCache, List<Serializable>>();
+		for (Serializable key : keys) {
+			LRUMemoryCache segment = segmentFor(key);
+			List<Serializable> group = groups.get(segment);
+			if (group == null) {
+				group = new ArrayList<Serializable>();
+				groups.put(segment, group);
+			}
+			group.add(key);
+		}
+		return groups;
+	}
+
+	/**
+	 * Returns the segment holding the specified key.
+	 *
+	 * @param key The key of the object.
+	 * @return the segment for the key.
+	 */
+	private LRUMemoryCache segmentFor(Object key) {
+		// spread the hash, so keys differing in the high bits only are
+		// spread out between the segments as well
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return segments[h & (segments.length - 1)];
+	}
+
+	/**
+	 * Evicts the globally least recently used elements while the cache as a
+	 * whole is over its limits, which only happens when the shares of the
+	 * segments add up to more than the limits. The puts evict one at a time,
+	 * so concurrent puts do not all evict the same excess.
+	 *
+	 * @exception IOException Error when evicting the elements.
+	 */
+	private void evictOverLimits() throws IOException {
+		if (!overcommitted) {
+			return;
+		}
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		synchronized (segments) {
+			int maxEntries = cacheAttributes.getMaxEntries();
+			if (maxEntries >= 0) {
+				int excess = getSize() - maxEntries;
+				if (excess > 0) {
+					freeElements(excess);
+				}
+			}
+			long maxWeight = cacheAttributes.getMaxWeight();
+			if (maxWeight >= 0) {
+				while (getWeightedSize() > maxWeight && freeElements(1) > 0) {
+					// evict one element at a time, the weights differ
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shares out the limits of the attributes between the segments.
+	 *
+	 * @param cacheAttributes the attributes bounding the size of this cache.
+	 */
+	private void shareCacheAttributes(CacheAttributes cacheAttributes) {
+		for (int i = 0; i < segments.length; i++) {
+			CacheAttributes segmentAttributes = new CacheAttributes();
+			segmentAttributes.setWeigher(cacheAttributes.getWeigher());
+			segmentAttributes.setTicker(cacheAttributes.getTicker());
+			segmentAttributes.setRecordLatency(cacheAttributes
+					.isRecordLatency());
+			segmentAttributes.setMaxEvictionsPerPut(cacheAttributes
+					.getMaxEvictionsPerPut());
+			segmentAttributes.setMaxEntries((int) share(
+					cacheAttributes.getMaxEntries(), i));
+			segmentAttributes.setMaxWeight(share(
+					cacheAttributes.getMaxWeight(), i));
+			segments[i].setCacheAttributes(segmentAttributes);
+		}
+		overcommitted = isOvercommitted(cacheAttributes.getMaxEntries())
+				|| isOvercommitted(cacheAttributes.getMaxWeight());
+	}
+
+	/**
+	 * Determines if the shares of a limit add up to more than the limit,
+	 * which is the case when the limit is below the number of segments.
+	 *
+	 * @param limit The limit of the cache, -1 for no limit.
+	 * @return true if the bound of the cache as a whole must be enforced.
+	 */
+	private boolean isOvercommitted(long limit) {
+		return limit >= 0 && limit < segments.length;
+	}
+
+	/**
+	 * Returns the share of a limit for a segment: the limit divided by the
+	 * number of segments, plus one for the first segments until the remainder
+	 * is shared out. A limit below the number of segments is not divided, as
+	 * some segments would get no room at all.
+	 *
+	 * @param limit The limit of the cache, -1 for no limit.
+	 * @param index The index of the segment.
+	 * @return the limit of the segment.
+	 */
+	private long share(long limit, int index) {
+		if (limit < 0) {
+			return -1;
+		}
+		long count = segments.length;
+		if (limit < count) {
+			return limit;
+		}
+		return limit / count + (index < limit % count ? 1 : 0);
+	}
+
+}
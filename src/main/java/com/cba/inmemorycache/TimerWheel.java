@@ -0,0 +1,343 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <code>TimerWheel</code> is a hierarchical timing wheel that tracks when the
+ * elements of a cache expire, so the cache can find the expired elements
+ * without looking at every element.
+ * <p>
+ * An element is scheduled by its deadline, the earliest of its create time
+ * plus its max life and its last access time plus its max idle time. Each
+ * level of the wheel is an array of buckets covering a span of time, the
+ * first level has buckets of about a second, the following ones of about a
+ * minute, an hour and a day and a half, the last one holds whatever is
+ * further away. Advancing the wheel only visits the buckets whose time has
+ * come: the elements found there are either expired, or their deadline has
+ * moved since they were scheduled and they are scheduled again, usually into
+ * a finer level. So the work done is proportional to the number of
+ * expirations, not the size of the cache.
+ * </p>
+ * <p>
+ * The expired elements found by an advance wait in an overdue list, and are
+ * handed out in batches, so a cache can remove a large number of them over
+ * several acquisitions of its lock. An overdue element is still scheduled:
+ * removing it from the cache or moving its deadline takes it off the list.
+ * </p>
+ * <p>
+ * Reading an element only moves its deadline later, and the wheel finds out
+ * lazily when it visits the element. When the deadline of an element moves
+ * earlier, through the setters of <code>CacheElement</code>, the element
+ * queues itself with {@link #reschedule(CacheElement)}, which is thread
+ * safe, and is scheduled again on the next advance. All other methods must
+ * be called while holding the lock of the cache.
+ * </p>
+ */
+class TimerWheel {
+
+	/** The number of buckets of each level. */
+	private static final int[] BUCKETS = { 64, 64, 32, 16, 1 };
+
+	/** The span of a bucket of each level in milliseconds, as a power of two. */
+	private static final long[] SPANS = { 1L << 10, // 1.02 seconds
+			1L << 16, // 1.09 minutes
+			1L << 22, // 1.17 hours
+			1L << 27, // 1.55 days
+			1L << 31, // 24.86 days
+			1L << 31 };
+
+	/** The shift to turn a time into ticks of each level. */
+	private static final int[] SHIFT = new int[BUCKETS.length];
+
+	static {
+		for (int i = 0; i < SHIFT.length; i++) {
+			SHIFT[i] = Long.numberOfTrailingZeros(SPANS[i]);
+		}
+	}
+
+	/** The buckets, each the sentinel of a circular doubly linked list. */
+	private final CacheElement[][] wheel;
+
+	/** The expired elements not handed out yet. */
+	private final CacheElement overdue;
+
+	/** Elements whose deadline has moved earlier, to be scheduled again. */
+	private final Queue<CacheElement> rescheduled;
+
+	/** The time the wheel has been advanced to. */
+	private long time;
+
+	/**
+	 * Constructs a wheel starting at the given time.
+	 *
+	 * @param now The current time in milliseconds.
+	 */
+	TimerWheel(long now) {
+		time = now;
+		rescheduled = new ConcurrentLinkedQueue<CacheElement>();
+		overdue = newSentinel();
+		wheel = new CacheElement[BUCKETS.length][];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new CacheElement[BUCKETS[i]];
+			for (int j = 0; j < wheel[i].length; j++) {
+				wheel[i][j] = newSentinel();
+			}
+		}
+	}
+
+	/**
+	 * Returns the deadline of an element.
+	 *
+	 * @param ce The element.
+	 * @return the time in milliseconds after which the element is expired, or
+	 *         Long.MAX_VALUE if it never expires.
+	 */
+	static long deadlineOf(CacheElement ce) {
+		long deadline = Long.MAX_VALUE;
+		long maxLifeSeconds = ce.getMaxLifeSeconds();
+		if (maxLifeSeconds != -1) {
+			deadline = ce.getCreateTime() + maxLifeSeconds * 1000;
+		}
+		long maxIdleTimeSeconds = ce.getMaxIdleTimeSeconds();
+		if (maxIdleTimeSeconds != -1) {
+			deadline = Math.min(deadline, ce.getLastAccessTime()
+					+ maxIdleTimeSeconds * 1000);
+		}
+		return deadline;
+	}
+
+	/**
+	 * Schedules an element by its deadline, moving it if it is already
+	 * scheduled. An element that never expires is not scheduled.
+	 *
+	 * @param ce The element.
+	 */
+	void schedule(CacheElement ce) {
+		unlink(ce);
+		long deadline = deadlineOf(ce);
+		if (deadline == Long.MAX_VALUE) {
+			ce.timerWheel = null;
+			return;
+		}
+		ce.timerWheel = this;
+		link(findBucket(deadline), ce);
+	}
+
+	/**
+	 * Stops tracking an element that is removed from the cache.
+	 *
+	 * @param ce The element.
+	 */
+	void deschedule(CacheElement ce) {
+		unlink(ce);
+		ce.timerWheel = null;
+	}
+
+	/**
+	 * Queues an element whose deadline has moved earlier, so it is scheduled
+	 * again on the next advance. This method is thread safe.
+	 *
+	 * @param ce The element.
+	 */
+	void reschedule(CacheElement ce) {
+		rescheduled.add(ce);
+	}
+
+	/**
+	 * Advances the wheel to the given time, and returns the elements that
+	 * are expired. The expired elements are no longer scheduled, the caller
+	 * removes them from the cache.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @return the expired elements.
+	 */
+	List<CacheElement> advance(long now) {
+		return advance(now, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Advances the wheel to the given time, and returns a batch of the
+	 * elements that are expired. The returned elements are no longer
+	 * scheduled, the caller removes them from the cache. The other expired
+	 * elements are kept for the next advance.
+	 *
+	 * @param now The current time in milliseconds.
+	 * @param maxExpired The maximum number of elements returned.
+	 * @return the expired elements.
+	 */
+	List<CacheElement> advance(long now, int maxExpired) {
+		CacheElement ce;
+		while ((ce = rescheduled.poll()) != null) {
+			if (ce.timerWheel != this) {
+				// removed from the cache in the meantime
+				continue;
+			}
+			if (deadlineOf(ce) < now) {
+				unlink(ce);
+				link(overdue, ce);
+			} else {
+				schedule(ce);
+			}
+		}
+
+		long previousTime = time;
+		time = now;
+		for (int i = 0; i < SHIFT.length; i++) {
+			long previousTicks = previousTime >>> SHIFT[i];
+			long currentTicks = now >>> SHIFT[i];
+			if (currentTicks - previousTicks <= 0) {
+				break;
+			}
+			expire(i, previousTicks, currentTicks);
+		}
+
+		List<CacheElement> expired = new ArrayList<CacheElement>();
+		while (expired.size() < maxExpired && overdue.timerNext != overdue) {
+			ce = overdue.timerNext;
+			deschedule(ce);
+			expired.add(ce);
+		}
+		return expired;
+	}
+
+	/**
+	 * Determines if expired elements are left for the next advance.
+	 *
+	 * @return true if expired elements have not been handed out.
+	 */
+	boolean hasOverdue() {
+		return overdue.timerNext != overdue;
+	}
+
+	/**
+	 * Stops tracking all elements.
+	 */
+	void clear() {
+		for (CacheElement[] buckets : wheel) {
+			for (CacheElement sentinel : buckets) {
+				clear(sentinel);
+			}
+		}
+		clear(overdue);
+		rescheduled.clear();
+	}
+
+	/**
+	 * Visits the buckets of a level whose time has come, moving the expired
+	 * elements to the overdue list and scheduling the others again.
+	 *
+	 * @param level The level of the wheel.
+	 * @param previousTicks The ticks of the level at the previous advance.
+	 * @param currentTicks The ticks of the level now.
+	 */
+	private void expire(int level, long previousTicks, long currentTicks) {
+		CacheElement[] buckets = wheel[level];
+		int mask = buckets.length - 1;
+		long steps = Math.min(1 + currentTicks - previousTicks, buckets.length);
+		int start = (int) (previousTicks & mask);
+		for (int i = start; i < start + steps; i++) {
+			CacheElement sentinel = buckets[i & mask];
+			CacheElement ce = sentinel.timerNext;
+			sentinel.timerPrev = sentinel;
+			sentinel.timerNext = sentinel;
+
+			while (ce != sentinel) {
+				CacheElement next = ce.timerNext;
+				ce.timerPrev = null;
+				ce.timerNext = null;
+				if (deadlineOf(ce) < time) {
+					link(overdue, ce);
+				} else {
+					schedule(ce);
+				}
+				ce = next;
+			}
+		}
+	}
+
+	/**
+	 * Stops tracking the elements of a bucket.
+	 *
+	 * @param sentinel The sentinel of the bucket.
+	 */
+	private static void clear(CacheElement sentinel) {
+		CacheElement ce = sentinel.timerNext;
+		while (ce != sentinel) {
+			CacheElement next = ce.timerNext;
+			ce.timerPrev = null;
+			ce.timerNext = null;
+			ce.timerWheel = null;
+			ce = next;
+		}
+		sentinel.timerPrev = sentinel;
+		sentinel.timerNext = sentinel;
+	}
+
+	/**
+	 * Creates the sentinel of an empty bucket.
+	 *
+	 * @return the sentinel.
+	 */
+	private static CacheElement newSentinel() {
+		CacheElement sentinel = new CacheElement(null, null,
+				(Serializable) null);
+		sentinel.timerPrev = sentinel;
+		sentinel.timerNext = sentinel;
+		return sentinel;
+	}
+
+	/**
+	 * Returns the bucket for a deadline.
+	 *
+	 * @param deadline The deadline in milliseconds.
+	 * @return the sentinel of the bucket.
+	 */
+	private CacheElement findBucket(long deadline) {
+		// an overdue element goes to the current bucket, visited next tick
+		deadline = Math.max(deadline, time);
+		long duration = deadline - time;
+		int last = wheel.length - 1;
+		for (int i = 0; i < last; i++) {
+			if (duration < SPANS[i + 1]) {
+				long ticks = deadline >>> SHIFT[i];
+				int index = (int) (ticks & (wheel[i].length - 1));
+				return wheel[i][index];
+			}
+		}
+		return wheel[last][0];
+	}
+
+	/**
+	 * Adds an element at the end of a bucket.
+	 *
+	 * @param sentinel The sentinel of the bucket.
+	 * @param ce The element.
+	 */
+	private static void link(CacheElement sentinel, CacheElement ce) {
+		ce.timerPrev = sentinel.timerPrev;
+		ce.timerNext = sentinel;
+		sentinel.timerPrev.timerNext = ce;
+		sentinel.timerPrev = ce;
+	}
+
+	/**
+	 * Removes an element from its bucket, if it is in one.
+	 *
+	 * @param ce The element.
+	 */
+	private static void unlink(CacheElement ce) {
+		CacheElement next = ce.timerNext;
+		if (next != null) {
+			CacheElement prev = ce.timerPrev;
+			next.timerPrev = prev;
+			prev.timerNext = next;
+			ce.timerPrev = null;
+			ce.timerNext = null;
+		}
+	}
+
+}
@@ -0,0 +1,690 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>TinyLfuMemoryCache</code> provides a cache with the W-TinyLFU
+ * eviction policy, which keeps the frequently used elements even when many
+ * elements are used only once, as by a scan over cold keys.
+ * <p>
+ * New elements enter a small LRU admission window, about 1% of the cache.
+ * The elements evicted from the window are candidates for the main space,
+ * which is a segmented LRU: elements enter its probation segment and move to
+ * its protected segment, 80% of the main space, when they are used again.
+ * When the cache is full, a candidate only replaces the least recently used
+ * element of the probation segment if a <code>FrequencySketch</code>
+ * estimates that the candidate has been used more often recently, otherwise
+ * the candidate is evicted. The sketch halves its counters periodically, so
+ * old popularity fades.
+ * </p>
+ * <p>
+ * The cache is bounded by the maxWeight of its attributes if set, otherwise
+ * by maxEntries. All operations lock the cache itself, the bulk operations
+ * once for all their keys.
+ * </p>
+ */
+public class TinyLfuMemoryCache extends AbstractMemoryCache {
+
+	/** Default serial version UID */
+	private static final long serialVersionUID = 1L;
+
+	/** Percentage of the cache used for the admission window. */
+	static final int WINDOW_PERCENT = 1;
+
+	/** Percentage of the main space used for the protected segment. */
+	static final int PROTECTED_PERCENT = 80;
+
+	/** The element is in the admission window. */
+	private static final byte WINDOW = 0;
+
+	/** The element is in the probation segment of the main space. */
+	private static final byte PROBATION = 1;
+
+	/** The element is in the protected segment of the main space. */
+	private static final byte PROTECTED = 2;
+
+	/** Table where items are stored by key, guarded by the lock of the cache */
+	private final ElementTable cacheMap;
+
+	/** The admission window */
+	private final LRUElementList windowList;
+
+	/** The probation segment of the main space */
+	private final LRUElementList probationList;
+
+	/** The protected segment of the main space */
+	private final LRUElementList protectedList;
+
+	/** Wheel to keep track of the expiry of the elements in the cache */
+	private transient TimerWheel timerWheel;
+
+	/** The estimated frequencies of the keys */
+	private transient FrequencySketch sketch;
+
+	/** The maximum size the sketch has been sized for */
+	private transient long sketchCapacity = -1;
+
+	/** Total weight of the elements in this cache */
+	private long weightedSize;
+
+	/** Total weight of the elements in the admission window */
+	private long windowWeight;
+
+	/** Total weight of the elements in the protected segment */
+	private long protectedWeight;
+
+	/** Number of elements evicted from this cache */
+	private long evictionCount;
+
+	/**
+	 * Constructs a <code>TinyLfuMemoryCache</code> with the given name.
+	 *
+	 * @param cacheName The name of the cache.
+	 */
+	protected TinyLfuMemoryCache(String cacheName) {
+		super(cacheName);
+		cacheMap = new ElementTable();
+		windowList = new LRUElementList();
+		probationList = new LRUElementList();
+		protectedList = new LRUElementList();
+		timerWheel = new TimerWheel(currentTimeMillis());
+	}
+
+	/**
+	 * Returns the total weight of the elements in the cache. Every element
+	 * weighs 1 unless the cache is bounded by maxWeight.
+	 *
+	 * @return the total weight of the elements in the cache.
+	 */
+	public long getWeightedSize() {
+		synchronized (this) {
+			return weightedSize;
+		}
+	}
+
+	/**
+	 * Returns the number of elements evicted from the cache, either because
+	 * the cache was full or by <code>freeElements</code>.
+	 *
+	 * @return the number of elements evicted from the cache.
+	 */
+	public long getEvictionCount() {
+		synchronized (this) {
+			return evictionCount;
+		}
+	}
+
+	/**
+	 * Returns the current size of the cache.
+	 *
+	 * @return the size of the cache.
+	 */
+	public int getSize() {
+		synchronized (this) {
+			return cacheMap.size();
+		}
+	}
+
+	/**
+	 * Removes cached object with the specified key.
+	 *
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 * @exception IOException Error when removing the object from the cache.
+	 */
+	public boolean remove(Serializable key) throws IOException {
+		synchronized (this) {
+			if (!removeElement(key)) {
+				return false;
+			}
+		}
+		getStatsCounter().recordRemoval();
+		return true;
+	}
+
+	/**
+	 * Removes the element with the specified key. Must be called while
+	 * holding the lock of the cache.
+	 *
+	 * @param key The key for the object to be removed from the cache.
+	 * @return true if object has been removed, false otherwise.
+	 */
+	private boolean removeElement(Serializable key) {
+		CacheElement ce = cacheMap.remove(key);
+		if (ce == null) {
+			return false;
+		}
+		unlinkElement(ce);
+		return true;
+	}
+
+	/**
+	 * Removes all cached items from the cache. The frequencies are kept.
+	 *
+	 * @exception IOException Error when removing all objects from the cache.
+	 */
+	public void removeAll() throws IOException {
+		synchronized (this) {
+			cacheMap.clear();
+			windowList.clear();
+			probationList.clear();
+			protectedList.clear();
+			timerWheel.clear();
+			weightedSize = 0;
+			windowWeight = 0;
+			protectedWeight = 0;
+		}
+	}
+
+	/**
+	 * Removes the elements least likely to be used again: the probation
+	 * segment first, then the admission window and the protected segment.
+	 *
+	 * @param numberToFree The number of objects to be removed from the cached.
+	 * @return The number of objects that are actually removed from the cached.
+	 * @exception IOException Error when removing objects from the cache.
+	 */
+	public int freeElements(int numberToFree) throws IOException {
+		int freed = 0;
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			for (; freed < numberToFree; freed++) {
+				CacheElement victim = probationList.getLast();
+				if (victim == null) {
+					victim = windowList.getLast();
+				}
+				if (victim == null) {
+					victim = protectedList.getLast();
+				}
+				if (victim == null) {
+					// no more item in the cache
+					break;
+				}
+				evictElement(victim);
+			}
+			CacheEvents.lockHeld(getCacheName(), "freeElements", held);
+		}
+		getStatsCounter().recordEvictions(freed);
+		return freed;
+	}
+
+	/**
+	 * Returns the elements of the cache from the least to the most likely to
+	 * be kept: the probation segment, the protected segment, then the
+	 * admission window, each from the least to the most recently used one.
+	 *
+	 * @return the elements of the cache.
+	 */
+	List<CacheElement> getElementsInAccessOrder() {
+		synchronized (this) {
+			List<CacheElement> elements = new ArrayList<CacheElement>(cacheMap
+					.size());
+			probationList.addLeastRecentFirst(elements);
+			protectedList.addLeastRecentFirst(elements);
+			windowList.addLeastRecentFirst(elements);
+			return elements;
+		}
+	}
+
+	/**
+	 * Returns an iterator over the keys of the cache, which reads a page of
+	 * keys at a time under the lock of the cache.
+	 *
+	 * @param pageSize The number of keys read at a time.
+	 * @return an iterator over the keys.
+	 */
+	Iterator<Serializable> keys(int pageSize) {
+		return cacheMap.keys(this, pageSize);
+	}
+
+	/**
+	 * This will clean up the cache to remove objects that TTL has been
+	 * expired, and evict the elements a burst of puts left over the cache
+	 * limits. Only the elements the timer wheel finds due are looked at.
+	 *
+	 * @exception IOException Error when cleaning up the cache.
+	 */
+	public void cleanup() throws IOException {
+		cleanup(Integer.MAX_VALUE);
+	}
+
+	protected boolean cleanup(int maxToRemove) throws IOException {
+		synchronized (this) {
+			long held = CacheEvents.startTimer();
+			List<CacheElement> expired = timerWheel.advance(
+					currentTimeMillis(), maxToRemove);
+			for (CacheElement ce : expired) {
+				cacheMap.removeElement(ce);
+				unlinkElement(ce);
+				getStatsCounter().recordExpiration();
+			}
+			int maxToEvict = maxToRemove - expired.size();
+			boolean done = !timerWheel.hasOverdue()
+					&& evict(maxToEvict) < maxToEvict;
+			CacheEvents.lockHeld(getCacheName(), "cleanup", held);
+			return done;
+		}
+	}
+
+	/**
+	 * Returns the cached objects for the specified keys, under a single
+	 * acquisition of the lock.
+	 *
+	 * @param keys the keys for the objects to be retrieved.
+	 * @return The cached objects found, by key, in the order of the keys.
+	 * @exception IOException Error when retrieving the objects from the cache.
+	 */
+	public Map<Serializable, CacheElement> getAll(
+			Collection<? extends Serializable> keys) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		Map<Serializable, CacheElement> found = new LinkedHashMap<Serializable, CacheElement>();
+		int hits = 0;
+		int misses = 0;
+
+		synchronized (this) {
+			for (Serializable key : keys) {
+				CacheElement ce = access(key, statsCounter);
+				if (ce != null) {
+					found.put(key, ce);
+					hits++;
+				} else {
+					misses++;
+				}
+			}
+		}
+
+		statsCounter.recordGets(hits, misses);
+		return found;
+	}
+
+	/**
+	 * Puts a number of objects into the cache, under a single acquisition of
+	 * the lock. The elements are weighed before taking the lock.
+	 *
+	 * @param map The objects to be put into cache, by key.
+	 * @exception IOException Error when adding the objects to the cache.
+	 */
+	public void putAll(Map<?, ?> map) throws IOException {
+		List<CacheElement> elements = createElements(map);
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int[] weights = new int[elements.size()];
+		long now = currentTimeMillis();
+		for (int i = 0; i < weights.length; i++) {
+			CacheElement ce = adopt(elements.get(i));
+			elements.set(i, ce);
+			weights[i] = weigh(ce, cacheAttributes);
+			ce.touch(now);
+		}
+		synchronized (this) {
+			for (int i = 0; i < weights.length; i++) {
+				insert(elements.get(i), weights[i], cacheAttributes);
+			}
+		}
+		getStatsCounter().recordPuts(weights.length);
+	}
+
+	/**
+	 * Removes the cached objects with the specified keys, under a single
+	 * acquisition of the lock.
+	 *
+	 * @param keys The keys for the objects to be removed from the cache.
+	 * @return the number of objects removed.
+	 * @exception IOException Error when removing the objects from the cache.
+	 */
+	public int removeAll(Collection<? extends Serializable> keys)
+			throws IOException {
+		int removed = 0;
+
+		synchronized (this) {
+			for (Serializable key : keys) {
+				if (removeElement(key)) {
+					removed++;
+				}
+			}
+		}
+
+		getStatsCounter().recordRemovals(removed);
+		return removed;
+	}
+
+	/**
+	 * Returns the cached object for the specified key. Both hits and misses
+	 * are counted in the frequency sketch.
+	 *
+	 * @param key the key for the object to be retrieved.
+	 * @return The cached object for the specified key.
+	 * @exception IOException Error when retrieving object from the cache.
+	 */
+	public CacheElement get(Serializable key) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		CacheElement ce;
+
+		synchronized (this) {
+			ce = access(key, statsCounter);
+		}
+
+		statsCounter.recordGet(start, ce != null);
+		return ce;
+	}
+
+	/**
+	 * Counts the key in the frequency sketch and returns its element, after
+	 * recording the access to it, or removes it if it is expired. Must be
+	 * called while holding the lock of the cache.
+	 *
+	 * @param key the key for the object to be retrieved.
+	 * @param statsCounter The counters of the cache.
+	 * @return The cached object, or null if not found or expired.
+	 */
+	private CacheElement access(Serializable key,
+			CacheStatsCounter statsCounter) {
+		sketch().increment(key);
+
+		CacheElement ce = cacheMap.get(key);
+		long now = currentTimeMillis();
+		if (ce != null && isExpired(ce, now)) {
+			// The cache for this element has been expired, remove from cache
+			cacheMap.remove(key);
+			unlinkElement(ce);
+			statsCounter.recordExpiration();
+			ce = null;
+		} else if (ce != null) {
+			ce.touch(now);
+			ce.expireAfterRead(ce.getValue(), now);
+			onAccess(ce);
+		}
+		return ce;
+	}
+
+	/**
+	 * Updates the cached object. A new key enters the admission window, a
+	 * replaced element keeps the position of the old one. An element held by
+	 * another cache is copied, as an element is linked by a single cache.
+	 *
+	 * @param ce The cached object to be updated.
+	 * @exception IOException Error when updating the cache.
+	 */
+	public void update(CacheElement ce) throws IOException {
+		CacheStatsCounter statsCounter = getStatsCounter();
+		long start = statsCounter.startTimer();
+		ce = adopt(ce);
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		int weight = weigh(ce, cacheAttributes);
+		ce.touch(currentTimeMillis());
+
+		synchronized (this) {
+			insert(ce, weight, cacheAttributes);
+		}
+		statsCounter.recordPut(start);
+	}
+
+	/**
+	 * Returns the weight of an element, 1 unless the cache is bounded by
+	 * weight.
+	 *
+	 * @param ce The element.
+	 * @param cacheAttributes The attributes of the cache.
+	 * @return the weight of the element.
+	 */
+	private static int weigh(CacheElement ce, CacheAttributes cacheAttributes) {
+		return cacheAttributes.getMaxWeight() >= 0 ? cacheAttributes.weigh(ce
+				.getKey(), ce.getValue()) : 1;
+	}
+
+	/**
+	 * Puts an element into the map and its segment, and evicts a bounded
+	 * batch of elements if the cache is full. Must be called while holding
+	 * the lock of the cache.
+	 *
+	 * @param ce The cached object to be updated.
+	 * @param weight The weight of the element.
+	 * @param cacheAttributes The attributes bounding the size of the cache.
+	 */
+	private void insert(CacheElement ce, int weight,
+			CacheAttributes cacheAttributes) {
+		sketch().increment(ce.getKey());
+
+		byte queue = WINDOW;
+		CacheElement old = cacheMap.put(ce);
+		if (old != null) {
+			queue = old.queue;
+			unlinkElement(old);
+			expireAfterUpdate(ce, old);
+		}
+
+		ce.weight = weight;
+		ce.queue = queue;
+		weightedSize += weight;
+		if (queue == WINDOW) {
+			windowList.addFirst(ce);
+			windowWeight += weight;
+		} else if (queue == PROBATION) {
+			probationList.addFirst(ce);
+		} else {
+			protectedList.addFirst(ce);
+			protectedWeight += weight;
+		}
+		timerWheel.schedule(ce);
+
+		evict(cacheAttributes.getMaxEvictionsPerPut());
+	}
+
+	/**
+	 * Moves an element that has been used again within its segments.
+	 *
+	 * @param ce The element that has been used.
+	 */
+	private void onAccess(CacheElement ce) {
+		if (ce.queue == WINDOW) {
+			windowList.moveToFirst(ce);
+		} else if (ce.queue == PROTECTED) {
+			protectedList.moveToFirst(ce);
+		} else {
+			// used again while on probation, promote to protected
+			probationList.remove(ce);
+			ce.queue = PROTECTED;
+			protectedList.addFirst(ce);
+			protectedWeight += ce.weight;
+
+			long maximum = maximum();
+			if (maximum >= 0) {
+				long protectedMax = protectedMaximum(maximum);
+				while (protectedWeight > protectedMax
+						&& protectedList.getLast() != ce) {
+					// demote the least recently used protected element
+					CacheElement demoted = protectedList.removeLast();
+					protectedWeight -= demoted.weight;
+					demoted.queue = PROBATION;
+					probationList.addFirst(demoted);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the elements the admission window is too small for to the
+	 * probation segment, then evicts while the cache is over its limit. Must
+	 * be called while holding the lock of the cache.
+	 *
+	 * @param maxToEvict The maximum number of elements to be evicted.
+	 * @return the number of elements evicted.
+	 */
+	private int evict(int maxToEvict) {
+		long maximum = maximum();
+		if (maximum < 0) {
+			return 0;
+		}
+
+		// the elements leaving the window are candidates for the main space,
+		// the first candidate is the least recently used one
+		CacheElement candidate = null;
+		long windowMax = windowMaximum(maximum);
+		while (windowWeight > windowMax) {
+			CacheElement ce = windowList.removeLast();
+			windowWeight -= ce.weight;
+			ce.queue = PROBATION;
+			probationList.addFirst(ce);
+			if (candidate == null) {
+				candidate = ce;
+			}
+		}
+
+		int evicted = 0;
+		for (; evicted < maxToEvict && weightedSize > maximum; evicted++) {
+			CacheElement victim = probationList.getLast();
+			if (victim == null) {
+				victim = protectedList.getLast();
+			}
+			if (victim == null) {
+				victim = windowList.getLast();
+			}
+
+			if (candidate != null && candidate != victim
+					&& !admit(candidate.getKey(), victim.getKey())) {
+				// the more recent candidates are ahead of the rejected one
+				CacheElement next = candidate.prev;
+				evictElement(candidate);
+				candidate = next;
+			} else {
+				if (candidate == victim) {
+					// only candidates are left on probation
+					candidate = candidate.prev;
+				}
+				evictElement(victim);
+			}
+		}
+		getStatsCounter().recordEvictions(evicted);
+		return evicted;
+	}
+
+	/**
+	 * Determines if the candidate should replace the victim in the main
+	 * space.
+	 *
+	 * @param candidateKey The key of the element leaving the window.
+	 * @param victimKey The key of the least recently used probation element.
+	 * @return true if the candidate has been used more often than the victim.
+	 */
+	private boolean admit(Serializable candidateKey, Serializable victimKey) {
+		FrequencySketch frequencies = sketch();
+		return frequencies.frequency(candidateKey) > frequencies
+				.frequency(victimKey);
+	}
+
+	/**
+	 * Removes an element from the map and the segments as an eviction.
+	 *
+	 * @param ce The element to be evicted.
+	 */
+	private void evictElement(CacheElement ce) {
+		cacheMap.remove(ce.getKey());
+		unlinkElement(ce);
+		evictionCount++;
+	}
+
+	/**
+	 * Removes the element from its segment and its weight from the cache. The
+	 * caller removes the element from the map.
+	 *
+	 * @param ce The element that has been removed from the cache.
+	 */
+	private void unlinkElement(CacheElement ce) {
+		timerWheel.deschedule(ce);
+		boolean removed;
+		if (ce.queue == WINDOW) {
+			removed = windowList.remove(ce);
+			if (removed) {
+				windowWeight -= ce.weight;
+			}
+		} else if (ce.queue == PROBATION) {
+			removed = probationList.remove(ce);
+		} else {
+			removed = protectedList.remove(ce);
+			if (removed) {
+				protectedWeight -= ce.weight;
+			}
+		}
+		if (removed) {
+			weightedSize -= ce.weight;
+		}
+	}
+
+	/**
+	 * Returns the limit of the cache, resizing the sketch if the limit has
+	 * changed.
+	 *
+	 * @return the maximum weight, the maximum number of elements, or -1 if
+	 *         the cache is not bounded.
+	 */
+	private long maximum() {
+		CacheAttributes cacheAttributes = getCacheAttributes();
+		long maximum = cacheAttributes.getMaxWeight() >= 0 ? cacheAttributes
+				.getMaxWeight() : cacheAttributes.getMaxEntries();
+		if (maximum != sketchCapacity && sketch != null) {
+			sketch.ensureCapacity(maximum);
+			sketchCapacity = maximum;
+		}
+		return maximum;
+	}
+
+	/**
+	 * Returns the sketch, creating it on first use.
+	 *
+	 * @return the frequency sketch.
+	 */
+	private FrequencySketch sketch() {
+		if (sketch == null) {
+			sketchCapacity = maximum();
+			sketch = new FrequencySketch(sketchCapacity);
+		}
+		return sketch;
+	}
+
+	/**
+	 * Returns the limit of the admission window.
+	 *
+	 * @param maximum The limit of the cache.
+	 * @return the limit of the admission window.
+	 */
+	private static long windowMaximum(long maximum) {
+		return Math.max(1, maximum * WINDOW_PERCENT / 100);
+	}
+
+	/**
+	 * Returns the limit of the protected segment.
+	 *
+	 * @param maximum The limit of the cache.
+	 * @return the limit of the protected segment.
+	 */
+	private static long protectedMaximum(long maximum) {
+		return (maximum - windowMaximum(maximum)) * PROTECTED_PERCENT / 100;
+	}
+
+	/**
+	 * Recreates the timer wheel, which is not serialized.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException Error when reading the cache.
+	 * @throws ClassNotFoundException Class of an element cannot be found.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		sketchCapacity = -1;
+		timerWheel = new TimerWheel(currentTimeMillis());
+		for (CacheElement ce : cacheMap) {
+			ce.claim(this);
+			timerWheel.schedule(ce);
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.cba.inmemorycache;
+
+import java.io.Serializable;
+
+/**
+ * <code>Weigher</code> calculates the weight of an object put into a cache.
+ * The weights are used to bound a cache by its total weight instead of its
+ * number of elements, see {@link CacheAttributes#setMaxWeight(long)}.
+ * <p>
+ * The weight of an element is calculated once when it is put into the cache,
+ * so it must not depend on state that changes afterwards.
+ * </p>
+ */
+public interface Weigher extends Serializable {
+
+	/**
+	 * Returns the weight of the object to be cached.
+	 * 
+	 * @param key The key of the object.
+	 * @param value The object.
+	 * @return the weight of the object, must not be negative.
+	 */
+	public int weigh(Serializable key, Serializable value);
+
+}
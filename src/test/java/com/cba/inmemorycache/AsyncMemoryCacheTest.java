@@ -0,0 +1,123 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the asynchronous view of the caches.
+ */
+public class AsyncMemoryCacheTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public AsyncMemoryCacheTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(AsyncMemoryCacheTest.class);
+	}
+
+	/**
+	 * An executor counting the tasks it runs, each in a new thread.
+	 */
+	private static class CountingExecutor implements Executor {
+
+		final AtomicInteger taskCount = new AtomicInteger();
+
+		public void execute(Runnable task) {
+			taskCount.incrementAndGet();
+			new Thread(task).start();
+		}
+	}
+
+	/**
+	 * Checks that the operations on a cache on the heap complete in the
+	 * thread of the caller.
+	 */
+	public void testHeapCacheCompletesInline() throws Exception {
+		AsyncMemoryCache cache = InMemoryCache.getInstance().getAsyncCache(
+				"TestAsyncHeap");
+		CountingExecutor executor = new CountingExecutor();
+		cache.synchronous().setExecutor(executor);
+
+		CompletableFuture<Void> put = cache.put("1:key", "data 1");
+		assertTrue(put.isDone());
+		CompletableFuture<CacheElement> hit = cache.get("1:key");
+		assertTrue(hit.isDone());
+		assertEquals("data 1", hit.get().getValue());
+		assertNull(cache.get("2:key").get());
+
+		CompletableFuture<Map<Serializable, CacheElement>> all = cache
+				.getAll(Arrays.asList("1:key", "2:key"));
+		assertTrue(all.isDone());
+		assertEquals(1, all.get().size());
+
+		CompletableFuture<Boolean> removed = cache.remove("1:key");
+		assertTrue(removed.isDone());
+		assertTrue(removed.get().booleanValue());
+		assertEquals(0, executor.taskCount.get());
+
+		// a miss is loaded on the executor
+		CompletableFuture<String> loaded = cache.get("3:key",
+				new CacheLoader<String>() {
+					public String load(Serializable key) {
+						return "data 3";
+					}
+				});
+		assertEquals("data 3", loaded.get(10, TimeUnit.SECONDS));
+		assertEquals(1, executor.taskCount.get());
+	}
+
+	/**
+	 * Checks that the operations on an off-heap cache run on the executor.
+	 */
+	public void testOffHeapCacheRunsOnExecutor() throws Exception {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.OFF_HEAP);
+		AsyncMemoryCache cache = InMemoryCache.getInstance().getAsyncCache(
+				"TestAsyncOffHeap", cacheAttributes);
+		CountingExecutor executor = new CountingExecutor();
+		cache.synchronous().setExecutor(executor);
+
+		cache.put("1:key", "data 1").get(10, TimeUnit.SECONDS);
+		assertEquals("data 1", cache.get("1:key").get(10, TimeUnit.SECONDS)
+				.getValue());
+		assertTrue(cache.remove("1:key").get(10, TimeUnit.SECONDS)
+				.booleanValue());
+		assertEquals(3, executor.taskCount.get());
+	}
+
+	/**
+	 * Checks that an error completes the future exceptionally.
+	 */
+	public void testFailure() throws Exception {
+		AsyncMemoryCache cache = InMemoryCache.getInstance().getAsyncCache(
+				"TestAsyncFailure");
+		try {
+			cache.put("1:key", null).get();
+			fail("A null value should be refused");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the codecs of the keys and the values.
+ */
+public class CacheCodecTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheCodecTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheCodecTest.class);
+	}
+
+	/**
+	 * A value which refuses Java serialization, so only a codec can write
+	 * it.
+	 */
+	static class Point implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final int x;
+
+		final int y;
+
+		final String label;
+
+		Point(int x, int y, String label) {
+			this.x = x;
+			this.y = y;
+			this.label = label;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Point)) {
+				return false;
+			}
+			Point p = (Point) o;
+			return x == p.x && y == p.y
+					&& (label == null ? p.label == null : label.equals(p.label));
+		}
+
+		public int hashCode() {
+			return 31 * x + y;
+		}
+
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			throw new NotSerializableException("Point");
+		}
+	}
+
+	/**
+	 * The codec of the points.
+	 */
+	static class PointCodec extends RecordCodec<Point> {
+
+		private static final long serialVersionUID = 1L;
+
+		PointCodec() {
+			super(Point.class);
+		}
+
+		public void encode(Point point, DataOutput out) throws IOException {
+			writeVarLong(out, point.x);
+			writeVarLong(out, point.y);
+			writeString(out, point.label);
+		}
+
+		public Point decode(DataInput in) throws IOException {
+			return new Point((int) readVarLong(in), (int) readVarLong(in),
+					readString(in));
+		}
+	}
+
+	/**
+	 * Checks the built-in codecs.
+	 */
+	public void testBuiltInCodecs() throws Exception {
+		assertEquals("data 1", CacheCodecs.fromBytes(CacheCodecs.STRING,
+				CacheCodecs.toBytes(CacheCodecs.STRING, "data 1")));
+		assertEquals(1, CacheCodecs.toBytes(CacheCodecs.INTEGER,
+				Integer.valueOf(-5)).length);
+		assertEquals(Integer.valueOf(-5), CacheCodecs.fromBytes(
+				CacheCodecs.INTEGER, new byte[] { 9 }));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), CacheCodecs.fromBytes(
+				CacheCodecs.LONG, CacheCodecs.toBytes(CacheCodecs.LONG, Long
+						.valueOf(Long.MIN_VALUE))));
+		assertEquals(Double.valueOf(0.5), CacheCodecs.fromBytes(
+				CacheCodecs.DOUBLE, CacheCodecs.toBytes(CacheCodecs.DOUBLE,
+						Double.valueOf(0.5))));
+		byte[] bytes = { 1, 2, 3 };
+		assertTrue(Arrays.equals(bytes, (byte[]) CacheCodecs.fromBytes(
+				CacheCodecs.BYTES, CacheCodecs.toBytes(CacheCodecs.BYTES,
+						bytes))));
+		assertEquals(Arrays.asList("a", "b"), CacheCodecs.fromBytes(
+				CacheCodecs.SERIALIZABLE, CacheCodecs.toBytes(
+						CacheCodecs.SERIALIZABLE, new ArrayList<String>(
+								Arrays.asList("a", "b")))));
+
+		try {
+			CacheCodecs.toBytes(CacheCodecs.STRING, Integer.valueOf(1));
+			fail("An Integer should not be encoded as a String");
+		} catch (IOException e) {
+			// expected
+		}
+
+		// the built-in codecs stay singletons through serialization
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream objectOut = new ObjectOutputStream(out);
+		objectOut.writeObject(CacheCodecs.LONG);
+		objectOut.close();
+		ObjectInputStream objectIn = new ObjectInputStream(
+				new ByteArrayInputStream(out.toByteArray()));
+		assertSame(CacheCodecs.LONG, objectIn.readObject());
+	}
+
+	/**
+	 * Checks that a record codec is more compact than Java serialization.
+	 */
+	public void testRecordCodec() throws IOException {
+		Point point = new Point(3, -4, "p");
+		byte[] bytes = CacheCodecs.toBytes(new PointCodec(), point);
+		assertEquals(4, bytes.length);
+		assertEquals(point, CacheCodecs.fromBytes(new PointCodec(), bytes));
+		assertEquals(new Point(0, 0, null), CacheCodecs.fromBytes(
+				new PointCodec(), CacheCodecs.toBytes(new PointCodec(),
+						new Point(0, 0, null))));
+	}
+
+	/**
+	 * Checks that the off-heap cache stores its values with its codec.
+	 */
+	public void testOffHeapCodec() throws IOException {
+		OffHeapMemoryCache cache = new OffHeapMemoryCache("TestCodecOffHeap");
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setValueCodec(new PointCodec());
+		cache.setCacheAttributes(cacheAttributes);
+
+		cache.put("1:key", new Point(1, 2, "one"));
+		assertEquals(new Point(1, 2, "one"), cache.get("1:key").getValue());
+		try {
+			cache.put("2:key", "data 2");
+			fail("A String should not be encoded as a Point");
+		} catch (IOException e) {
+			// expected
+		}
+		assertNull(cache.get("2:key"));
+	}
+
+	/**
+	 * Checks that the snapshots are written with the codecs, and need them to
+	 * be restored.
+	 */
+	public void testSnapshotCodec() throws IOException {
+		File directory = Files.createTempDirectory("cache-codecs").toFile();
+		try {
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setKeyCodec(CacheCodecs.LONG);
+			cacheAttributes.setValueCodec(new PointCodec());
+
+			InMemoryCache before = new InMemoryCache();
+			MemoryCache cache = before.getCache("TestCodecSnapshot",
+					cacheAttributes);
+			for (int i = 0; i < 10; i++) {
+				cache.put(Long.valueOf(i), new Point(i, -i, "point " + i));
+			}
+			assertEquals(10, before.writeSnapshots(directory));
+
+			InMemoryCache withoutCodec = new InMemoryCache();
+			assertEquals(0, withoutCodec.restoreSnapshots(directory));
+
+			InMemoryCache after = new InMemoryCache();
+			after.getCache("TestCodecSnapshot", cacheAttributes);
+			assertEquals(10, after.restoreSnapshots(directory));
+			assertEquals(new Point(7, -7, "point 7"), after.getCache(
+					"TestCodecSnapshot").get(Long.valueOf(7)).getValue());
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the compact layout of CacheElement: ElementProfile and
+ * ElementTable.
+ */
+public class CacheElementTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheElementTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheElementTest.class);
+	}
+
+	/**
+	 * Checks that the elements of a cache share its settings, and that an
+	 * element given its own TTL does not change the others.
+	 */
+	public void testElementsShareTheSettingsOfTheCache() throws IOException {
+		LRUMemoryCache cache = (LRUMemoryCache) InMemoryCache.getInstance()
+				.getCache("TestSharedSettings");
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setMaxLifeSeconds(60);
+		cache.setAttributes(attributes);
+		cache.put("a", "data a");
+		cache.put("b", "data b");
+
+		CacheElement a = cache.get("a");
+		CacheElement b = cache.get("b");
+		assertEquals("TestSharedSettings", a.getCacheName());
+		assertEquals(60, a.getMaxLifeSeconds());
+		assertEquals(-1, a.getMaxIdleTimeSeconds());
+
+		a.setMaxLifeSeconds(5);
+		assertEquals(5, a.getMaxLifeSeconds());
+		assertEquals(60, b.getMaxLifeSeconds());
+
+		attributes.setMaxIdleTimeSeconds(30);
+		cache.put("c", "data c");
+		assertEquals(30, cache.get("c").getMaxIdleTimeSeconds());
+		assertEquals(-1, b.getMaxIdleTimeSeconds());
+	}
+
+	/**
+	 * Checks that the times are kept to the millisecond near the epoch and to
+	 * the second far from it.
+	 */
+	public void testTimesAreEncodedFromTheEpoch() {
+		long epoch = 1780000000000L;
+		ElementProfile profile = new ElementProfile("TestTimes", -1, -1, epoch);
+		CacheElement ce = new CacheElement(profile, "key", "data", epoch + 1);
+		assertEquals(epoch + 1, ce.getCreateTime());
+		assertEquals(epoch + 1, ce.getLastAccessTime());
+
+		ce.setLastAccessTime(epoch + 10L * 24 * 3600 * 1000 + 123);
+		assertEquals(epoch + 10L * 24 * 3600 * 1000 + 123, ce
+				.getLastAccessTime());
+
+		ce.setLastAccessTime(epoch + 400L * 24 * 3600 * 1000 + 123);
+		assertEquals(epoch + 400L * 24 * 3600 * 1000, ce.getLastAccessTime());
+
+		ce.setCreateTime(epoch - 400L * 24 * 3600 * 1000 - 123);
+		assertEquals(epoch - 400L * 24 * 3600 * 1000 - 1000, ce
+				.getCreateTime());
+	}
+
+	/**
+	 * Checks that the element table maps the keys to their elements as it
+	 * grows, and that replaced and removed elements leave it.
+	 */
+	public void testElementTable() {
+		ElementTable table = new ElementTable();
+		CacheElement[] elements = new CacheElement[1000];
+		for (int i = 0; i < elements.length; i++) {
+			elements[i] = new CacheElement("TestTable", i + ":key", "data");
+			assertNull(table.put(elements[i]));
+		}
+		assertEquals(elements.length, table.size());
+		for (int i = 0; i < elements.length; i++) {
+			assertSame(elements[i], table.get(i + ":key"));
+		}
+
+		CacheElement replacement = new CacheElement("TestTable", "7:key",
+				"more");
+		assertSame(elements[7], table.put(replacement));
+		assertSame(replacement, table.get("7:key"));
+		assertFalse(table.removeElement(elements[7]));
+		assertEquals(elements.length, table.size());
+
+		assertSame(elements[8], table.remove("8:key"));
+		assertTrue(table.removeElement(elements[9]));
+		assertNull(table.get("8:key"));
+		assertNull(table.get("9:key"));
+
+		Set<CacheElement> iterated = new HashSet<CacheElement>();
+		for (CacheElement ce : table) {
+			assertTrue(iterated.add(ce));
+		}
+		assertEquals(elements.length - 2, iterated.size());
+		assertEquals(elements.length - 2, table.size());
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertNull(table.get("1:key"));
+	}
+
+}
@@ -0,0 +1,154 @@
+package com.cba.inmemorycache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the MBeans and the Flight Recorder events of the caches.
+ */
+public class CacheManagementTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheManagementTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheManagementTest.class);
+	}
+
+	/**
+	 * Checks the attributes and the operations of the MBean of a cache.
+	 */
+	public void testMBean() throws IOException, JMException {
+		MemoryCache cache = InMemoryCache.getInstance().getCache(
+				"TestMBean \"quoted\"");
+		for (int i = 0; i < 100; i++) {
+			cache.put(i + ":key", "data " + i);
+		}
+		cache.get("1:key");
+		cache.get("missing");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = InMemoryCache.getObjectName("TestMBean \"quoted\"");
+		assertEquals(100, server.getAttribute(name, "Size"));
+		assertEquals("LRU", server.getAttribute(name, "MemoryCacheType"));
+		assertEquals(0.5, server.getAttribute(name, "HitRatio"));
+		assertEquals(-1.0, server.getAttribute(name, "GetLatencyP99Micros"));
+
+		assertEquals(10, server.invoke(name, "freeElements",
+				new Object[] { 10 }, new String[] { "int" }));
+		assertEquals(10L, server.getAttribute(name, "EvictionCount"));
+
+		server.setAttribute(name, new Attribute("MaxEntries", 50));
+		assertEquals(50, cache.getSize());
+		assertEquals(50, server.getAttribute(name, "MaxEntries"));
+
+		server.invoke(name, "cleanup", null, null);
+		assertEquals(1L, server.getAttribute(name, "CleanupCount"));
+
+		server.invoke(name, "removeAll", null, null);
+		assertEquals(0, cache.getSize());
+	}
+
+	/**
+	 * Checks that the caches of two managers have their own MBeans, and that
+	 * removing a cache or shutting a manager down unregisters them.
+	 */
+	public void testMBeansOfManagers() throws IOException, JMException {
+		InMemoryCache first = new InMemoryCache();
+		InMemoryCache second = new InMemoryCache();
+		first.getCache("TestManagers").put("key", "data");
+		second.getCache("TestManagers");
+		second.getCache("TestManagers-other");
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName firstName = InMemoryCache.getObjectName(first
+				.getManagerName(), "TestManagers");
+		ObjectName secondName = InMemoryCache.getObjectName(second
+				.getManagerName(), "TestManagers");
+		assertFalse(firstName.equals(secondName));
+		assertEquals(1, server.getAttribute(firstName, "Size"));
+		assertEquals(0, server.getAttribute(secondName, "Size"));
+
+		assertTrue(first.removeCache("TestManagers"));
+		assertFalse(first.removeCache("TestManagers"));
+		assertFalse(server.isRegistered(firstName));
+		assertFalse(first.hasCache("TestManagers"));
+		assertTrue(server.isRegistered(secondName));
+
+		second.shutdown();
+		assertFalse(server.isRegistered(secondName));
+		assertFalse(server.isRegistered(InMemoryCache.getObjectName(second
+				.getManagerName(), "TestManagers-other")));
+		assertEquals(0, second.getCacheNames().length);
+	}
+
+	/**
+	 * Checks that cleanups and eviction bursts are recorded by the Flight
+	 * Recorder.
+	 */
+	public void testFlightRecorderEvents() throws Exception {
+		MemoryCache cache = InMemoryCache.getInstance().getCache(
+				"TestFlightRecorder");
+		for (int i = 0; i < 100000; i++) {
+			cache.put(i + ":key", "data " + i);
+		}
+
+		File file = File.createTempFile("cache-events", ".jfr");
+		Recording recording = new Recording();
+		try {
+			recording.enable("com.cba.inmemorycache.Cleanup");
+			recording.enable("com.cba.inmemorycache.EvictionBurst");
+			recording.enable("com.cba.inmemorycache.LockHold");
+			recording.start();
+
+			// the cleanup evicts the elements over the new limit at once
+			((AbstractMemoryCache) cache).getCacheAttributes()
+					.setMaxEntries(10);
+			InMemoryCache.getInstance().maintainCache("TestFlightRecorder");
+
+			recording.stop();
+			recording.dump(file.toPath());
+
+			Set<String> eventNames = new HashSet<String>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file
+					.toPath())) {
+				if ("TestFlightRecorder".equals(event.getString("cacheName"))) {
+					eventNames.add(event.getEventType().getName());
+				}
+			}
+			assertTrue(eventNames.toString(), eventNames
+					.contains("com.cba.inmemorycache.Cleanup"));
+			assertTrue(eventNames.toString(), eventNames
+					.contains("com.cba.inmemorycache.EvictionBurst"));
+		} finally {
+			recording.close();
+			file.delete();
+		}
+	}
+
+}
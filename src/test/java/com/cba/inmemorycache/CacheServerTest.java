@@ -0,0 +1,206 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the cache server and its clients with near caches.
+ */
+public class CacheServerTest extends TestCase {
+
+	/** The cache manager of the server */
+	private InMemoryCache manager;
+
+	/** The server, on a free port of the local host */
+	private CacheServer server;
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheServerTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheServerTest.class);
+	}
+
+	protected void setUp() throws Exception {
+		manager = new InMemoryCache();
+		server = new CacheServer(manager, new InetSocketAddress(InetAddress
+				.getLoopbackAddress(), 0));
+		server.start();
+	}
+
+	protected void tearDown() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * Connects a client to the server.
+	 *
+	 * @return the client.
+	 */
+	private CacheClient connect() throws IOException {
+		return CacheClient.connect(new InetSocketAddress(InetAddress
+				.getLoopbackAddress(), server.getPort()));
+	}
+
+	/**
+	 * Waits for a key to leave a near cache.
+	 *
+	 * @param cache The remote cache.
+	 * @param key The key.
+	 * @return true if the key left the near cache in time.
+	 */
+	private static boolean awaitInvalidation(RemoteMemoryCache cache,
+			Serializable key) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.getNearCache().get(key) != null) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that the reads are answered by the near cache, and that the
+	 * writes of a client invalidate the near cache of another.
+	 */
+	public void testNearCache() throws Exception {
+		CacheClient client1 = connect();
+		CacheClient client2 = connect();
+		try {
+			RemoteMemoryCache cache1 = client1.getCache("TestRemote");
+			RemoteMemoryCache cache2 = client2.getCache("TestRemote");
+			// the near cache is bounded by default
+			assertEquals(CacheClient.NEAR_CACHE_MAX_ENTRIES,
+					((AbstractMemoryCache) cache1.getNearCache())
+							.getCacheAttributes().getMaxEntries());
+
+			cache1.put("key 1", "data 1");
+			assertEquals("data 1", manager.getCache("TestRemote").get("key 1")
+					.getValue());
+			assertEquals("data 1", cache2.get("key 1").getValue());
+			assertEquals("data 1", cache2.get("key 1").getValue());
+			assertEquals(1, cache2.getStats().getHitCount());
+			assertEquals(1, cache2.getNearCache().getSize());
+
+			cache1.put("key 1", "data 1.1");
+			assertTrue(awaitInvalidation(cache2, "key 1"));
+			assertEquals("data 1.1", cache2.get("key 1").getValue());
+
+			assertTrue(cache1.remove("key 1"));
+			assertFalse(cache1.remove("key 1"));
+			assertTrue(awaitInvalidation(cache2, "key 1"));
+			assertNull(cache2.get("key 1"));
+			assertNull(cache1.get("key 1"));
+
+			cache2.put("key 2", "data 2");
+			assertEquals("data 2", cache1.get("key 2").getValue());
+			cache2.removeAll();
+			assertTrue(awaitInvalidation(cache1, "key 2"));
+			assertEquals(0, cache1.getSize());
+		} finally {
+			client1.close();
+			client2.close();
+		}
+	}
+
+	/**
+	 * Checks the batches of requests, and the lifetime the server gives the
+	 * elements of the near cache.
+	 */
+	public void testBatches() throws Exception {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMaxEntries(2000);
+		manager.getCache("TestRemoteBatches", cacheAttributes);
+		CacheClient client = connect();
+		try {
+			RemoteMemoryCache cache = client.getCache("TestRemoteBatches");
+			Map<Serializable, Serializable> map = new HashMap<Serializable, Serializable>();
+			List<Serializable> keys = new ArrayList<Serializable>();
+			for (long i = 0; i < 1000; i++) {
+				map.put(Long.valueOf(i), "data " + i);
+				keys.add(Long.valueOf(i));
+			}
+			keys.add("missing");
+			cache.putAll(map);
+			assertEquals(1000, cache.getSize());
+
+			cache.getNearCache().removeAll();
+			Map<Serializable, CacheElement> found = cache.getAll(keys);
+			assertEquals(1000, found.size());
+			assertEquals("data 999", found.get(Long.valueOf(999)).getValue());
+			assertEquals(Long.valueOf(0), found.keySet().iterator().next());
+			assertEquals(1000, cache.getNearCache().getSize());
+
+			assertEquals(500, cache.removeAll(keys.subList(0, 500)));
+			assertEquals(500, cache.getSize());
+			assertEquals(500, cache.getNearCache().getSize());
+
+			cache.put("timed", "data", new Expiry() {
+				private static final long serialVersionUID = 1L;
+
+				public long expireAfterCreate(Serializable key,
+						Serializable value) {
+					return 60;
+				}
+			});
+			assertEquals(60, manager.getCache("TestRemoteBatches").get(
+					"timed").getMaxLifeSeconds());
+			assertTrue(cache.getNearCache().get("timed").getMaxLifeSeconds() <= 60);
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Checks that the requests fail once the server is gone, and that the
+	 * near cache is cleared.
+	 */
+	public void testServerStopped() throws Exception {
+		CacheClient client = connect();
+		try {
+			RemoteMemoryCache cache = client.getCache("TestRemoteStopped");
+			cache.put("key", "data");
+			assertEquals(1, cache.getNearCache().getSize());
+
+			server.stop();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (client.isConnected()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			assertFalse(client.isConnected());
+			assertEquals(0, cache.getNearCache().getSize());
+			try {
+				cache.get("key");
+				fail("The server is stopped");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+}
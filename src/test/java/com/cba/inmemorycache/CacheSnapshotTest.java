@@ -0,0 +1,179 @@
+package com.cba.inmemorycache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the snapshots of the caches.
+ */
+public class CacheSnapshotTest extends TestCase {
+
+	/** The directory of the snapshots */
+	private File directory;
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheSnapshotTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheSnapshotTest.class);
+	}
+
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("cache-snapshots").toFile();
+	}
+
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Writes every cache implementation to a snapshot and restores it into
+	 * another cache manager, as after a restart.
+	 */
+	public void testWarmRestart() throws IOException {
+		InMemoryCache before = new InMemoryCache();
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(memoryCacheType);
+			cacheAttributes.setMaxEntries(1000);
+			AbstractMemoryCache cache = (AbstractMemoryCache) before.getCache(
+					"TestSnapshot/" + memoryCacheType, cacheAttributes);
+			cache.getAttributes().setMaxLifeSeconds(3600);
+
+			for (int i = 0; i < 100; i++) {
+				cache.put(Long.valueOf(i), "data " + i);
+			}
+			// an object value, and an element expired before the snapshot
+			cache.put(Long.valueOf(100), new Date(100));
+			CacheElement expired = new CacheElement(cache.getCacheName(), Long
+					.valueOf(101), "expired");
+			expired.setMaxLifeSeconds(2);
+			expired.setCreateTime(System.currentTimeMillis() - 5000);
+			cache.update(expired);
+			// the first element is now the most recently used one
+			assertNotNull(cache.get(Long.valueOf(0)));
+		}
+
+		assertEquals(MemoryCacheType.values().length * 101, before
+				.writeSnapshots(directory));
+
+		InMemoryCache after = new InMemoryCache();
+		assertEquals(MemoryCacheType.values().length * 101, after
+				.restoreSnapshots(directory));
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String message = memoryCacheType.toString();
+			AbstractMemoryCache cache = (AbstractMemoryCache) after
+					.getCache("TestSnapshot/" + memoryCacheType);
+			assertEquals(message, memoryCacheType, cache.getCacheAttributes()
+					.getMemoryCacheType());
+			assertEquals(message, 1000, cache.getCacheAttributes()
+					.getMaxEntries());
+			assertEquals(message, 3600, cache.getAttributes()
+					.getMaxLifeSeconds());
+			assertEquals(message, 101, cache.getSize());
+
+			CacheElement ce = cache.get(Long.valueOf(50));
+			assertEquals(message, "data 50", ce.getValue());
+			assertTrue(message, ce.getTimeToLiveSeconds() > 3590);
+			assertEquals(message, new Date(100), cache.get(Long.valueOf(100))
+					.getValue());
+			assertNull(message, cache.get(Long.valueOf(101)));
+
+			// the segmented cache frees by access time, mostly the same
+			// millisecond here, and the TinyLFU cache by frequency
+			if (memoryCacheType != MemoryCacheType.TINY_LFU
+					&& memoryCacheType != MemoryCacheType.SEGMENTED_LRU) {
+				// the least recently used element was the second one put
+				assertEquals(message, 1, cache.freeElements(1));
+				assertNull(message, cache.get(Long.valueOf(1)));
+				assertNotNull(message, cache.get(Long.valueOf(0)));
+			}
+		}
+	}
+
+	/**
+	 * Checks that every cache implementation restores the time the elements
+	 * were last accessed before the snapshot.
+	 */
+	public void testRestoreLastAccessTime() throws IOException {
+		InMemoryCache before = new InMemoryCache();
+		long now = System.currentTimeMillis();
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(memoryCacheType);
+			AbstractMemoryCache cache = (AbstractMemoryCache) before.getCache(
+					"TestSnapshotIdle/" + memoryCacheType, cacheAttributes);
+			CacheElement ce = cache.createElement(Long.valueOf(1), "idle");
+			ce.setMaxIdleTimeSeconds(60);
+			cache.restore(ce, now - 30000);
+		}
+		assertEquals(MemoryCacheType.values().length, before
+				.writeSnapshots(directory));
+
+		InMemoryCache after = new InMemoryCache();
+		assertEquals(MemoryCacheType.values().length, after
+				.restoreSnapshots(directory));
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String message = memoryCacheType.toString();
+			AbstractMemoryCache cache = (AbstractMemoryCache) after
+					.getCache("TestSnapshotIdle/" + memoryCacheType);
+			List<CacheElement> elements = cache.getElementsInAccessOrder();
+			assertEquals(message, 1, elements.size());
+			long idleTime = System.currentTimeMillis()
+					- elements.get(0).getLastAccessTime();
+			assertTrue(message + " " + idleTime, idleTime >= 30000
+					&& idleTime < 40000);
+		}
+	}
+
+	/**
+	 * Checks that a snapshot restored into an existing cache keeps the
+	 * attributes of the cache, and that a corrupted snapshot is skipped.
+	 */
+	public void testRestoreIntoExistingCache() throws IOException {
+		InMemoryCache before = new InMemoryCache();
+		MemoryCache cache = before.getCache("TestSnapshotExisting");
+		for (int i = 0; i < 10; i++) {
+			cache.put(i + ":key", "data " + i);
+		}
+		assertEquals(10, before.writeSnapshots(directory));
+		Files.write(new File(directory, "TestSnapshotCorrupted"
+				+ CacheSnapshot.SUFFIX).toPath(), new byte[] { 1, 2, 3 });
+
+		InMemoryCache after = new InMemoryCache();
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMaxEntries(5);
+		after.getCache("TestSnapshotExisting", cacheAttributes);
+		assertEquals(10, after.restoreSnapshots(directory));
+
+		MemoryCache restored = after.getCache("TestSnapshotExisting");
+		assertEquals(5, restored.getSize());
+		assertNotNull(restored.get("9:key"));
+		assertNull(restored.get("4:key"));
+		assertFalse(after.hasCache("TestSnapshotCorrupted"));
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the statistics of the caches.
+ */
+public class CacheStatsTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheStatsTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheStatsTest.class);
+	}
+
+	/**
+	 * Creates a cache holding at most 10 elements.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param memoryCacheType
+	 *            The implementation of the cache.
+	 * @return the cache.
+	 */
+	private MemoryCache createCache(String cacheName,
+			MemoryCacheType memoryCacheType) {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(memoryCacheType);
+		cacheAttributes.setMaxEntries(10);
+		cacheAttributes.setConcurrencyLevel(2);
+		cacheAttributes.setRecordLatency(true);
+		return InMemoryCache.getInstance().getCache(cacheName, cacheAttributes);
+	}
+
+	/**
+	 * Checks the counts of every cache implementation.
+	 */
+	public void testCounts() throws IOException {
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String cacheName = "TestStats" + memoryCacheType;
+			MemoryCache cache = createCache(cacheName, memoryCacheType);
+			for (int i = 0; i < 20; i++) {
+				cache.put(Integer.valueOf(i), "data " + i);
+			}
+			cache.freeElements(2);
+			assertNotNull(cache.get(Integer.valueOf(19)));
+			assertNull(cache.get(Integer.valueOf(100)));
+			assertTrue(cache.remove(Integer.valueOf(19)));
+			assertFalse(cache.remove(Integer.valueOf(100)));
+
+			CacheElement expired = new CacheElement(cacheName, Integer
+					.valueOf(200), "data 200");
+			expired.setCreateTime(System.currentTimeMillis() - 5000);
+			expired.setMaxLifeSeconds(2);
+			cache.update(expired);
+			assertNull(cache.get(Integer.valueOf(200)));
+
+			CacheStats stats = cache.getStats();
+			String message = memoryCacheType + ": " + stats;
+			assertEquals(message, cacheName, stats.getCacheName());
+			assertEquals(message, 1, stats.getHitCount());
+			assertEquals(message, 2, stats.getMissCount());
+			assertEquals(message, 1.0 / 3, stats.getHitRatio(), 1e-9);
+			assertEquals(message, 21, stats.getPutCount());
+			assertEquals(message, 1, stats.getRemovalCount());
+			assertEquals(message, 1, stats.getExpirationCount());
+			// the tiny LFU cache may evict an element it has just admitted
+			assertTrue(message, stats.getEvictionCount() >= 12);
+			assertEquals(message, 3, stats.getGetLatency().getCount());
+			assertEquals(message, 21, stats.getPutLatency().getCount());
+		}
+	}
+
+	/**
+	 * Checks that the latency is only recorded if the cache attributes ask
+	 * for it, and that the manager lists the statistics of all caches.
+	 */
+	public void testRegistry() throws IOException {
+		InMemoryCache manager = InMemoryCache.getInstance();
+		MemoryCache cache = manager.getCache("TestStatsRegistry");
+		cache.put("key", "data");
+		cache.get("key");
+
+		CacheStats stats = manager.getStats("TestStatsRegistry");
+		assertEquals(1, stats.getHitCount());
+		assertNull(stats.getGetLatency());
+		assertNull(stats.getPutLatency());
+		assertNull(manager.getStats("TestStatsNoSuchCache"));
+
+		Map<String, CacheStats> all = manager.getStats();
+		assertEquals(manager.getCacheNames().length, all.size());
+		assertEquals(1, all.get("TestStatsRegistry").getPutCount());
+	}
+
+	/**
+	 * Checks that the percentiles of the histogram are within the precision
+	 * of its buckets.
+	 */
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value * 1000);
+		}
+		histogram.record(-5);
+
+		assertEquals(100001, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(0));
+		assertWithin(50000000, histogram.getValueAtPercentile(50));
+		assertWithin(99000000, histogram.getValueAtPercentile(99));
+		assertWithin(99900000, histogram.getValueAtPercentile(99.9));
+		assertWithin(100000000, histogram.getMax());
+		assertWithin(50000000, (long) histogram.getMean());
+
+		for (long value = 0; value < 1000000; value += 7) {
+			long highest = LatencyHistogram.highestValueOf(LatencyHistogram
+					.bucketOf(value));
+			assertTrue(value + " in " + highest, highest >= value);
+			assertWithin(value, highest);
+		}
+		assertTrue(LatencyHistogram.highestValueOf(LatencyHistogram
+				.bucketOf(Long.MAX_VALUE)) == Long.MAX_VALUE);
+	}
+
+	/**
+	 * Asserts that a value of the histogram is within 3.2% of the expected
+	 * value.
+	 *
+	 * @param expected The expected value.
+	 * @param actual The value of the histogram.
+	 */
+	private static void assertWithin(long expected, long actual) {
+		assertEquals(expected, actual, expected / 31.0);
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the tickers timing the elements.
+ */
+public class CacheTickerTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public CacheTickerTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CacheTickerTest.class);
+	}
+
+	/**
+	 * Checks that the coarse ticker follows the system clock, and reads it
+	 * once stopped.
+	 */
+	public void testCoarseTicker() throws InterruptedException {
+		CoarseTicker ticker = new CoarseTicker(5);
+		try {
+			long start = ticker.currentTimeMillis();
+			assertTrue(Math.abs(System.currentTimeMillis() - start) < 1000);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (ticker.currentTimeMillis() == start
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			assertTrue(ticker.currentTimeMillis() > start);
+		} finally {
+			ticker.stop();
+		}
+		long before = System.currentTimeMillis();
+		assertTrue(ticker.currentTimeMillis() >= before);
+
+		try {
+			new CoarseTicker(0);
+			fail("A resolution under 1 ms should be refused");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Checks that every cache implementation times its elements with its
+	 * ticker, on reads and on cleanups.
+	 */
+	public void testFakeTickerExpiry() throws IOException {
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String message = memoryCacheType.toString();
+			FakeTicker ticker = new FakeTicker();
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(memoryCacheType);
+			cacheAttributes.setTicker(ticker);
+			AbstractMemoryCache cache = (AbstractMemoryCache) new InMemoryCache()
+					.getCache("TestTicker/" + memoryCacheType, cacheAttributes);
+			CacheElementAttributes attributes = new CacheElementAttributes();
+			attributes.setMaxIdleTimeSeconds(60);
+			cache.setAttributes(attributes);
+
+			for (int i = 0; i < 10; i++) {
+				cache.put(Long.valueOf(i), "data " + i);
+			}
+			ticker.advance(50, TimeUnit.SECONDS);
+			// the access moves the idle deadline of the first element
+			assertNotNull(message, cache.get(Long.valueOf(0)));
+			assertEquals(message, ticker.currentTimeMillis(), cache.get(
+					Long.valueOf(0)).getLastAccessTime());
+
+			ticker.advance(20, TimeUnit.SECONDS);
+			assertNull(message, cache.get(Long.valueOf(1)));
+			cache.cleanup();
+			assertEquals(message, 1, cache.getSize());
+			assertNotNull(message, cache.get(Long.valueOf(0)));
+		}
+	}
+
+}
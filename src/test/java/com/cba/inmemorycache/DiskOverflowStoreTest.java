@@ -0,0 +1,237 @@
+package com.cba.inmemorycache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the overflow of the evicted elements to disk.
+ */
+public class DiskOverflowStoreTest extends TestCase {
+
+	/** The directory of the overflow logs */
+	private File directory;
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public DiskOverflowStoreTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(DiskOverflowStoreTest.class);
+	}
+
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("cache-overflow").toFile();
+	}
+
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Creates an LRU cache overflowing to the test directory.
+	 *
+	 * @param cacheName The name of the cache.
+	 * @param maxEntries The maximum number of elements on the heap.
+	 * @return the cache.
+	 */
+	private LRUMemoryCache createCache(String cacheName, int maxEntries) {
+		LRUMemoryCache cache = new LRUMemoryCache(cacheName);
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMaxEntries(maxEntries);
+		cacheAttributes.setOverflowDirectory(directory);
+		cache.setCacheAttributes(cacheAttributes);
+		return cache;
+	}
+
+	/**
+	 * Checks that the evicted elements are found on disk, and that the
+	 * elements put or removed meanwhile are not.
+	 */
+	public void testOverflow() throws IOException {
+		LRUMemoryCache cache = createCache("TestOverflow", 10);
+		assertFalse(cache.isHeapResident());
+		for (int i = 0; i < 30; i++) {
+			cache.put(Integer.valueOf(i), "data " + i);
+		}
+		assertEquals(10, cache.getSize());
+		assertEquals(20, cache.getOverflowSize());
+		assertEquals(20, cache.getEvictionCount());
+
+		// a hit on disk moves the element back, evicting another one
+		assertEquals("data 0", cache.get(Integer.valueOf(0)).getValue());
+		assertEquals(10, cache.getSize());
+		assertEquals(20, cache.getOverflowSize());
+		assertNotNull(cache.get(Integer.valueOf(0)));
+
+		// a put or a remove makes the element on disk stale
+		cache.put(Integer.valueOf(5), "data 5 again");
+		assertEquals("data 5 again", cache.get(Integer.valueOf(5)).getValue());
+		assertTrue(cache.remove(Integer.valueOf(6)));
+		assertNull(cache.get(Integer.valueOf(6)));
+		assertNull(cache.get(Integer.valueOf(30)));
+
+		assertEquals(3, cache.getAll(
+				Arrays.asList(Integer.valueOf(1), Integer.valueOf(2),
+						Integer.valueOf(3))).size());
+
+		cache.removeAll();
+		assertEquals(0, cache.getOverflowSize());
+		assertNull(cache.get(Integer.valueOf(1)));
+	}
+
+	/**
+	 * Checks that the expired elements are not written, and that the log
+	 * keeps to its capacity.
+	 */
+	public void testExpiryAndCapacity() throws IOException {
+		LRUMemoryCache cache = createCache("TestOverflowCapacity", 1);
+		CacheElement expired = new CacheElement(cache.getCacheName(), "1:key",
+				"expired");
+		expired.setMaxLifeSeconds(1);
+		expired.setCreateTime(System.currentTimeMillis() - 5000);
+		cache.update(expired);
+		cache.put("2:key", "data 2");
+		assertEquals(0, cache.getOverflowSize());
+
+		cache.getCacheAttributes().setMaxOverflowBytes(200);
+		for (int i = 3; i < 100; i++) {
+			cache.put(i + ":key", "data " + i);
+		}
+		assertTrue(cache.getOverflowSize() > 0);
+		assertTrue(cache.getOverflowSize() < 20);
+	}
+
+	/**
+	 * Checks that a staged element is taken back or removed before it is
+	 * written, and is not written afterwards.
+	 */
+	public void testStaged() throws IOException {
+		LRUMemoryCache cache = createCache("TestOverflowStaged", 1);
+		CacheAttributes cacheAttributes = cache.getCacheAttributes();
+		DiskOverflowStore store = new DiskOverflowStore(new File(directory,
+				cache.getCacheName() + DiskOverflowStore.SUFFIX), -1);
+		long now = System.currentTimeMillis();
+		try {
+			CacheElement taken = cache.createElement("1:key", "data 1");
+			store.stage(taken);
+			assertEquals(1, store.getSize());
+			assertSame(taken, store.take("1:key", cache, now));
+			assertFalse(store.writeStaged(taken, cacheAttributes, now));
+
+			CacheElement removed = cache.createElement("2:key", "data 2");
+			store.stage(removed);
+			assertTrue(store.remove("2:key"));
+			assertFalse(store.writeStaged(removed, cacheAttributes, now));
+			assertEquals(0, store.getSize());
+
+			CacheElement written = cache.createElement("3:key", "data 3");
+			store.stage(written);
+			assertTrue(store.writeStaged(written, cacheAttributes, now));
+			assertEquals(1, store.getSize());
+			assertEquals("data 3", store.take("3:key", cache, now).getValue());
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Checks that a miss reads the log without holding the lock of the cache,
+	 * and that a key put or removed meanwhile is not taken back.
+	 */
+	public void testTakeOutsideLock() throws IOException {
+		final LRUMemoryCache cache = createCache("TestOverflowTake", 1);
+		final List<String> actions = new ArrayList<String>();
+		cache.getCacheAttributes().setValueCodec(new CacheCodec<String>() {
+
+			private static final long serialVersionUID = 1L;
+
+			public Class<String> getType() {
+				return String.class;
+			}
+
+			public void encode(String object, DataOutput out)
+					throws IOException {
+				CacheCodecs.STRING.encode(object, out);
+			}
+
+			public String decode(DataInput in) throws IOException {
+				assertFalse(Thread.holdsLock(cache));
+				if (actions.contains("put")) {
+					cache.put("1:key", "data 1 again");
+				} else if (actions.contains("remove")) {
+					cache.remove("1:key");
+				}
+				return CacheCodecs.STRING.decode(in);
+			}
+		});
+		cache.put("1:key", "data 1");
+		cache.put("2:key", "data 2");
+		assertEquals(1, cache.getOverflowSize());
+		assertEquals("data 1", cache.get("1:key").getValue());
+
+		cache.put("2:key", "data 2");
+		actions.add("put");
+		assertEquals("data 1 again", cache.get("1:key").getValue());
+
+		cache.put("2:key", "data 2");
+		actions.set(0, "remove");
+		assertNull(cache.get("1:key"));
+		assertEquals(1, cache.getSize());
+		assertEquals(0, cache.getOverflowSize());
+		assertNull(cache.get("1:key"));
+		assertEquals(1, cache.getAll(Arrays.asList("1:key", "2:key")).size());
+	}
+
+	/**
+	 * Checks that the cleanup compacts a log holding mostly dead records.
+	 */
+	public void testCompaction() throws IOException {
+		LRUMemoryCache cache = createCache("TestOverflowCompaction", 1);
+		char[] chars = new char[8192];
+		Arrays.fill(chars, 'x');
+		String value = new String(chars);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < 300; i++) {
+			cache.put(Integer.valueOf(i), value + i);
+			keys.add(Integer.valueOf(i));
+		}
+		File log = new File(directory, cache.getCacheName()
+				+ DiskOverflowStore.SUFFIX);
+		long fullSize = log.length();
+		assertTrue(fullSize > 2 * DiskOverflowStore.MIN_COMPACTION_BYTES);
+
+		// leave two elements on disk
+		assertEquals(296, cache.removeAll(keys.subList(2, 298)));
+		cache.cleanup();
+		assertTrue(log.length() < 3 * 8300);
+		assertEquals(value + 0, cache.get(Integer.valueOf(0)).getValue());
+		assertEquals(value + 1, cache.get(Integer.valueOf(1)).getValue());
+		assertEquals(value + 299, cache.get(Integer.valueOf(299)).getValue());
+	}
+
+}
@@ -0,0 +1,219 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the expiry policies computing the lifetime of each element.
+ */
+public class ExpiryTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ExpiryTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ExpiryTest.class);
+	}
+
+	/**
+	 * A policy giving each element the number of seconds of its value.
+	 */
+	static class ValueSeconds implements Expiry {
+
+		private static final long serialVersionUID = 1L;
+
+		public long expireAfterCreate(Serializable key, Serializable value) {
+			return ((Integer) value).intValue();
+		}
+	}
+
+	/**
+	 * A policy giving each element 30 seconds more on every read.
+	 */
+	static class Sliding implements Expiry {
+
+		private static final long serialVersionUID = 1L;
+
+		public long expireAfterCreate(Serializable key, Serializable value) {
+			return 30;
+		}
+
+		public long expireAfterRead(Serializable key, Serializable value,
+				long currentSeconds) {
+			return 30;
+		}
+	}
+
+	/**
+	 * A policy adding 10 seconds to the lifetime of a replaced element.
+	 */
+	static class Extending implements Expiry {
+
+		private static final long serialVersionUID = 1L;
+
+		public long expireAfterCreate(Serializable key, Serializable value) {
+			return 10;
+		}
+
+		public long expireAfterUpdate(Serializable key, Serializable value,
+				long currentSeconds) {
+			return currentSeconds + 10;
+		}
+	}
+
+	/**
+	 * Creates a cache of a type timed by a fake ticker.
+	 *
+	 * @param memoryCacheType The type of the cache.
+	 * @param ticker The ticker.
+	 * @return the cache.
+	 */
+	private static AbstractMemoryCache createCache(
+			MemoryCacheType memoryCacheType, FakeTicker ticker) {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(memoryCacheType);
+		cacheAttributes.setTicker(ticker);
+		return (AbstractMemoryCache) new InMemoryCache().getCache("TestExpiry/"
+				+ memoryCacheType, cacheAttributes);
+	}
+
+	/**
+	 * Checks that the elements put with a policy live for different times,
+	 * and that a cleanup finds the expired ones.
+	 */
+	public void testExpireAfterCreate() throws IOException {
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String message = memoryCacheType.toString();
+			FakeTicker ticker = new FakeTicker();
+			AbstractMemoryCache cache = createCache(memoryCacheType, ticker);
+
+			for (int i = 0; i < 10; i++) {
+				cache.put(Long.valueOf(i), Integer.valueOf(10 * (i + 1)),
+						new ValueSeconds());
+			}
+			assertEquals(message, 20, cache.get(Long.valueOf(1))
+					.getMaxLifeSeconds());
+
+			ticker.advance(15, TimeUnit.SECONDS);
+			assertNull(message, cache.get(Long.valueOf(0)));
+			assertNotNull(message, cache.get(Long.valueOf(1)));
+
+			ticker.advance(30, TimeUnit.SECONDS);
+			cache.cleanup();
+			assertEquals(message, 6, cache.getSize());
+		}
+	}
+
+	/**
+	 * Checks that a read gives an element the lifetime of its policy.
+	 */
+	public void testExpireAfterRead() throws IOException {
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String message = memoryCacheType.toString();
+			FakeTicker ticker = new FakeTicker();
+			AbstractMemoryCache cache = createCache(memoryCacheType, ticker);
+
+			cache.put(Long.valueOf(1), "data 1", new Sliding());
+			cache.put(Long.valueOf(2), "data 2", new Sliding());
+			ticker.advance(20, TimeUnit.SECONDS);
+			assertNotNull(message, cache.get(Long.valueOf(1)));
+
+			ticker.advance(20, TimeUnit.SECONDS);
+			assertNotNull(message, cache.get(Long.valueOf(1)));
+			assertNull(message, cache.get(Long.valueOf(2)));
+
+			ticker.advance(31, TimeUnit.SECONDS);
+			assertNull(message, cache.get(Long.valueOf(1)));
+		}
+	}
+
+	/**
+	 * Checks the policy of a cache, and that replacing an element gets its
+	 * lifetime from the replaced one.
+	 */
+	public void testExpireAfterUpdate() throws IOException {
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String message = memoryCacheType.toString();
+			FakeTicker ticker = new FakeTicker();
+			AbstractMemoryCache cache = createCache(memoryCacheType, ticker);
+			CacheElementAttributes attributes = new CacheElementAttributes();
+			attributes.setExpiry(new Extending());
+			cache.setAttributes(attributes);
+
+			cache.put(Long.valueOf(1), "data 1");
+			cache.put(Long.valueOf(2), "data 2");
+			ticker.advance(5, TimeUnit.SECONDS);
+			cache.put(Long.valueOf(1), "data 1.1");
+
+			ticker.advance(14, TimeUnit.SECONDS);
+			assertNull(message, cache.get(Long.valueOf(2)));
+			assertEquals(message, "data 1.1", cache.get(Long.valueOf(1))
+					.getValue());
+
+			ticker.advance(2, TimeUnit.SECONDS);
+			assertNull(message, cache.get(Long.valueOf(1)));
+		}
+	}
+
+	/**
+	 * Checks that the elements of a cache with a policy keep sharing the
+	 * settings of the cache.
+	 */
+	public void testProfileShared() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		AbstractMemoryCache cache = createCache(MemoryCacheType.LRU, ticker);
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setExpiry(new Extending());
+		cache.setAttributes(attributes);
+
+		long now = cache.currentTimeMillis();
+		ElementProfile profile = cache.currentProfile(now);
+		assertSame(attributes.getExpiry(), profile.getExpiry());
+		cache.put(Long.valueOf(1), "data 1");
+		cache.put(Long.valueOf(2), "data 2");
+		assertSame(profile, cache.currentProfile(now));
+	}
+
+	/**
+	 * Checks that a lifetime moved on every read is kept on the elements,
+	 * which keep sharing the settings of the cache.
+	 */
+	public void testSlidingExpiryKeepsProfile() throws IOException {
+		FakeTicker ticker = new FakeTicker();
+		AbstractMemoryCache cache = createCache(MemoryCacheType.LRU, ticker);
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setExpiry(new Sliding());
+		cache.setAttributes(attributes);
+
+		ElementProfile profile = cache.currentProfile(cache
+				.currentTimeMillis());
+		cache.put(Long.valueOf(1), "data 1");
+		cache.put(Long.valueOf(2), "data 2");
+		for (int i = 1; i <= 3; i++) {
+			ticker.advance(10, TimeUnit.SECONDS);
+			CacheElement first = cache.get(Long.valueOf(1));
+			CacheElement second = cache.get(Long.valueOf(2));
+			assertEquals(10 * i + 30, first.getMaxLifeSeconds());
+			assertSame(profile, first.getProfile());
+			assertSame(profile, second.getProfile());
+		}
+		ticker.advance(31, TimeUnit.SECONDS);
+		assertNull(cache.get(Long.valueOf(1)));
+	}
+
+}
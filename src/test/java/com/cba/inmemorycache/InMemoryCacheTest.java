@@ -1,6 +1,16 @@
 package com.cba.inmemorycache;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -79,17 +89,600 @@ public class InMemoryCacheTest extends TestCase {
 	}
 
 	/**
-	 * Adds items to cache with TTL of 10 seconds, wait for 11 seconds and check
-	 * that cached objects are removed from the cache.
-	 * 
-	 * @throws InterruptedException
+	 * Adds items to cache, accesses some of them again and checks that
+	 * freeElements removes the least recently used items first.
 	 */
-	public void testExpiredCacheObjects() throws IOException,
-			InterruptedException {
-		String cacheName = "TestExpiredCachedObjects";
+	public void testFreeElementsRemovesLeastRecentlyUsed() throws IOException {
+		String cacheName = "TestFreeElements";
 		InMemoryCache memoryCache = InMemoryCache.getInstance();
 		LRUMemoryCache lruCache = (LRUMemoryCache) memoryCache
 				.getCache(cacheName);
+
+		// Add items to cache
+		for (int i = 0; i < items; i++) {
+			lruCache.put(i + ":key", cacheName + " data " + i);
+		}
+
+		// Access the first 10 items so they become the most recently used
+		for (int i = 0; i < 10; i++) {
+			assertNotNull(lruCache.get(i + ":key"));
+		}
+
+		// Replace item 10, which makes it the most recently used as well
+		lruCache.put("10:key", cacheName + " new data 10");
+
+		assertEquals(items - 11, lruCache.freeElements(items - 11));
+		assertEquals(11, lruCache.getSize());
+
+		for (int i = 0; i <= 10; i++) {
+			assertNotNull("Recently used object should be cached: " + i
+					+ ":key", lruCache.get(i + ":key"));
+		}
+		assertEquals(cacheName + " new data 10", lruCache.get("10:key")
+				.getValue());
+		for (int i = 11; i < items; i++) {
+			assertNull("Least recently used object should be freed: " + i
+					+ ":key", lruCache.get(i + ":key"));
+		}
+
+		// Freeing more than what is cached only frees what is there
+		assertEquals(11, lruCache.freeElements(items));
+		assertEquals(0, lruCache.getSize());
+	}
+
+	/**
+	 * Adds more items than the cache can hold and checks that the least
+	 * recently used items are evicted on put.
+	 */
+	public void testMaxEntriesEvictsOnPut() throws IOException {
+		String cacheName = "TestMaxEntries";
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMaxEntries(100);
+		LRUMemoryCache lruCache = (LRUMemoryCache) InMemoryCache
+				.getInstance().getCache(cacheName, cacheAttributes);
+
+		// Add items to cache, touching the first item to keep it
+		for (int i = 0; i < items; i++) {
+			lruCache.put(i + ":key", cacheName + " data " + i);
+			assertNotNull(lruCache.get("0:key"));
+		}
+
+		assertEquals("There should be only 100 elements in the cache.", 100,
+				lruCache.getSize());
+		assertEquals(items - 100, lruCache.getEvictionCount());
+		assertNotNull(lruCache.get("0:key"));
+		for (int i = 1; i <= items - 100; i++) {
+			assertNull("Evicted object should be null: " + i + ":key",
+					lruCache.get(i + ":key"));
+		}
+		for (int i = items - 99; i < items; i++) {
+			assertNotNull("Cached object should not be null: " + i + ":key",
+					lruCache.get(i + ":key"));
+		}
+	}
+
+	/**
+	 * Bounds the cache by weight and checks that a heavy item evicts several
+	 * items in batches, spread over the following puts and the cleanup.
+	 */
+	public void testMaxWeightEvictsInBatches() throws IOException {
+		String cacheName = "TestMaxWeight";
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMaxWeight(100);
+		cacheAttributes.setMaxEvictionsPerPut(2);
+		cacheAttributes.setWeigher(new Weigher() {
+			private static final long serialVersionUID = 1L;
+
+			public int weigh(Serializable key, Serializable value) {
+				return ((String) value).length();
+			}
+		});
+		LRUMemoryCache lruCache = (LRUMemoryCache) InMemoryCache
+				.getInstance().getCache(cacheName, cacheAttributes);
+
+		// Ten items weighing 10 fill the cache
+		for (int i = 0; i < 10; i++) {
+			lruCache.put(i + ":key", "0123456789");
+		}
+		assertEquals(100, lruCache.getWeightedSize());
+		assertEquals(0, lruCache.getEvictionCount());
+
+		// An item weighing 50 only evicts two items inline
+		lruCache.put("heavy", "01234567890123456789012345678901234567890123456789");
+		assertEquals(9, lruCache.getSize());
+		assertEquals(130, lruCache.getWeightedSize());
+		assertEquals(2, lruCache.getEvictionCount());
+
+		// The cleanup evicts the rest
+		lruCache.cleanup();
+		assertEquals(6, lruCache.getSize());
+		assertEquals(100, lruCache.getWeightedSize());
+		assertEquals(5, lruCache.getEvictionCount());
+		assertNotNull(lruCache.get("heavy"));
+		assertNull(lruCache.get("4:key"));
+		assertNotNull(lruCache.get("5:key"));
+
+		// Replacing an item updates the weight
+		lruCache.put("heavy", "0123456789");
+		assertEquals(60, lruCache.getWeightedSize());
+		lruCache.remove("heavy");
+		assertEquals(50, lruCache.getWeightedSize());
+	}
+
+	/**
+	 * Fills a segmented cache from several threads and checks that the limit
+	 * is kept for the cache as a whole.
+	 */
+	public void testSegmentedCacheKeepsGlobalBound() throws Exception {
+		String cacheName = "TestSegmentedCache";
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.SEGMENTED_LRU);
+		cacheAttributes.setConcurrencyLevel(4);
+		cacheAttributes.setMaxEntries(items / 2);
+		final SegmentedLRUMemoryCache cache = (SegmentedLRUMemoryCache) InMemoryCache
+				.getInstance().getCache(cacheName, cacheAttributes);
+		assertEquals(4, cache.getSegmentCount());
+
+		Thread[] writers = new Thread[4];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < writers.length; t++) {
+			final int offset = t * items;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < items; i++) {
+							cache.put((offset + i) + ":key", "data " + i);
+							cache.get((offset + i / 2) + ":key");
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure[0]);
+
+		assertTrue("The cache should not exceed its limit: " + cache.getSize(),
+				cache.getSize() <= items / 2);
+		assertEquals(writers.length * items - cache.getSize(),
+				cache.getEvictionCount());
+
+		cache.removeAll();
+		for (int i = 0; i < 10; i++) {
+			cache.put(i + ":key", "data " + i);
+		}
+		Thread.sleep(5);
+		assertNotNull(cache.get("0:key"));
+		assertEquals(5, cache.freeElements(5));
+		assertNotNull("The most recently used object should remain",
+				cache.get("0:key"));
+		assertEquals(5, cache.getSize());
+	}
+
+	/**
+	 * Fills a segmented cache whose limit the segments do not divide evenly
+	 * from several threads, and checks that the shares of the segments add
+	 * up to the limit, with no element evicted below it.
+	 */
+	public void testSegmentedCacheUnevenLimit() throws Exception {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.SEGMENTED_LRU);
+		cacheAttributes.setConcurrencyLevel(16);
+		cacheAttributes.setMaxEntries(1000);
+		final SegmentedLRUMemoryCache cache = (SegmentedLRUMemoryCache) InMemoryCache
+				.getInstance().getCache("TestSegmentedUnevenCache",
+						cacheAttributes);
+		assertEquals(16, cache.getSegmentCount());
+
+		Thread[] writers = new Thread[4];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < writers.length; t++) {
+			final int offset = t * 5000;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 5000; i++) {
+							cache.put((offset + i) + ":key", "data " + i);
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure[0]);
+
+		// every segment is full, and holds exactly its share
+		assertEquals(1000, cache.getSize());
+		assertEquals(writers.length * 5000 - 1000, cache.getEvictionCount());
+	}
+
+	/**
+	 * Checks that a segmented cache whose limit is below its number of
+	 * segments keeps as many elements as the limit, in LRU order.
+	 */
+	public void testSegmentedCacheSmallerThanSegments() throws Exception {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.SEGMENTED_LRU);
+		cacheAttributes.setConcurrencyLevel(16);
+		cacheAttributes.setMaxEntries(8);
+		SegmentedLRUMemoryCache cache = (SegmentedLRUMemoryCache) InMemoryCache
+				.getInstance().getCache("TestSegmentedSmallCache",
+						cacheAttributes);
+		assertEquals(16, cache.getSegmentCount());
+
+		for (int i = 0; i < 8; i++) {
+			cache.put(i + ":key", "data " + i);
+			assertEquals("data " + i, cache.get(i + ":key").getValue());
+			Thread.sleep(2);
+		}
+		assertEquals(8, cache.getSize());
+
+		cache.put("8:key", "data 8");
+		assertEquals(8, cache.getSize());
+		assertNull("The least recently used object should be evicted",
+				cache.get("0:key"));
+		for (int i = 1; i <= 8; i++) {
+			assertNotNull(cache.get(i + ":key"));
+		}
+	}
+
+	/**
+	 * Puts, gets and removes batches of items in every cache implementation.
+	 */
+	public void testBulkOperations() throws IOException {
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			String cacheName = "TestBulk" + memoryCacheType;
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(memoryCacheType);
+			cacheAttributes.setConcurrencyLevel(4);
+			cacheAttributes.setRecordLatency(true);
+			MemoryCache cache = InMemoryCache.getInstance().getCache(
+					cacheName, cacheAttributes);
+
+			Map<Integer, String> batch = new HashMap<Integer, String>();
+			for (int i = 0; i < 100; i++) {
+				batch.put(Integer.valueOf(i), "data " + i);
+			}
+			cache.putAll(batch);
+			assertEquals(memoryCacheType.toString(), 100, cache.getSize());
+
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 50; i < 150; i++) {
+				keys.add(Integer.valueOf(i));
+			}
+			Map<Serializable, CacheElement> found = cache.getAll(keys);
+			assertEquals(memoryCacheType.toString(), 50, found.size());
+			for (int i = 50; i < 100; i++) {
+				assertEquals("data " + i, found.get(Integer.valueOf(i))
+						.getValue());
+			}
+			assertFalse(found.containsKey(Integer.valueOf(100)));
+
+			assertEquals(memoryCacheType.toString(), 50, cache.removeAll(keys));
+			assertEquals(50, cache.getSize());
+			assertNull(cache.get(Integer.valueOf(50)));
+			assertNotNull(cache.get(Integer.valueOf(49)));
+
+			CacheStats stats = cache.getStats();
+			assertEquals(memoryCacheType + ": " + stats, 51, stats.getHitCount());
+			assertEquals(memoryCacheType + ": " + stats, 51, stats.getMissCount());
+			assertEquals(memoryCacheType + ": " + stats, 100, stats.getPutCount());
+			assertEquals(memoryCacheType + ": " + stats, 50, stats.getRemovalCount());
+			if (memoryCacheType != MemoryCacheType.CONCURRENT_LRU
+					&& memoryCacheType != MemoryCacheType.OFF_HEAP) {
+				// only the single get and put record their latency
+				assertEquals(memoryCacheType.toString(), 2, stats
+						.getGetLatency().getCount());
+				assertEquals(memoryCacheType.toString(), 0, stats
+						.getPutLatency().getCount());
+			}
+
+			batch.put(Integer.valueOf(200), null);
+			try {
+				cache.putAll(batch);
+				fail(memoryCacheType + ": a null value should be refused");
+			} catch (IOException e) {
+				assertEquals(100, cache.getStats().getPutCount());
+			}
+		}
+	}
+
+	/**
+	 * Lists the keys of every cache implementation a page at a time while
+	 * removing the keys listed and putting new ones, as a rebalance does, and
+	 * checks that every key kept from the start is listed.
+	 */
+	public void testKeysInPages() throws IOException {
+		InMemoryCache manager = new InMemoryCache();
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(memoryCacheType);
+			AbstractMemoryCache cache = (AbstractMemoryCache) manager.getCache(
+					"TestKeysInPages" + memoryCacheType, cacheAttributes);
+			for (int i = 0; i < 2000; i++) {
+				cache.put(Integer.valueOf(i), "data " + i);
+			}
+
+			Set<Integer> listed = new HashSet<Integer>();
+			int added = 0;
+			for (Iterator<Serializable> keys = cache.keys(100); keys.hasNext();) {
+				Serializable key = keys.next();
+				// the long key cache boxes its keys as longs
+				int k = ((Number) key).intValue();
+				listed.add(Integer.valueOf(k));
+				if (k % 2 == 0) {
+					cache.remove(key);
+				}
+				if (added < 2000) {
+					cache.put(Integer.valueOf(10000 + added++), "new data");
+				}
+			}
+			for (int i = 0; i < 2000; i++) {
+				assertTrue(memoryCacheType + " should list " + i, listed
+						.contains(Integer.valueOf(i)));
+			}
+		}
+	}
+
+	/**
+	 * Puts the elements read from a cache into another cache, reads, puts
+	 * and removes keys in both, and checks that the size of each cache
+	 * matches its elements, and that every element listed is found.
+	 */
+	public void testElementsMovedBetweenCaches() throws IOException {
+		InMemoryCache manager = new InMemoryCache();
+		for (MemoryCacheType memoryCacheType : MemoryCacheType.values()) {
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setMemoryCacheType(memoryCacheType);
+			cacheAttributes.setMaxEntries(50);
+			AbstractMemoryCache cacheA = (AbstractMemoryCache) manager
+					.getCache("TestMovedA" + memoryCacheType, cacheAttributes);
+			AbstractMemoryCache cacheB = (AbstractMemoryCache) manager
+					.getCache("TestMovedB" + memoryCacheType, cacheAttributes);
+			for (int i = 0; i < 100; i++) {
+				cacheA.put(Integer.valueOf(i), "data " + i);
+			}
+
+			for (int i = 0; i < 1000; i++) {
+				Integer key = Integer.valueOf(i * 7 % 100);
+				CacheElement ce = cacheA.get(key);
+				if (ce != null) {
+					cacheB.update(ce);
+				} else {
+					cacheA.put(key, "data " + key);
+				}
+				if (i % 3 == 0) {
+					cacheB.remove(Integer.valueOf(i * 11 % 100));
+				}
+				if (i % 5 == 0) {
+					cacheA.remove(Integer.valueOf(i * 13 % 100));
+				}
+				cacheB.get(Integer.valueOf(i * 17 % 100));
+			}
+
+			for (AbstractMemoryCache cache : new AbstractMemoryCache[] {
+					cacheA, cacheB }) {
+				List<CacheElement> elements = cache.getElementsInAccessOrder();
+				assertEquals(memoryCacheType + " size", elements.size(), cache
+						.getSize());
+				for (CacheElement ce : elements) {
+					CacheElement found = cache.get(ce.getKey());
+					assertNotNull(memoryCacheType + " should find "
+							+ ce.getKey(), found);
+					assertEquals("data " + ce.getKey(), found.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads items from a concurrent cache and checks that the buffered reads
+	 * are taken into account when the least recently used items are evicted.
+	 */
+	public void testConcurrentCacheReplaysBufferedReads() throws IOException {
+		String cacheName = "TestConcurrentCache";
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.CONCURRENT_LRU);
+		ConcurrentLRUMemoryCache cache = (ConcurrentLRUMemoryCache) InMemoryCache
+				.getInstance().getCache(cacheName, cacheAttributes);
+
+		for (int i = 0; i < items; i++) {
+			cache.put(i + ":key", cacheName + " data " + i);
+		}
+
+		// Read the first 10 items, more often than a read buffer stripe holds
+		for (int n = 0; n < 5; n++) {
+			for (int i = 0; i < 10; i++) {
+				assertEquals(cacheName + " data " + i, cache.get(i + ":key")
+						.getValue());
+			}
+		}
+
+		assertEquals(items - 10, cache.freeElements(items - 10));
+		for (int i = 0; i < 10; i++) {
+			assertNotNull("Recently read object should be cached: " + i
+					+ ":key", cache.get(i + ":key"));
+		}
+		assertEquals(10, cache.getSize());
+
+		assertTrue(cache.remove("0:key"));
+		assertFalse(cache.remove("0:key"));
+		cache.cleanup();
+		assertEquals(9, cache.getSize());
+		assertEquals(9, cache.getWeightedSize());
+		assertEquals(items - 10, cache.getEvictionCount());
+	}
+
+	/**
+	 * Creates a cache manager whose cache named "A-Broken" fails on cleanup.
+	 * 
+	 * @param cleanups
+	 *            Counts the cleanups of the broken cache.
+	 * @return the cache manager.
+	 */
+	private InMemoryCache createManagerWithBrokenCache(final int[] cleanups) {
+		return new InMemoryCache() {
+			protected MemoryCache createCache(String cacheName,
+					CacheAttributes cacheAttributes) {
+				if (!cacheName.equals("A-Broken")) {
+					return super.createCache(cacheName, cacheAttributes);
+				}
+				return new LRUMemoryCache(cacheName) {
+					private static final long serialVersionUID = 1L;
+
+					protected boolean cleanup(int maxToRemove)
+							throws IOException {
+						cleanups[0]++;
+						throw new IOException("Broken cache");
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Checks that a failing cache does not keep the following caches from
+	 * being cleaned up.
+	 */
+	public void testCleanupIsolatesFailingCaches() throws IOException {
+		int[] cleanups = new int[1];
+		InMemoryCache memoryCache = createManagerWithBrokenCache(cleanups);
+		memoryCache.getCache("A-Broken");
+		LRUMemoryCache lruCache = (LRUMemoryCache) memoryCache
+				.getCache("B-Cache");
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setMaxIdleTimeSeconds(2);
+		lruCache.setAttributes(attributes);
+
+		for (int i = 0; i < 10; i++) {
+			lruCache.put(i + ":key", "data " + i);
+			lruCache.get(i + ":key").setLastAccessTime(
+					System.currentTimeMillis() - 5000);
+		}
+
+		memoryCache.run();
+
+		assertEquals(1, cleanups[0]);
+		assertEquals(0, lruCache.getSize());
+	}
+
+	/**
+	 * Checks that the background maintenance removes expired items, in both
+	 * maintenance modes.
+	 */
+	public void testBackgroundMaintenance() throws Exception {
+		MaintenanceMode[] modes = MaintenanceMode.values();
+		for (int m = 0; m < modes.length; m++) {
+			int[] cleanups = new int[1];
+			InMemoryCache memoryCache = createManagerWithBrokenCache(cleanups);
+			memoryCache.getCache("A-Broken");
+
+			MaintenanceAttributes maintenanceAttributes = new MaintenanceAttributes();
+			maintenanceAttributes.setMode(modes[m]);
+			maintenanceAttributes.setIntervalMillis(50);
+			memoryCache.startMaintenance(maintenanceAttributes);
+			assertTrue(memoryCache.isMaintenanceRunning());
+
+			// a cache created after the start is maintained as well
+			LRUMemoryCache lruCache = (LRUMemoryCache) memoryCache
+					.getCache("B-Cache");
+			CacheElementAttributes attributes = new CacheElementAttributes();
+			attributes.setMaxLifeSeconds(1);
+			lruCache.setAttributes(attributes);
+			for (int i = 0; i < items; i++) {
+				lruCache.put(i + ":key", "data " + i);
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (lruCache.getSize() > 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			memoryCache.stopMaintenance();
+			assertFalse(memoryCache.isMaintenanceRunning());
+
+			assertEquals("Expired objects should be removed in mode "
+					+ modes[m], 0, lruCache.getSize());
+			assertTrue(cleanups[0] > 0);
+		}
+	}
+
+	/**
+	 * Removes a cache maintained by its own thread, waits for the thread to
+	 * end, recreates the cache and checks that it is maintained again.
+	 */
+	public void testMaintenanceOfRecreatedCache() throws Exception {
+		InMemoryCache memoryCache = new InMemoryCache();
+		memoryCache.getCache("TestRecreated");
+		final List<Thread> threads = new ArrayList<Thread>();
+		MaintenanceAttributes maintenanceAttributes = new MaintenanceAttributes();
+		maintenanceAttributes.setMode(MaintenanceMode.THREAD_PER_CACHE);
+		maintenanceAttributes.setIntervalMillis(20);
+		maintenanceAttributes.setThreadFactory(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task);
+				thread.setDaemon(true);
+				synchronized (threads) {
+					threads.add(thread);
+				}
+				return thread;
+			}
+		});
+		memoryCache.startMaintenance(maintenanceAttributes);
+		try {
+			assertTrue(memoryCache.removeCache("TestRecreated"));
+			Thread first;
+			synchronized (threads) {
+				assertEquals(1, threads.size());
+				first = threads.get(0);
+			}
+			first.join(5000);
+			assertFalse(first.isAlive());
+
+			LRUMemoryCache lruCache = (LRUMemoryCache) memoryCache
+					.getCache("TestRecreated");
+			CacheElementAttributes attributes = new CacheElementAttributes();
+			attributes.setMaxLifeSeconds(1);
+			lruCache.setAttributes(attributes);
+			for (int i = 0; i < items; i++) {
+				lruCache.put(i + ":key", "data " + i);
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (lruCache.getSize() > 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(0, lruCache.getSize());
+			synchronized (threads) {
+				assertEquals(2, threads.size());
+			}
+		} finally {
+			memoryCache.stopMaintenance();
+		}
+	}
+
+	/**
+	 * Adds items to cache with TTL of 10 seconds, moves the ticker of the
+	 * cache 11 seconds forward and check that cached objects are removed from
+	 * the cache.
+	 */
+	public void testExpiredCacheObjects() throws IOException {
+		String cacheName = "TestExpiredCachedObjects";
+		InMemoryCache memoryCache = InMemoryCache.getInstance();
+		FakeTicker ticker = new FakeTicker();
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setTicker(ticker);
+		LRUMemoryCache lruCache = (LRUMemoryCache) memoryCache.getCache(
+				cacheName, cacheAttributes);
 		CacheElementAttributes attributes = new CacheElementAttributes();
 		attributes.setMaxLifeSeconds(10);
 		lruCache.setAttributes(attributes);
@@ -104,9 +697,15 @@ public class InMemoryCacheTest extends TestCase {
 			assertNotNull(lruCache.get(i + ":key"));
 		}
 
-		// Adding 11 seconds sleep before checking if the items will be removed
+		// 10 seconds later the items are still cached
+		ticker.advance(10, TimeUnit.SECONDS);
+		for (int i = 0; i < items; i++) {
+			assertNotNull(lruCache.get(i + ":key"));
+		}
+
+		// Move 11 seconds forward before checking if the items will be removed
 		// from cache
-		Thread.sleep(11000);
+		ticker.advance(1, TimeUnit.SECONDS);
 
 		// Test that items have been removed as time to live has exceeded
 		for (int i = 0; i < items; i++) {
@@ -115,6 +714,37 @@ public class InMemoryCacheTest extends TestCase {
 
 	}
 
+	/**
+	 * Checks that a maintenance pass removes the expired items in batches,
+	 * stops once its budget is spent and leaves the rest to the next pass.
+	 */
+	public void testCleanupInBatches() throws IOException {
+		String cacheName = "TestCleanupInBatches";
+		InMemoryCache memoryCache = new InMemoryCache();
+		FakeTicker ticker = new FakeTicker();
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setTicker(ticker);
+		LRUMemoryCache lruCache = (LRUMemoryCache) memoryCache.getCache(
+				cacheName, cacheAttributes);
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setMaxLifeSeconds(10);
+		lruCache.setAttributes(attributes);
+		for (int i = 0; i < items; i++) {
+			lruCache.put(i + ":key", cacheName + " data " + i);
+		}
+		ticker.advance(11, TimeUnit.SECONDS);
+
+		// a pass without budget runs a single batch
+		assertFalse(memoryCache.maintainCache(cacheName, 50, 0));
+		assertEquals(items - 50, lruCache.getSize());
+		assertFalse(memoryCache.maintainCache(cacheName, 50, 0));
+		assertEquals(items - 100, lruCache.getSize());
+
+		assertTrue(memoryCache.maintainCache(cacheName, 50, Long.MAX_VALUE));
+		assertEquals(0, lruCache.getSize());
+		assertEquals(items, lruCache.getStats().getExpirationCount());
+	}
+
 	/**
 	 * Adds items to cache with TTL of 2 seconds, set create time and last
 	 * access time to 5 seconds ago for the first 10 items. Check that the first
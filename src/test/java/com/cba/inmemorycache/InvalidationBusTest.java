@@ -0,0 +1,179 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the invalidation of the caches of the other nodes.
+ */
+public class InvalidationBusTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public InvalidationBusTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(InvalidationBusTest.class);
+	}
+
+	/**
+	 * A loopback transport recording the size of the largest message sent.
+	 */
+	static class RecordingTransport extends LoopbackTransport {
+
+		int largestMessage;
+
+		RecordingTransport() {
+		}
+
+		RecordingTransport(LoopbackTransport peer) {
+			super(peer);
+		}
+
+		public void send(byte[] message, int length) throws IOException {
+			largestMessage = Math.max(largestMessage, length);
+			super.send(message, length);
+		}
+	}
+
+	/**
+	 * Fills a cache with 100 keys.
+	 *
+	 * @param cache The cache.
+	 */
+	private static void fill(MemoryCache cache) throws IOException {
+		for (int i = 0; i < 100; i++) {
+			cache.put("key " + i, "data " + i);
+		}
+	}
+
+	/**
+	 * Checks that the writes through the view invalidate the keys of the
+	 * peer, and that the peer does not publish them again.
+	 */
+	public void testInvalidation() throws IOException {
+		InMemoryCache node1 = new InMemoryCache();
+		InMemoryCache node2 = new InMemoryCache();
+		LoopbackTransport transport1 = new LoopbackTransport();
+		try {
+			InvalidationBus bus1 = node1.startInvalidationBus(transport1);
+			InvalidationBus bus2 = node2
+					.startInvalidationBus(new LoopbackTransport(transport1));
+			InvalidatingMemoryCache cache1 = node1
+					.getInvalidatingCache("TestInvalidation");
+			MemoryCache cache2 = node2.getCache("TestInvalidation");
+			fill(cache1.getCache());
+			fill(cache2);
+
+			cache1.remove("key 1");
+			cache1.put("key 2", "data 2.1");
+			cache1.put("key 2", "data 2.2");
+			bus1.flush();
+			assertNull(cache2.get("key 1"));
+			assertNull(cache2.get("key 2"));
+			assertEquals("data 3", cache2.get("key 3").getValue());
+			assertEquals("data 2.2", cache1.get("key 2").getValue());
+			assertEquals(bus1.getSentInvalidations(), bus2
+					.getAppliedInvalidations());
+			assertEquals(0, bus2.getSentMessages());
+
+			cache1.removeAll();
+			bus1.flush();
+			assertEquals(0, cache2.getSize());
+		} finally {
+			node1.stopInvalidationBus();
+			node2.stopInvalidationBus();
+		}
+	}
+
+	/**
+	 * Checks that a large batch is split into messages under the size limit,
+	 * and that the keys of the caches a peer does not have are skipped.
+	 */
+	public void testBatches() throws IOException {
+		InMemoryCache node1 = new InMemoryCache();
+		InMemoryCache node2 = new InMemoryCache();
+		RecordingTransport transport1 = new RecordingTransport();
+		try {
+			InvalidationBus bus1 = node1.startInvalidationBus(transport1);
+			InvalidationBus bus2 = node2
+					.startInvalidationBus(new RecordingTransport(transport1));
+			CacheAttributes cacheAttributes = new CacheAttributes();
+			cacheAttributes.setKeyCodec(CacheCodecs.LONG);
+			InvalidatingMemoryCache unknown = node1.getInvalidatingCache(
+					"TestInvalidationUnknown", cacheAttributes);
+			InvalidatingMemoryCache cache1 = node1.getInvalidatingCache(
+					"TestInvalidationBatches", cacheAttributes);
+			MemoryCache cache2 = node2.getCache("TestInvalidationBatches",
+					cacheAttributes);
+
+			Map<Serializable, Serializable> map = new HashMap<Serializable, Serializable>();
+			for (long i = 0; i < 1000; i++) {
+				map.put(Long.valueOf(i), "data " + i);
+			}
+			cache2.putAll(map);
+			unknown.putAll(map);
+			cache1.putAll(map);
+			bus1.flush();
+
+			assertEquals(0, cache2.getSize());
+			assertEquals(2000, bus1.getSentInvalidations());
+			assertTrue(bus1.getSentMessages() > 1);
+			assertTrue(transport1.largestMessage <= InvalidationBus.MESSAGE_BYTES);
+			assertEquals(bus1.getSentMessages(), bus2.getReceivedMessages());
+			assertEquals(1000, bus2.getAppliedInvalidations());
+			assertFalse(node2.hasCache("TestInvalidationUnknown"));
+		} finally {
+			node1.stopInvalidationBus();
+			node2.stopInvalidationBus();
+		}
+	}
+
+	/**
+	 * Checks that the bus sends the keys in the background.
+	 */
+	public void testBackgroundSend() throws Exception {
+		InMemoryCache node1 = new InMemoryCache();
+		InMemoryCache node2 = new InMemoryCache();
+		LoopbackTransport transport1 = new LoopbackTransport();
+		try {
+			node1.startInvalidationBus(transport1);
+			InvalidationBus bus2 = node2
+					.startInvalidationBus(new LoopbackTransport(transport1));
+			InvalidatingMemoryCache cache1 = node1
+					.getInvalidatingCache("TestInvalidationBackground");
+			MemoryCache cache2 = node2.getCache("TestInvalidationBackground");
+			fill(cache2);
+
+			for (int i = 0; i < 10; i++) {
+				cache1.remove("key " + i);
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (bus2.getAppliedInvalidations() < 10
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(90, cache2.getSize());
+		} finally {
+			node1.stopInvalidationBus();
+			node2.stopInvalidationBus();
+		}
+		assertNull(node1.getInvalidationBus());
+	}
+
+}
@@ -0,0 +1,353 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the loading caches.
+ */
+public class LoadingMemoryCacheTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public LoadingMemoryCacheTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(LoadingMemoryCacheTest.class);
+	}
+
+	/**
+	 * A loader that waits for a latch, so that all the callers miss the key
+	 * while it is being loaded.
+	 */
+	private static class BlockingLoader implements CacheLoader<String> {
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		final AtomicInteger loadCount = new AtomicInteger();
+
+		volatile boolean fail;
+
+		public String load(Serializable key) throws Exception {
+			loadCount.incrementAndGet();
+			release.await();
+			if (fail) {
+				throw new IllegalStateException("database down");
+			}
+			return "data " + key;
+		}
+	}
+
+	/**
+	 * Checks that concurrent misses on a key share a single load.
+	 */
+	public void testConcurrentMissesShareLoad() throws Exception {
+		final LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingShared");
+		assertSame(cache, InMemoryCache.getInstance().getLoadingCache(
+				"TestLoadingShared"));
+
+		final BlockingLoader loader = new BlockingLoader();
+		ExecutorService threads = Executors.newFixedThreadPool(16);
+		try {
+			Future<?>[] results = new Future<?>[16];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = threads.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return cache.get("1:key", loader);
+					}
+				});
+			}
+			while (cache.getLoadingCount() == 0) {
+				Thread.sleep(1);
+			}
+			// let the other callers reach the load in flight
+			Thread.sleep(100);
+			loader.release.countDown();
+
+			for (int i = 0; i < results.length; i++) {
+				assertEquals("data 1:key", results[i].get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			threads.shutdown();
+		}
+
+		assertEquals(1, loader.loadCount.get());
+		assertEquals(0, cache.getLoadingCount());
+		assertEquals("data 1:key", cache.get("1:key").getValue());
+		assertEquals(1, cache.getStats().getLoadSuccessCount());
+	}
+
+	/**
+	 * Checks that a failed load is reported to all the callers waiting for
+	 * it, and that the next miss loads again.
+	 */
+	public void testFailedLoad() throws Exception {
+		final LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingFailed");
+		final BlockingLoader loader = new BlockingLoader();
+		loader.fail = true;
+
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] results = new Future<?>[4];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = threads.submit(new Callable<String>() {
+					public String call() throws IOException {
+						return cache.get("1:key", loader);
+					}
+				});
+			}
+			while (cache.getLoadingCount() == 0) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(100);
+			loader.release.countDown();
+
+			for (int i = 0; i < results.length; i++) {
+				try {
+					results[i].get(10, TimeUnit.SECONDS);
+					fail("The load failed");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+					assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+				}
+			}
+		} finally {
+			threads.shutdown();
+		}
+		assertEquals(1, loader.loadCount.get());
+		assertNull(cache.get("1:key"));
+
+		loader.fail = false;
+		assertEquals("data 1:key", cache.get("1:key", loader));
+		assertEquals(2, loader.loadCount.get());
+
+		CacheStats stats = cache.getStats();
+		assertEquals(1, stats.getLoadSuccessCount());
+		assertEquals(1, stats.getLoadFailureCount());
+	}
+
+	/**
+	 * Checks the loads on the executor of the cache.
+	 */
+	public void testAsyncLoad() throws Exception {
+		LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingAsync");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		cache.setExecutor(executor);
+		try {
+			BlockingLoader loader = new BlockingLoader();
+			CompletableFuture<String> first = cache.getAsync("1:key", loader);
+			CompletableFuture<String> second = cache.getAsync("1:key", loader);
+			assertFalse(first.isDone());
+
+			// cancelling a caller's future leaves the shared load running
+			second.cancel(false);
+			loader.release.countDown();
+			assertEquals("data 1:key", first.get(10, TimeUnit.SECONDS));
+			assertEquals(1, loader.loadCount.get());
+
+			CompletableFuture<String> hit = cache.getAsync("1:key", loader);
+			assertTrue(hit.isDone());
+			assertEquals("data 1:key", hit.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Checks that a read of an element due for a refresh returns its value
+	 * and reloads it in the background.
+	 */
+	public void testRefreshAhead() throws Exception {
+		LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingRefresh");
+		((AbstractMemoryCache) cache.getCache()).getAttributes()
+				.setRefreshAfterSeconds(60);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		cache.setExecutor(executor);
+
+		CacheElement old = new CacheElement("TestLoadingRefresh", "1:key",
+				"old data");
+		old.setMaxLifeSeconds(120);
+		old.setRefreshAfterSeconds(60);
+		old.setCreateTime(System.currentTimeMillis() - 90 * 1000);
+		cache.update(old);
+
+		CacheLoader<String> loader = new CacheLoader<String>() {
+			public String load(Serializable key) {
+				return "new data";
+			}
+		};
+		try {
+			assertEquals("old data", cache.get("1:key", loader));
+		} finally {
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		}
+
+		CacheElement refreshed = cache.get("1:key");
+		assertEquals("new data", refreshed.getValue());
+		assertEquals(60, refreshed.getRefreshAfterSeconds());
+		assertFalse(refreshed.isRefreshDue(System.currentTimeMillis()));
+		assertEquals(1, cache.getStats().getLoadSuccessCount());
+	}
+
+	/**
+	 * Puts an element due for a refresh into a loading cache.
+	 *
+	 * @param cache The loading cache.
+	 * @param key The key of the element.
+	 * @exception IOException Error when updating the cache.
+	 */
+	private void putDueElement(LoadingMemoryCache cache, String key)
+			throws IOException {
+		CacheElement old = new CacheElement("TestLoadingRefreshRace", key,
+				"old data");
+		old.setMaxLifeSeconds(120);
+		old.setRefreshAfterSeconds(60);
+		old.setCreateTime(System.currentTimeMillis() - 90 * 1000);
+		cache.update(old);
+	}
+
+	/**
+	 * Waits for the tasks submitted so far to a single thread executor.
+	 *
+	 * @param executor The executor.
+	 * @exception Exception The wait failed or timed out.
+	 */
+	private void awaitTasks(ExecutorService executor) throws Exception {
+		executor.submit(new Runnable() {
+			public void run() {
+			}
+		}).get(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Checks that a refresh does not revert a put made while reloading, that
+	 * a reload finding no value removes the element, and that a failed
+	 * reload is not retried on every read.
+	 */
+	public void testRefreshKeepsConcurrentWrites() throws Exception {
+		LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingRefreshRace");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		cache.setExecutor(executor);
+		try {
+			putDueElement(cache, "1:key");
+			BlockingLoader loader = new BlockingLoader();
+			assertEquals("old data", cache.get("1:key", loader));
+			cache.put("1:key", "newer data");
+			loader.release.countDown();
+			awaitTasks(executor);
+			assertEquals("newer data", cache.get("1:key").getValue());
+
+			putDueElement(cache, "2:key");
+			CacheLoader<String> none = new CacheLoader<String>() {
+				public String load(Serializable key) {
+					return null;
+				}
+			};
+			assertEquals("old data", cache.get("2:key", none));
+			awaitTasks(executor);
+			assertNull(cache.get("2:key"));
+
+			putDueElement(cache, "3:key");
+			BlockingLoader failing = new BlockingLoader();
+			failing.fail = true;
+			failing.release.countDown();
+			assertEquals("old data", cache.get("3:key", failing));
+			awaitTasks(executor);
+			assertEquals("old data", cache.get("3:key", failing));
+			assertEquals(0, cache.getLoadingCount());
+			assertEquals(1, failing.loadCount.get());
+		} finally {
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Checks that the misses of a bulk read are loaded with a single call.
+	 */
+	public void testBulkLoad() throws IOException {
+		LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingBulk");
+		cache.put("1:key", "data 1:key");
+
+		final List<Collection<Serializable>> calls = new ArrayList<Collection<Serializable>>();
+		CacheLoader<String> loader = new CacheLoader<String>() {
+			public String load(Serializable key) {
+				throw new UnsupportedOperationException();
+			}
+
+			public Map<Serializable, String> loadAll(
+					Collection<Serializable> keys) {
+				calls.add(new ArrayList<Serializable>(keys));
+				Map<Serializable, String> values = new HashMap<Serializable, String>();
+				for (Serializable key : keys) {
+					if (!"4:key".equals(key)) {
+						values.put(key, "data " + key);
+					}
+				}
+				return values;
+			}
+		};
+
+		Map<Serializable, String> values = cache.getAll(Arrays.asList(
+				"1:key", "2:key", "3:key", "4:key"), loader);
+		assertEquals(Arrays.asList("1:key", "2:key", "3:key"),
+				new ArrayList<Serializable>(values.keySet()));
+		assertEquals("data 3:key", values.get("3:key"));
+		assertEquals(1, calls.size());
+		assertEquals(Arrays.asList("2:key", "3:key", "4:key"), calls.get(0));
+		assertEquals(3, cache.getSize());
+		assertEquals(1, cache.getStats().getLoadSuccessCount());
+	}
+
+	/**
+	 * Checks that a key the loader finds no value for is not cached.
+	 */
+	public void testNullValue() throws IOException {
+		LoadingMemoryCache cache = InMemoryCache.getInstance()
+				.getLoadingCache("TestLoadingNull");
+		CacheLoader<String> loader = new CacheLoader<String>() {
+			public String load(Serializable key) {
+				return null;
+			}
+		};
+		assertNull(cache.get("1:key", loader));
+		assertEquals(0, cache.getSize());
+		assertEquals(1, cache.getStats().getLoadFailureCount());
+	}
+
+}
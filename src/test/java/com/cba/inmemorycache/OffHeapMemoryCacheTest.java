@@ -0,0 +1,180 @@
+package com.cba.inmemorycache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for OffHeapMemoryCache.
+ */
+public class OffHeapMemoryCacheTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public OffHeapMemoryCacheTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(OffHeapMemoryCacheTest.class);
+	}
+
+	/**
+	 * Creates an off-heap cache.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param maxEntries
+	 *            The maximum number of elements, -1 for no limit.
+	 * @param maxOffHeapBytes
+	 *            The maximum off-heap memory, -1 for no limit.
+	 * @return the cache.
+	 */
+	private OffHeapMemoryCache createCache(String cacheName, int maxEntries,
+			long maxOffHeapBytes) {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(MemoryCacheType.OFF_HEAP);
+		cacheAttributes.setMaxEntries(maxEntries);
+		cacheAttributes.setMaxOffHeapBytes(maxOffHeapBytes);
+		return (OffHeapMemoryCache) InMemoryCache.getInstance().getCache(
+				cacheName, cacheAttributes);
+	}
+
+	/**
+	 * Checks that values spanning several blocks are read back, and that
+	 * replaced and removed values give their memory back.
+	 */
+	public void testValuesAreStoredOffHeap() throws IOException {
+		OffHeapMemoryCache cache = createCache("TestOffHeapValues", -1, -1);
+		int[] large = new int[1000];
+		Arrays.fill(large, 7);
+		cache.put("small", "data");
+		cache.put("large", large);
+
+		assertEquals("data", cache.get("small").getValue());
+		assertTrue(Arrays.equals(large, (int[]) cache.get("large").getValue()));
+		assertTrue(cache.getOffHeapUsedBytes() > 4000);
+
+		long used = cache.getOffHeapUsedBytes();
+		cache.put("small", "more");
+		assertEquals(used, cache.getOffHeapUsedBytes());
+		assertEquals("more", cache.get("small").getValue());
+
+		assertTrue(cache.remove("large"));
+		assertTrue(cache.getOffHeapUsedBytes() < 200);
+		cache.removeAll();
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getOffHeapAllocatedBytes());
+	}
+
+	/**
+	 * Checks that the least recently used elements are evicted when the
+	 * values outgrow the off-heap memory, or the cache its max entries.
+	 */
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		OffHeapMemoryCache cache = createCache("TestOffHeapEviction", -1,
+				16 * OffHeapStore.BLOCK_SIZE);
+		for (int i = 0; i < 50; i++) {
+			cache.put(i + ":key", "data " + i);
+			// keep the first key hot
+			assertNotNull(cache.get("0:key"));
+		}
+		assertTrue(cache.getSize() <= 16);
+		assertTrue(cache.getEvictionCount() >= 34);
+		assertNotNull(cache.get("0:key"));
+		assertNotNull(cache.get("49:key"));
+		assertNull(cache.get("1:key"));
+		assertTrue(cache.getOffHeapAllocatedBytes() <= 16 * OffHeapStore.BLOCK_SIZE);
+
+		int size = cache.getSize();
+		long evictions = cache.getEvictionCount();
+		try {
+			cache.put("too-large", new byte[32 * OffHeapStore.BLOCK_SIZE]);
+			fail("A value larger than the off-heap memory should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			cache.put("49:key", new byte[32 * OffHeapStore.BLOCK_SIZE]);
+			fail("A value larger than the off-heap memory should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		// the rejected puts neither evicted nor replaced anything
+		assertEquals(size, cache.getSize());
+		assertEquals(evictions, cache.getEvictionCount());
+		assertEquals("data 49", cache.get("49:key").getValue());
+		assertNotNull(cache.get("0:key"));
+
+		OffHeapMemoryCache bounded = createCache("TestOffHeapMaxEntries", 10,
+				-1);
+		for (int i = 0; i < 50; i++) {
+			bounded.put(i + ":key", "data " + i);
+		}
+		assertEquals(10, bounded.getSize());
+		assertNull(bounded.get("39:key"));
+		assertNotNull(bounded.get("40:key"));
+	}
+
+	/**
+	 * Checks that expired elements are removed when they are read.
+	 */
+	public void testExpiry() throws IOException {
+		OffHeapMemoryCache cache = createCache("TestOffHeapExpiry", -1, -1);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			CacheElement ce = new CacheElement("TestOffHeapExpiry", i + ":key",
+					"data " + i);
+			ce.setCreateTime(now - 5000);
+			ce.setMaxLifeSeconds(i < 5 ? 2 : 3600);
+			cache.update(ce);
+		}
+
+		for (int i = 0; i < 5; i++) {
+			assertNull(cache.get(i + ":key"));
+		}
+		assertEquals(5, cache.getSize());
+		assertEquals(3600, cache.get("5:key").getMaxLifeSeconds());
+	}
+
+	/**
+	 * Checks that a serialized cache keeps its elements in LRU order.
+	 */
+	public void testSerialization() throws Exception {
+		OffHeapMemoryCache cache = createCache("TestOffHeapSerialization", 3,
+				-1);
+		cache.put("a", "data a");
+		cache.put("b", "data b");
+		cache.put("c", "data c");
+		cache.get("a");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(cache);
+		out.close();
+		OffHeapMemoryCache copy = (OffHeapMemoryCache) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		assertEquals(3, copy.getSize());
+		assertEquals("data a", copy.get("a").getValue());
+		copy.put("d", "data d");
+		// b is the least recently used
+		assertNull(copy.get("b"));
+		assertNotNull(copy.get("c"));
+	}
+
+}
@@ -0,0 +1,310 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the cache partitioned over shards by a consistent hash ring.
+ */
+public class PartitionedMemoryCacheTest extends TestCase {
+
+	/** The number of keys put into the caches */
+	private static final int KEYS = 12000;
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public PartitionedMemoryCacheTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PartitionedMemoryCacheTest.class);
+	}
+
+	/**
+	 * Puts the keys into a cache.
+	 *
+	 * @param cache The cache.
+	 */
+	private static void fill(MemoryCache cache) throws IOException {
+		Map<Serializable, Serializable> map = new HashMap<Serializable, Serializable>();
+		for (int i = 0; i < KEYS; i++) {
+			map.put("key " + i, "data " + i);
+		}
+		cache.putAll(map);
+	}
+
+	/**
+	 * Records the shard of every key.
+	 *
+	 * @param cache The cache.
+	 * @return the names of the shards, by key.
+	 */
+	private static Map<String, String> owners(PartitionedMemoryCache cache) {
+		Map<String, String> owners = new HashMap<String, String>();
+		for (int i = 0; i < KEYS; i++) {
+			owners.put("key " + i, cache.getShardName("key " + i));
+		}
+		return owners;
+	}
+
+	/**
+	 * Checks that every key is found with its value.
+	 *
+	 * @param cache The cache.
+	 */
+	private static void assertAllFound(MemoryCache cache) throws IOException {
+		List<Serializable> keys = new ArrayList<Serializable>();
+		for (int i = 0; i < KEYS; i++) {
+			keys.add("key " + i);
+		}
+		Map<Serializable, CacheElement> found = cache.getAll(keys);
+		assertEquals(KEYS, found.size());
+		for (int i = 0; i < KEYS; i++) {
+			assertEquals("data " + i, found.get("key " + i).getValue());
+		}
+		assertEquals(KEYS, cache.getSize());
+	}
+
+	/**
+	 * Checks that the keys are spread evenly over the shards, and that the
+	 * operations reach the shard of their key.
+	 */
+	public void testRouting() throws IOException {
+		InMemoryCache manager = new InMemoryCache();
+		PartitionedMemoryCache cache = new PartitionedMemoryCache(
+				"TestPartitioned");
+		for (int i = 0; i < 4; i++) {
+			cache.addShard("shard " + i, manager.getCache("TestPartitioned-"
+					+ i));
+		}
+		fill(cache);
+		assertAllFound(cache);
+		for (String shardName : cache.getShardNames()) {
+			int size = cache.getShard(shardName).getSize();
+			assertTrue(shardName + " holds " + size, size > KEYS / 4 * 0.7
+					&& size < KEYS / 4 * 1.3);
+		}
+
+		MemoryCache shard = cache.getShard(cache.getShardName("key 1"));
+		assertEquals("data 1", shard.get("key 1").getValue());
+		assertTrue(cache.remove("key 1"));
+		assertNull(shard.get("key 1"));
+		cache.put("key 1", "data 1.1");
+		assertEquals("data 1.1", shard.get("key 1").getValue());
+		// the gets of the keys and the two hits on the shard
+		assertEquals(KEYS + 2, cache.getStats().getHitCount());
+
+		cache.removeAll();
+		assertEquals(0, cache.getSize());
+	}
+
+	/**
+	 * Checks that adding a shard moves only the keys it takes over, and that
+	 * removing a shard moves only its own keys.
+	 */
+	public void testRebalance() throws IOException {
+		InMemoryCache manager = new InMemoryCache();
+		PartitionedMemoryCache cache = new PartitionedMemoryCache(
+				"TestRebalance");
+		for (int i = 0; i < 3; i++) {
+			cache.addShard("shard " + i, manager
+					.getCache("TestRebalance-" + i));
+		}
+		fill(cache);
+		Map<String, String> before = owners(cache);
+
+		int moved = cache.addShard("shard 3", manager
+				.getCache("TestRebalance-3"));
+		assertEquals(moved, cache.getShard("shard 3").getSize());
+		assertTrue(moved > KEYS / 4 * 0.7 && moved < KEYS / 4 * 1.3);
+		Map<String, String> after = owners(cache);
+		for (Map.Entry<String, String> owner : after.entrySet()) {
+			String previousOwner = before.get(owner.getKey());
+			assertTrue(owner.getValue().equals(previousOwner)
+					|| owner.getValue().equals("shard 3"));
+		}
+		assertAllFound(cache);
+
+		int size = cache.getShard("shard 1").getSize();
+		assertEquals(size, cache.removeShard("shard 1"));
+		assertEquals(0, manager.getCache("TestRebalance-1").getSize());
+		assertNull(cache.getShard("shard 1"));
+		for (Map.Entry<String, String> owner : owners(cache).entrySet()) {
+			if (!after.get(owner.getKey()).equals("shard 1")) {
+				assertEquals(after.get(owner.getKey()), owner.getValue());
+			}
+		}
+		assertAllFound(cache);
+	}
+
+	/**
+	 * Puts and removes moving keys between the read of a batch from the shard
+	 * losing them and its write to the new shard, and checks that the
+	 * rebalance neither overwrites the put nor brings back the removed key.
+	 */
+	public void testWritesWhileRebalancing() throws IOException {
+		final PartitionedMemoryCache cache = new PartitionedMemoryCache(
+				"TestWritesWhileRebalancing");
+		final List<Serializable> touched = new ArrayList<Serializable>();
+		LRUMemoryCache source = new LRUMemoryCache(
+				"TestWritesWhileRebalancing-0") {
+			private static final long serialVersionUID = 1L;
+
+			public Map<Serializable, CacheElement> getAll(
+					Collection<? extends Serializable> keys) throws IOException {
+				Map<Serializable, CacheElement> found = super.getAll(keys);
+				if (touched.isEmpty() && keys.size() > 1) {
+					// the batch is read, write two of its keys meanwhile
+					Iterator<? extends Serializable> it = keys.iterator();
+					touched.add(it.next());
+					touched.add(it.next());
+					cache.put(touched.get(0), "written meanwhile");
+					cache.remove(touched.get(1));
+				}
+				return found;
+			}
+		};
+		cache.addShard("shard 0", source);
+		fill(cache);
+
+		int moved = cache.addShard("shard 1", new LRUMemoryCache(
+				"TestWritesWhileRebalancing-1"));
+		assertEquals(2, touched.size());
+		assertEquals("written meanwhile", cache.get(touched.get(0)).getValue());
+		assertNull(cache.get(touched.get(1)));
+		assertEquals(KEYS - 1, cache.getSize());
+		// the put is on the new shard, but was not moved
+		assertEquals(moved + 1, cache.getShard("shard 1").getSize());
+	}
+
+	/**
+	 * Fails the removal of a batch from a removed shard, and checks that the
+	 * keys left on the shard are still found until the rebalance is finished.
+	 */
+	public void testFailedRebalance() throws IOException {
+		PartitionedMemoryCache cache = new PartitionedMemoryCache(
+				"TestFailedRebalance");
+		final boolean[] failing = new boolean[1];
+		cache.addShard("shard 0", new LRUMemoryCache("TestFailedRebalance-0") {
+			private static final long serialVersionUID = 1L;
+
+			public int removeAll(Collection<? extends Serializable> keys)
+					throws IOException {
+				if (failing[0]) {
+					throw new IOException("Shard down");
+				}
+				return super.removeAll(keys);
+			}
+		});
+		cache.addShard("shard 1", new LRUMemoryCache("TestFailedRebalance-1"));
+		fill(cache);
+		MemoryCache removed = cache.getShard("shard 0");
+		int size = removed.getSize();
+
+		failing[0] = true;
+		try {
+			cache.removeShard("shard 0");
+			fail("The removal of the batch should fail");
+		} catch (IOException e) {
+			assertEquals("Shard down", e.getMessage());
+		}
+		assertEquals(Arrays.asList("shard 1"), cache.getShardNames());
+		assertEquals(size, removed.getSize());
+		for (int i = 0; i < KEYS; i++) {
+			assertEquals("data " + i, cache.get("key " + i).getValue());
+		}
+
+		failing[0] = false;
+		assertEquals(size, cache.finishRebalance());
+		assertEquals(0, removed.getSize());
+		assertEquals(0, cache.finishRebalance());
+		assertAllFound(cache);
+	}
+
+	/**
+	 * Checks that a moved element keeps the life it had left.
+	 */
+	public void testLifetimeMoved() throws IOException {
+		InMemoryCache manager = new InMemoryCache();
+		PartitionedMemoryCache cache = new PartitionedMemoryCache(
+				"TestLifetimeMoved");
+		cache.addShard("shard 0", manager.getCache("TestLifetimeMoved-0"));
+		Expiry expiry = new Expiry() {
+			private static final long serialVersionUID = 1L;
+
+			public long expireAfterCreate(Serializable key, Serializable value) {
+				return 60;
+			}
+		};
+		for (int i = 0; i < 100; i++) {
+			cache.put("key " + i, "data " + i, expiry);
+		}
+		int moved = cache.addShard("shard 1", manager
+				.getCache("TestLifetimeMoved-1"));
+		assertTrue(moved > 0);
+		MemoryCache shard = cache.getShard("shard 1");
+		for (int i = 0; i < 100; i++) {
+			if (cache.getShardName("key " + i).equals("shard 1")) {
+				long maxLife = shard.get("key " + i).getMaxLifeSeconds();
+				assertTrue(maxLife > 0 && maxLife <= 60);
+			}
+		}
+	}
+
+	/**
+	 * Checks the shards served by a cache server, whose keys are streamed
+	 * in pages when rebalancing.
+	 */
+	public void testRemoteShards() throws Exception {
+		InMemoryCache manager = new InMemoryCache();
+		CacheServer server = new CacheServer(manager, new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0));
+		server.start();
+		CacheClient client = CacheClient.connect(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), server.getPort()));
+		try {
+			PartitionedMemoryCache cache = new PartitionedMemoryCache(
+					"TestRemoteShards");
+			cache.addShard("remote 0", client.getCache("TestRemoteShards-0"));
+			cache.addShard("remote 1", client.getCache("TestRemoteShards-1"));
+			fill(cache);
+
+			int moved = cache.addShard("remote 2", client
+					.getCache("TestRemoteShards-2"));
+			assertTrue(moved > KEYS / 3 * 0.7 && moved < KEYS / 3 * 1.3);
+			assertEquals(moved, manager.getCache("TestRemoteShards-2")
+					.getSize());
+			assertAllFound(cache);
+
+			int size = manager.getCache("TestRemoteShards-0").getSize();
+			assertEquals(size, cache.removeShard("remote 0"));
+			assertEquals(0, manager.getCache("TestRemoteShards-0").getSize());
+			assertAllFound(cache);
+		} finally {
+			client.close();
+			server.stop();
+		}
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for LongKeyMemoryCache and IntKeyMemoryCache.
+ */
+public class PrimitiveKeyMemoryCacheTest extends TestCase {
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public PrimitiveKeyMemoryCacheTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PrimitiveKeyMemoryCacheTest.class);
+	}
+
+	/**
+	 * Creates a bounded cache of the given type.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param memoryCacheType
+	 *            The implementation of the cache.
+	 * @param maxEntries
+	 *            The maximum number of elements.
+	 * @return the cache.
+	 */
+	private MemoryCache createCache(String cacheName,
+			MemoryCacheType memoryCacheType, int maxEntries) {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(memoryCacheType);
+		cacheAttributes.setMaxEntries(maxEntries);
+		return InMemoryCache.getInstance().getCache(cacheName, cacheAttributes);
+	}
+
+	/**
+	 * Replays random puts, gets and removes against the cache and an LRU
+	 * model, so the shifts of the open addressing table and the links of the
+	 * moved elements are checked.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testMatchesLruModel() throws IOException {
+		final int maxEntries = 500;
+		LongKeyMemoryCache<String> cache = (LongKeyMemoryCache<String>) createCache(
+				"TestLongKeyModel", MemoryCacheType.LONG_KEY, maxEntries);
+		Map<Long, String> model = new LinkedHashMap<Long, String>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+				return size() > maxEntries;
+			}
+		};
+
+		Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			// keys spread over a few clusters to cause long probe sequences
+			long key = random.nextInt(1000) + (random.nextInt(3) << 40);
+			int op = random.nextInt(10);
+			if (op < 5) {
+				assertEquals(model.get(key), cache.get(key));
+			} else if (op < 9) {
+				String value = "data " + i;
+				cache.put(key, value);
+				model.put(key, value);
+			} else {
+				assertEquals(model.remove(key) != null, cache.remove(key));
+			}
+			assertEquals(model.size(), cache.getSize());
+		}
+
+		// the least recently used elements are evicted first
+		Long[] order = model.keySet().toArray(new Long[0]);
+		assertEquals(10, cache.freeElements(10));
+		for (int i = 0; i < order.length; i++) {
+			assertEquals(i >= 10, cache.get(order[i].longValue()) != null);
+		}
+	}
+
+	/**
+	 * Checks the <code>MemoryCache</code> methods, with boxed keys and the TTL
+	 * settings of the elements.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testMemoryCacheMethods() throws IOException {
+		IntKeyMemoryCache<String> cache = (IntKeyMemoryCache<String>) createCache(
+				"TestIntKeyMemoryCache", MemoryCacheType.INT_KEY, -1);
+		CacheElementAttributes attributes = new CacheElementAttributes();
+		attributes.setMaxLifeSeconds(60);
+		cache.setAttributes(attributes);
+
+		cache.put(Integer.valueOf(1), "one");
+		cache.put(2, "two");
+		assertEquals("one", cache.get(1));
+		CacheElement ce = cache.get(Long.valueOf(2));
+		assertEquals("two", ce.getValue());
+		assertEquals(60, ce.getMaxLifeSeconds());
+		try {
+			cache.get("not a number");
+			fail("A key that is not a number should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		CacheElement expired = new CacheElement("TestIntKeyMemoryCache",
+				Integer.valueOf(3), "three");
+		expired.setCreateTime(System.currentTimeMillis() - 5000);
+		expired.setMaxLifeSeconds(2);
+		cache.update(expired);
+		assertEquals(3, cache.getSize());
+		cache.cleanup();
+		assertEquals(2, cache.getSize());
+		assertNull(cache.get(3));
+
+		try {
+			cache.put("key", "value");
+			fail("A key that is not a number should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(cache.remove(Integer.valueOf(1)));
+		cache.removeAll();
+		assertEquals(0, cache.getSize());
+	}
+
+	/**
+	 * Checks that the boxed keys that are not integral or out of the range of
+	 * the keys are rejected, instead of being narrowed to another key.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testKeysOutOfRange() throws IOException {
+		IntKeyMemoryCache<String> intCache = (IntKeyMemoryCache<String>) createCache(
+				"TestIntKeyRange", MemoryCacheType.INT_KEY, -1);
+		intCache.put(1, "one");
+		try {
+			intCache.put(Long.valueOf(4294967297L), "big");
+			fail("A key out of the int range should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals("one", intCache.get(1));
+		assertEquals(1, intCache.getSize());
+		intCache.put(Short.valueOf((short) 2), "two");
+		assertEquals("two", intCache.get(2));
+
+		LongKeyMemoryCache<String> longCache = (LongKeyMemoryCache<String>) createCache(
+				"TestLongKeyRange", MemoryCacheType.LONG_KEY, -1);
+		longCache.put(5L, "five");
+		try {
+			longCache.get(Double.valueOf(5.7d));
+			fail("A fraction should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			longCache.remove(Double.valueOf(5d));
+			fail("A key that is not integral should be rejected");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals("five", longCache.get(Integer.valueOf(5)).getValue());
+	}
+
+	/**
+	 * Checks that hits do not allocate, where the JVM can measure the
+	 * allocations of a thread.
+	 */
+	@SuppressWarnings("unchecked")
+	public void testHitsDoNotAllocate() throws IOException {
+		java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		LongKeyMemoryCache<String> cache = (LongKeyMemoryCache<String>) createCache(
+				"TestLongKeyAllocation", MemoryCacheType.LONG_KEY, -1);
+		for (long key = 0; key < 1000; key++) {
+			cache.put(key, "data " + key);
+		}
+
+		long hits = 0;
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for (int n = 0; n < 100; n++) {
+			for (long key = 0; key < 1000; key++) {
+				if (cache.get(key) != null) {
+					hits++;
+				}
+			}
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+		assertEquals(100000, hits);
+		assertTrue("Hits allocated " + allocated + " bytes", allocated < 1024);
+	}
+
+}
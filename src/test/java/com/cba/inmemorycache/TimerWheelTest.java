@@ -0,0 +1,166 @@
+package com.cba.inmemorycache;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TimerWheel.
+ */
+public class TimerWheelTest extends TestCase {
+
+	/**
+	 * Start time of the wheel, a whole second so the times of the elements
+	 * are kept exactly however far it is from their epoch.
+	 */
+	private static final long START = 1780000000000L;
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public TimerWheelTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(TimerWheelTest.class);
+	}
+
+	/**
+	 * Creates an element created at the start time with the given TTL.
+	 *
+	 * @param key
+	 *            The key of the element.
+	 * @param maxLifeSeconds
+	 *            The TTL of the element.
+	 * @return the element.
+	 */
+	private CacheElement element(String key, long maxLifeSeconds) {
+		CacheElement ce = new CacheElement("TestTimerWheel", key, "data");
+		ce.setCreateTime(START);
+		ce.setLastAccessTime(START);
+		ce.setMaxLifeSeconds(maxLifeSeconds);
+		return ce;
+	}
+
+	/**
+	 * Checks that elements expire once their deadline has passed, whichever
+	 * level of the wheel they were scheduled on.
+	 */
+	public void testElementsExpireAtTheirDeadline() {
+		TimerWheel wheel = new TimerWheel(START);
+		CacheElement seconds = element("seconds", 10);
+		CacheElement minutes = element("minutes", 5 * 60);
+		CacheElement hours = element("hours", 3 * 3600);
+		CacheElement never = element("never", -1);
+		wheel.schedule(seconds);
+		wheel.schedule(minutes);
+		wheel.schedule(hours);
+		wheel.schedule(never);
+
+		assertTrue(wheel.advance(START + 5000).isEmpty());
+
+		List<CacheElement> expired = wheel.advance(START + 12000);
+		assertEquals(1, expired.size());
+		assertSame(seconds, expired.get(0));
+
+		assertTrue(wheel.advance(START + 299000).isEmpty());
+		expired = wheel.advance(START + 302000);
+		assertEquals(1, expired.size());
+		assertSame(minutes, expired.get(0));
+
+		// advance in steps, as a maintenance thread would do
+		for (long t = START + 310000; t < START + 3 * 3600 * 1000; t += 60000) {
+			assertTrue(wheel.advance(t).isEmpty());
+		}
+		expired = wheel.advance(START + 3 * 3600 * 1000 + 2000);
+		assertEquals(1, expired.size());
+		assertSame(hours, expired.get(0));
+		assertNull(never.timerWheel);
+	}
+
+	/**
+	 * Checks that an element whose deadline moves later is scheduled again
+	 * when its bucket is visited, and one whose deadline moves earlier through
+	 * a setter expires on the next advance.
+	 */
+	public void testDeadlineChanges() {
+		TimerWheel wheel = new TimerWheel(START);
+		CacheElement idle = element("idle", -1);
+		idle.setMaxIdleTimeSeconds(10);
+		CacheElement shortened = element("shortened", 3600);
+		wheel.schedule(idle);
+		wheel.schedule(shortened);
+
+		// an access moves the idle deadline later
+		idle.setLastAccessTime(START + 8000);
+		assertTrue(wheel.advance(START + 12000).isEmpty());
+
+		// the setter moves the deadline earlier and queues the element
+		shortened.setMaxLifeSeconds(5);
+		List<CacheElement> expired = wheel.advance(START + 13000);
+		assertEquals(1, expired.size());
+		assertSame(shortened, expired.get(0));
+
+		expired = wheel.advance(START + 20000);
+		assertEquals(1, expired.size());
+		assertSame(idle, expired.get(0));
+	}
+
+	/**
+	 * Checks that descheduled and cleared elements do not expire.
+	 */
+	public void testDescheduleAndClear() {
+		TimerWheel wheel = new TimerWheel(START);
+		CacheElement removed = element("removed", 1);
+		CacheElement cleared = element("cleared", 1);
+		wheel.schedule(removed);
+		wheel.schedule(cleared);
+
+		wheel.deschedule(removed);
+		assertNull(removed.timerWheel);
+		wheel.clear();
+		assertNull(cleared.timerWheel);
+
+		assertTrue(wheel.advance(START + 10000).isEmpty());
+	}
+
+	/**
+	 * Checks that the expired elements are handed out in batches, and that
+	 * an overdue element removed in between is not handed out.
+	 */
+	public void testExpiredInBatches() {
+		TimerWheel wheel = new TimerWheel(START);
+		CacheElement[] elements = new CacheElement[25];
+		for (int i = 0; i < elements.length; i++) {
+			elements[i] = element(i + ":key", 1);
+			wheel.schedule(elements[i]);
+		}
+
+		List<CacheElement> expired = wheel.advance(START + 3000, 10);
+		assertEquals(10, expired.size());
+		assertTrue(wheel.hasOverdue());
+		for (CacheElement ce : expired) {
+			assertNull(ce.timerWheel);
+		}
+
+		// the overdue elements are still tracked until they are handed out
+		CacheElement removed = elements[24];
+		assertSame(wheel, removed.timerWheel);
+		wheel.deschedule(removed);
+
+		assertEquals(10, wheel.advance(START + 3000, 10).size());
+		assertEquals(4, wheel.advance(START + 4000, 10).size());
+		assertFalse(wheel.hasOverdue());
+		assertTrue(wheel.advance(START + 5000, 10).isEmpty());
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.cba.inmemorycache;
+
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TinyLfuMemoryCache.
+ */
+public class TinyLfuMemoryCacheTest extends TestCase {
+
+	/**
+	 * Maximum number of items in the cache.
+	 */
+	private static int maxEntries = 100;
+
+	/**
+	 * Create the test case
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public TinyLfuMemoryCacheTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(TinyLfuMemoryCacheTest.class);
+	}
+
+	/**
+	 * Creates a bounded cache of the given type.
+	 *
+	 * @param cacheName
+	 *            The name of the cache.
+	 * @param memoryCacheType
+	 *            The implementation of the cache.
+	 * @return the cache.
+	 */
+	private MemoryCache createCache(String cacheName,
+			MemoryCacheType memoryCacheType) {
+		CacheAttributes cacheAttributes = new CacheAttributes();
+		cacheAttributes.setMemoryCacheType(memoryCacheType);
+		cacheAttributes.setMaxEntries(maxEntries);
+		return InMemoryCache.getInstance().getCache(cacheName, cacheAttributes);
+	}
+
+	/**
+	 * Reads a key and puts it into the cache on a miss, like a caller would.
+	 *
+	 * @param cache
+	 *            The cache.
+	 * @param key
+	 *            The key to be read.
+	 * @return true on a hit.
+	 */
+	private boolean access(MemoryCache cache, String key) throws IOException {
+		if (cache.get(key) != null) {
+			return true;
+		}
+		cache.put(key, "data " + key);
+		return false;
+	}
+
+	/**
+	 * Counts the hits of the hot keys after a scan over cold keys.
+	 *
+	 * @param cache
+	 *            The cache.
+	 * @return the number of hot keys still cached after the scan.
+	 */
+	private int hotHitsAfterScan(MemoryCache cache) throws IOException {
+		// Use 50 hot keys several times
+		for (int n = 0; n < 5; n++) {
+			for (int i = 0; i < 50; i++) {
+				access(cache, i + ":hot");
+			}
+		}
+
+		// Scan 1000 cold keys once
+		for (int i = 0; i < 1000; i++) {
+			access(cache, i + ":cold");
+		}
+
+		int hits = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get(i + ":hot") != null) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Checks that a scan over cold keys does not flush the hot keys, while it
+	 * does with the LRU policy.
+	 */
+	public void testScanDoesNotFlushHotKeys() throws IOException {
+		MemoryCache tinyLfu = createCache("TestTinyLfuScan",
+				MemoryCacheType.TINY_LFU);
+		MemoryCache lru = createCache("TestLruScan", MemoryCacheType.LRU);
+
+		int tinyLfuHits = hotHitsAfterScan(tinyLfu);
+		int lruHits = hotHitsAfterScan(lru);
+
+		assertEquals("LRU should have been flushed by the scan", 0, lruHits);
+		assertTrue("Most hot keys should survive the scan: " + tinyLfuHits,
+				tinyLfuHits >= 45);
+		assertTrue(tinyLfu.getSize() <= maxEntries);
+		assertEquals(50 + 1000 - tinyLfu.getSize(),
+				((TinyLfuMemoryCache) tinyLfu).getEvictionCount());
+	}
+
+	/**
+	 * Checks that replacing, removing and freeing items keeps the cache
+	 * consistent.
+	 */
+	public void testRemoveAndFreeElements() throws IOException {
+		TinyLfuMemoryCache cache = (TinyLfuMemoryCache) createCache(
+				"TestTinyLfuRemove", MemoryCacheType.TINY_LFU);
+
+		for (int i = 0; i < maxEntries; i++) {
+			cache.put(i + ":key", "data " + i);
+			cache.get(i + ":key");
+		}
+		assertEquals(maxEntries, cache.getSize());
+		assertEquals(maxEntries, cache.getWeightedSize());
+
+		cache.put("0:key", "new data 0");
+		assertEquals("new data 0", cache.get("0:key").getValue());
+		assertEquals(maxEntries, cache.getSize());
+
+		assertTrue(cache.remove("1:key"));
+		assertFalse(cache.remove("1:key"));
+		assertEquals(maxEntries - 1, cache.getWeightedSize());
+
+		assertEquals(maxEntries - 1, cache.freeElements(maxEntries));
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getWeightedSize());
+	}
+
+	/**
+	 * Checks that the sketch counts up to 15 and halves its counters once the
+	 * sample size is reached.
+	 */
+	public void testFrequencySketchAging() {
+		FrequencySketch sketch = new FrequencySketch(64);
+		String key = "key";
+
+		for (int i = 0; i < 20; i++) {
+			sketch.increment(key);
+		}
+		assertEquals(15, sketch.frequency(key));
+		assertEquals(0, sketch.frequency("other"));
+
+		// 640 increments in total reach the sample size
+		for (int i = 0; i < 640; i++) {
+			sketch.increment(Integer.valueOf(i));
+		}
+		assertTrue("The frequency should have been halved: "
+				+ sketch.frequency(key), sketch.frequency(key) <= 7);
+	}
+
+}